@@ -0,0 +1,182 @@
+package fr.uge.net.tcp.nonblocking.bench;
+
+import fr.uge.net.tcp.nonblocking.packet.Packet;
+import fr.uge.net.tcp.nonblocking.packet.PacketReader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.makeAuthenticationPacket;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.makeGeneralMessagePacket;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketType.AUTH;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketType.GMSG;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.DONE;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.ERROR;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.REFILL;
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.BUFFER_MAX_SIZE;
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.silentlyClose;
+
+/**
+ * Broadcast workload used to compare the engines of the server.
+ * <br>
+ * Connects {@code clients} clients, then every client sends {@code messages} general messages
+ * as fast as possible. Each message is delivered to every other client, so the server has to deliver
+ * {@code clients * messages * (clients - 1)} messages. Prints the time needed to deliver them all,
+ * the throughput and the latency percentiles (from the sending to the reception of a message).
+ * <br>
+ * Usage : {@code LoadGenerator hostname port clients messages}
+ */
+public final class LoadGenerator {
+    private static final String PREFIX = "load ";
+
+    /**
+     * A connected client reading its messages on its own thread.
+     */
+    private static final class Client {
+        private final ByteBuffer bbIn = ByteBuffer.allocate(BUFFER_MAX_SIZE);
+        private final PacketReader reader = new PacketReader();
+        private final SocketChannel sc;
+        private final String pseudo;
+        private final long[] latencies;
+        private int received = 0;
+
+        private Client(SocketChannel sc, String pseudo, int expected) {
+            this.sc = sc;
+            this.pseudo = pseudo;
+            this.latencies = new long[expected];
+        }
+
+        /**
+         * Authenticates the client and waits for the answer of the server.
+         * @throws IOException if the authentication fails.
+         */
+        private void authenticate() throws IOException {
+            write(sc, makeAuthenticationPacket(pseudo).toBuffer());
+            while (sc.read(bbIn) != -1) {
+                var status = reader.process(bbIn);
+                if (status == REFILL) continue;
+                var packet = status == DONE ? reader.get() : null;
+                reader.reset();
+                if (packet == null || packet.type() != AUTH) break;
+                return;
+            }
+            throw new IOException("Authentication of " + pseudo + " failed");
+        }
+
+        /**
+         * Reads the messages until every expected message is received or the connection is closed.
+         * @param done counted down once every message is received.
+         * @param delivered the total number of delivered messages.
+         */
+        private void readLoop(CountDownLatch done, LongAdder delivered) {
+            try {
+                while (received < latencies.length && sc.read(bbIn) != -1) {
+                    var now = System.nanoTime();
+                    for (var status = reader.process(bbIn); status == DONE || status == ERROR; status = reader.process(bbIn)) {
+                        if (status == DONE) onPacket(reader.get(), now, delivered);
+                        reader.reset();
+                    }
+                }
+            } catch (IOException ioe) {
+                System.err.println(pseudo + " : " + ioe.getMessage());
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void onPacket(Packet packet, long now, LongAdder delivered) {
+            if (packet.type() != GMSG || !packet.message().startsWith(PREFIX)) return;
+            if (received == latencies.length) return;
+            latencies[received++] = now - Long.parseLong(packet.message().substring(PREFIX.length()));
+            delivered.increment();
+        }
+
+        /**
+         * Sends {@code count} general messages containing their sending time.
+         * @param count the number of messages.
+         * @throws IOException if an I/O error occurs.
+         */
+        private void sendMessages(int count) throws IOException {
+            for (var i = 0; i < count; i++) {
+                write(sc, makeGeneralMessagePacket(PREFIX + System.nanoTime(), pseudo).toBuffer());
+            }
+        }
+    }
+
+    private LoadGenerator() {}
+
+    private static void write(SocketChannel sc, ByteBuffer buff) throws IOException {
+        while (buff.hasRemaining()) sc.write(buff);
+    }
+
+    /**
+     * Main method.
+     * @param args hostname, port, number of clients and number of messages per client.
+     * @throws Exception if the benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.out.println("Usage : LoadGenerator hostname port clients messages");
+            return;
+        }
+        var address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        var count = Integer.parseInt(args[2]);
+        var messages = Integer.parseInt(args[3]);
+        var expected = messages * (count - 1);
+
+        var clients = new ArrayList<Client>(count);
+        var run = Long.toString(System.nanoTime() % 100_000, 36);
+        for (var i = 0; i < count; i++) {
+            var pseudo = "load-" + run + "-" + i;
+            var client = new Client(SocketChannel.open(address), pseudo, expected);
+            client.authenticate();
+            clients.add(client);
+        }
+
+        var done = new CountDownLatch(count);
+        var delivered = new LongAdder();
+        for (var client : clients) {
+            var reader = new Thread(() -> client.readLoop(done, delivered));
+            reader.setDaemon(true);
+            reader.start();
+        }
+        var start = System.nanoTime();
+        for (var client : clients) {
+            var sender = new Thread(() -> {
+                try {
+                    client.sendMessages(messages);
+                } catch (IOException ioe) {
+                    System.err.println(client.pseudo + " : " + ioe.getMessage());
+                }
+            });
+            sender.setDaemon(true);
+            sender.start();
+        }
+        var completed = done.await(120, TimeUnit.SECONDS);
+        var elapsed = System.nanoTime() - start;
+        clients.forEach(client -> silentlyClose(client.sc));
+
+        var latencies = clients.stream()
+                .flatMapToLong(client -> Arrays.stream(client.latencies, 0, client.received))
+                .sorted().toArray();
+        System.out.printf("clients=%d messages=%d delivered=%d/%d%s%n", count, messages,
+                delivered.sum(), (long) expected * count, completed ? "" : " (timeout)");
+        System.out.printf("elapsed=%.0f ms throughput=%.0f msg/s%n", elapsed / 1e6, delivered.sum() / (elapsed / 1e9));
+        if (latencies.length != 0) {
+            System.out.printf("latency p50=%.2f ms p99=%.2f ms max=%.2f ms%n",
+                    percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6,
+                    latencies[latencies.length - 1] / 1e6);
+        }
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+    }
+}
@@ -0,0 +1,217 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import fr.uge.net.tcp.nonblocking.context.AbstractContext;
+import fr.uge.net.tcp.nonblocking.context.FlushScheduler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.silentlyClose;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Embeddable client of ChatOS, without any console nor display.
+ * <br>
+ * Every {@link ChatOSSession} of a client is served by the same selector on the same daemon thread,
+ * so a single JVM can host thousands of sessions. The methods of the client and of its sessions can be
+ * called from any thread: they hand a task to the thread of the selector and return a {@link CompletableFuture}
+ * completed by this thread. The dependent actions that don't run asynchronously must not block.
+ * <br>
+ * Example:
+ * <pre>{@code
+ * var client = new ChatOSClient();
+ * client.start();
+ * var session = client.connect(address, listener).join();
+ * session.authenticate("bot").join();
+ * session.sendGeneral("Hello");
+ * }</pre>
+ */
+public final class ChatOSClient implements Closeable {
+    private static final Logger logger = Logger.getLogger(ChatOSClient.class.getName());
+
+    private final FlushScheduler flushScheduler = new FlushScheduler();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * True if the selector has been woken up for tasks that haven't been run yet,
+     * so a burst of tasks wakes it up once.
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    /**
+     * The open sessions. Only accessed by the thread of the selector.
+     */
+    private final HashSet<ChatOSSession> sessions = new HashSet<>();
+    private final Selector selector;
+    private final Thread thread = new Thread(this::run, "chatos-client");
+    private volatile boolean closing = false;
+    /**
+     * True once the thread of the selector has stopped: the tasks are then run by the thread submitting them.
+     */
+    private volatile boolean terminated = false;
+
+    /**
+     * Creates a client. It doesn't connect anything before {@link #start()}.
+     * @throws IOException if the selector cannot be opened.
+     */
+    public ChatOSClient() throws IOException {
+        selector = Selector.open();
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the thread of the client.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Opens a new session with a server.
+     * @param server the address of the server. Cannot be null.
+     * @param listener receives the events of the session. Cannot be null.
+     * @return a future completed with the session once connected, or failed if the connection fails.
+     */
+    public CompletableFuture<ChatOSSession> connect(InetSocketAddress server, ChatOSListener listener) {
+        requireNonNull(server);
+        requireNonNull(listener);
+        var future = new CompletableFuture<ChatOSSession>();
+        execute(() -> {
+            if (closing) {
+                future.completeExceptionally(new IOException("Client closed"));
+                return;
+            }
+            var session = new ChatOSSession(this, server, listener, future);
+            try {
+                session.connect();
+                sessions.add(session);
+            } catch (IOException ioe) {
+                future.completeExceptionally(ioe);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Closes every session without waiting for their output, then stops the thread of the client.
+     * The pending futures fail. Waits for the thread unless called by it.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        selector.wakeup();
+        if (Thread.currentThread() == thread || !thread.isAlive()) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs {@code task} on the thread of the selector, or on the calling thread once the client has stopped.
+     * @param task the task.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (terminated) runTasks();
+        else if (!wakeupPending.getAndSet(true)) selector.wakeup();
+    }
+
+    /**
+     * @return the scheduler of the output of the contexts of the sessions.
+     */
+    FlushScheduler flushScheduler() {
+        return flushScheduler;
+    }
+
+    /**
+     * Opens a socket registered to the selector and connects it.
+     * Must be called by the thread of the selector.
+     * @param address the address to connect to.
+     * @param factory creates the context of the socket from its key.
+     * @return the context of the socket.
+     * @throws IOException if the socket cannot be created, registered or connected.
+     */
+    <C extends AbstractContext> C open(InetSocketAddress address, Function<SelectionKey, C> factory) throws IOException {
+        var sc = SocketChannel.open();
+        try {
+            sc.configureBlocking(false);
+            var key = sc.register(selector, SelectionKey.OP_CONNECT);
+            var context = factory.apply(key);
+            key.attach(context);
+            if (sc.connect(address)) context.doConnect();
+            return context;
+        } catch (IOException ioe) {
+            silentlyClose(sc);
+            throw ioe;
+        }
+    }
+
+    /**
+     * @param session a closed session.
+     */
+    void closed(ChatOSSession session) {
+        sessions.remove(session);
+    }
+
+    private void run() {
+        try {
+            while (!closing) {
+                selector.select(this::treatKey);
+                runTasks();
+                flushScheduler.flush();
+            }
+        } catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Client stopped", ioe);
+        } finally {
+            closing = true;
+            List.copyOf(sessions).forEach(session -> session.terminate(new IOException("Client closed")));
+            terminated = true;
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                // Nothing to do
+            }
+        }
+    }
+
+    private void runTasks() {
+        wakeupPending.set(false);
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Does the available action (whether Connect, Write or Read) on the key.
+     * If it fails, the context is closed.
+     * @param key the current key to treat.
+     */
+    private void treatKey(SelectionKey key) {
+        var context = (ChatOSSession.SessionContext) key.attachment();
+        try {
+            if (key.isValid() && key.isConnectable()) context.doConnect();
+            if (key.isValid() && key.isWritable()) context.doWrite();
+            if (key.isValid() && key.isReadable()) context.doRead();
+        } catch (IOException ioe) {
+            context.fail(ioe);
+        }
+    }
+}
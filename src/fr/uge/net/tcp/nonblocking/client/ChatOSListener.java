@@ -0,0 +1,76 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import fr.uge.net.tcp.nonblocking.packet.Packet.ErrorCode;
+
+import java.io.IOException;
+
+/**
+ * Receives the events of a {@link ChatOSSession}. Every method does nothing by default.
+ * <br>
+ * The methods are called by the thread of the {@link ChatOSClient}, which serves every session:
+ * they must not block. An exception thrown by a method is logged and ignored.
+ */
+public interface ChatOSListener {
+    /**
+     * @param session the session receiving the message.
+     * @param pseudo the pseudo of the sender.
+     * @param message the message.
+     */
+    default void onGeneralMessage(ChatOSSession session, String pseudo, String message) {}
+
+    /**
+     * @param session the session receiving the message.
+     * @param pseudo the pseudo of the sender.
+     * @param message the message.
+     */
+    default void onDirectMessage(ChatOSSession session, String pseudo, String message) {}
+
+    /**
+     * @param session the session receiving the message.
+     * @param room the room of the message.
+     * @param pseudo the pseudo of the sender.
+     * @param message the message.
+     */
+    default void onRoomMessage(ChatOSSession session, String room, String pseudo, String message) {}
+
+    /**
+     * @param session the session that joined the room.
+     * @param room the room.
+     */
+    default void onJoin(ChatOSSession session, String room) {}
+
+    /**
+     * @param session the session that left the room.
+     * @param room the room.
+     */
+    default void onLeave(ChatOSSession session, String room) {}
+
+    /**
+     * Called when another client requests a private connection with the session.
+     * Once accepted, the connection is used by the {@link ChatOSSession#fetch(String, String, ResourceSink) fetches}
+     * of resources of this client.
+     * @param session the requested session.
+     * @param pseudo the pseudo of the requesting client.
+     * @return true to accept the private connection, false (the default) to reject it.
+     */
+    default boolean onPrivateConnection(ChatOSSession session, String pseudo) {
+        return false;
+    }
+
+    /**
+     * Called for the errors received from the server, except those failing the future of an
+     * {@link ChatOSSession#authenticate(String) authentication} or of a
+     * {@link ChatOSSession#fetch(String, String, ResourceSink) fetch}.
+     * @param session the session receiving the error.
+     * @param code the error.
+     * @param pseudo the pseudo the error is about. Can be null.
+     */
+    default void onError(ChatOSSession session, ErrorCode code, String pseudo) {}
+
+    /**
+     * Called once, when the connection of the session is closed.
+     * @param session the closed session.
+     * @param cause why the connection has been lost, or null if it has been closed by {@link ChatOSSession#close()}.
+     */
+    default void onClosed(ChatOSSession session, IOException cause) {}
+}
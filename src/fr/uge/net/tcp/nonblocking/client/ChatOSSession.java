@@ -0,0 +1,562 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import fr.uge.net.tcp.nonblocking.context.AbstractContext;
+import fr.uge.net.tcp.nonblocking.context.Context;
+import fr.uge.net.tcp.nonblocking.http.HTTPPacket;
+import fr.uge.net.tcp.nonblocking.http.HTTPReader;
+import fr.uge.net.tcp.nonblocking.packet.Packet;
+import fr.uge.net.tcp.nonblocking.packet.PacketReader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.*;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.ERROR;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.REFILL;
+import static java.lang.Integer.parseInt;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A connection of a {@link ChatOSClient} to a server, created by {@link ChatOSClient#connect(InetSocketAddress, ChatOSListener)}.
+ * <br>
+ * The methods can be called from any thread. The futures they return are completed by the thread of the client,
+ * the futures of the messages once the packet is queued on the connection. The received packets are given
+ * to the {@link ChatOSListener} of the session.
+ * <br>
+ * A resource of another client is fetched through a private connection, opened by the first
+ * {@link #fetch(String, String, ResourceSink) fetch} and reused by the next ones. The session doesn't
+ * serve any resource: the requests of the other client are answered with a bad response.
+ */
+public final class ChatOSSession {
+    private static final Logger logger = Logger.getLogger(ChatOSSession.class.getName());
+
+    /**
+     * A requested resource, waiting for its parts.
+     */
+    private record Fetch(String resource, ResourceSink sink, CompletableFuture<Long> future) {
+        /**
+         * Gives a part to the {@link #sink} (unless the fetch has already failed)
+         * and completes the fetch with the size of the resource if it's the last part.
+         * @param part the received part.
+         */
+        private void write(HTTPPacket part) {
+            if (future.isDone()) return;
+            var last = part.isLast();
+            try {
+                sink.write(part.content(), part.offset(), part.total());
+                if (last) future.complete(part.total());
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A context of the session, registered to the selector of the {@link ChatOSClient}.
+     */
+    abstract class SessionContext extends AbstractContext implements Context {
+        /**
+         * The failure found while processing the input, reported once the read is over. Null if none.
+         */
+        IOException malformed = null;
+
+        SessionContext(SelectionKey key) {
+            super(key, client.flushScheduler());
+        }
+
+        /**
+         * Stops the processing of the input after a malformed packet. The context fails at the end of the
+         * current {@link #doRead()}, since it cannot be closed while its key is being updated.
+         * @param cause the failure.
+         */
+        void malformed(IOException cause) {
+            if (malformed == null) malformed = cause;
+        }
+
+        /**
+         * Closes the context after a failure of its connection.
+         * @param cause the failure.
+         */
+        abstract void fail(IOException cause);
+
+        /**
+         * The failure is reported by {@link #fail(IOException)}.
+         */
+        @Override
+        protected void onConnectFailure() {}
+
+        /**
+         * Reads data in {@link #bbIn}.
+         *
+         * @throws IOException if the connection is closed or if a malformed packet has been received.
+         */
+        @Override
+        public void doRead() throws IOException {
+            super.doRead();
+            if (!isConnected()) {
+                throw new IOException("Connection closed");
+            }
+            if (malformed != null) throw malformed;
+        }
+    }
+
+    /**
+     * The connection to the server.
+     */
+    private final class MainContext extends SessionContext {
+        private final PacketReader reader = new PacketReader();
+
+        private MainContext(SelectionKey key) {
+            super(key);
+        }
+
+        @Override
+        public void doConnect() throws IOException {
+            super.doConnect();
+            if (isConnected()) connection.complete(ChatOSSession.this);
+        }
+
+        /**
+         * Processes {@link #bbIn} into the {@link #reader} and treats every complete packet.
+         * A malformed packet ends the session: what follows it is probably not aligned on a packet either.
+         */
+        @Override
+        public void processIn() {
+            if (malformed != null) return;
+            for (var status = reader.process(bbIn); status != REFILL; status = reader.process(bbIn)) {
+                if (status == ERROR) {
+                    malformed(new IOException("Invalid packet from the server"));
+                    return;
+                }
+                treatPacket(reader.get());
+                reader.reset();
+            }
+        }
+
+        /**
+         * Closes the session once the output is written if {@link #close()} has been called.
+         */
+        @Override
+        public int updateInterestOps() {
+            if (closing && !hasPendingOutput()) {
+                terminate(null);
+                return 0;
+            }
+            return super.updateInterestOps();
+        }
+
+        @Override
+        void fail(IOException cause) {
+            terminate(cause);
+        }
+    }
+
+    /**
+     * A private connection with another client, used to fetch its resources.
+     */
+    private final class PeerContext extends SessionContext {
+        private final HTTPReader reader = new HTTPReader();
+        /**
+         * The requested resources, by name. The same resource can be requested several times.
+         */
+        private final HashMap<String, ArrayDeque<Fetch>> fetches = new HashMap<>();
+        private final String other;
+
+        private PeerContext(SelectionKey key, int token, String other) {
+            super(key);
+            this.other = other;
+            queueMessage(makeTokenPacket(token, other).toBuffer());
+        }
+
+        private void request(Fetch fetch) {
+            fetches.computeIfAbsent(fetch.resource(), resource -> new ArrayDeque<>()).add(fetch);
+            queueMessage(HTTPPacket.createRequest(fetch.resource()).toBuffer());
+        }
+
+        @Override
+        public void processIn() {
+            if (malformed != null) return;
+            for (var status = reader.process(bbIn); status != REFILL; status = reader.process(bbIn)) {
+                if (status == ERROR) {
+                    malformed(new IOException("Invalid response from " + other));
+                    return;
+                }
+                treatPacket(reader.get());
+                reader.reset();
+            }
+        }
+
+        /**
+         * Gives the parts of the resources to their fetch and answers the requests with a bad response.
+         * @param packet the received packet.
+         */
+        private void treatPacket(HTTPPacket packet) {
+            var resource = packet.resource();
+            switch (packet.type()) {
+                case REQUEST -> queueMessage(HTTPPacket.createBadResponse(resource).toBuffer());
+                case GOOD_RESPONSE -> {
+                    var queue = fetches.get(resource);
+                    if (queue == null) return;
+                    var last = packet.isLast();
+                    queue.peek().write(packet);
+                    if (last) poll(queue, resource);
+                }
+                case BAD_RESPONSE, NOT_MODIFIED, DELTA_RESPONSE -> {
+                    var queue = fetches.get(resource);
+                    if (queue == null) return;
+                    var cause = packet.type() == HTTPPacket.HTTPPacketType.BAD_RESPONSE ?
+                            new FileNotFoundException("The resource " + resource + " of " + other + " doesn't exist")
+                            : new IOException("Unexpected response for " + resource);
+                    poll(queue, resource).future().completeExceptionally(cause);
+                }
+            }
+        }
+
+        private Fetch poll(ArrayDeque<Fetch> queue, String resource) {
+            var fetch = queue.remove();
+            if (queue.isEmpty()) fetches.remove(resource);
+            return fetch;
+        }
+
+        @Override
+        void fail(IOException cause) {
+            close();
+            peers.remove(other, this);
+            fetches.values().forEach(queue -> queue.forEach(fetch -> fetch.future().completeExceptionally(cause)));
+            fetches.clear();
+        }
+    }
+
+    private final ChatOSClient client;
+    private final InetSocketAddress server;
+    private final ChatOSListener listener;
+    private final CompletableFuture<ChatOSSession> connection;
+    /**
+     * The open private connections, by pseudo of the other client.
+     */
+    private final HashMap<String, PeerContext> peers = new HashMap<>();
+    /**
+     * The fetches waiting for a private connection to open, by pseudo of the other client.
+     */
+    private final HashMap<String, ArrayDeque<Fetch>> waiting = new HashMap<>();
+    private MainContext main;
+    private CompletableFuture<Void> authentication;
+    private volatile String pseudo;
+    private boolean closing = false;
+    private boolean closed = false;
+
+    /**
+     * @param client the client serving the session.
+     * @param server the address of the server.
+     * @param listener receives the events of the session.
+     * @param connection completed once the session is connected.
+     */
+    ChatOSSession(ChatOSClient client, InetSocketAddress server, ChatOSListener listener,
+                  CompletableFuture<ChatOSSession> connection) {
+        this.client = requireNonNull(client);
+        this.server = requireNonNull(server);
+        this.listener = requireNonNull(listener);
+        this.connection = requireNonNull(connection);
+    }
+
+    /**
+     * Opens the connection to the server. Called by the thread of the client.
+     * @throws IOException if the socket cannot be opened.
+     */
+    void connect() throws IOException {
+        main = client.open(server, MainContext::new);
+    }
+
+    /**
+     * @return the pseudo of the session, or null if it isn't authenticated.
+     */
+    public String pseudo() {
+        return pseudo;
+    }
+
+    /**
+     * Authenticates the session.
+     * @param pseudo the requested pseudo. Cannot be null.
+     * @return a future completed once authenticated, failed if the pseudo is taken.
+     */
+    public CompletableFuture<Void> authenticate(String pseudo) {
+        requireNonNull(pseudo);
+        var future = new CompletableFuture<Void>();
+        client.execute(() -> {
+            if (!isOpen(future)) return;
+            if (this.pseudo != null || authentication != null) {
+                future.completeExceptionally(new IllegalStateException("Already authenticated"));
+                return;
+            }
+            if (queue(makeAuthenticationPacket(pseudo), future)) authentication = future;
+        });
+        return future;
+    }
+
+    /**
+     * Sends a message to every client.
+     * @param message the message. Cannot be null.
+     * @return a future completed once the message is queued.
+     */
+    public CompletableFuture<Void> sendGeneral(String message) {
+        requireNonNull(message);
+        return send(self -> makeGeneralMessagePacket(message, self));
+    }
+
+    /**
+     * Sends a message to a client.
+     * @param pseudo the pseudo of the receiver. Cannot be null.
+     * @param message the message. Cannot be null.
+     * @return a future completed once the message is queued.
+     */
+    public CompletableFuture<Void> sendDirect(String pseudo, String message) {
+        requireNonNull(pseudo);
+        requireNonNull(message);
+        return send(self -> makeDirectMessagePacket(message, pseudo));
+    }
+
+    /**
+     * Sends a message to the members of a room.
+     * @param room the room. Cannot be null.
+     * @param message the message. Cannot be null.
+     * @return a future completed once the message is queued.
+     */
+    public CompletableFuture<Void> sendRoom(String room, String message) {
+        requireNonNull(room);
+        requireNonNull(message);
+        return send(self -> makeRoomMessagePacket(room, message, self));
+    }
+
+    /**
+     * Joins a room. The listener is told once the server has answered.
+     * @param room the room. Cannot be null.
+     * @return a future completed once the request is queued.
+     */
+    public CompletableFuture<Void> join(String room) {
+        requireNonNull(room);
+        return send(self -> makeJoinPacket(room));
+    }
+
+    /**
+     * Leaves a room. The listener is told once the server has answered.
+     * @param room the room. Cannot be null.
+     * @return a future completed once the request is queued.
+     */
+    public CompletableFuture<Void> leave(String room) {
+        requireNonNull(room);
+        return send(self -> makeLeavePacket(room));
+    }
+
+    /**
+     * Fetches a resource of another client and streams its parts to {@code sink}.
+     * The private connection with the client is requested if there's none yet.
+     * @param pseudo the pseudo of the client owning the resource. Cannot be null.
+     * @param resource the name of the resource. Cannot be null.
+     * @param sink receives the parts of the resource. Cannot be null.
+     * @return a future completed with the size of the resource once the last part is given to the sink,
+     * failed if the private connection is rejected, if the resource doesn't exist or if the sink fails.
+     * If the client isn't connected, the server only sends a {@link Packet.ErrorCode#DEST_ERROR} (given to
+     * the listener) without its pseudo, so the future is never completed: bound it with
+     * {@link CompletableFuture#orTimeout(long, java.util.concurrent.TimeUnit)}.
+     */
+    public CompletableFuture<Long> fetch(String pseudo, String resource, ResourceSink sink) {
+        requireNonNull(pseudo);
+        requireNonNull(resource);
+        requireNonNull(sink);
+        var fetch = new Fetch(resource, sink, new CompletableFuture<>());
+        client.execute(() -> {
+            var future = fetch.future();
+            if (!isOpen(future) || !isAuthenticated(future)) return;
+            var peer = peers.get(pseudo);
+            if (peer != null) {
+                peer.request(fetch);
+                return;
+            }
+            var queue = waiting.get(pseudo);
+            if (queue == null) {
+                if (!queue(makePrivateConnectionPacket(pseudo), future)) return;
+                waiting.put(pseudo, queue = new ArrayDeque<>());
+            }
+            queue.add(fetch);
+            future.whenComplete((size, failure) -> client.execute(() -> forget(pseudo, fetch)));
+        });
+        return fetch.future();
+    }
+
+    /**
+     * Removes a fetch completed (e.g. by a timeout) while waiting for its private connection.
+     * Once no fetch waits for the client, the next one requests a new private connection.
+     */
+    private void forget(String pseudo, Fetch fetch) {
+        var queue = waiting.get(pseudo);
+        if (queue != null && queue.remove(fetch) && queue.isEmpty()) waiting.remove(pseudo);
+    }
+
+    /**
+     * Closes the session once its queued packets are written.
+     * The pending fetches fail.
+     */
+    public void close() {
+        client.execute(() -> {
+            if (closed || closing) return;
+            closing = true;
+            main.updateInterestOps();
+        });
+    }
+
+    private CompletableFuture<Void> send(Function<String, Packet> packet) {
+        var future = new CompletableFuture<Void>();
+        client.execute(() -> {
+            if (isOpen(future) && isAuthenticated(future) && queue(packet.apply(pseudo), future)) future.complete(null);
+        });
+        return future;
+    }
+
+    /**
+     * Queues {@code packet} on the connection to the server.
+     * @return false if the packet cannot be encoded, in which case the future fails.
+     */
+    private boolean queue(Packet packet, CompletableFuture<?> future) {
+        try {
+            main.queueMessage(packet.toBuffer());
+            return true;
+        } catch (IllegalStateException e) {
+            future.completeExceptionally(e);
+            return false;
+        }
+    }
+
+    private boolean isOpen(CompletableFuture<?> future) {
+        if (!closed && !closing) return true;
+        future.completeExceptionally(new IOException("Session closed"));
+        return false;
+    }
+
+    private boolean isAuthenticated(CompletableFuture<?> future) {
+        if (pseudo != null) return true;
+        future.completeExceptionally(new IllegalStateException("Not authenticated"));
+        return false;
+    }
+
+    // --------------------------------------------------
+    // Received packets (thread of the client)
+    // --------------------------------------------------
+
+    private void treatPacket(Packet packet) {
+        switch (packet.type()) {
+            case ERR -> onError(packet);
+            case AUTH -> {
+                pseudo = packet.pseudo();
+                if (authentication != null) authentication.complete(null);
+                authentication = null;
+            }
+            case GMSG -> notify(l -> l.onGeneralMessage(this, packet.pseudo(), packet.message()));
+            case DMSG -> notify(l -> l.onDirectMessage(this, packet.pseudo(), packet.message()));
+            case RMSG -> notify(l -> l.onRoomMessage(this, packet.room(), packet.pseudo(), packet.message()));
+            case JOIN -> notify(l -> l.onJoin(this, packet.room()));
+            case LEAVE -> notify(l -> l.onLeave(this, packet.room()));
+            case PC -> onPrivateConnection(packet.pseudo());
+            case TOKEN -> onToken(parseInt(packet.message()), packet.pseudo());
+            case NODE, RESUME, STREAM, WINDOW -> {}
+        }
+    }
+
+    /**
+     * Fails the future of an authentication or of the fetches from a client rejecting the private connection,
+     * gives the other errors to the listener.
+     * @param packet the packet that contains the error.
+     */
+    private void onError(Packet packet) {
+        switch (packet.code()) {
+            case AUTH_ERROR -> {
+                if (authentication != null) {
+                    authentication.completeExceptionally(new IOException("Pseudo already taken"));
+                    authentication = null;
+                    return;
+                }
+            }
+            case REJECTED -> {
+                var queue = waiting.remove(packet.pseudo());
+                if (queue != null) {
+                    var cause = new IOException("Private connection rejected by " + packet.pseudo());
+                    queue.forEach(fetch -> fetch.future().completeExceptionally(cause));
+                    return;
+                }
+            }
+            case WRONG_CODE, INVALID_LENGTH -> main.insertFirstMessage(makeErrorPacket(Packet.ErrorCode.ERROR_RECOVER).toBuffer());
+            default -> {}
+        }
+        notify(l -> l.onError(this, packet.code(), packet.pseudo()));
+    }
+
+    /**
+     * Waits for the token if the packet accepts a request of the session,
+     * otherwise asks the listener whether to accept the request of the other client.
+     * @param other the pseudo of the other client.
+     */
+    private void onPrivateConnection(String other) {
+        if (waiting.containsKey(other)) return;
+        var accepted = false;
+        try {
+            accepted = listener.onPrivateConnection(this, other);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Listener failed", e);
+        }
+        main.queueMessage((accepted ? makePrivateConnectionPacket(other) : makeRejectedPacket(other)).toBuffer());
+    }
+
+    /**
+     * Opens the private connection with the other client and sends the fetches waiting for it.
+     * @param token the token of the private connection.
+     * @param other the pseudo of the other client.
+     */
+    private void onToken(int token, String other) {
+        var queue = waiting.remove(other);
+        try {
+            var peer = client.open(server, key -> new PeerContext(key, token, other));
+            var previous = peers.put(other, peer);
+            if (previous != null) previous.fail(new IOException("Private connection replaced"));
+            if (queue != null) queue.forEach(peer::request);
+        } catch (IOException ioe) {
+            if (queue != null) queue.forEach(fetch -> fetch.future().completeExceptionally(ioe));
+        }
+    }
+
+    private void notify(Consumer<ChatOSListener> event) {
+        try {
+            event.accept(listener);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Listener failed", e);
+        }
+    }
+
+    /**
+     * Closes the connection and the private connections of the session, fails its pending futures
+     * and tells the listener. Does nothing if the session is already closed.
+     * @param cause the failure, or null if the session has been closed by {@link #close()}.
+     */
+    void terminate(IOException cause) {
+        if (closed) return;
+        closed = true;
+        var failure = cause == null ? new IOException("Session closed") : cause;
+        if (main != null) main.close();
+        connection.completeExceptionally(failure);
+        if (authentication != null) authentication.completeExceptionally(failure);
+        authentication = null;
+        List.copyOf(peers.values()).forEach(peer -> peer.fail(failure));
+        waiting.values().forEach(queue -> queue.forEach(fetch -> fetch.future().completeExceptionally(failure)));
+        waiting.clear();
+        client.closed(this);
+        notify(l -> l.onClosed(this, cause));
+    }
+}
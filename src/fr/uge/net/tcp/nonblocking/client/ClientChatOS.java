@@ -2,24 +2,38 @@ package fr.uge.net.tcp.nonblocking.client;
 
 import fr.uge.net.tcp.nonblocking.context.AbstractContext;
 import fr.uge.net.tcp.nonblocking.context.Context;
+import fr.uge.net.tcp.nonblocking.context.FlushScheduler;
+import fr.uge.net.tcp.nonblocking.context.Priority;
 import fr.uge.net.tcp.nonblocking.packet.Packet;
 import fr.uge.net.tcp.nonblocking.packet.PacketReader;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Scanner;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import static fr.uge.net.tcp.nonblocking.display.ClientMessageDisplay.onConnectSuccess;
+import static fr.uge.net.tcp.nonblocking.display.ClientMessageDisplay.onConnectionLost;
 import static fr.uge.net.tcp.nonblocking.display.ClientMessageDisplay.onMessageReceived;
+import static fr.uge.net.tcp.nonblocking.display.ClientMessageDisplay.onPrivateConnectionInfo;
+import static fr.uge.net.tcp.nonblocking.display.ClientMessageDisplay.onResumeRefused;
+import static fr.uge.net.tcp.nonblocking.display.ClientMessageDisplay.onSessionResumed;
 import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.*;
 import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.DONE;
 import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.REFILL;
@@ -30,23 +44,73 @@ import static java.util.Objects.requireNonNull;
 
 /**
  * Main class for the client.
+ * <br>
+ * Once authenticated, the client receives the id of its session. If the connection with the server is lost,
+ * the client reconnects (with a growing delay between the attempts, for {@link #RESUME_GRACE} milliseconds at most)
+ * and presents this id, so it keeps its pseudo, its rooms and its private connections, and receives what has been
+ * sent to it meanwhile.
+ * <br>
+ * In multiplexed mode, the client accepts that its private connections with the clients of the same server
+ * are carried by its main connection, as {@link StreamTransport streams}, instead of opening a socket for each one.
+ * <br>
+ * Once authenticated, the client can also keep a {@link SocketPool pool} of sockets connected to the server in advance,
+ * so its private connections don't wait for a TCP handshake.
  */
 public final class ClientChatOS {
     private final class MainContext extends AbstractContext implements Context {
         private final PacketReader reader = new PacketReader();
+        /**
+         * The packets written on the lost connection that haven't been written, sent once the session is resumed.
+         */
+        private final ArrayList<ByteBuffer> resent = new ArrayList<>();
         private boolean connected = false;
+        /**
+         * True while the answer to an authentication packet is awaited.
+         */
+        private boolean authenticating = false;
+        /**
+         * True while the answer to a {@link Packet.PacketType#RESUME} packet is awaited.
+         */
+        private boolean resuming = false;
         private String requester = null;
-        private final SelectionKey key;
         private String pseudo;
+        /**
+         * The id of the session, null until received.
+         */
+        private Long session;
+        /**
+         * The {@link Packet.PacketType#WINDOW} packet opening a stream, sent by the server just before its token.
+         */
+        private Packet opening;
 
         public MainContext(SelectionKey key){
-            super(key);
-            this.key = key;
+            super(key, flushScheduler);
+        }
+
+        /**
+         * Creates the context of a new connection resuming the session of {@code previous},
+         * whose connection has been {@link #lose() lost}.
+         * @param key the key of the new connection.
+         * @param previous the previous context. Cannot be null.
+         */
+        private MainContext(SelectionKey key, MainContext previous) {
+            super(key, flushScheduler);
+            connected = previous.connected;
+            requester = previous.requester;
+            pseudo = previous.pseudo;
+            session = previous.session;
+            resent.addAll(previous.resent);
+            authenticating = true;
+            resuming = true;
+            queueMessage(makeResumePacket(session, pseudo));
         }
 
         /**
          * Processes {@link #bbIn} into the {@link #reader}.
-         * If the {@link #reader} has finished, analyses it.
+         * If the {@link #reader} has finished, analyses it
+         * and processes the next packet (a single read can contain several packets).
+         * A malformed packet stops the processing until the next read, as before the coalescing:
+         * what follows it is probably not aligned on a packet either.
          */
         @Override
         public void processIn() {
@@ -54,6 +118,7 @@ public final class ClientChatOS {
             if (status == REFILL) return;
             if (status == DONE) treatPacket(reader.get());
             reader.reset();
+            if (status == DONE) processIn();
         }
 
         /**
@@ -66,16 +131,58 @@ public final class ClientChatOS {
          * @param packet the packet to analyse.
          */
         private void treatPacket(Packet packet) {
-            onMessageReceived(packet, pseudo);
+            if (packet.type() == Packet.PacketType.STREAM) {
+                onStream(packet);
+                return;
+            }
+            if (resuming && packet.type() == Packet.PacketType.AUTH) onSessionResumed(pseudo);
+            else if (resuming && packet.code() == Packet.ErrorCode.AUTH_ERROR) onResumeRefused(pseudo);
+            else onMessageReceived(packet, pseudo);
             switch (packet.type()) {
                 case ERR -> treatError(packet);
-                case AUTH -> connected = true;
-                case GMSG, DMSG -> {}
+                case AUTH -> onAuthentication();
+                case RESUME -> session = Long.parseLong(packet.message());
+                case GMSG, DMSG, JOIN, LEAVE, RMSG -> {}
                 case PC -> onPrivateConnection(packet);
                 case TOKEN -> onToken(packet);
+                case WINDOW -> onWindow(packet);
+                case STREAM -> {}
             }
         }
 
+        /**
+         * Gives a part of a stream to the stream. The parts of the closed streams are ignored.
+         * @param packet the packet containing the part.
+         */
+        private void onStream(Packet packet) {
+            var stream = streams.get(packet.stream());
+            if (stream != null) stream.onReceived(packet.content());
+        }
+
+        /**
+         * Gives a credit to its stream, or keeps the packet if it opens a stream (its token comes next).
+         * @param packet the window packet.
+         */
+        private void onWindow(Packet packet) {
+            var stream = streams.get(packet.stream());
+            if (stream != null) stream.onWindow(parseInt(packet.message()));
+            else opening = packet;
+        }
+
+        /**
+         * The client is authenticated, or its session has been resumed: sends what the lost connection
+         * didn't write.
+         */
+        private void onAuthentication() {
+            connected = true;
+            authenticating = false;
+            resuming = false;
+            lostAt = -1;
+            if (multiplexed) queueMessage(makeWindowPacket(0, StreamTransport.WINDOW));
+            resent.forEach(buff -> queueMessage(buff, Priority.of(buff)));
+            resent.clear();
+        }
+
         /**
          * If the client receives a {@link Packet.PacketType#PC} packet,
          * 2 options are available:<br>
@@ -94,23 +201,29 @@ public final class ClientChatOS {
 
         /**
          * When the client receives a {@link Packet.PacketType#TOKEN} packet,
-         * starts a new socket and connects it to the server.
+         * starts a new socket and connects it to the server, unless the token has just been
+         * {@link #opening opened} as a stream.
          * @param packet the received packet.
          */
         private void onToken(Packet packet) {
+            var token = parseInt(packet.message());
+            var window = opening != null && opening.stream() == token ? parseInt(opening.message()) : -1;
+            opening = null;
             try {
-                var ctx = createPrivateConnection(packet);
+                var ctx = window == -1 ? createPrivateConnection(packet) : createStream(packet, token, window);
                 if (pendingConnection.containsKey(packet.pseudo())) {
                     ctx.queueMessage(pendingConnection.remove(packet.pseudo()));
                 }
             } catch (IOException ioe) {
-                System.out.println("Cannot open a new socket for a private connection!");
+                onPrivateConnectionInfo("Cannot open a new socket for a private connection!");
             }
         }
 
         /**
          * On error reception, does an action.
          * <ul>
+         *     <li> If the error is {@link Packet.ErrorCode#AUTH_ERROR}, the next line is another pseudo.
+         *     If it answers a {@link Packet.PacketType#RESUME} packet, authenticates again with the same pseudo.</li>
          *     <li> If the error is {@link Packet.ErrorCode#REJECTED}, removes the request from
          *     the {@link #pendingConnection}.</li>
          *     <li> If the error is {@link Packet.ErrorCode#WRONG_CODE}
@@ -123,7 +236,16 @@ public final class ClientChatOS {
          */
         private void treatError(Packet packet) {
             switch (packet.code()) {
-                case AUTH_ERROR, DEST_ERROR -> {}
+                case AUTH_ERROR -> {
+                    if (resuming) {
+                        resuming = false;
+                        session = null;
+                        queueMessage(makeAuthenticationPacket(pseudo));
+                    } else {
+                        authenticating = false;
+                    }
+                }
+                case DEST_ERROR, RATE_LIMITED -> {}
                 case REJECTED -> pendingConnection.remove(packet.pseudo());
                 case ERROR_RECOVER -> logger.warning("Received ERROR_RECOVER unlikely!");
                 case WRONG_CODE, INVALID_LENGTH -> insertFirstMessage(makeErrorPacket(Packet.ErrorCode.ERROR_RECOVER).toBuffer());
@@ -148,12 +270,12 @@ public final class ClientChatOS {
         }
 
         /**
-         * Add {@code packet} to the end of the queue after a conversion to a buffer.
+         * Add {@code packet} to the end of the lane of its {@link Priority} after a conversion to a buffer.
          * @param packet the packet to queue. Cannot be null.
          */
         public void queueMessage(Packet packet) {
             requireNonNull(packet);
-            queueMessage(packet.toBuffer());
+            queueMessage(packet.toBuffer(), Priority.of(packet.type()));
         }
         /**
          * While the input is locked by a private connection request, only accepts a line
@@ -166,10 +288,10 @@ public final class ClientChatOS {
         private void whileWaiting(String line) {
             requireNonNull(line);
             if (line.toLowerCase().startsWith("y")) {
-                queueMessage(makePrivateConnectionPacket(requester).toBuffer());
+                queueMessage(makePrivateConnectionPacket(requester));
                 requester = null;
             } else if (line.toLowerCase().startsWith("n")) {
-                queueMessage(makeRejectedPacket(requester).toBuffer());
+                queueMessage(makeRejectedPacket(requester));
                 requester = null;
             }
         }
@@ -178,7 +300,9 @@ public final class ClientChatOS {
          *  - if the {@code line} starts with '@', sends a direct message if possible.<br>
          *  - if the {@code line} starts with '/', sends a private connection request if possible
          *  or only a request if the two clients are already connected.<br>
-         *  - if the {@code line} starts with '\@' or '\/', sends a general message
+         *  - if the {@code line} is '+room' or '-room', joins or leaves the room.<br>
+         *  - if the {@code line} starts with '#', sends a message to the room (i.e. the first word).<br>
+         *  - if the {@code line} starts with '\@', '\/', '\+', '\-' or '\#', sends a general message
          *  without the '\'.<br>
          *  - in any fail case, sends a general message containing the full {@code line}.
          * @param line the line to send.
@@ -186,16 +310,48 @@ public final class ClientChatOS {
         private void parseInput(String line) {
             requireNonNull(line);
             if (!connected) {
-                queueMessage(makeAuthenticationPacket(pseudo = line).toBuffer());
+                authenticating = true;
+                queueMessage(makeAuthenticationPacket(pseudo = line));
                 return;
             }
             if (line.startsWith("@") && sendDirectMessage(line)) return;
             if (line.startsWith("/") && sendPrivateConnection(line)) return;
+            if (line.startsWith("#") && sendRoomMessage(line)) return;
+            if ((line.startsWith("+") || line.startsWith("-")) && sendRoomMembership(line)) return;
             queueMessage(makeGeneralMessagePacket(
-                    line.startsWith("\\@") || line.startsWith("\\/") ? line.substring(1) : line, pseudo
+                    line.startsWith("\\") && line.length() > 1 && "@/+-#".indexOf(line.charAt(1)) != -1 ?
+                            line.substring(1) : line, pseudo
                     ));
         }
 
+        /**
+         * Sends a message to the room (i.e. the first word of the {@code line})
+         * with the content of what's left on the {@code line}.
+         * @param line the {@code line} to interpret. Cannot be null.
+         * @return true if the message can be sent; false if the {@code line} contains less than two words.
+         */
+        private boolean sendRoomMessage(String line) {
+            requireNonNull(line);
+            var tokens = line.substring(1).split(" ", 2);
+            if (tokens.length != 2 || tokens[0].isEmpty()) return false;
+            queueMessage(makeRoomMessagePacket(tokens[0], tokens[1], pseudo));
+            return true;
+        }
+
+        /**
+         * Joins (if the {@code line} starts with '+') or leaves (if it starts with '-')
+         * the room named by the rest of the {@code line}.
+         * @param line the {@code line} to interpret. Cannot be null.
+         * @return true if the packet can be sent; false if the {@code line} isn't a single word.
+         */
+        private boolean sendRoomMembership(String line) {
+            requireNonNull(line);
+            var room = line.substring(1);
+            if (room.isEmpty() || room.contains(" ")) return false;
+            queueMessage(line.startsWith("+") ? makeJoinPacket(room) : makeLeavePacket(room));
+            return true;
+        }
+
         /**
          * Sends a direct message to the pseudo (i.e. the first word of the {@code line})
          * with the content of what's left on the {@code line}.
@@ -233,10 +389,31 @@ public final class ClientChatOS {
                 pendingConnection.put(pseudo, resource);
                 queueMessage(makePrivateConnectionPacket(pseudo));
             } else {
-                System.out.println("wait for " + pseudo + "'s response before sending another request!");
+                onPrivateConnectionInfo("wait for " + pseudo + "'s response before sending another request!");
             }
         }
 
+        /**
+         * @return false while the answer to an authentication is awaited: the next line may be another pseudo.
+         */
+        private boolean acceptsLine() {
+            return !authenticating;
+        }
+
+        /**
+         * @return true if the client is authenticated and no authentication (or resumption) is awaited.
+         */
+        private boolean isAuthenticated() {
+            return connected && !authenticating;
+        }
+
+        /**
+         * @return true if no authentication is awaited and every queued packet has been written.
+         */
+        private boolean isIdle() {
+            return !authenticating && isConnected() && !hasPendingOutput();
+        }
+
         /**
          * Updates the interest op of the key.
          * If the client need to accept or reject a private connection, only set it in write mode.
@@ -246,7 +423,7 @@ public final class ClientChatOS {
         @Override
         public int updateInterestOps() {
             if (requester == null) return super.updateInterestOps();
-            key.interestOps(OP_WRITE);
+            setInterestOps(OP_WRITE);
             return OP_WRITE;
         }
 
@@ -258,97 +435,304 @@ public final class ClientChatOS {
         @Override
         public void doConnect() throws IOException {
             super.doConnect();
-            if (isConnected()) onConnectSuccess();
+            if (isConnected() && !resuming) onConnectSuccess();
+        }
+
+        /**
+         * Doesn't display the failures of the attempts to resume the session.
+         */
+        @Override
+        protected void onConnectFailure() {
+            if (!resuming) super.onConnectFailure();
+        }
+
+        /**
+         * Closes the lost connection. Keeps the packets it hasn't written, to send them once the session
+         * is resumed, and stops taking lines meanwhile.
+         */
+        private void lose() {
+            authenticating = true;
+            if (resuming) close();
+            else resent.addAll(closeAndDrain());
         }
     }
     private static final Logger logger = Logger.getLogger(ClientChatOS.class.getName());
+    /**
+     * Maximum number of lines read in advance. The console thread waits while the queue is full.
+     */
+    private static final int COMMAND_CAPACITY = 1_024;
+    /**
+     * Delay during which the client tries to resume its session after losing the connection, in milliseconds.
+     * The server keeps the session for the same delay.
+     */
+    private static final long RESUME_GRACE = 30_000;
+    /**
+     * Delay before the second attempt to resume the session, in milliseconds. Doubled at each attempt.
+     */
+    private static final long RETRY_MIN = 100;
+    /**
+     * Maximum delay between two attempts to resume the session, in milliseconds.
+     */
+    private static final long RETRY_MAX = 2_000;
+    /**
+     * Maximum number of rounds of {@link #dispatchStreams()} after a selection.
+     */
+    private static final int STREAM_ROUNDS = 4;
+    /**
+     * System property enabling the multiplexed mode, read by {@link #main(String[])}.
+     */
+    static final String STREAMS_PROPERTY = "chatos.streams";
+    /**
+     * System property giving the size of the {@link SocketPool}, read by {@link #main(String[])}.
+     */
+    static final String POOL_PROPERTY = "chatos.pool";
 
-    private final ArrayBlockingQueue<String> commandQueue = new ArrayBlockingQueue<>(10);
+    private final ArrayBlockingQueue<String> commandQueue = new ArrayBlockingQueue<>(COMMAND_CAPACITY);
+    /**
+     * True if the selector has been woken up for lines that haven't been processed yet,
+     * so a burst of lines wakes it up only once.
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
     private final HashMap<String, PrivateConnectionContext> privateConnections = new HashMap<>();
     private final HashMap<String, String> pendingConnection = new HashMap<>();
+    /**
+     * The private connections multiplexed over the main connection, by token.
+     */
+    private final HashMap<Integer, StreamTransport> streams = new HashMap<>();
+    private final ResourceIndex resourceIndex = new ResourceIndex();
+    private final ResourceCache resourceCache = new ResourceCache();
+    private final ETagCache etagCache = new ETagCache();
+    private final FlushScheduler flushScheduler = new FlushScheduler();
     private final Thread console = new Thread(this::consoleRun);
     private final InetSocketAddress serverAddress;
+    private final DiskWorker diskWorker;
     private final Selector selector;
     private MainContext mainContext;
-    private final SocketChannel sc;
+    private SocketChannel sc;
+    private SocketPool pool;
+    /**
+     * When the connection has been lost ({@link System#nanoTime()}), -1 if it hasn't.
+     */
+    private long lostAt = -1;
+    /**
+     * When to try to resume the session ({@link System#nanoTime()}), -1 if no attempt is scheduled.
+     */
+    private long retryAt = -1;
+    private long retryDelay;
     private final String directory;
+    private final InputStream input;
+    /**
+     * True if the client stops once every line of {@link #input} has been sent.
+     */
+    private final boolean batch;
+    private volatile boolean inputEnded = false;
+    private boolean multiplexed = false;
 
     /**
-     * Creates a client with a socket and a selector.
+     * Creates an interactive client with a socket and a selector, reading its lines from the console.
      * @param serverAddress the address of the server. Cannot be null.
      * @param directory the working directory. Cannot be null.
      * @throws IOException if an I/O error occurs.
      */
     public ClientChatOS(InetSocketAddress serverAddress, String directory) throws IOException {
+        this(serverAddress, directory, System.in, false);
+    }
+
+    /**
+     * Creates a headless client, reading its lines (starting with its pseudo) from {@code commands}
+     * as fast as the connection takes them. The client stops once every line has been sent,
+     * with its private connections.
+     * @param serverAddress the address of the server. Cannot be null.
+     * @param directory the working directory. Cannot be null.
+     * @param commands the lines to send. Cannot be null.
+     * @throws IOException if an I/O error occurs.
+     */
+    public ClientChatOS(InetSocketAddress serverAddress, String directory, InputStream commands) throws IOException {
+        this(serverAddress, directory, requireNonNull(commands), true);
+    }
+
+    private ClientChatOS(InetSocketAddress serverAddress, String directory, InputStream input, boolean batch)
+            throws IOException {
         this.serverAddress = requireNonNull(serverAddress);
         this.directory = requireNonNull(directory);
+        this.input = input;
+        this.batch = batch;
         selector = Selector.open();
+        diskWorker = new DiskWorker(selector);
         sc = SocketChannel.open();
         sc.configureBlocking(false);
+        pool = new SocketPool(serverAddress, selector, 0);
+    }
+
+    /**
+     * Enables (or disables) the multiplexed mode. Must be called before {@link #launch()}.
+     * @param multiplexed true to accept the private connections multiplexed over the main connection.
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+
+    /**
+     * Sets the number of sockets connected to the server in advance for the private connections
+     * (0 by default, i.e. none). Must be called before {@link #launch()}.
+     * @param size the size of the pool.
+     * @throws IllegalArgumentException if the size is negative.
+     */
+    public void setPoolSize(int size) {
+        pool = new SocketPool(serverAddress, selector, size);
     }
 
     /**
      * Console tread.
-     * Reads a line and send it to {@link #mainContext}.
+     * Reads the lines of {@link #input} and sends them to {@link #mainContext}.
      */
     private void consoleRun() {
-        try (var scan = new Scanner(System.in)) {
-            while (scan.hasNextLine()) {
-                sendLine(scan.nextLine());
+        try (var reader = new BufferedReader(new InputStreamReader(input))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sendLine(line);
             }
         } catch (IOException e) {
             logger.severe("An I/O error occurs!");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            inputEnded = true;
+            wakeup();
             logger.info("Console thread stopping!");
         }
     }
 
     /**
-     * Sends the line to the {@link #mainContext} if not empty.
+     * Queues the line for the {@link #mainContext} if not empty, waiting while the queue is full
+     * (so a congested connection slows down the reading of the lines).
      * And wakes up the main thread.
      *
      * @param line the line to send.
-     * @throws IOException if the {@link #selector} is closed.
+     * @throws InterruptedException if the thread is interrupted while waiting.
      */
-    private void sendLine(String line) throws IOException {
+    private void sendLine(String line) throws InterruptedException {
         if (line.isBlank()) return;
-        synchronized (commandQueue) {
-            commandQueue.add(line);
-            selector.wakeup();
-        }
+        commandQueue.put(line);
+        wakeup();
     }
 
     /**
-     * Actually sends the line to the {@link #mainContext}.
+     * Wakes up the main thread, unless it has already been woken up and hasn't processed the lines yet.
      */
-    private void processLine() {
-        synchronized (commandQueue) {
-            if (commandQueue.isEmpty()) return;
-            mainContext.queueMessage(commandQueue.remove());
+    private void wakeup() {
+        if (!wakeupPending.getAndSet(true)) selector.wakeup();
+    }
+
+    /**
+     * Actually sends the queued lines to the {@link #mainContext}, as long as it
+     * {@link MainContext#acceptsLine() accepts} them, unless the previous ones haven't been written yet
+     * (i.e. the connection is {@link AbstractContext#isCongested() congested}).
+     * The others are sent after a next selection (once the socket has written some output or
+     * the authentication has been answered).
+     */
+    private void processLines() {
+        wakeupPending.set(false);
+        if (mainContext.isCongested()) return;
+        String line;
+        while (mainContext.acceptsLine() && (line = commandQueue.poll()) != null) {
+            mainContext.queueMessage(line);
         }
     }
 
     /**
-     * Creates a new socket to register to the server as a private connection.
+     * @return true if a batch client has sent everything: its input is exhausted and has been processed,
+     * and everything has been written.
+     */
+    private boolean isDone() {
+        return batch && inputEnded && commandQueue.isEmpty() && pendingConnection.isEmpty() && mainContext.isIdle();
+    }
+
+    /**
+     * Takes a socket already connected from the {@link #pool}, or creates a new one, to register to the server
+     * as a private connection.
      *
      * @param packet the packet containing the token.
      * @return the new context.
      * @throws IOException if the socket cannot be created nor registered to the {@link #selector}.
      */
     private PrivateConnectionContext createPrivateConnection(Packet packet) throws IOException {
-        var pc = SocketChannel.open();
-        pc.configureBlocking(false);
-        var key = pc.register(selector, SelectionKey.OP_CONNECT);
-        var context = new PrivateConnectionContext(packet, directory, key);
+        var key = pool.take();
+        var warm = key != null;
+        if (!warm) {
+            var pc = SocketChannel.open();
+            pc.configureBlocking(false);
+            key = pc.register(selector, SelectionKey.OP_CONNECT);
+        }
+        var context = new PrivateConnectionContext(packet, directory, key, resourceIndex, etagCache, resourceCache,
+                                                   diskWorker, flushScheduler);
         key.attach(context);
-        pc.connect(serverAddress);
+        if (warm) context.doConnect();
+        else ((SocketChannel) key.channel()).connect(serverAddress);
         privateConnections.put(packet.pseudo(), context);
         return context;
     }
 
+    /**
+     * Creates a private connection multiplexed over the main connection.
+     *
+     * @param packet the packet containing the token.
+     * @param token the token, i.e. the id of the stream.
+     * @param window the initial window of the other client.
+     * @return the new context.
+     */
+    private PrivateConnectionContext createStream(Packet packet, int token, int window) {
+        var stream = new StreamTransport(token, window, buff -> mainContext.queueMessage(buff, Priority.of(buff)),
+                                         () -> streams.remove(token));
+        var context = new PrivateConnectionContext(packet, directory, stream, resourceIndex, etagCache, resourceCache,
+                                                   diskWorker, flushScheduler);
+        stream.attach(context);
+        streams.put(token, stream);
+        privateConnections.put(packet.pseudo(), context);
+        return context;
+    }
+
+    /**
+     * Dispatches the operations the {@link #streams} are ready for, as the selector does for the sockets,
+     * until none is ready. After {@link #STREAM_ROUNDS} rounds, the rest is dispatched after the next selection,
+     * so the streams cannot starve the sockets.
+     */
+    private void dispatchStreams() {
+        for (var round = 0; round < STREAM_ROUNDS; round++) {
+            var ready = false;
+            for (var stream : List.copyOf(streams.values())) {
+                if (!stream.isReady()) continue;
+                ready = true;
+                try {
+                    stream.dispatch();
+                } catch (IOException ioe) {
+                    logger.info("Private connection stopped!");
+                    stream.context().close(privateConnections);
+                }
+            }
+            if (!ready) return;
+        }
+    }
+
+    /**
+     * @return true if one of the {@link #streams} is ready for an operation.
+     */
+    private boolean streamsReady() {
+        for (var stream : streams.values()) {
+            if (stream.isReady()) return true;
+        }
+        return false;
+    }
+
     /**
      * Actually starts the client by registering the socket into
      * the selector and connects it to the server. And starts the console thread.
+     * <br>
+     * A batch client shuts down the output of its socket once it {@link #isDone() is done}, and stops
+     * when the server has closed the connection, so the server reads every packet before the end.
+     * <br>
+     * If the connection is lost otherwise, tries to {@link #resume() resume} the session. The client stops if
+     * it isn't authenticated yet or if the session cannot be resumed in time.
      *
      * @throws IOException if an I/O error occurs.
      */
@@ -359,19 +743,109 @@ public final class ClientChatOS {
         sc.connect(serverAddress);
         console.start();
 
+        var finishing = false;
         while(!Thread.interrupted()) {
             try {
-                selector.select(this::treatKey);
-                processLine();
+                if (streamsReady()) selector.selectNow(this::treatKey);
+                else selector.select(this::treatKey, selectTimeout());
+                if (!finishing && !sc.isOpen() && retryAt == -1 && !lost()) {
+                    throw new UncheckedIOException(new IOException("Connection closed by the server"));
+                }
+                if (retryAt != -1 && System.nanoTime() - retryAt >= 0) resume();
+                diskWorker.runCompletions();
+                processLines();
+                dispatchStreams();
+                flushScheduler.flush();
+                if (!finishing && isDone()) {
+                    sc.shutdownOutput();
+                    pool.close();
+                    finishing = true;
+                }
+                if (!finishing && mainContext.isAuthenticated()) pool.refill();
+                if (finishing && !sc.isOpen()) {
+                    privateConnections.forEach((k, v) -> v.close());
+                    diskWorker.shutdown();
+                    return;
+                }
             } catch (UncheckedIOException tunneled) {
+                if (!finishing && lost()) continue;
+                pool.close();
                 privateConnections.forEach((k, v) -> v.close());
-                silentlyClose(key.channel());
+                diskWorker.shutdown();
+                silentlyClose(sc);
                 console.interrupt();
                 System.exit(-1);
             }
         }
     }
 
+    /**
+     * Called when the main connection is lost (or an attempt to resume the session fails):
+     * closes it (with the {@link #streams} it carries, and the {@link #pool}) and schedules the next attempt to {@link #resume()} the session, right away the first time.
+     * @return false if the session cannot be resumed: the client isn't authenticated yet,
+     * or {@link #RESUME_GRACE} milliseconds have elapsed since the loss of the connection.
+     */
+    private boolean lost() {
+        for (var stream : List.copyOf(streams.values())) {
+            stream.abandon();
+            stream.context().close(privateConnections);
+        }
+        pool.close();
+        mainContext.lose();
+        if (mainContext.session == null) return false;
+        var now = System.nanoTime();
+        if (lostAt == -1) {
+            onConnectionLost();
+            lostAt = now;
+            retryDelay = RETRY_MIN;
+            retryAt = now;
+            return true;
+        }
+        if (now - lostAt > TimeUnit.MILLISECONDS.toNanos(RESUME_GRACE)) return false;
+        retryAt = now + TimeUnit.MILLISECONDS.toNanos(retryDelay);
+        retryDelay = Math.min(2 * retryDelay, RETRY_MAX);
+        return true;
+    }
+
+    /**
+     * Opens a new main connection presenting the id of the session, in a context taking over the
+     * lost one.
+     * @throws UncheckedIOException if the connection cannot be opened.
+     */
+    private void resume() {
+        retryAt = -1;
+        try {
+            sc = SocketChannel.open();
+            sc.configureBlocking(false);
+            var key = sc.register(selector, SelectionKey.OP_CONNECT);
+            key.attach(mainContext = new MainContext(key, mainContext));
+            if (sc.connect(serverAddress)) mainContext.doConnect();
+        } catch (IOException ioe) {
+            silentlyClose(sc);
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * @return the maximum duration of the next selection in milliseconds, until the next attempt to resume
+     * the session (0 if none is scheduled, i.e. no limit).
+     */
+    private long retryTimeout() {
+        if (retryAt == -1) return 0;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(retryAt - System.nanoTime()));
+    }
+
+    /**
+     * @return the maximum duration of the next selection in milliseconds, until the next attempt to resume
+     * the session or the next change of the {@link #pool} (0 for no limit).
+     */
+    private long selectTimeout() {
+        var retry = retryTimeout();
+        var pooled = pool.timeout();
+        if (retry == 0 || pooled == 0) return Math.max(retry, pooled);
+        return Math.min(retry, pooled);
+    }
+
     /**
      * Does the available action (whether Connect, Write or Read) on the key.
      * If a key is closed (other than the main one) displays a message and closes it properly.
@@ -400,23 +874,43 @@ public final class ClientChatOS {
 
     /**
      * Main method.
-     * Only starts the client if there's 3 arguments.
-     * And if the last argument is a correct directory (i.e. exists and is a directory not a file).
+     * Only starts the client if there's 3 or 4 arguments.
+     * And if the third argument is a correct directory (i.e. exists and is a directory not a file).
+     * The optional fourth argument starts a headless client (see {@link #ClientChatOS(InetSocketAddress, String, InputStream)})
+     * reading the file of this name, or the standard input if it's "-".
+     * The multiplexed mode is enabled by the system property {@value #STREAMS_PROPERTY} (see {@link #setMultiplexed(boolean)}),
+     * and the size of the pool of sockets is given by {@value #POOL_PROPERTY} (see {@link #setPoolSize(int)}).
      *
      * @param args the programs arguments.
      * @throws NumberFormatException if the second argument isn't an integer.
      * @throws IOException if an I/O error occurs.
      */
     public static void main(String[] args) throws NumberFormatException, IOException {
-        if (args.length!=3) usage();
-        else if (!Files.isDirectory(Paths.get(args[2]))) invalidDirectory(args[2]);
-        else new ClientChatOS(new InetSocketAddress(args[0], parseInt(args[1])), args[2]).launch();
+        if (args.length != 3 && args.length != 4) {
+            usage();
+            return;
+        }
+        if (!Files.isDirectory(Paths.get(args[2]))) {
+            invalidDirectory(args[2]);
+            return;
+        }
+        var address = new InetSocketAddress(args[0], parseInt(args[1]));
+        ClientChatOS client;
+        if (args.length == 3) {
+            client = new ClientChatOS(address, args[2]);
+        } else {
+            var commands = args[3].equals("-") ? System.in : Files.newInputStream(Path.of(args[3]));
+            client = new ClientChatOS(address, args[2], commands);
+        }
+        client.setMultiplexed(Boolean.getBoolean(STREAMS_PROPERTY));
+        client.setPoolSize(Integer.getInteger(POOL_PROPERTY, 0));
+        client.launch();
     }
 
     private static void invalidDirectory(String dir) {
         System.out.println(dir + " is not a directory or is not accessible.");
     }
     private static void usage(){
-        System.out.println("Usage : ClientChatOS hostname port repertory");
+        System.out.println("Usage : ClientChatOS hostname port repertory [commands-file|-]");
     }
 }
@@ -0,0 +1,423 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.CONTENT_MAX_SIZE;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Block level synchronisation of a resource (in the manner of rsync).
+ * <br>
+ * The requester cuts its copy of the resource in blocks and sends the signatures of each block:
+ * <pre>
+ *    long        integer         integer    16 bytes          integer    16 bytes
+ * ------------------------------------------------------------------------------------
+ * | old size | block size |  weak sum 0  | strong sum 0 | ... | weak sum n | strong sum n |
+ * ------------------------------------------------------------------------------------ </pre>
+ * The weak sum is a rolling checksum and the strong sum is the MD5 of the block.
+ * <br>
+ * The owner of the resource looks for these blocks in its version and answers with instructions
+ * that are split in parts of at most {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#CONTENT_MAX_SIZE} bytes.
+ * An instruction is never split between two parts.
+ * <pre>
+ *   byte   integer   integer
+ * ---------------------------
+ * |  0  |  index  |  count  |     COPY : copies {@code count} blocks of the old copy from the block {@code index}.
+ * ---------------------------
+ *   byte   integer   bytes
+ * ---------------------------
+ * |  1  |  length  |  data  |     DATA : writes {@code length} new bytes.
+ * ---------------------------
+ *   byte
+ * -------
+ * |  2  |                         END : the resource is complete.
+ * ------- </pre>
+ * Should only be used by {@link ClientChatOS}.
+ */
+final class DeltaSync {
+    private static final byte COPY = 0;
+    private static final byte DATA = 1;
+    private static final byte END = 2;
+    private static final int STRONG_SIZE = 16;
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int SIGNATURE_SIZE = Integer.BYTES + STRONG_SIZE;
+    private static final int MAX_BLOCKS = (CONTENT_MAX_SIZE - HEADER_SIZE) / SIGNATURE_SIZE;
+    private static final int MAX_DATA = CONTENT_MAX_SIZE - Byte.BYTES - Integer.BYTES;
+    /**
+     * Minimum size of a block. Smaller copies are not worth a delta.
+     */
+    static final int MIN_BLOCK_SIZE = 2_048;
+
+    private DeltaSync() {}
+
+    // ------------------------------------------------
+    //                   REQUESTER
+    // ------------------------------------------------
+
+    /**
+     * Computes the block size used for a copy of {@code size} bytes so that
+     * all the signatures fit in one HTTP request.
+     * @param size the size of the copy.
+     * @return the block size.
+     */
+    private static int blockSize(long size) {
+        return (int) Math.max(MIN_BLOCK_SIZE, (size + MAX_BLOCKS - 1) / MAX_BLOCKS);
+    }
+
+    /**
+     * Computes the signatures of the blocks of the file {@code local}.
+     * @param local the copy of the requester. Cannot be null.
+     * @return the signatures in read-mode, or null if the file is too small to be worth a delta.
+     * @throws IOException if the file cannot be read.
+     */
+    static ByteBuffer signatures(Path local) throws IOException {
+        requireNonNull(local);
+        var size = Files.size(local);
+        if (size < MIN_BLOCK_SIZE) return null;
+        var blockSize = blockSize(size);
+        var count = (int) ((size + blockSize - 1) / blockSize);
+        if (count > MAX_BLOCKS) return null;
+        var signatures = ByteBuffer.allocate(HEADER_SIZE + count * SIGNATURE_SIZE)
+                .putLong(size)
+                .putInt(blockSize);
+        var digest = newDigest();
+        var block = ByteBuffer.allocate(blockSize);
+        try (var fc = FileChannel.open(local, StandardOpenOption.READ)) {
+            for (var i = 0; i < count; i++) {
+                block.clear();
+                while (block.hasRemaining() && fc.read(block) != -1) {
+                    // Reads a whole block (or what remains)
+                }
+                block.flip();
+                signatures.putInt(weakSum(block, block.position(), block.remaining()));
+                digest.update(block);
+                signatures.put(digest.digest(), 0, STRONG_SIZE);
+            }
+        }
+        return signatures.flip();
+    }
+
+    /**
+     * Rebuilds a resource from the copy of the requester and the instructions sent by the owner.
+     * The new version is written in a temporary file that replaces the copy once complete.
+     * Not thread-safe, the parts must be applied in order.
+     */
+    static final class Patch {
+        private final Path target;
+        private final Path temporary;
+        private final int blockSize;
+        private final long oldSize;
+        private long written = 0;
+        private boolean started = false;
+
+        /**
+         * @param target the copy of the requester. Cannot be null.
+         * @param signatures the signatures sent to the owner (as returned by {@link #signatures(Path)}). Cannot be null.
+         */
+        Patch(Path target, ByteBuffer signatures) {
+            this.target = requireNonNull(target);
+            this.temporary = target.resolveSibling(target.getFileName() + ".delta");
+            this.oldSize = signatures.getLong(signatures.position());
+            this.blockSize = signatures.getInt(signatures.position() + Long.BYTES);
+        }
+
+        /**
+         * Applies the instructions of one part.
+         * @param instructions the part in read-mode. Cannot be null.
+         * @return true if the rebuilt resource is complete in the temporary file, which must then replace
+         * the copy with {@link #commit()}; false otherwise.
+         * @throws IOException if the instructions are malformed or if a file cannot be read or written.
+         */
+        boolean apply(ByteBuffer instructions) throws IOException {
+            requireNonNull(instructions);
+            var options = started ?
+                    new StandardOpenOption[]{ StandardOpenOption.WRITE } :
+                    new StandardOpenOption[]{ StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                              StandardOpenOption.TRUNCATE_EXISTING };
+            started = true;
+            try (var out = FileChannel.open(temporary, options);
+                 var in = FileChannel.open(target, StandardOpenOption.READ)) {
+                while (instructions.hasRemaining()) {
+                    switch (instructions.get()) {
+                        case COPY -> copy(in, out, instructions.getInt(), instructions.getInt());
+                        case DATA -> {
+                            var length = instructions.getInt();
+                            if (length < 0 || length > instructions.remaining()) throw new IOException("Invalid delta data");
+                            var data = instructions.slice().limit(length);
+                            instructions.position(instructions.position() + length);
+                            written += writeFully(out, data, written);
+                        }
+                        case END -> {
+                            out.truncate(written);
+                            return true;
+                        }
+                        default -> throw new IOException("Invalid delta instruction");
+                    }
+                }
+            } catch (RuntimeException re) { // Truncated instruction
+                throw new IOException("Invalid delta", re);
+            }
+            return false;
+        }
+
+        /**
+         * Replaces the copy of the requester with the rebuilt resource.
+         * @throws IOException if the file cannot be moved.
+         */
+        void commit() throws IOException {
+            try {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException atomicFailed) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        /**
+         * Deletes the temporary file.
+         */
+        void abort() {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignore) {
+                // Nothing more to do
+            }
+        }
+
+        /**
+         * Copies {@code count} blocks of the old copy starting from the block {@code index}.
+         */
+        private void copy(FileChannel in, FileChannel out, int index, int count) throws IOException {
+            var start = (long) index * blockSize;
+            if (index < 0 || count <= 0 || start >= oldSize) throw new IOException("Invalid delta copy");
+            var length = Math.min((long) count * blockSize, oldSize - start);
+            var done = 0L;
+            while (done < length) {
+                var n = in.transferTo(start + done, length - done, out.position(written + done));
+                if (n <= 0) throw new IOException("The copy has changed during the transfer");
+                done += n;
+            }
+            written += length;
+        }
+
+        private static long writeFully(FileChannel out, ByteBuffer data, long position) throws IOException {
+            var length = data.remaining();
+            while (data.hasRemaining()) {
+                position += out.write(data, position);
+            }
+            return length;
+        }
+    }
+
+    // ------------------------------------------------
+    //                     OWNER
+    // ------------------------------------------------
+
+    /**
+     * Computes the instructions to rebuild {@code content} from the copy described by {@code signatures}.
+     *
+     * @param content the current version of the resource in read-mode. Won't be modified during the call of this method.
+     * @param signatures the signatures sent by the requester in read-mode. Won't be modified during the call of this method.
+     * @return the instructions split in parts (buffers in read-mode), or null if the signatures are malformed.
+     */
+    static List<ByteBuffer> delta(ByteBuffer content, ByteBuffer signatures) {
+        requireNonNull(content);
+        requireNonNull(signatures);
+        var sig = signatures.duplicate();
+        if (sig.remaining() < HEADER_SIZE || (sig.remaining() - HEADER_SIZE) % SIGNATURE_SIZE != 0) return null;
+        var oldSize = sig.getLong();
+        var blockSize = sig.getInt();
+        var count = sig.remaining() / SIGNATURE_SIZE;
+        if (blockSize < MIN_BLOCK_SIZE || oldSize <= 0 || (oldSize + blockSize - 1) / blockSize != count) return null;
+
+        var weakIndex = new HashMap<Integer, List<Integer>>();
+        var strong = new byte[count][STRONG_SIZE];
+        for (var i = 0; i < count; i++) {
+            weakIndex.computeIfAbsent(sig.getInt(), k -> new ArrayList<>(1)).add(i);
+            sig.get(strong[i]);
+        }
+        var lastLength = (int) (oldSize - (long) (count - 1) * blockSize);
+        return new Matcher(content, blockSize, weakIndex, strong, lastLength).run();
+    }
+
+    /**
+     * Rolling search of the blocks of the requester inside the current version.
+     */
+    private static final class Matcher {
+        private final HashMap<Integer, List<Integer>> weakIndex;
+        private final InstructionWriter writer = new InstructionWriter();
+        private final MessageDigest digest = newDigest();
+        private final ByteBuffer content;
+        private final byte[][] strong;
+        private final int blockSize;
+        private final int lastLength;
+        private final int base;
+        private final int size;
+
+        private Matcher(ByteBuffer content, int blockSize, HashMap<Integer, List<Integer>> weakIndex,
+                        byte[][] strong, int lastLength) {
+            this.content = content.duplicate();
+            this.blockSize = blockSize;
+            this.weakIndex = weakIndex;
+            this.strong = strong;
+            this.lastLength = lastLength;
+            this.base = content.position();
+            this.size = content.remaining();
+        }
+
+        private List<ByteBuffer> run() {
+            var pos = 0;
+            var literal = 0;
+            var a = 0;
+            var b = 0;
+            var rolling = false;
+            while (pos + blockSize <= size) {
+                if (!rolling) {
+                    var sum = weakSum(content, base + pos, blockSize);
+                    a = sum & 0xFFFF;
+                    b = sum >>> 16;
+                    rolling = true;
+                }
+                var match = find(a | (b << 16), pos, blockSize, false);
+                if (match != -1) {
+                    writer.data(content, base + literal, pos - literal);
+                    writer.copy(match);
+                    pos += blockSize;
+                    literal = pos;
+                    rolling = false;
+                    continue;
+                }
+                if (pos + blockSize < size) { // Rolls the window of one byte
+                    var out = content.get(base + pos) & 0xFF;
+                    var in = content.get(base + pos + blockSize) & 0xFF;
+                    a = (a - out + in) & 0xFFFF;
+                    b = (b - blockSize * out + a) & 0xFFFF;
+                }
+                pos++;
+            }
+            var tail = size - literal;
+            if (lastLength < blockSize && tail >= lastLength) { // The last block of the copy is shorter
+                var start = size - lastLength;
+                if (find(weakSum(content, base + start, lastLength), start, lastLength, true) != -1) {
+                    writer.data(content, base + literal, start - literal);
+                    writer.copy(strong.length - 1);
+                    literal = size;
+                }
+            }
+            writer.data(content, base + literal, size - literal);
+            return writer.end();
+        }
+
+        /**
+         * @return the index of the block of the copy that has the same sums, or -1 if none.
+         */
+        private int find(int weak, int pos, int length, boolean lastOnly) {
+            var candidates = weakIndex.get(weak);
+            if (candidates == null) return -1;
+            byte[] sum = null;
+            for (var index : candidates) {
+                var isLast = index == strong.length - 1;
+                if (lastOnly != isLast && (lastOnly || lastLength != blockSize)) continue;
+                if (sum == null) {
+                    digest.update(content.duplicate().position(base + pos).limit(base + pos + length));
+                    sum = Arrays.copyOf(digest.digest(), STRONG_SIZE);
+                }
+                if (Arrays.equals(sum, strong[index])) return index;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Packs the instructions in parts of at most {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#CONTENT_MAX_SIZE} bytes.
+     * Consecutive copies are merged.
+     */
+    private static final class InstructionWriter {
+        private final ArrayList<ByteBuffer> parts = new ArrayList<>();
+        private ByteBuffer current = ByteBuffer.allocate(CONTENT_MAX_SIZE);
+        private int copyIndex = -1;
+        private int copyCount = 0;
+
+        private void copy(int index) {
+            if (copyIndex != -1 && copyIndex + copyCount == index) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyIndex = index;
+            copyCount = 1;
+        }
+
+        private void data(ByteBuffer content, int from, int length) {
+            if (length == 0) return;
+            flushCopy();
+            while (length > 0) {
+                if (current.remaining() <= Byte.BYTES + Integer.BYTES) nextPart();
+                var chunk = Math.min(Math.min(length, MAX_DATA), current.remaining() - Byte.BYTES - Integer.BYTES);
+                current.put(DATA).putInt(chunk).put(content.duplicate().position(from).limit(from + chunk));
+                from += chunk;
+                length -= chunk;
+            }
+        }
+
+        private List<ByteBuffer> end() {
+            flushCopy();
+            if (!current.hasRemaining()) nextPart();
+            current.put(END);
+            parts.add(current.flip());
+            return parts;
+        }
+
+        private void flushCopy() {
+            if (copyIndex == -1) return;
+            if (current.remaining() < Byte.BYTES + Integer.BYTES * 2) nextPart();
+            current.put(COPY).putInt(copyIndex).putInt(copyCount);
+            copyIndex = -1;
+            copyCount = 0;
+        }
+
+        private void nextPart() {
+            parts.add(current.flip());
+            current = ByteBuffer.allocate(CONTENT_MAX_SIZE);
+        }
+    }
+
+    // ------------------------------------------------
+    //                   CHECKSUMS
+    // ------------------------------------------------
+
+    /**
+     * Computes the rolling checksum of {@code length} bytes of {@code buff} starting at {@code from}.
+     * The low 16 bits are the sum of the bytes and the high 16 bits the sum weighted by the distance to the end.
+     * @return the weak sum.
+     */
+    private static int weakSum(ByteBuffer buff, int from, int length) {
+        var a = 0;
+        var b = 0;
+        for (var i = 0; i < length; i++) {
+            var x = buff.get(from + i) & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("MD5 is always available", e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Selector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Small pool of threads doing the disk operations of the client, so that the
+ * selector thread never waits for the disk.
+ * <br>
+ * A job is submitted on a {@link Lane}: the jobs of the same lane are executed one after another
+ * in the order of submission, the jobs of different lanes can be executed concurrently.
+ * When a job is finished, its completion is queued and the {@link #selector} is woken up.
+ * The completions are then executed on the selector thread by {@link #runCompletions()}.
+ * Should only be used by {@link ClientChatOS}.
+ */
+final class DiskWorker {
+    /**
+     * A disk operation that can fail.
+     * @param <T> the type of the result.
+     */
+    @FunctionalInterface
+    interface IOJob<T> {
+        /**
+         * @return the result of the operation.
+         * @throws IOException if an I/O error occurs.
+         */
+        T run() throws IOException;
+    }
+
+    /**
+     * Sequence of jobs executed in order.
+     */
+    final class Lane {
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+        /**
+         * Executes the {@code job} after all the jobs previously submitted on this lane.
+         * Once finished, {@code onSuccess} or {@code onFailure} is executed on the selector thread.
+         * A job throwing an unexpected exception fails with an {@link IOException} wrapping it, so the
+         * next jobs of the lane are still executed.
+         *
+         * @param job the disk operation. Cannot be null.
+         * @param onSuccess the action to do with the result. Cannot be null.
+         * @param onFailure the action to do if the operation fails. Cannot be null.
+         * @param <T> the type of the result.
+         */
+        public <T> void submit(IOJob<T> job, Consumer<? super T> onSuccess, Consumer<? super IOException> onFailure) {
+            requireNonNull(job);
+            requireNonNull(onSuccess);
+            requireNonNull(onFailure);
+            tail = tail.thenRunAsync(() -> {
+                Runnable completion;
+                try {
+                    var result = job.run();
+                    completion = () -> onSuccess.accept(result);
+                } catch (IOException ioe) {
+                    completion = () -> onFailure.accept(ioe);
+                } catch (UncheckedIOException uioe) {
+                    completion = () -> onFailure.accept(uioe.getCause());
+                } catch (RuntimeException e) {
+                    var ioe = new IOException(e);
+                    completion = () -> onFailure.accept(ioe);
+                }
+                complete(completion);
+            }, executor);
+        }
+    }
+
+    /**
+     * Default number of threads doing the disk operations.
+     */
+    public static final int DEFAULT_THREADS = 2;
+
+    private final ConcurrentLinkedQueue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final ExecutorService executor;
+    private final Selector selector;
+
+    /**
+     * Creates a worker with {@link #DEFAULT_THREADS} threads.
+     * @param selector the selector to wake up when a job is finished. Cannot be null.
+     */
+    public DiskWorker(Selector selector) {
+        this.selector = requireNonNull(selector);
+        executor = Executors.newFixedThreadPool(DEFAULT_THREADS, r -> {
+            var thread = new Thread(r, "ChatOS-disk");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return a new lane.
+     */
+    public Lane newLane() {
+        return new Lane();
+    }
+
+    /**
+     * Queues the {@code completion} and wakes up the selector.
+     * @param completion the action to execute on the selector thread.
+     */
+    private void complete(Runnable completion) {
+        completions.add(completion);
+        selector.wakeup();
+    }
+
+    /**
+     * Executes every finished completion. Must be called by the selector thread.
+     */
+    public void runCompletions() {
+        Runnable completion;
+        while ((completion = completions.poll()) != null) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Stops the threads. The jobs not yet started are abandoned.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
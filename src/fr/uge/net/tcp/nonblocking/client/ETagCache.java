@@ -0,0 +1,101 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Computes the version (ETag) of the resources served by the client.
+ * The ETag is a hash of the content of the file and is computed only once
+ * for a given file and a given modification time.
+ * Should only be used by {@link ClientChatOS}.
+ */
+final class ETagCache {
+    /**
+     * Version of a file at the moment the hash has been computed.
+     */
+    private static record Entry(long modified, long size, String etag) {}
+
+    private static final String ALGORITHM = "SHA-256";
+    private final HashMap<Path, Entry> entries = new HashMap<>();
+
+    /**
+     * Returns the ETag of the file {@code path}.
+     * If the file has not changed since the last call, the hash is not computed again.
+     *
+     * @param path the file to hash. Cannot be null.
+     * @return the ETag of the file.
+     * @throws IOException if the file cannot be read.
+     */
+    public synchronized String etagOf(Path path) throws IOException {
+        requireNonNull(path);
+        var modified = Files.getLastModifiedTime(path).toMillis();
+        var size = Files.size(path);
+        var entry = entries.get(path);
+        if (entry != null && entry.modified == modified && entry.size == size) return entry.etag;
+        var etag = hash(path);
+        entries.put(path, new Entry(modified, size, etag));
+        return etag;
+    }
+
+    /**
+     * Computes the hash of the content of the file {@code path}.
+     * @param path the file to hash.
+     * @return the hash of the file in hexadecimal.
+     * @throws IOException if the file cannot be read.
+     */
+    private static String hash(Path path) throws IOException {
+        var digest = newDigest();
+        try (var fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buff = ByteBuffer.allocate(8_192);
+            while (fc.read(buff) != -1) {
+                digest.update(buff.flip());
+                buff.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes the hash of the {@code content}.
+     * @param content the content to hash, in read-mode. Won't be modified during the call of this method.
+     * @return the hash of the content in hexadecimal.
+     */
+    static String hash(ByteBuffer content) {
+        var digest = newDigest();
+        digest.update(content.duplicate());
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return a new {@link MessageDigest} using the {@link #ALGORITHM}.
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(ALGORITHM + " is always available", e);
+        }
+    }
+
+    /**
+     * @param bytes the bytes to convert.
+     * @return the bytes as a lower case hexadecimal string.
+     */
+    private static String toHex(byte[] bytes) {
+        var builder = new StringBuilder(bytes.length * 2);
+        for (var b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                   .append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,136 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.CONTENT_MAX_SIZE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * List of the files of a directory served by a client.
+ * <br>
+ * A manifest is encoded in UTF-8 with one line per file:
+ * <pre>
+ * name\tsize\tmodification time\tETag\n</pre>
+ * The name is relative to the directory and uses '/' as separator.
+ * The modification time is in milliseconds since the epoch.
+ * Should only be used by {@link ClientChatOS}.
+ */
+final class Manifest {
+    /**
+     * A file of the manifest.
+     * @param name the name relative to the directory.
+     * @param size the size of the file.
+     * @param modified the modification time of the file.
+     * @param etag the version of the file.
+     */
+    static record Entry(String name, long size, long modified, String etag) {}
+
+    /**
+     * Maximum size of a received manifest (= 16 Mio).
+     */
+    static final int MAX_SIZE = 16 << 20;
+
+    private Manifest() {}
+
+    /**
+     * Lists every regular file of {@code directory} and its sub-directories.
+     * The files whose name cannot be represented in a manifest (tabulation or new line) are ignored.
+     *
+     * @param directory the directory to list. Cannot be null.
+     * @param etags the cache used to compute the versions of the files. Cannot be null.
+     * @return the manifest in read-mode.
+     * @throws IOException if the directory cannot be read.
+     */
+    static ByteBuffer of(Path directory, ETagCache etags) throws IOException {
+        requireNonNull(directory);
+        requireNonNull(etags);
+        var builder = new StringBuilder();
+        List<Path> files;
+        try (var walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile).sorted().toList();
+        }
+        for (var file : files) {
+            var name = directory.relativize(file).toString().replace(File.separatorChar, '/');
+            if (name.endsWith(".delta") || name.contains("\t") || name.contains("\n")) continue;
+            builder.append(name).append('\t')
+                   .append(Files.size(file)).append('\t')
+                   .append(Files.getLastModifiedTime(file).toMillis()).append('\t')
+                   .append(etags.etagOf(file)).append('\n');
+        }
+        return UTF_8.encode(builder.toString());
+    }
+
+    /**
+     * Parses a manifest. The malformed lines are ignored.
+     * @param manifest the manifest in read-mode. Cannot be null.
+     * @return the files of the manifest.
+     */
+    static List<Entry> parse(ByteBuffer manifest) {
+        var entries = new ArrayList<Entry>();
+        for (var line : UTF_8.decode(manifest).toString().split("\n")) {
+            var fields = line.split("\t");
+            if (fields.length != 4) continue;
+            try {
+                entries.add(new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+            } catch (NumberFormatException ignore) {
+                // Malformed line
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Encodes the names of the requested files in bodies of batch requests.
+     * Each body is at most {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#CONTENT_MAX_SIZE} bytes.
+     *
+     * @param names the names of the files. Cannot be null.
+     * @return the bodies in read-mode.
+     */
+    static List<ByteBuffer> batches(List<String> names) {
+        var bodies = new ArrayList<ByteBuffer>();
+        var current = ByteBuffer.allocate(CONTENT_MAX_SIZE);
+        for (var name : names) {
+            var line = UTF_8.encode(name + "\n");
+            if (line.remaining() > CONTENT_MAX_SIZE) continue;
+            if (line.remaining() > current.remaining()) {
+                bodies.add(current.flip());
+                current = ByteBuffer.allocate(CONTENT_MAX_SIZE);
+            }
+            current.put(line);
+        }
+        if (current.position() != 0) bodies.add(current.flip());
+        return bodies;
+    }
+
+    /**
+     * Decodes the body of a batch request.
+     * @param body the body in read-mode. Cannot be null.
+     * @return the names of the requested files.
+     */
+    static List<String> names(ByteBuffer body) {
+        var names = new ArrayList<String>();
+        for (var name : UTF_8.decode(body).toString().split("\n")) {
+            if (!name.isEmpty()) names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * @param directory the name of a directory (with or without a trailing '/').
+     * @param name the name of a file relative to the directory.
+     * @return the name of the file relative to the working directory.
+     */
+    static String child(String directory, String name) {
+        var dir = directory;
+        while (dir.endsWith("/")) dir = dir.substring(0, dir.length() - 1);
+        if (dir.isEmpty() || dir.equals(".")) return name;
+        return dir + "/" + name;
+    }
+}
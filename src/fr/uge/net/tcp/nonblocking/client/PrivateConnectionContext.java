@@ -2,6 +2,8 @@ package fr.uge.net.tcp.nonblocking.client;
 
 import fr.uge.net.tcp.nonblocking.context.AbstractContext;
 import fr.uge.net.tcp.nonblocking.context.Context;
+import fr.uge.net.tcp.nonblocking.context.FlushScheduler;
+import fr.uge.net.tcp.nonblocking.context.Transport;
 import fr.uge.net.tcp.nonblocking.http.HTTPPacket;
 import fr.uge.net.tcp.nonblocking.http.HTTPReader;
 import fr.uge.net.tcp.nonblocking.packet.Packet;
@@ -12,39 +14,117 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import static fr.uge.net.tcp.nonblocking.display.ClientMessageDisplay.onPrivateConnectionInfo;
+import static fr.uge.net.tcp.nonblocking.display.ClientMessageDisplay.onTextResource;
 import static fr.uge.net.tcp.nonblocking.http.HTTPPacket.*;
 import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.makeTokenPacket;
 import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.DONE;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.ERROR;
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.BUFFER_MAX_SIZE;
 import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.CONTENT_MAX_SIZE;
 import static java.lang.Integer.parseInt;
 import static java.util.Objects.requireNonNull;
 
 /**
  * Represents a client private connection.
+ * Every disk operation (reading a served resource, writing a received one) is done
+ * on the {@link #lane} of this connection so the selector thread never waits for the disk.
+ * <br>
+ * When the client already owns a copy of a requested resource, the request contains the signatures
+ * of the blocks of the copy and the other client answers with only the differences (see {@link DeltaSync}).
+ * <br>
+ * When the requested resource is a directory, the other client answers with its {@link Manifest}.
+ * The files that differ from the local copies are then requested with a single batch request
+ * and sent back one after another.
+ * <br>
+ * The connection is either a socket presenting the token to the server, or a {@link StreamTransport}
+ * multiplexed over the main connection.
  * Should only be used by {@link ClientChatOS}.
  */
 final class PrivateConnectionContext extends AbstractContext implements Context {
+    /**
+     * Maximum number of received bytes waiting to be written on the disk.
+     * Above this limit, the context stops reading from the socket.
+     */
+    private static final int MAX_PENDING_WRITES = 4 * BUFFER_MAX_SIZE;
+    /**
+     * Maximum size of a resource read from the disk to compute a delta (= 64 Mio).
+     * A bigger resource that isn't in the {@link #cache} is sent whole.
+     */
+    private static final long MAX_DELTA_SOURCE = 64L << 20;
+
     private final HTTPReader reader = new HTTPReader();
+    /**
+     * Deltas expected for the requested resources. Only accessed by the jobs of the {@link #lane}.
+     */
+    private final HashMap<String, DeltaSync.Patch> patches = new HashMap<>();
+    /**
+     * Manifests being received, by directory. Only accessed by the selector thread.
+     * Emptied when the connection is closed.
+     */
+    private final HashMap<String, ByteBuffer> manifests = new HashMap<>();
+    /**
+     * True once a malformed packet has been received: nothing more is decoded and {@link #doRead()}
+     * reports the connection as closed.
+     */
+    private boolean malformed = false;
+    private final DiskWorker.Lane lane;
+    private final ResourceCache cache;
+    private final ResourceIndex index;
+    private final ETagCache etags;
     private final String directory;
     private final String pseudo;
+    private int pendingWrites = 0;
 
     /**
+     * Creates the context of a socket, which presents the token to the server first.
      * @param packet the packet containing the token. Cannot be null.
      * @param directory the working directory. Cannot be null.
      * @param key the connection key. Cannot be null.
+     * @param index the index of the resources fetched by this client. Cannot be null.
+     * @param etags the versions of the resources served by this client. Cannot be null.
+     * @param cache the resources recently served by this client. Cannot be null.
+     * @param worker the worker doing the disk operations. Cannot be null.
+     * @param scheduler the scheduler of the output of the client. Cannot be null.
      */
-    public PrivateConnectionContext(Packet packet, String directory, SelectionKey key) {
-        super(requireNonNull(key));
+    public PrivateConnectionContext(Packet packet, String directory, SelectionKey key,
+                                    ResourceIndex index, ETagCache etags, ResourceCache cache,
+                                    DiskWorker worker, FlushScheduler scheduler) {
+        this(packet, directory, Transport.of(key), index, etags, cache, worker, scheduler);
+        queueMessage(makeTokenPacket(parseInt(packet.message()), packet.pseudo()).toBuffer());
+    }
+
+    /**
+     * Creates the context of a connection already opened by the server (i.e. a stream).
+     * @param packet the packet containing the token. Cannot be null.
+     * @param directory the working directory. Cannot be null.
+     * @param transport the connection. Cannot be null.
+     * @param index the index of the resources fetched by this client. Cannot be null.
+     * @param etags the versions of the resources served by this client. Cannot be null.
+     * @param cache the resources recently served by this client. Cannot be null.
+     * @param worker the worker doing the disk operations. Cannot be null.
+     * @param scheduler the scheduler of the output of the client. Cannot be null.
+     */
+    PrivateConnectionContext(Packet packet, String directory, Transport transport,
+                             ResourceIndex index, ETagCache etags, ResourceCache cache,
+                             DiskWorker worker, FlushScheduler scheduler) {
+        super(requireNonNull(transport), requireNonNull(scheduler));
+        this.lane = worker.newLane();
         this.pseudo = packet.pseudo();
         this.directory = requireNonNull(directory);
-        queueMessage(makeTokenPacket(parseInt(packet.message()), packet.pseudo()).toBuffer());
+        this.index = requireNonNull(index);
+        this.etags = requireNonNull(etags);
+        this.cache = requireNonNull(cache);
     }
 
     /**
@@ -52,10 +132,13 @@ final class PrivateConnectionContext extends AbstractContext implements Context
      * if ready.
      * <br>
      * This method is recursive and all processIn should be. But not quit sure yet.
+     * It stops at a malformed packet, after which the connection is closed.
      */
     @Override
     public void processIn() {
+        if (malformed) return;
         var status = reader.process(bbIn);
+        if (status == ERROR) malformed = true;
         if (status != DONE) return;
         treatPacket(reader.get());
         reader.reset();
@@ -68,23 +151,146 @@ final class PrivateConnectionContext extends AbstractContext implements Context
      */
     private void treatPacket(HTTPPacket packet) {
         switch (packet.type()) {
-            case REQUEST -> onRequest(packet.resource());
+            case REQUEST -> onRequest(packet);
             case GOOD_RESPONSE -> onGoodResponse(packet);
-            case BAD_RESPONSE -> System.out.println("Bad request! The resource : " + packet.resource() + " doesn't exist.");
+            case BAD_RESPONSE -> onPrivateConnectionInfo("Bad request! The resource : " + packet.resource() + " doesn't exist.");
+            case NOT_MODIFIED -> onPrivateConnectionInfo("The resource : " + packet.resource() + " is already up to date.");
+            case DELTA_RESPONSE -> onDeltaResponse(packet);
         }
     }
 
     /**
      * Sends the requested resource if it exists else sends a bad HTTP Response.
-     * @param resource the requested resource.
+     * The response is built on the {@link #lane} and queued once ready.
+     * @param request the request containing the resource.
+     */
+    private void onRequest(HTTPPacket request) {
+        if (BATCH_CONTENT.equals(request.contentType())) {
+            onBatchRequest(request);
+            return;
+        }
+        lane.submit(() -> serve(request, contentTypeOf(request.resource())),
+                buffers -> buffers.forEach(this::queueIfOpen), ignore -> {});
+    }
+
+    /**
+     * Sends every file named in the batch {@code request} one after another.
+     * Each file is read by its own job on the {@link #lane} so only one file is in memory at a time.
+     * The files are always sent as {@link HTTPPacket#OTHER_CONTENT} so the requester saves them.
+     * @param request the batch request containing the names of the files.
+     */
+    private void onBatchRequest(HTTPPacket request) {
+        for (var name : Manifest.names(request.content())) {
+            var file = HTTPPacket.createRequest(Manifest.child(request.resource(), name));
+            lane.submit(() -> serve(file, OTHER_CONTENT), buffers -> buffers.forEach(this::queueIfOpen), ignore -> {});
+        }
+    }
+
+    /**
+     * Builds the response to the {@code request}.
+     * If the requester already owns the current version of the resource, the response is only
+     * a Not Modified HTTP Response. If the requester sent the signatures of its copy, the response
+     * only contains the differences.
+     * The resource is taken from the {@link #cache} if possible, otherwise it is read from the disk.
+     * If the resource is a directory, the response contains its {@link Manifest}.
+     * Called on a disk thread.
+     *
+     * @param request the request containing the resource.
+     * @param contentType the type of the content of the response.
+     * @return the response as a list of buffers in read-mode.
      */
-    private void onRequest(String resource) {
-        if (!fileExists(resource)) {
-            queueMessage(createBadResponse(resource).toBuffer());
+    private List<ByteBuffer> serve(HTTPPacket request, String contentType) {
+        var resource = request.resource();
+        if (!fileExists(resource)) return List.of(createBadResponse(resource).toBuffer());
+        List<HTTPPacket> packets;
+        try {
+            var path = resourceToPath(resource);
+            if (Files.isDirectory(path)) {
+                packets = manifestToPackets(request, path);
+                return toBuffers(packets);
+            }
+            var cached = cache.get(path);
+            var etag = cached == null ? etags.etagOf(path) : cached.etag();
+            List<HTTPPacket> delta;
+            if (etag.equals(request.etag())) {
+                packets = List.of(createNotModified(resource, etag));
+            } else if ((delta = deltaToPackets(request, cached, etag)) != null) {
+                packets = delta;
+            } else if (cached != null) {
+                packets = contentToPackets(cached.content(), resource, contentType, etag);
+            } else {
+                packets = resourceToPackets(resource, contentType, etag);
+            }
+        } catch (IOException ioe) {
+            packets = List.of(createBadResponse(resource));
+        }
+        return toBuffers(packets);
+    }
+
+    /**
+     * Builds the {@link Manifest} of the requested directory.
+     * If the requester already owns the current version of the manifest, the response is only
+     * a Not Modified HTTP Response.
+     *
+     * @param request the request containing the directory.
+     * @param path the directory.
+     * @return the manifest responses.
+     * @throws IOException if the directory cannot be read.
+     */
+    private List<HTTPPacket> manifestToPackets(HTTPPacket request, Path path) throws IOException {
+        var manifest = Manifest.of(path, etags);
+        var etag = ETagCache.hash(manifest);
+        if (etag.equals(request.etag())) return List.of(createNotModified(request.resource(), etag));
+        return contentToPackets(manifest, request.resource(), MANIFEST_CONTENT, etag);
+    }
+
+    /**
+     * @param packets the packets to convert. Cannot be null.
+     * @return the packets as buffers in read-mode.
+     */
+    private static List<ByteBuffer> toBuffers(List<HTTPPacket> packets) {
+        var buffers = new ArrayList<ByteBuffer>(packets.size());
+        packets.forEach(p -> buffers.add(p.toBuffer()));
+        return buffers;
+    }
+
+    /**
+     * Computes the differences between the resource and the copy of the requester.
+     *
+     * @param request the request containing the signatures of the copy.
+     * @param cached the resource if it is in the {@link #cache}; null otherwise.
+     * @param etag the version of the resource.
+     * @return the delta responses, or null if the request doesn't ask for a delta,
+     * if the resource is bigger than {@link #MAX_DELTA_SOURCE} or if the delta cannot be computed.
+     * @throws IOException if the resource cannot be read.
+     */
+    private List<HTTPPacket> deltaToPackets(HTTPPacket request, ResourceCache.Resource cached, String etag)
+            throws IOException {
+        if (!SIGNATURE_CONTENT.equals(request.contentType())) return null;
+        var resource = request.resource();
+        ByteBuffer content;
+        if (cached != null) {
+            content = cached.content();
         } else {
-            var packets = resourceToPackets(resource, resource.endsWith(".txt") ? TEXT_CONTENT : OTHER_CONTENT);
-            packets.forEach(p -> queueMessage(p.toBuffer()));
+            var path = resourceToPath(resource);
+            var size = Files.size(path);
+            if (size > MAX_DELTA_SOURCE) return null;
+            content = ResourceCache.load(path, (int) size);   // Not mapped: the file may be truncated meanwhile
         }
+        var parts = DeltaSync.delta(content, request.content());
+        if (parts == null) return null;
+        var packets = new ArrayList<HTTPPacket>(parts.size());
+        parts.forEach(part -> packets.add(createDeltaResponse(contentTypeOf(resource), part, resource, etag)));
+        return packets;
+    }
+
+    /**
+     * Adds {@code buff} to the queue if the connection is still open.
+     * Used by the completions of the {@link #lane} that may run after the closing of the connection.
+     * @param buff the buffer in read-mode.
+     */
+    private void queueIfOpen(ByteBuffer buff) {
+        if (isOpen()) queueMessage(buff);
     }
 
     /**
@@ -96,22 +302,120 @@ final class PrivateConnectionContext extends AbstractContext implements Context
      */
     private void onGoodResponse(HTTPPacket packet) {
         if (TEXT_CONTENT.equals(packet.contentType())) writeAsText(packet.content());
-        else writeAsData(packet.content(), packet.resource());
+        else if (MANIFEST_CONTENT.equals(packet.contentType())) onManifest(packet);
+        else writeAsData(packet);
+    }
+
+    /**
+     * Gathers the parts of a received {@link Manifest}.
+     * Once complete, the manifest is compared to the local copies on the {@link #lane}
+     * and the missing or outdated files are requested.
+     * @param packet the manifest response.
+     */
+    private void onManifest(HTTPPacket packet) {
+        var directory = packet.resource();
+        if (packet.total() > Manifest.MAX_SIZE) {
+            System.err.println("The manifest of " + directory + " is too big.");
+            return;
+        }
+        var manifest = manifests.get(directory);
+        if (packet.offset() == 0 || manifest == null || manifest.capacity() != packet.total()) {
+            manifest = ByteBuffer.allocate((int) packet.total());
+            manifests.put(directory, manifest);
+        }
+        if (packet.offset() + packet.content().remaining() > manifest.capacity()) {
+            System.err.println("The manifest of " + directory + " has an invalid range.");
+            manifests.remove(directory);
+            malformed = true;
+            return;
+        }
+        manifest.duplicate().position((int) packet.offset()).put(packet.content().duplicate());
+        if (!packet.isLast()) return;
+        manifests.remove(directory);
+        var entries = Manifest.parse(manifest.clear());
+        lane.submit(() -> planBatch(directory, entries), requests -> requests.forEach(this::queueIfOpen),
+                ioe -> System.err.println("Cannot synchronize the directory " + directory + " : " + ioe.getMessage()));
+    }
+
+    /**
+     * Compares the files of a received {@link Manifest} to the local copies and builds
+     * the batch requests for the files that are missing or outdated.
+     * The local copies that are already up to date are registered in the {@link #index}.
+     * Called on a disk thread.
+     *
+     * @param directory the requested directory.
+     * @param entries the files of the manifest.
+     * @return the batch requests in read-mode.
+     * @throws IOException if a local copy cannot be read.
+     */
+    private List<ByteBuffer> planBatch(String directory, List<Manifest.Entry> entries) throws IOException {
+        var names = new ArrayList<String>();
+        for (var entry : entries) {
+            var resource = Manifest.child(directory, entry.name());
+            var path = resourceToPath(resource);
+            if (entry.etag().equals(index.etagOf(pseudo, resource, path))) continue;
+            if (Files.isRegularFile(path) && entry.etag().equals(etags.etagOf(path))) {
+                index.record(pseudo, resource, entry.etag(), path);
+                continue;
+            }
+            names.add(entry.name());
+        }
+        onPrivateConnectionInfo(names.size() + " of " + entries.size() + " resources of " + directory + " to synchronize.");
+        var requests = new ArrayList<ByteBuffer>();
+        Manifest.batches(names).forEach(body -> requests.add(createBatchRequest(directory, body).toBuffer()));
+        return requests;
     }
     /**
      * Adds the request for the given {@code resource} to the message queue.
+     * If the resource has already been fetched and the local copy hasn't changed,
+     * the request only asks for a newer version.
+     * The state of the local copy is checked on the {@link #lane}.
      * @param resource the requested resource. Cannot be null.
      */
     public void queueMessage(String resource) {
         requireNonNull(resource);
-        queueMessage(HTTPPacket.createRequest(resource).toBuffer());
+        if (TEXT_CONTENT.equals(contentTypeOf(resource))) {
+            queueMessage(HTTPPacket.createRequest(resource).toBuffer());
+            return;
+        }
+        lane.submit(() -> conditionalRequest(resource), this::queueIfOpen,
+                ignore -> queueIfOpen(HTTPPacket.createRequest(resource).toBuffer()));
+    }
+
+    /**
+     * Builds the request for {@code resource} depending on the local copy.
+     * If the copy is known by the {@link #index}, the request contains its ETag.
+     * If the copy is big enough, the request contains the signatures of its blocks
+     * and the corresponding {@link DeltaSync.Patch} is registered.
+     * Called on a disk thread.
+     *
+     * @param resource the requested resource.
+     * @return the request in read-mode.
+     * @throws IOException if the local copy cannot be read.
+     */
+    private ByteBuffer conditionalRequest(String resource) throws IOException {
+        var path = resourceToPath(resource);
+        var etag = index.etagOf(pseudo, resource, path);
+        var signatures = Files.isRegularFile(path) ? DeltaSync.signatures(path) : null;
+        if (signatures == null) patches.remove(resource);
+        else patches.put(resource, new DeltaSync.Patch(path, signatures));
+        return HTTPPacket.createRequest(resource, etag, signatures).toBuffer();
+    }
+
+    /**
+     * Stops reading from the socket while too many bytes are waiting to be written on the disk.
+     * @return true if the number of bytes waiting is below {@link #MAX_PENDING_WRITES}.
+     */
+    @Override
+    protected boolean acceptsInput() {
+        return pendingWrites < MAX_PENDING_WRITES;
     }
 
     /**
      * Reads data in {@link #bbIn}.
      * If there's no data to read, closes the channel.
      *
-     * @throws IOException if the connection is closed.
+     * @throws IOException if the connection is closed or if a malformed packet has been received.
      */
     @Override
     public void doRead() throws IOException {
@@ -119,6 +423,9 @@ final class PrivateConnectionContext extends AbstractContext implements Context
         if (!isConnected()){
             throw new IOException("Connection closed");
         }
+        if (malformed) {
+            throw new IOException("Malformed packet");
+        }
     }
 
     /**
@@ -127,7 +434,11 @@ final class PrivateConnectionContext extends AbstractContext implements Context
      * @return true if the file exists; false if not.
      */
     private boolean fileExists(String resource) {
-        return Files.exists(resourceToPath(resource));
+        try {
+            return Files.exists(resourceToPath(resource));
+        } catch (IOException ioe) {
+            return false;
+        }
     }
 
     /**
@@ -137,13 +448,14 @@ final class PrivateConnectionContext extends AbstractContext implements Context
      * @param resource the requested resource. Cannot be null.
      * @param contentType the type of the content. Can be either {@link HTTPPacket#TEXT_CONTENT}
      *                    or {@link HTTPPacket#OTHER_CONTENT}.
+     * @param etag the version of the resource. Cannot be null.
      * @return the list of created packets, or a list with only a Bad HTTP Response
      * if the file produces an {@link IOException}.
      */
-    private List<HTTPPacket> resourceToPackets(String resource, String contentType) {
+    private List<HTTPPacket> resourceToPackets(String resource, String contentType, String etag) {
         try (var fc = FileChannel.open(resourceToPath(resource), StandardOpenOption.READ)) {
             var packets = new ArrayList<HTTPPacket>();
-            fillWithFile(packets, fc, resource, contentType);
+            fillWithFile(packets, fc, resource, contentType, etag);
             return packets;
         } catch (IOException e) {
             return List.of(createBadResponse(resource));
@@ -158,53 +470,183 @@ final class PrivateConnectionContext extends AbstractContext implements Context
      * @param resource the requested resource. Cannot be null.
      * @param contentType the type of the content. Can be either {@link HTTPPacket#TEXT_CONTENT}
      *                    or {@link HTTPPacket#OTHER_CONTENT}.
+     * @param etag the version of the resource. Cannot be null.
      * @throws IOException if the read fails.
      */
     private void fillWithFile(ArrayList<HTTPPacket> packets, FileChannel fc,
-                              String resource, String contentType) throws IOException {
+                              String resource, String contentType, String etag) throws IOException {
+        var total = fc.size();
+        var offset = 0L;
         var buff = ByteBuffer.allocate(CONTENT_MAX_SIZE);
         while (fc.read(buff) != -1) {
             if (!buff.hasRemaining()) {
-                packets.add(createGoodResponse(contentType, buff.flip(), resource));
+                packets.add(createGoodResponse(contentType, buff.flip(), resource, etag, offset, total));
+                offset += buff.remaining();
                 buff = ByteBuffer.allocate(CONTENT_MAX_SIZE);
             }
         }
-        if (buff.position() != 0)
-            packets.add(createGoodResponse(contentType, buff.flip(), resource));
+        if (buff.position() != 0 || packets.isEmpty())
+            packets.add(createGoodResponse(contentType, buff.flip(), resource, etag, offset, total));
     }
 
     /**
-     * Displays in the standard output the {@code content} decoded in {@link StandardCharsets#UTF_8}.
+     * Splits the {@code content} into multiple {@link HTTPPacket} if the content
+     * is bigger than {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#CONTENT_MAX_SIZE}.
+     * The content of the packets shares the data of {@code content}.
+     *
+     * @param content the whole resource in read-mode. Won't be modified during the call of this method.
+     * @param resource the requested resource. Cannot be null.
+     * @param contentType the type of the content. Can be either {@link HTTPPacket#TEXT_CONTENT}
+     *                    or {@link HTTPPacket#OTHER_CONTENT}.
+     * @param etag the version of the resource. Cannot be null.
+     * @return the list of created packets.
+     */
+    private static List<HTTPPacket> contentToPackets(ByteBuffer content, String resource,
+                                                     String contentType, String etag) {
+        var total = content.remaining();
+        var packets = new ArrayList<HTTPPacket>();
+        var offset = 0;
+        do {
+            var length = Math.min(CONTENT_MAX_SIZE, total - offset);
+            var part = content.duplicate().position(content.position() + offset).limit(content.position() + offset + length);
+            packets.add(createGoodResponse(contentType, part, resource, etag, offset, total));
+            offset += length;
+        } while (offset < total);
+        return packets;
+    }
+
+    /**
+     * Displays on the terminal the {@code content} decoded in {@link StandardCharsets#UTF_8}.
      * @param content the content to display. Cannot be null.
      */
     private static void writeAsText(ByteBuffer content) {
         requireNonNull(content);
-        System.out.println(StandardCharsets.US_ASCII.decode(content).toString());
+        onTextResource(StandardCharsets.US_ASCII.decode(content));
     }
 
     /**
-     * Writes the {@code content} into the given file.
-     * @param content the content to write. Cannot be null.
-     * @param resource the file where to write the content.
+     * Writes the content of the {@code packet} on the {@link #lane}.
+     * While the write is pending, its size is counted in {@link #pendingWrites}.
+     * @param packet the response packet. Cannot be null.
      */
-    private void writeAsData(ByteBuffer content, String resource) {
-        try (var fc = FileChannel.open(resourceToPath(resource), StandardOpenOption.APPEND, StandardOpenOption.CREATE)) {
+    private void writeAsData(HTTPPacket packet) {
+        var size = packet.content().remaining();
+        pendingWrites += size;
+        lane.submit(() -> {
+            writeAt(packet);
+            return null;
+        }, ignore -> onWritten(size), ioe -> {
+            System.err.println("Cannot open the file " + packet.resource() + " in write mode.");
+            onWritten(size);
+        });
+    }
+
+    /**
+     * Applies the differences contained in the {@code packet} to the local copy on the {@link #lane}.
+     * While the write is pending, its size is counted in {@link #pendingWrites}.
+     * @param packet the delta response. Cannot be null.
+     */
+    private void onDeltaResponse(HTTPPacket packet) {
+        var size = packet.content().remaining();
+        pendingWrites += size;
+        lane.submit(() -> {
+            applyDelta(packet);
+            return null;
+        }, ignore -> onWritten(size), ioe -> {
+            System.err.println("Cannot synchronize the resource " + packet.resource() + " : " + ioe.getMessage());
+            onWritten(size);
+        });
+    }
+
+    /**
+     * Applies the differences to the expected {@link DeltaSync.Patch}.
+     * Once the resource is complete, replaces the local copy and registers it in the {@link #index}.
+     * Called on a disk thread.
+     *
+     * @param packet the delta response.
+     * @throws IOException if no delta was expected or if it cannot be applied.
+     */
+    private void applyDelta(HTTPPacket packet) throws IOException {
+        var resource = packet.resource();
+        var patch = patches.get(resource);
+        if (patch == null) throw new IOException("Unexpected delta");
+        try {
+            if (!patch.apply(packet.content())) return;
+            patches.remove(resource);
+            patch.commit();
+        } catch (IOException ioe) {
+            patches.remove(resource);
+            patch.abort();
+            throw ioe;
+        }
+        index.record(pseudo, resource, packet.etag(), resourceToPath(resource));
+    }
+
+    /**
+     * Updates {@link #pendingWrites} once a write is done and restarts reading if needed.
+     * @param size the number of bytes written.
+     */
+    private void onWritten(int size) {
+        pendingWrites -= size;
+        if (isOpen()) updateInterestOps();
+    }
+
+    /**
+     * Writes the content of the {@code packet} into the file at the position of the content.
+     * The first part of a resource replaces the previous local copy.
+     * When the last part is written, registers the local copy in the {@link #index}.
+     * Called on a disk thread.
+     *
+     * @param packet the response packet. Cannot be null.
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeAt(HTTPPacket packet) throws IOException {
+        var resource = packet.resource();
+        var path = resourceToPath(resource);
+        var options = packet.offset() == 0 ?
+                Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING) :
+                Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        var last = packet.isLast();
+        if (packet.offset() == 0) patches.remove(resource); // The other client sent the whole resource
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        try (var fc = FileChannel.open(path, options)) {
+            var content = packet.content();
+            var position = packet.offset();
             while (content.hasRemaining()) {
-                fc.write(content);
+                position += fc.write(content, position);
             }
-        } catch (IOException ioe) {
-            System.err.println("Cannot open the file " + resource + " in write mode.");
         }
+        if (last) index.record(pseudo, resource, packet.etag(), path);
+    }
+
+    /**
+     * @param resource the name of the resource. Cannot be null.
+     * @return {@link HTTPPacket#TEXT_CONTENT} if the resource is a text file;
+     * {@link HTTPPacket#OTHER_CONTENT} otherwise.
+     */
+    private static String contentTypeOf(String resource) {
+        return resource.endsWith(".txt") ? TEXT_CONTENT : OTHER_CONTENT;
     }
 
     /**
      * Converts the {@code resource} into a {@link Path}.
      * @param resource the file within the working {@link #directory}.
      * @return the corresponding path.
+     * @throws IOException if the resource is outside of the working {@link #directory}
+     * or isn't a valid path (e.g. contains a NUL character).
      */
-    private Path resourceToPath(String resource) {
+    private Path resourceToPath(String resource) throws IOException {
         requireNonNull(resource);
-        return Paths.get(resource.startsWith("/") ? directory + resource : directory + "/" + resource);
+        var root = Paths.get(directory).toAbsolutePath().normalize();
+        Path path;
+        try {
+            path = Paths.get(resource.startsWith("/") ? directory + resource : directory + "/" + resource)
+                        .toAbsolutePath().normalize();
+        } catch (InvalidPathException ipe) {
+            throw new IOException("Invalid resource", ipe);
+        }
+        if (!path.startsWith(root)) throw new IOException("Invalid resource");
+        return path;
     }
 
     /**
@@ -215,4 +657,13 @@ final class PrivateConnectionContext extends AbstractContext implements Context
         close();
         privateConnections.remove(pseudo);
     }
+
+    /**
+     * Closes the channel and drops the manifests being received.
+     */
+    @Override
+    public void close() {
+        super.close();
+        manifests.clear();
+    }
 }
@@ -0,0 +1,123 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Bounded cache of the resources recently served by the client.
+ * The content of each file is kept in a direct buffer so popular files are not read
+ * from the disk for every request.
+ * <br>
+ * The cache is bounded by the total size of the stored files ({@link #capacity}) and evicts the
+ * least recently used files first. A cached file is dropped as soon as its modification time
+ * or its size changes. Files greater than {@link #maxEntrySize} are never cached.
+ * Should only be used by {@link ClientChatOS}.
+ */
+final class ResourceCache {
+    /**
+     * Content of a resource and its version.
+     * @param content the content of the file, in read-mode. Read-only.
+     * @param etag the hash of the content.
+     */
+    static record Resource(ByteBuffer content, String etag) {}
+    /**
+     * Cached resource and the state of the file when it has been loaded.
+     */
+    private static record Entry(long modified, long size, Resource resource) {}
+
+    /**
+     * Default maximum size of all the cached files (= 64 Mio).
+     */
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+    /**
+     * Default maximum size of a cached file (= 8 Mio).
+     */
+    public static final long DEFAULT_MAX_ENTRY_SIZE = 8L << 20;
+
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long capacity;
+    private final long maxEntrySize;
+    private long used = 0;
+
+    /**
+     * Creates a cache with {@link #DEFAULT_CAPACITY} and {@link #DEFAULT_MAX_ENTRY_SIZE}.
+     */
+    public ResourceCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_ENTRY_SIZE);
+    }
+
+    /**
+     * @param capacity the maximum size of all the cached files. Must be positive.
+     * @param maxEntrySize the maximum size of a cached file. Must be positive and not greater than {@code capacity}.
+     * @throws IllegalArgumentException if one of the sizes is invalid.
+     */
+    public ResourceCache(long capacity, long maxEntrySize) {
+        if (capacity <= 0 || maxEntrySize <= 0 || maxEntrySize > capacity)
+            throw new IllegalArgumentException("Invalid cache sizes : " + capacity + ", " + maxEntrySize);
+        this.capacity = capacity;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * Returns the content of the file {@code path}.
+     * If the file is not cached or has changed since it has been cached, reads it from the disk
+     * and evicts the least recently used files until it fits in the cache.
+     *
+     * @param path the file to read. Cannot be null.
+     * @return the resource or null if the file is too big to be cached.
+     * @throws IOException if the file cannot be read.
+     */
+    public synchronized Resource get(Path path) throws IOException {
+        requireNonNull(path);
+        var modified = Files.getLastModifiedTime(path).toMillis();
+        var size = Files.size(path);
+        var entry = entries.get(path);
+        if (entry != null) {
+            if (entry.modified == modified && entry.size == size) return entry.resource;
+            remove(path);
+        }
+        if (size > maxEntrySize) return null;
+        var content = load(path, (int) size);
+        var resource = new Resource(content, ETagCache.hash(content));
+        while (used + content.capacity() > capacity) {
+            remove(entries.keySet().iterator().next());
+        }
+        entries.put(path, new Entry(modified, size, resource));
+        used += content.capacity();
+        return resource;
+    }
+
+    /**
+     * Removes the file {@code path} from the cache.
+     * @param path the file to remove.
+     */
+    private void remove(Path path) {
+        var entry = entries.remove(path);
+        if (entry != null) used -= entry.resource.content.capacity();
+    }
+
+    /**
+     * Reads the whole file inside a new direct buffer.
+     * Reads at most {@code size} bytes, and less if the file has been truncated meanwhile.
+     * @param path the file to read.
+     * @param size the expected size of the file.
+     * @return a read-only buffer in read-mode containing the file.
+     * @throws IOException if the file cannot be read.
+     */
+    static ByteBuffer load(Path path, int size) throws IOException {
+        var buff = ByteBuffer.allocateDirect(size);
+        try (var fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buff.hasRemaining() && fc.read(buff) != -1) {
+                // Reads until the buffer is full or the end of the file
+            }
+        }
+        return buff.flip().asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,72 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Index of the resources fetched from the other clients.
+ * For each resource, remembers its ETag and the state of the local copy when it has been saved.
+ * If the local copy has been modified (or deleted) since, the index doesn't return the ETag anymore.
+ * Should only be used by {@link ClientChatOS}.
+ */
+final class ResourceIndex {
+    /**
+     * Identifies a resource owned by a client.
+     */
+    private static record Key(String pseudo, String resource) {}
+    /**
+     * Version of the resource and state of the local copy.
+     */
+    private static record Entry(String etag, long modified, long size) {}
+
+    private final HashMap<Key, Entry> entries = new HashMap<>();
+
+    /**
+     * Returns the ETag of the local copy of {@code resource} fetched from {@code pseudo}.
+     *
+     * @param pseudo the owner of the resource. Cannot be null.
+     * @param resource the name of the resource. Cannot be null.
+     * @param local the local copy of the resource. Cannot be null.
+     * @return the ETag if the local copy is still the one fetched; null otherwise.
+     */
+    public synchronized String etagOf(String pseudo, String resource, Path local) {
+        requireNonNull(local);
+        var key = new Key(requireNonNull(pseudo), requireNonNull(resource));
+        var entry = entries.get(key);
+        if (entry == null) return null;
+        try {
+            if (Files.getLastModifiedTime(local).toMillis() == entry.modified && Files.size(local) == entry.size)
+                return entry.etag;
+        } catch (IOException ignore) {
+            // The local copy doesn't exist anymore
+        }
+        entries.remove(key);
+        return null;
+    }
+
+    /**
+     * Registers the local copy of {@code resource} fetched from {@code pseudo}.
+     *
+     * @param pseudo the owner of the resource. Cannot be null.
+     * @param resource the name of the resource. Cannot be null.
+     * @param etag the version of the resource. If null, only forgets the previous version.
+     * @param local the local copy of the resource. Cannot be null.
+     */
+    public synchronized void record(String pseudo, String resource, String etag, Path local) {
+        requireNonNull(local);
+        var key = new Key(requireNonNull(pseudo), requireNonNull(resource));
+        if (etag == null) {
+            entries.remove(key);
+            return;
+        }
+        try {
+            entries.put(key, new Entry(etag, Files.getLastModifiedTime(local).toMillis(), Files.size(local)));
+        } catch (IOException ioe) {
+            entries.remove(key);
+        }
+    }
+}
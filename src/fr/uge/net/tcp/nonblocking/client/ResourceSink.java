@@ -0,0 +1,36 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Receives the parts of a resource fetched by a {@link ChatOSSession}, in the order they are received.
+ * <br>
+ * The sink is called by the thread of the {@link ChatOSClient}, which serves every session:
+ * it must not block.
+ */
+@FunctionalInterface
+public interface ResourceSink {
+    /**
+     * Receives a part of the resource.
+     * @param content the part, in read-mode. Only valid during the call.
+     * @param offset the position of the part inside the resource.
+     * @param total the size of the whole resource.
+     * @throws IOException if the part cannot be stored. The fetch fails with this exception.
+     */
+    void write(ByteBuffer content, long offset, long total) throws IOException;
+
+    /**
+     * @param channel the channel receiving the parts one after another. Cannot be null.
+     * @return a sink writing every part at the end of {@code channel}.
+     */
+    static ResourceSink of(WritableByteChannel channel) {
+        requireNonNull(channel);
+        return (content, offset, total) -> {
+            while (content.hasRemaining()) channel.write(content);
+        };
+    }
+}
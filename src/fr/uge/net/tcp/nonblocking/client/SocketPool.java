@@ -0,0 +1,178 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import fr.uge.net.tcp.nonblocking.context.Context;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.silentlyClose;
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Sockets connected to the server in advance, so a private connection presents its token right away
+ * instead of waiting for a TCP handshake.
+ * <br>
+ * The sockets are registered to the selector of the client. The server closes a connection that isn't identified
+ * within 30 seconds, so a socket is replaced once it has waited {@link #MAX_IDLE} milliseconds. A socket closed
+ * by the server, or failing to connect, is replaced after {@link #RETRY_DELAY} milliseconds.
+ * <br>
+ * Only used by the thread of the selector.
+ */
+final class SocketPool {
+    /**
+     * Maximum time a socket waits in the pool, in milliseconds.
+     */
+    static final long MAX_IDLE = 20_000;
+    /**
+     * Delay before replacing a socket that failed, in milliseconds.
+     */
+    private static final long RETRY_DELAY = 1_000;
+
+    private static final Logger logger = Logger.getLogger(SocketPool.class.getName());
+
+    /**
+     * A socket of the pool, attached to its key.
+     */
+    private final class Entry implements Context {
+        private final SocketChannel sc;
+        private final SelectionKey key;
+        private final long openedAt = System.nanoTime();
+        private boolean connected;
+
+        private Entry(SocketChannel sc, SelectionKey key) {
+            this.sc = sc;
+            this.key = key;
+        }
+
+        @Override
+        public void doConnect() {
+            try {
+                if (!sc.finishConnect()) return;
+                connected = true;
+                key.interestOps(OP_READ);
+            } catch (IOException ioe) {
+                fail(this);
+            }
+        }
+
+        /**
+         * The server sends nothing before the token: the socket has been closed.
+         */
+        @Override
+        public void doRead() {
+            fail(this);
+        }
+
+        @Override
+        public void doWrite() {
+        }
+
+        private boolean isExpired(long now) {
+            return now - openedAt >= TimeUnit.MILLISECONDS.toNanos(MAX_IDLE);
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final InetSocketAddress serverAddress;
+    private final Selector selector;
+    private final int size;
+    /**
+     * When the pool can be refilled after a failure ({@link System#nanoTime()}), -1 if it can be right away.
+     */
+    private long retryAt = -1;
+
+    /**
+     * @param serverAddress the address of the server. Cannot be null.
+     * @param selector the selector of the client. Cannot be null.
+     * @param size the number of sockets to keep connected, 0 to disable the pool.
+     */
+    SocketPool(InetSocketAddress serverAddress, Selector selector, int size) {
+        if (size < 0) throw new IllegalArgumentException("size < 0");
+        this.serverAddress = requireNonNull(serverAddress);
+        this.selector = requireNonNull(selector);
+        this.size = size;
+    }
+
+    /**
+     * Closes the expired sockets and opens new ones until the pool is full.
+     */
+    void refill() {
+        var now = System.nanoTime();
+        while (!entries.isEmpty() && entries.peek().isExpired(now)) {
+            silentlyClose(entries.poll().sc);
+        }
+        if (retryAt != -1 && now - retryAt < 0) return;
+        retryAt = -1;
+        while (entries.size() < size) {
+            SocketChannel sc = null;
+            try {
+                sc = SocketChannel.open();
+                sc.configureBlocking(false);
+                var key = sc.register(selector, OP_CONNECT);
+                var entry = new Entry(sc, key);
+                key.attach(entry);
+                entries.add(entry);
+                if (sc.connect(serverAddress)) entry.doConnect();
+            } catch (IOException ioe) {
+                logger.fine("Cannot open a socket in advance: " + ioe.getMessage());
+                if (sc != null) silentlyClose(sc);
+                retryAt = now + TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest connected socket out of the pool. Its key is registered to the selector,
+     * with no interest operator and no attachment.
+     * @return the key of the socket, null if none is connected.
+     */
+    SelectionKey take() {
+        for (var it = entries.iterator(); it.hasNext(); ) {
+            var entry = it.next();
+            if (!entry.connected) continue;
+            it.remove();
+            entry.key.interestOps(0);
+            entry.key.attach(null);
+            return entry.key;
+        }
+        return null;
+    }
+
+    /**
+     * @return the maximum duration of the next selection in milliseconds, until the next socket expires
+     * or the pool can be refilled (0 if there's nothing to wait for, i.e. no limit).
+     */
+    long timeout() {
+        var next = entries.isEmpty() ? -1 : entries.peek().openedAt + TimeUnit.MILLISECONDS.toNanos(MAX_IDLE);
+        if (retryAt != -1 && (next == -1 || retryAt - next < 0)) next = retryAt;
+        if (next == -1) return 0;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - System.nanoTime()));
+    }
+
+    /**
+     * Closes every socket of the pool. The pool can be refilled right away.
+     */
+    void close() {
+        entries.forEach(entry -> silentlyClose(entry.sc));
+        entries.clear();
+        retryAt = -1;
+    }
+
+    /**
+     * Drops a socket that failed, and delays the next refill.
+     */
+    private void fail(Entry entry) {
+        entries.remove(entry);
+        silentlyClose(entry.sc);
+        retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY);
+    }
+}
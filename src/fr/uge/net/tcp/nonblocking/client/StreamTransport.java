@@ -0,0 +1,239 @@
+package fr.uge.net.tcp.nonblocking.client;
+
+import fr.uge.net.tcp.nonblocking.context.Transport;
+import fr.uge.net.tcp.nonblocking.packet.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.makeStreamPacket;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.makeWindowPacket;
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.STREAM_FRAME_SIZE;
+import static java.nio.channels.SelectionKey.*;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A private connection multiplexed over the main connection: the {@link Transport} of a
+ * {@link PrivateConnectionContext} whose bytes are carried by {@link Packet.PacketType#STREAM} packets.
+ * <br>
+ * The flow control is done with windows: the stream only sends as many bytes as the other end allowed
+ * (its initial window, then the {@link Packet.PacketType#WINDOW} packets received), and allows the other end
+ * to send more once half of its own {@link #WINDOW} has been read. So a context that stops reading
+ * (e.g. while the disk is behind) stops the other end, and at most {@link #WINDOW} bytes wait for it.
+ * <br>
+ * The stream has no selection key: {@link ClientChatOS} {@link #dispatch() dispatches} the operations the context
+ * is interested in once they are possible. Only used by the thread of the selector.
+ */
+final class StreamTransport implements Transport {
+    /**
+     * The initial window of the streams of this client, in bytes. Announced to the server.
+     */
+    static final int WINDOW = 256 * 1024;
+
+    private static final Logger logger = Logger.getLogger(StreamTransport.class.getName());
+
+    /**
+     * The received parts not read yet, in read-mode.
+     */
+    private final ArrayDeque<ByteBuffer> received = new ArrayDeque<>();
+    private final int stream;
+    /**
+     * Queues an encoded packet on the main connection.
+     */
+    private final Consumer<ByteBuffer> output;
+    private final Runnable onClose;
+    private PrivateConnectionContext context;
+    /**
+     * Number of bytes the stream can still send.
+     */
+    private long sendWindow;
+    /**
+     * Number of bytes the other end can still send.
+     */
+    private int receiveWindow = WINDOW;
+    /**
+     * Number of bytes read since the last credit given to the other end.
+     */
+    private int consumed;
+    private int ops = OP_CONNECT;
+    /**
+     * True once the other end has ended the stream: what's left can be read, but nothing can be written anymore.
+     */
+    private boolean ended;
+    private boolean closed;
+
+    /**
+     * @param stream the id of the stream (the token of the private connection).
+     * @param window the initial window of the other end, in bytes.
+     * @param output queues an encoded packet on the main connection. Cannot be null.
+     * @param onClose called once the stream is closed. Cannot be null.
+     */
+    StreamTransport(int stream, int window, Consumer<ByteBuffer> output, Runnable onClose) {
+        this.stream = stream;
+        this.sendWindow = window;
+        this.output = requireNonNull(output);
+        this.onClose = requireNonNull(onClose);
+    }
+
+    /**
+     * @param context the context reading and writing the stream. Cannot be null.
+     */
+    void attach(PrivateConnectionContext context) {
+        this.context = requireNonNull(context);
+    }
+
+    /**
+     * @return the context reading and writing the stream.
+     */
+    PrivateConnectionContext context() {
+        return context;
+    }
+
+    /**
+     * Keeps a part received from the other end. An empty part ends the stream.
+     * A part exceeding the window given to the other end also ends the stream, since the other end
+     * doesn't respect the flow control.
+     * @param content the part in read-mode.
+     */
+    void onReceived(ByteBuffer content) {
+        if (closed || ended) return;
+        var length = content.remaining();
+        if (length == 0) {
+            ended = true;
+        } else if (length > receiveWindow) {
+            logger.warning("Stream " + stream + " exceeds its window, ended");
+            received.clear();
+            ended = true;
+        } else {
+            receiveWindow -= length;
+            received.add(content);
+        }
+    }
+
+    /**
+     * Allows the stream to send more bytes.
+     * @param increment the number of bytes.
+     */
+    void onWindow(int increment) {
+        sendWindow += increment;
+    }
+
+    /**
+     * @return true if the context is interested in an operation that is possible now.
+     */
+    boolean isReady() {
+        if (closed) return false;
+        return (ops & OP_CONNECT) != 0
+                || (ops & OP_WRITE) != 0 && (ended || sendWindow > 0)
+                || (ops & OP_READ) != 0 && (ended || !received.isEmpty());
+    }
+
+    /**
+     * Does the operations the context is interested in and that are possible now.
+     * @throws IOException if the context fails.
+     */
+    void dispatch() throws IOException {
+        if ((ops & OP_CONNECT) != 0) context.doConnect();
+        if (!closed && (ops & OP_WRITE) != 0 && (ended || sendWindow > 0)) context.doWrite();
+        if (!closed && (ops & OP_READ) != 0 && (ended || !received.isEmpty())) context.doRead();
+    }
+
+    /**
+     * Copies the received parts into {@code dst}, and gives a credit to the other end once half of
+     * the {@link #WINDOW} has been read.
+     * @param dst the buffer in write-mode.
+     * @return the number of bytes read, -1 once the stream has ended and everything has been read.
+     */
+    @Override
+    public int read(ByteBuffer dst) {
+        if (received.isEmpty()) return ended ? -1 : 0;
+        var start = dst.position();
+        while (!received.isEmpty() && dst.hasRemaining()) {
+            var part = received.peek();
+            if (part.remaining() <= dst.remaining()) {
+                dst.put(received.remove());
+            } else {
+                var length = dst.remaining();
+                dst.put(part.slice().limit(length));
+                part.position(part.position() + length);
+            }
+        }
+        var read = dst.position() - start;
+        consumed += read;
+        if (!ended && consumed >= WINDOW / 2) {
+            output.accept(makeWindowPacket(stream, consumed).toBuffer());
+            receiveWindow += consumed;
+            consumed = 0;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src });
+    }
+
+    /**
+     * Sends as many bytes as the window allows, in parts of at most {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#STREAM_FRAME_SIZE}
+     * bytes (each one copied only once, into its packet).
+     * @param srcs the buffers in read-mode.
+     * @return the number of bytes sent.
+     * @throws IOException if the stream is closed or has been ended by the other end.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        if (closed || ended) throw new IOException("Stream closed");
+        var written = 0L;
+        for (var src : srcs) {
+            while (src.hasRemaining() && sendWindow > 0) {
+                var length = (int) Math.min(Math.min(src.remaining(), sendWindow), STREAM_FRAME_SIZE);
+                output.accept(makeStreamPacket(stream, src.slice().limit(length)).toBuffer());
+                src.position(src.position() + length);
+                sendWindow -= length;
+                written += length;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return true: the stream is opened by the server.
+     */
+    @Override
+    public boolean finishConnect() {
+        return true;
+    }
+
+    @Override
+    public void interestOps(int ops) {
+        this.ops = ops;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes the stream, and ends it unless the other end already did.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        if (!ended) output.accept(makeStreamPacket(stream, ByteBuffer.allocate(0)).toBuffer());
+        abandon();
+    }
+
+    /**
+     * Closes the stream without ending it, when the main connection is lost: the server ends it.
+     */
+    void abandon() {
+        if (closed) return;
+        closed = true;
+        received.clear();
+        onClose.run();
+    }
+}
@@ -3,95 +3,303 @@ package fr.uge.net.tcp.nonblocking.context;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.BUFFER_MAX_SIZE;
-import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.silentlyClose;
 import static fr.uge.net.tcp.nonblocking.display.ClientMessageDisplay.onConnectFail;
 import static java.nio.channels.SelectionKey.*;
 
 /**
  * Abstract context that is used to group all common methods among all implementations of {@link Context}.
+ * <br>
+ * The output is queued in one lane per {@link Priority}, so a packet of a higher priority doesn't wait
+ * behind the buffers of the lower ones. The order of the buffers of the same lane is kept.
+ * <br>
+ * A context usually reads and writes a socket, but can use any {@link Transport}.
  */
 public abstract class AbstractContext implements Context {
     /**
      * Output buffer is in write-mode.
      */
     private final ByteBuffer bbOut = ByteBuffer.allocate(BUFFER_MAX_SIZE);
+    private static final Priority[] PRIORITIES = Priority.values();
     /**
-     * The stored buffers are in read-mode.
+     * The queued buffers, one lane per {@link Priority}. The stored buffers are in read-mode.
      */
-    private final LinkedList<ByteBuffer> queue = new LinkedList<>();
+    private final List<ArrayDeque<ByteBuffer>> lanes = List.of(new ArrayDeque<>(), new ArrayDeque<>(), new ArrayDeque<>());
+    /**
+     * The lane whose first buffer has been partially stored in {@link #bbOut}, if any.
+     * The rest of this buffer is stored before anything else.
+     */
+    private ArrayDeque<ByteBuffer> splitLane;
+    /**
+     * Number of bytes waiting in the {@link #lanes}.
+     */
+    private long queuedBytes = 0;
     /**
      * Input buffer is in write-mode.
      */
     protected final ByteBuffer bbIn = ByteBuffer.allocate(BUFFER_MAX_SIZE);
-    private final SelectionKey key;
-    private final SocketChannel sc;
+    /**
+     * The scheduler of the output. If null, the output is processed as soon as it is queued.
+     */
+    private final FlushScheduler scheduler;
+    /**
+     * Observes the traffic of this context. Null if nothing observes it.
+     */
+    private final TrafficMeter meter;
+    private final Transport transport;
     private boolean closed = false;
     private boolean connected = false;
+    /**
+     * The interest operators currently set on the {@link #transport} (-1 if unknown).
+     */
+    private int currentOps = -1;
 
     /**
+     * Creates a context that processes its output as soon as it is queued.
      * @param key the connection key.
      */
     public AbstractContext(SelectionKey key) {
-        this.key = Objects.requireNonNull(key);
-        sc = (SocketChannel) key.channel();
+        this(key, null);
+    }
+    /**
+     * Creates a context that defers its output until the next {@link FlushScheduler#flush()}.
+     * @param key the connection key.
+     * @param scheduler the scheduler of the output. If null, the output is processed as soon as it is queued.
+     */
+    public AbstractContext(SelectionKey key, FlushScheduler scheduler) {
+        this(key, scheduler, null);
+    }
+    /**
+     * Creates a context whose traffic is observed by {@code meter}.
+     * @param key the connection key.
+     * @param scheduler the scheduler of the output. If null, the output is processed as soon as it is queued.
+     * @param meter observes the bytes read and written and the queued buffers. Can be null.
+     */
+    public AbstractContext(SelectionKey key, FlushScheduler scheduler, TrafficMeter meter) {
+        this(Transport.of(key), scheduler, meter);
+    }
+    /**
+     * Creates a context that reads and writes {@code transport} instead of a socket.
+     * @param transport the transport.
+     * @param scheduler the scheduler of the output. If null, the output is processed as soon as it is queued.
+     */
+    public AbstractContext(Transport transport, FlushScheduler scheduler) {
+        this(transport, scheduler, null);
+    }
+    private AbstractContext(Transport transport, FlushScheduler scheduler, TrafficMeter meter) {
+        this.transport = Objects.requireNonNull(transport);
+        this.scheduler = scheduler;
+        this.meter = meter;
     }
     /**
      * Reads what's inside bbIn and do something with it.
      */
     public abstract void processIn();
     /**
-     * Adds this buffer to the queue and tries to fill {@link #bbOut}.
-     * @param buff the buffer in write mode to add to the {@link #queue} to send.
+     * Adds this buffer to the {@link Priority#DIRECT} lane and tries to fill {@link #bbOut}
+     * (or marks this context as dirty if it has a {@link FlushScheduler}).
+     * @param buff the buffer in read mode to add to the {@link #lanes} to send.
      */
     public void queueMessage(ByteBuffer buff) {
-        queue.add(buff);
-        processOut();
-        updateInterestOps();
+        queueMessage(buff, Priority.DIRECT);
     }
     /**
-     * Adds this buffer at the start of queue and tries to fill {@link #bbOut}.
-     * @param buff the buffer in write mode to add to the {@link #queue} to send.
+     * Adds this buffer to the lane of {@code priority} and tries to fill {@link #bbOut}
+     * (or marks this context as dirty if it has a {@link FlushScheduler}).
+     * @param buff the buffer in read mode to add to the {@link #lanes} to send.
+     * @param priority the priority of the buffer.
+     */
+    public void queueMessage(ByteBuffer buff, Priority priority) {
+        lanes.get(priority.ordinal()).add(Objects.requireNonNull(buff));
+        queuedBytes += buff.remaining();
+        if (meter != null) meter.queued(1);
+        scheduleOut();
+    }
+    /**
+     * Adds this buffer at the start of the {@link Priority#CONTROL} lane, so it is sent before anything else
+     * (except the rest of a buffer already partially stored in {@link #bbOut}), and tries to fill {@link #bbOut}
+     * (or marks this context as dirty if it has a {@link FlushScheduler}).
+     * @param buff the buffer in read mode to add to the {@link #lanes} to send.
      */
     public void insertFirstMessage(ByteBuffer buff) {
-        queue.add(buff);
+        var lane = lanes.get(Priority.CONTROL.ordinal());
+        if (lane == splitLane) {
+            var head = lane.remove();
+            lane.addFirst(Objects.requireNonNull(buff));
+            lane.addFirst(head);
+        } else {
+            lane.addFirst(Objects.requireNonNull(buff));
+        }
+        queuedBytes += buff.remaining();
+        if (meter != null) meter.queued(1);
+        scheduleOut();
+    }
+    /**
+     * Writes the buffers with a single gathering write if nothing else is waiting to be written,
+     * then copies what hasn't been written into one buffer added to the lane of {@code priority}.
+     * The buffers aren't used after the call, so they can be views of a memory that changes later.
+     * If the write fails, the rest is queued so that the failure is reported by the next {@link #doWrite()}.
+     * @param priority the priority of what can't be written now.
+     * @param buffers the buffers in read-mode.
+     */
+    public void writeNow(Priority priority, ByteBuffer... buffers) {
+        if (connected && !hasPendingOutput()) {
+            try {
+                written(transport.write(buffers));
+            } catch (IOException ioe) {
+                // Reported by the next call of doWrite
+            }
+        }
+        var left = 0;
+        for (var buffer : buffers) left += buffer.remaining();
+        if (left == 0) return;
+        var rest = ByteBuffer.allocate(left);
+        for (var buffer : buffers) rest.put(buffer);
+        queueMessage(rest.flip(), priority);
+    }
+    /**
+     * Processes the output now, or at the next {@link FlushScheduler#flush()} if this context has a scheduler.
+     */
+    private void scheduleOut() {
+        if (scheduler != null) {
+            scheduler.markDirty(this);
+            return;
+        }
+        sendOut();
+    }
+    /**
+     * Processes the output deferred by the {@link #scheduler}.
+     * Does nothing if the transport has been closed in the meantime.
+     */
+    void flush() {
+        if (!transport.isOpen()) return;
+        sendOut();
+    }
+    /**
+     * Fills {@link #bbOut} and, if the context wasn't waiting for {@link SelectionKey#OP_WRITE}
+     * (i.e. the socket could accept data), writes it directly without waiting for the selector.
+     * {@link SelectionKey#OP_WRITE} is only registered if some data couldn't be written.
+     */
+    private void sendOut() {
+        var waitingForWrite = currentOps != -1 && (currentOps & OP_WRITE) != 0;
         processOut();
+        if (!waitingForWrite) writeDirectly();
         updateInterestOps();
     }
     /**
-     * Takes an element from the {@link #queue} and
-     * stores it into {@link #bbOut} if empty.
+     * Writes {@link #bbOut} on the transport if connected and refills it with the {@link #lanes}.
+     * If the write fails, the data is kept so that {@link SelectionKey#OP_WRITE} stays set
+     * and the failure is reported by the next {@link #doWrite()}.
+     */
+    private void writeDirectly() {
+        if (!connected || bbOut.position() == 0) return;
+        try {
+            written(transport.write(bbOut.flip()));
+        } catch (IOException ioe) {
+            // Reported by the next call of doWrite
+        } finally {
+            bbOut.compact();
+        }
+        processOut();
+    }
+    /**
+     * Takes as many elements from the {@link #lanes} as possible and
+     * stores them into {@link #bbOut}, by rounds of at most {@link Priority#weight} elements per lane.
+     * If an element doesn't fit entirely, the beginning of the element is stored
+     * and the rest is kept at the head of its lane, to be stored first next time.
      */
     public void processOut() {
-        if (queue.isEmpty() || bbOut.position() != 0) return;
-        bbOut.clear()
-             .put(queue.remove());
+        if (!bbOut.hasRemaining()) return;
+        if (splitLane != null && !store(splitLane)) return;
+        while (hasQueued()) {
+            for (var priority : PRIORITIES) {
+                var lane = lanes.get(priority.ordinal());
+                for (var i = 0; i < priority.weight && !lane.isEmpty(); i++) {
+                    if (!store(lane)) return;
+                }
+            }
+        }
+    }
+    /**
+     * Stores the first element of {@code lane} into {@link #bbOut}.
+     * @param lane a non-empty lane.
+     * @return false if the element didn't fit entirely (i.e. {@link #bbOut} is full).
+     */
+    private boolean store(ArrayDeque<ByteBuffer> lane) {
+        var buff = lane.peek();
+        if (buff.remaining() <= bbOut.remaining()) {
+            queuedBytes -= buff.remaining();
+            bbOut.put(lane.remove());
+            if (meter != null) meter.queued(-1);
+            splitLane = null;
+            return true;
+        }
+        var length = bbOut.remaining();
+        queuedBytes -= length;
+        bbOut.put(buff.slice().limit(length));
+        buff.position(buff.position() + length);
+        splitLane = lane;
+        return false;
+    }
+    /**
+     * @return true if a lane isn't empty.
+     */
+    private boolean hasQueued() {
+        for (var lane : lanes) {
+            if (!lane.isEmpty()) return true;
+        }
+        return false;
     }
     /**
-     * Updates the interest operators of {@link #key} based on the values inside of
+     * Updates the interest operators of the {@link #transport} based on the values inside of
      * {@link #bbIn} and {@link #bbOut}.
      * The operators will be set to:
      * <ul>
-     *     <li> {@link SelectionKey#OP_READ} if the channel isn't closed and there's space left in {@link #bbIn}.</li>
-     *     <li> {@link SelectionKey#OP_WRITE} if {@link #bbOut} has something to write.</li>
+     *     <li> {@link SelectionKey#OP_READ} if the channel isn't closed, there's space left in {@link #bbIn}
+     *     and the context {@link #acceptsInput()}.</li>
+     *     <li> {@link SelectionKey#OP_WRITE} if {@link #bbOut} or the {@link #lanes} have something to write.</li>
      * </ul>
-     * The operators can be cumulated. If none of the above conditions are met, the channel is closed.
+     * The operators can be cumulated. If none of the above conditions are met, the channel is closed
+     * (unless the context doesn't accept input for now).
+     * The {@link #transport} is only updated if the operators have changed.
      *
      * @return the value of the operator assigned to the key.
      */
     public int updateInterestOps() {
         var op = 0;
-        if (!closed && bbIn.hasRemaining()) op |= OP_READ;
-        if (bbOut.position() != 0)          op |= OP_WRITE;
-        if (!connected)                     op |= OP_CONNECT;
-        if (op == 0)                        close();
-        else                                key.interestOps(op);
+        var accepts = acceptsInput();
+        if (!closed && bbIn.hasRemaining() && accepts) op |= OP_READ;
+        if (bbOut.position() != 0 || hasQueued())      op |= OP_WRITE;
+        if (!connected)                                op |= OP_CONNECT;
+        if (op == 0 && accepts)                        close();
+        else                                           setInterestOps(op);
         return op;
     }
+    /**
+     * Sets the interest operators of the {@link #transport} if they are different from the current ones.
+     * Subclasses must use this method instead of {@link SelectionKey#interestOps(int)}.
+     * @param op the new interest operators.
+     */
+    protected final void setInterestOps(int op) {
+        if (op == currentOps) return;
+        transport.interestOps(op);
+        currentOps = op;
+    }
+    /**
+     * Tells whether the context is ready to receive more data.
+     * A context can refuse input temporarily (e.g. while it is busy with previous data),
+     * in which case it must call {@link #updateInterestOps()} once ready again.
+     *
+     * @return true by default.
+     */
+    protected boolean acceptsInput() {
+        return true;
+    }
     /**
      * Reads data in {@link #bbIn}.
      * If there is no data to read, {@link #closed} is set to true.
@@ -100,7 +308,9 @@ public abstract class AbstractContext implements Context {
      */
     @Override
     public void doRead() throws IOException {
-        if (sc.read(bbIn) == -1) closed = true;
+        var read = transport.read(bbIn);
+        if (read == -1) closed = true;
+        else if (meter != null) meter.bytesRead(read);
         processIn();
         updateInterestOps();
     }
@@ -111,7 +321,7 @@ public abstract class AbstractContext implements Context {
      */
     @Override
     public void doWrite() throws IOException {
-        sc.write(bbOut.flip());
+        written(transport.write(bbOut.flip()));
         bbOut.compact();
         processOut();
         updateInterestOps();
@@ -124,15 +334,59 @@ public abstract class AbstractContext implements Context {
     @Override
     public void doConnect() throws IOException {
         try {
-            if (!sc.finishConnect()) return;
+            if (!transport.finishConnect()) return;
             connected = true;
             processOut();
             updateInterestOps();
         } catch (IOException ioe) {
-            onConnectFail();
+            onConnectFailure();
             throw ioe;
         }
     }
+    /**
+     * Called when the connection fails, before the exception is thrown by {@link #doConnect()}.
+     * Displays an error by default.
+     */
+    protected void onConnectFailure() {
+        onConnectFail();
+    }
+
+    /**
+     * Reports written bytes to the {@link #meter}.
+     * @param bytes the number of written bytes.
+     */
+    private void written(long bytes) {
+        if (meter != null && bytes != 0) meter.bytesWritten(bytes);
+    }
+    /**
+     * @return true if some output is waiting to be written (in {@link #bbOut} or in the {@link #lanes}).
+     */
+    protected boolean hasPendingOutput() {
+        return bbOut.position() != 0 || hasQueued();
+    }
+
+    /**
+     * Once the output has been flushed, buffers only wait in the {@link #lanes} if {@link #bbOut} is full:
+     * the socket doesn't take the output as fast as it is queued.
+     * @return true if some buffers wait in the {@link #lanes}.
+     */
+    public boolean isCongested() {
+        return hasQueued();
+    }
+
+    /**
+     * @return the number of bytes waiting to be written, in {@link #bbOut} and in the {@link #lanes}.
+     */
+    public long queuedBytes() {
+        return bbOut.position() + queuedBytes;
+    }
+
+    /**
+     * @return false once the transport has been closed.
+     */
+    protected boolean isOpen() {
+        return transport.isOpen();
+    }
 
     /**
      * @return if the current socket is closed or not.
@@ -149,10 +403,38 @@ public abstract class AbstractContext implements Context {
     }
 
     /**
-     * Closes properly the socket.
+     * Closes properly the transport and drops the queued buffers.
      */
     public void close() {
-        silentlyClose(sc);
+        var queued = 0;
+        for (var lane : lanes) {
+            queued += lane.size();
+            lane.clear();
+        }
+        splitLane = null;
+        queuedBytes = 0;
+        if (meter != null && queued != 0) meter.queued(-queued);
+        transport.close();
         connected = false;
     }
+
+    /**
+     * Closes the socket like {@link #close()}, but returns the queued buffers instead of dropping them.
+     * What has already been stored in {@link #bbOut} is lost with the connection, including the beginning of
+     * a buffer split by {@link #processOut()}: the rest of this buffer is dropped, so only whole buffers are returned.
+     * @return the queued buffers in read-mode, lane by lane, in order within a lane.
+     */
+    public List<ByteBuffer> closeAndDrain() {
+        if (splitLane != null) {
+            splitLane.remove();
+            if (meter != null) meter.queued(-1);
+            splitLane = null;
+        }
+        var drained = new ArrayList<ByteBuffer>();
+        for (var lane : lanes) drained.addAll(lane);
+        if (meter != null && !drained.isEmpty()) meter.queued(-drained.size());
+        for (var lane : lanes) lane.clear();
+        close();
+        return drained;
+    }
 }
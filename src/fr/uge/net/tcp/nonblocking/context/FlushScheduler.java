@@ -0,0 +1,42 @@
+package fr.uge.net.tcp.nonblocking.context;
+
+import java.util.LinkedHashSet;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Defers the output of the contexts of a selector until the end of a selection.
+ * <br>
+ * Instead of filling its output buffer and updating its interest operators for every queued message,
+ * an {@link AbstractContext} created with a scheduler only marks itself as dirty.
+ * Once the selected keys have been treated, {@link #flush()} fills the output buffer of every
+ * dirty context with as many queued messages as possible and updates its interest operators once.
+ * So a context receiving many messages in the same selection writes them with a single call.
+ * <br>
+ * A scheduler must only be used by the thread of its selector.
+ */
+public final class FlushScheduler {
+    private final LinkedHashSet<AbstractContext> dirty = new LinkedHashSet<>();
+
+    /**
+     * Marks {@code context} as having new output to flush.
+     * @param context the context. Cannot be null.
+     */
+    void markDirty(AbstractContext context) {
+        dirty.add(requireNonNull(context));
+    }
+
+    /**
+     * Flushes every dirty context once.
+     * The contexts marked as dirty during the flush (e.g. by the closing of another context)
+     * are flushed too.
+     */
+    public void flush() {
+        while (!dirty.isEmpty()) {
+            var it = dirty.iterator();
+            var context = it.next();
+            it.remove();
+            context.flush();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package fr.uge.net.tcp.nonblocking.context;
+
+import fr.uge.net.tcp.nonblocking.packet.Packet.PacketType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Priority of a buffer queued in an {@link AbstractContext}.
+ * <br>
+ * Each priority has its own lane. The lanes are drained in rounds: during a round, each lane
+ * gives at most {@link #weight} buffers, from the highest priority to the lowest. So the control
+ * packets never wait behind the chat, and the broadcasts still progress during a flood of direct messages.
+ */
+public enum Priority {
+    /** Handshakes, errors and credits of the streams (AUTH, ERR, PC, TOKEN, WINDOW). */
+    CONTROL(16),
+    /** Messages sent to a single client (DMSG, JOIN, LEAVE) and raw streams (STREAM). */
+    DIRECT(4),
+    /** Messages sent to many clients (GMSG, RMSG). */
+    BROADCAST(1);
+
+    /**
+     * Maximum number of buffers taken from the lane during a round.
+     */
+    final int weight;
+
+    Priority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @param type the type of a packet.
+     * @return the priority of the packets of this type.
+     */
+    public static Priority of(PacketType type) {
+        return switch (type) {
+            case ERR, AUTH, PC, TOKEN, NODE, RESUME, WINDOW -> CONTROL;
+            case DMSG, JOIN, LEAVE, STREAM -> DIRECT;
+            case GMSG, RMSG -> BROADCAST;
+        };
+    }
+
+    /**
+     * @param packet an encoded packet, in read-mode. Its first byte is the type of the packet.
+     * @return the priority of the packet, or {@link #DIRECT} if the type is unknown.
+     */
+    public static Priority of(ByteBuffer packet) {
+        var types = PacketType.values();
+        var type = packet.hasRemaining() ? packet.get(packet.position()) : -1;
+        return type >= 0 && type < types.length ? of(types[type]) : DIRECT;
+    }
+}
@@ -0,0 +1,60 @@
+package fr.uge.net.tcp.nonblocking.context;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.silentlyClose;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The {@link Transport} of a socket registered to a selector.
+ */
+final class SocketTransport implements Transport {
+    private final SelectionKey key;
+    private final SocketChannel sc;
+
+    SocketTransport(SelectionKey key) {
+        this.key = requireNonNull(key);
+        sc = (SocketChannel) key.channel();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return sc.read(dst);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return sc.write(src);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return sc.write(srcs);
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException {
+        return sc.finishConnect();
+    }
+
+    @Override
+    public void interestOps(int ops) {
+        key.interestOps(ops);
+    }
+
+    /**
+     * @return false once the key has been cancelled (e.g. by the closing of the socket).
+     */
+    @Override
+    public boolean isOpen() {
+        return key.isValid();
+    }
+
+    @Override
+    public void close() {
+        silentlyClose(sc);
+    }
+}
@@ -0,0 +1,177 @@
+package fr.uge.net.tcp.nonblocking.context;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Hashed timer wheel driven by the loop of a selector.
+ * <br>
+ * The time is cut into ticks and the wheel has a fixed number of buckets: a timeout expiring at the
+ * tick {@code t} is stored in the bucket {@code t % buckets}. Scheduling and cancelling a timeout are
+ * O(1) (a bucket is a doubly linked list). Each loop gives {@link #timeout()} to {@link
+ * java.nio.channels.Selector#select(long)} and then calls {@link #expire()}, which only visits the buckets
+ * of the elapsed ticks and runs the expired timeouts. A timeout runs at most one tick late.
+ * <br>
+ * A wheel must only be used by the thread of its selector.
+ */
+public final class TimerWheel {
+    /**
+     * A scheduled task.
+     */
+    public final class Timeout {
+        private final Runnable task;
+        /**
+         * Number of ticks between two runs of a periodic task; 0 if the task runs once.
+         */
+        private final long period;
+        private long deadline;
+        private Timeout previous;
+        private Timeout next;
+        private boolean pending = false;
+
+        private Timeout(Runnable task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+
+        /**
+         * Cancels the task. Does nothing if it has already run (and isn't periodic) or has been cancelled.
+         */
+        public void cancel() {
+            if (pending) unlink(this);
+        }
+
+        /**
+         * @return true if the task hasn't run (or is periodic) and hasn't been cancelled.
+         */
+        public boolean isPending() {
+            return pending;
+        }
+    }
+
+    private final Timeout[] buckets;
+    private final long tickNanos;
+    private final long start = System.nanoTime();
+    /**
+     * The last tick whose bucket has been visited.
+     */
+    private long tick = 0;
+    private int size = 0;
+
+    /**
+     * @param tick the duration of a tick, the precision of the wheel. Must be positive.
+     * @param unit the unit of {@code tick}. Cannot be null.
+     * @param buckets the number of buckets. Must be positive.
+     */
+    public TimerWheel(long tick, TimeUnit unit, int buckets) {
+        if (tick <= 0 || buckets <= 0) throw new IllegalArgumentException();
+        this.tickNanos = unit.toNanos(tick);
+        this.buckets = new Timeout[buckets];
+    }
+
+    /**
+     * Schedules a task to run once after {@code delay}.
+     * @param delay the delay. Rounded up to the next tick.
+     * @param unit the unit of {@code delay}. Cannot be null.
+     * @param task the task. Cannot be null.
+     * @return the timeout, that can be cancelled.
+     */
+    public Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        var timeout = new Timeout(requireNonNull(task), 0);
+        link(timeout, elapsedTicks() + ticks(delay, unit));
+        return timeout;
+    }
+
+    /**
+     * Schedules a task to run every {@code period}, starting after {@code period}.
+     * @param period the period. Rounded up to the next tick.
+     * @param unit the unit of {@code period}. Cannot be null.
+     * @param task the task. Cannot be null.
+     * @return the timeout, that can be cancelled.
+     */
+    public Timeout scheduleAtFixedRate(long period, TimeUnit unit, Runnable task) {
+        var ticks = ticks(period, unit);
+        var timeout = new Timeout(requireNonNull(task), ticks);
+        link(timeout, elapsedTicks() + ticks);
+        return timeout;
+    }
+
+    /**
+     * @return the timeout to give to {@link java.nio.channels.Selector#select(long)}, in milliseconds:
+     * 0 (i.e. no timeout) if nothing is scheduled, otherwise the time until the end of the current tick.
+     */
+    public long timeout() {
+        if (size == 0) return 0;
+        var untilNextTick = tickNanos - (System.nanoTime() - start) % tickNanos;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(untilNextTick));
+    }
+
+    /**
+     * Runs the tasks whose deadline has passed.
+     * The tasks can schedule or cancel other tasks.
+     */
+    public void expire() {
+        var now = elapsedTicks();
+        if (size == 0) {
+            tick = now;
+            return;
+        }
+        var expired = new ArrayList<Timeout>();
+        var steps = Math.min(now - tick, buckets.length);
+        for (var step = 1; step <= steps; step++) {
+            var index = (int) ((tick + step) % buckets.length);
+            for (var timeout = buckets[index]; timeout != null; ) {
+                var next = timeout.next;
+                if (timeout.deadline <= now) {
+                    unlink(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        tick = now;
+        for (var timeout : expired) {
+            if (timeout.period != 0) link(timeout, now + timeout.period);
+            timeout.task.run();
+        }
+    }
+
+    /**
+     * @return the number of scheduled tasks.
+     */
+    public int size() {
+        return size;
+    }
+
+    private long elapsedTicks() {
+        return (System.nanoTime() - start) / tickNanos;
+    }
+
+    private long ticks(long delay, TimeUnit unit) {
+        return Math.max(1, (unit.toNanos(delay) + tickNanos - 1) / tickNanos);
+    }
+
+    private void link(Timeout timeout, long deadline) {
+        var index = (int) (deadline % buckets.length);
+        timeout.deadline = deadline;
+        timeout.previous = null;
+        timeout.next = buckets[index];
+        if (timeout.next != null) timeout.next.previous = timeout;
+        buckets[index] = timeout;
+        timeout.pending = true;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        var index = (int) (timeout.deadline % buckets.length);
+        if (timeout.previous != null) timeout.previous.next = timeout.next;
+        else buckets[index] = timeout.next;
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.pending = false;
+        size--;
+    }
+}
@@ -0,0 +1,22 @@
+package fr.uge.net.tcp.nonblocking.context;
+
+/**
+ * Observes the traffic of {@link AbstractContext}s.
+ * The methods are called on the hot paths of the selector, so they must be cheap and must never block.
+ */
+public interface TrafficMeter {
+    /**
+     * @param bytes the number of bytes read from a socket.
+     */
+    void bytesRead(int bytes);
+
+    /**
+     * @param bytes the number of bytes written on a socket.
+     */
+    void bytesWritten(long bytes);
+
+    /**
+     * @param delta the number of buffers added to (if positive) or removed from (if negative) the output lanes.
+     */
+    void queued(int delta);
+}
@@ -0,0 +1,69 @@
+package fr.uge.net.tcp.nonblocking.context;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+
+/**
+ * What an {@link AbstractContext} reads from and writes to: a socket registered to a selector
+ * (see {@link #of(SelectionKey)}), or a stream multiplexed over another connection.
+ * <br>
+ * The interest operators are the ones of {@link SelectionKey}. A transport that isn't a socket has no key:
+ * whoever drives it calls {@link Context#doConnect()}, {@link Context#doWrite()} and {@link Context#doRead()}
+ * once they are possible.
+ */
+public interface Transport {
+    /**
+     * Reads bytes into {@code dst}.
+     * @param dst the buffer in write-mode.
+     * @return the number of bytes read, -1 at the end of the input.
+     * @throws IOException if an I/O error occurs.
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes bytes from {@code src}.
+     * @param src the buffer in read-mode.
+     * @return the number of bytes written, possibly 0.
+     * @throws IOException if an I/O error occurs.
+     */
+    int write(ByteBuffer src) throws IOException;
+
+    /**
+     * Writes bytes from {@code srcs}, in order.
+     * @param srcs the buffers in read-mode.
+     * @return the number of bytes written, possibly 0.
+     * @throws IOException if an I/O error occurs.
+     */
+    long write(ByteBuffer[] srcs) throws IOException;
+
+    /**
+     * @return true if the transport is connected.
+     * @throws IOException if the connection failed.
+     */
+    boolean finishConnect() throws IOException;
+
+    /**
+     * Sets the operations the context is interested in.
+     * @param ops the interest operators.
+     */
+    void interestOps(int ops);
+
+    /**
+     * @return false once the transport has been closed.
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the transport, ignoring the errors.
+     */
+    void close();
+
+    /**
+     * @param key the key of a socket. Cannot be null.
+     * @return the transport of the socket.
+     */
+    static Transport of(SelectionKey key) {
+        return new SocketTransport(key);
+    }
+}
@@ -8,34 +8,62 @@ import static java.util.Objects.requireNonNull;
 
 /**
  * Display class (only used by the client).
+ * <br>
+ * Everything is written by a {@link TerminalRenderer}, so the thread of the selector only appends text to a buffer
+ * and never waits for the terminal. The lines are built from their parts without intermediate strings.
  */
 public final class ClientMessageDisplay {
+    private static final String ROOM = fromRGB(100, 150, 255);
+    private static final String SUCCESS = fromRGB(50, 250, 0);
+    private static final String REQUEST = fromRGB(255, 150, 30);
+    private static final TerminalRenderer renderer = new TerminalRenderer(System.out);
+
     /**
      * Displays that the connection to the server is successful.
      */
     public static void onConnectSuccess() {
-        System.out.println(color("Connected to the server with success.", fromRGB(50, 250, 0)));
+        renderer.println(SUCCESS, "Connected to the server with success.", RESET);
         pseudoAsk();
     }
     /**
      * Displays that the connection to the server has failed.
      */
     public static void onConnectFail() {
-        System.out.println(color("Connection to the server rejected!", RED));
+        renderer.println(color("Connection to the server rejected!", RED));
+    }
+    /**
+     * Displays that the connection to the server has been lost and that the client tries to resume its session.
+     */
+    public static void onConnectionLost() {
+        renderer.println(color("Connection to the server lost, trying to resume the session...", RED));
+    }
+    /**
+     * Displays that the session has been resumed on a new connection.
+     * @param pseudo the pseudo of the client. Cannot be null.
+     */
+    public static void onSessionResumed(String pseudo) {
+        requireNonNull(pseudo);
+        renderer.println(SUCCESS, "Session resumed with the pseudo: ", YELLOW, pseudo, RESET, ".");
+    }
+    /**
+     * Displays that the session has expired, so the client authenticates again.
+     * @param pseudo the pseudo of the client. Cannot be null.
+     */
+    public static void onResumeRefused(String pseudo) {
+        requireNonNull(pseudo);
+        renderer.println(RED, "The session has expired, authenticating again with the pseudo: ", YELLOW, pseudo, RESET, ".");
     }
     private static void onAuthSuccess(String pseudo) {
         requireNonNull(pseudo);
-        System.out.print("Successfully authenticate to the server with the pseudo: ");
-        System.out.println(color(pseudo, YELLOW) + ".");
+        renderer.println("Successfully authenticate to the server with the pseudo: ", YELLOW, pseudo, RESET, ".");
     }
     private static void onAuthFail(String pseudo) {
         requireNonNull(pseudo);
-        System.out.println(color("The pseudo : ", RED) + color(pseudo, YELLOW) + color(" is already taken!", RED));
+        renderer.println(RED, "The pseudo : ", YELLOW, pseudo, RED, " is already taken!", RESET);
         pseudoAsk();
     }
     private static void pseudoAsk() {
-        System.out.print("Enter your pseudo to authentication : ");
-        System.out.flush();
+        renderer.print("Enter your pseudo to authentication : ");
     }
 
     /**
@@ -53,42 +81,67 @@ public final class ClientMessageDisplay {
             case DMSG -> onDirectMessageReceived(packet.pseudo(), packet.message());
             case PC -> onPrivateConnectionReceived(packet.pseudo());
             case TOKEN -> onTokenReceived(packet.message());
+            case RESUME, STREAM, WINDOW -> {}
+            case JOIN -> renderer.println("You joined the room ", ROOM, "#", packet.room(), RESET, ".");
+            case LEAVE -> renderer.println("You left the room ", ROOM, "#", packet.room(), RESET, ".");
+            case RMSG -> onRoomMessageReceived(packet.room(), packet.pseudo(), packet.message());
         }
     }
     private static void onErrorReceived(Packet.ErrorCode code, String pseudo) {
         requireNonNull(pseudo);
         requireNonNull(code);
-        System.out.print(RED);
+        renderer.print(RED);
         switch (code) {
             case AUTH_ERROR -> onAuthFail(pseudo);
-            case DEST_ERROR -> System.out.println("Error : Requested user is not connected to the server!");
-            case REJECTED -> System.out.println("Error : The connection with " + color(pseudo, MAGENTA) + RED +
-                    " has been rejected!");
-            case WRONG_CODE -> System.out.println("Error : The server received a packet with an invalid code!");
-            case INVALID_LENGTH -> System.out.println("Error : The server received a packet with an invalid length!");
-            case ERROR_RECOVER -> System.out.println("Recover on previous error!");
+            case DEST_ERROR -> renderer.println("Error : Requested user is not connected to the server!");
+            case REJECTED -> renderer.println("Error : The connection with ", MAGENTA, pseudo, RED, " has been rejected!");
+            case WRONG_CODE -> renderer.println("Error : The server received a packet with an invalid code!");
+            case INVALID_LENGTH -> renderer.println("Error : The server received a packet with an invalid length!");
+            case ERROR_RECOVER -> renderer.println("Recover on previous error!");
+            case RATE_LIMITED -> renderer.println("Error : Too many messages, the last one has been dropped!");
         }
-        System.out.print(RESET);
+        renderer.print(RESET);
     }
     private static void onGeneralMessageReceived(String pseudo, String message) {
         requireNonNull(message);
         if (pseudo == null) {
-            System.out.println(color("<me> ", GREEN) + message);
+            renderer.println(GREEN, "<me> ", RESET, message);
         } else {
-            System.out.println(color("<" + pseudo + "> ", GREEN) + message);
+            renderer.println(GREEN, "<", pseudo, "> ", RESET, message);
         }
     }
     private static void onDirectMessageReceived(String pseudo, String message) {
         requireNonNull(pseudo);
         requireNonNull(message);
-        System.out.println(color("[" + pseudo + "] ", CYAN) + message);
+        renderer.println(CYAN, "[", pseudo, "] ", RESET, message);
+    }
+    private static void onRoomMessageReceived(String room, String pseudo, String message) {
+        requireNonNull(room);
+        requireNonNull(pseudo);
+        requireNonNull(message);
+        renderer.println(ROOM, "#", room, " ", RESET, GREEN, "<", pseudo, "> ", RESET, message);
     }
     private static void onPrivateConnectionReceived(String pseudo) {
         requireNonNull(pseudo);
-        System.out.print(color(pseudo + " request a private connection. ", fromRGB(255, 150, 30)));
-        System.out.println("Accept ? (" + color("y", GREEN) + "/" + color("n", RED) + ")");
+        renderer.println(REQUEST, pseudo, " request a private connection. ", RESET,
+                "Accept ? (", GREEN, "y", RESET, "/", RED, "n", RESET, ")");
     }
     private static void onTokenReceived(String token) {
-        System.out.println("The token is : " + color(token, MAGENTA));
+        renderer.println("The token is : ", MAGENTA, token, RESET);
+    }
+
+    /**
+     * Displays a text resource received through a private connection.
+     * @param text the content of the resource. Cannot be null.
+     */
+    public static void onTextResource(CharSequence text) {
+        renderer.println(requireNonNull(text));
+    }
+    /**
+     * Displays an information about a private connection or a resource.
+     * @param information the information. Cannot be null.
+     */
+    public static void onPrivateConnectionInfo(String information) {
+        renderer.println(requireNonNull(information));
     }
 }
@@ -23,17 +23,22 @@ public final class ServerMessageDisplay {
         switch (p.type()) {
             case ERR -> {
                 switch (p.code()) {
-                    case AUTH_ERROR, DEST_ERROR -> onBadError(p.code());
+                    case AUTH_ERROR, DEST_ERROR, RATE_LIMITED -> onBadError(p.code());
                     case WRONG_CODE, INVALID_LENGTH -> onServerInternalError(pseudo);
                     case ERROR_RECOVER -> onBadRecoverError(pseudo);
                     case REJECTED -> onRejectError(p.pseudo(), pseudo);
                 }
             }
             case AUTH -> onBadAuthPacket(p.pseudo());
+            case RESUME -> onBadResumePacket(pseudo);
+            case STREAM, WINDOW -> {}
             case GMSG -> onGMSGPacket(p.message(), pseudo);
             case DMSG -> onDMSGPacket(p.message(), p.pseudo(), pseudo);
             case PC -> onPCPacket(p.pseudo(), pseudo);
             case TOKEN -> onBadTokenPacket(pseudo);
+            case JOIN -> System.out.println(me(pseudo) + " joined the room " + other(p.room()));
+            case LEAVE -> System.out.println(me(pseudo) + " left the room " + other(p.room()));
+            case RMSG -> System.out.println(me(pseudo) + " sent " + message(p.message()) + " to the room " + other(p.room()));
         }
     }
 
@@ -64,6 +69,21 @@ public final class ServerMessageDisplay {
         requireNonNull(pseudo);
         System.out.println(sc(sc) + " trying to authenticate with the pseudo " + other(pseudo));
     }
+
+    /**
+     * Displays an attempt to resume the session of a client.
+     * @param sc the socket that tries to resume the session. Cannot be null.
+     * @param pseudo the pseudo of the client. Cannot be null.
+     */
+    public static void onResumePacket(SocketChannel sc, String pseudo) {
+        requireNonNull(sc);
+        requireNonNull(pseudo);
+        System.out.println(sc(sc) + " trying to resume the session of " + other(pseudo));
+    }
+    private static void onBadResumePacket(String pseudo) {
+        System.out.println(color("Received a RESUME packet from ", RED) + me(pseudo) +
+                color(" who is already identified", RED));
+    }
     private static void onBadTokenPacket(String pseudo) {
         System.out.println(color("Received a TOKEN packet from " + me(pseudo), RED) +
                            color(" who doesn't represent private connection", RED));
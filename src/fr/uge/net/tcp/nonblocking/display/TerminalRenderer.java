@@ -0,0 +1,153 @@
+package fr.uge.net.tcp.nonblocking.display;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Writes text on a terminal from a thread of its own, so the threads producing the text never wait for the terminal.
+ * <br>
+ * The text is appended to a buffer, and the render thread writes the whole buffer at once at most
+ * {@link #FLUSH_INTERVAL} milliseconds after the first append, or as soon as it holds {@link #FLUSH_THRESHOLD}
+ * characters. Two buffers are swapped and reused, so the producers keep appending while the previous text is written.
+ * <br>
+ * If the terminal doesn't keep up and more than {@link #MAX_PENDING} characters are waiting, the new lines
+ * are dropped and their number is displayed instead.
+ * The waiting text is written when the JVM exits.
+ */
+public final class TerminalRenderer {
+    /**
+     * Maximum delay between an append and the write of the text, in milliseconds.
+     */
+    static final long FLUSH_INTERVAL = 5;
+    /**
+     * Number of waiting characters that triggers a write before the end of {@link #FLUSH_INTERVAL}.
+     */
+    static final int FLUSH_THRESHOLD = 16 * 1024;
+    /**
+     * Maximum number of waiting characters. The lines appended beyond are dropped.
+     */
+    static final int MAX_PENDING = 1024 * 1024;
+
+    private final PrintStream out;
+    /**
+     * Guards {@link #pending} and {@link #dropped}. Never held while writing.
+     */
+    private final Object lock = new Object();
+    /**
+     * Serializes the writes of the render thread and of the shutdown hook.
+     */
+    private final Object writing = new Object();
+    private StringBuilder pending = new StringBuilder(FLUSH_THRESHOLD);
+    /**
+     * The buffer being written. Only used while holding {@link #writing}.
+     */
+    private StringBuilder written = new StringBuilder(FLUSH_THRESHOLD);
+    private long dropped;
+
+    /**
+     * Creates a renderer writing on {@code out} and starts its daemon thread.
+     * @param out the terminal. Cannot be null.
+     */
+    public TerminalRenderer(PrintStream out) {
+        this.out = requireNonNull(out);
+        var thread = new Thread(this::run, "ChatOS-render");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "ChatOS-render-exit"));
+    }
+
+    /**
+     * Appends the {@code parts} (text and ANSI colors) without line terminator.
+     * @param parts the parts, in order. Cannot be null.
+     */
+    public void print(CharSequence... parts) {
+        append(false, parts);
+    }
+
+    /**
+     * Appends the {@code parts} (text and ANSI colors) followed by a line terminator.
+     * @param parts the parts, in order. Cannot be null.
+     */
+    public void println(CharSequence... parts) {
+        append(true, parts);
+    }
+
+    private void append(boolean newLine, CharSequence... parts) {
+        synchronized (lock) {
+            if (pending.length() >= MAX_PENDING) {
+                if (newLine) dropped++;
+                return;
+            }
+            var before = pending.length();
+            for (var part : parts) pending.append(part);
+            if (newLine) pending.append(System.lineSeparator());
+            if (before == 0 || before < FLUSH_THRESHOLD && pending.length() >= FLUSH_THRESHOLD) lock.notify();
+        }
+    }
+
+    /**
+     * Writes the waiting text now, from the calling thread.
+     */
+    public void flush() {
+        synchronized (writing) {
+            synchronized (lock) {
+                swap();
+            }
+            write();
+        }
+    }
+
+    /**
+     * Loop of the render thread: waits for text, lets it accumulate for {@link #FLUSH_INTERVAL} milliseconds
+     * (unless it reaches {@link #FLUSH_THRESHOLD}), then writes it.
+     */
+    private void run() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (pending.isEmpty() && dropped == 0) lock.wait();
+                    var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL);
+                    long left;
+                    while (pending.length() < FLUSH_THRESHOLD && (left = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, left);
+                    }
+                }
+                flush();
+            }
+        } catch (InterruptedException e) {
+            // The renderer stops, the shutdown hook writes the rest
+        }
+    }
+
+    /**
+     * Takes the waiting text (and the number of dropped lines) into {@link #written}, and gives the empty buffer
+     * to the producers. Called holding {@link #writing} and {@link #lock}.
+     */
+    private void swap() {
+        if (dropped != 0) {
+            pending.append(AnsiColors.color("[" + dropped + " lines not displayed]", AnsiColors.RED))
+                    .append(System.lineSeparator());
+            dropped = 0;
+        }
+        var full = pending;
+        pending = written;
+        written = full;
+    }
+
+    /**
+     * Writes {@link #written} with a single call and empties it. Called holding {@link #writing}.
+     * A buffer that has grown beyond {@link #MAX_PENDING} characters isn't kept.
+     */
+    private void write() {
+        if (written.isEmpty()) return;
+        out.append(written);
+        out.flush();
+        if (written.capacity() > MAX_PENDING) {
+            written = new StringBuilder(FLUSH_THRESHOLD);
+        } else {
+            written.setLength(0);
+        }
+    }
+}
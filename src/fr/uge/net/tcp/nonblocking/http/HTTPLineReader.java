@@ -5,6 +5,7 @@ import fr.uge.net.tcp.nonblocking.reader.Reader;
 import java.nio.ByteBuffer;
 
 import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.DONE;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.ERROR;
 import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.REFILL;
 import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.BUFFER_MAX_SIZE;
 import static java.nio.charset.StandardCharsets.US_ASCII;
@@ -12,23 +13,45 @@ import static java.util.Objects.requireNonNull;
 
 /**
  * Reader used to read an HTTP line (i.e. all bytes until {@link #CR}{@link #LF} is read).
+ * A line longer than the maximum length of the reader is an error, so a peer can't make it grow without limit.
  */
 public class HTTPLineReader implements Reader<String> {
+    /**
+     * Maximum length of a line by default, in bytes.
+     */
+    public static final int MAX_LINE_LENGTH = 8_192;
     private static final byte CR = '\015';     // ASCII code for \r
     private static final byte LF = '\012';     // ASCII code for \n
 
     private final ByteBuffer buff = ByteBuffer.allocate(BUFFER_MAX_SIZE); // Always in write-mode
     private final StringBuilder lineBuilder = new StringBuilder();
+    private final int maxLength;
     private ProcessStatus status = REFILL;
     private int pos = -1;
 
+    /**
+     * Creates a reader of lines of at most {@link #MAX_LINE_LENGTH} bytes.
+     */
+    public HTTPLineReader() {
+        this(MAX_LINE_LENGTH);
+    }
+
+    /**
+     * @param maxLength the maximum length of a line, in bytes (without {@link #CR}{@link #LF}).
+     * @throws IllegalArgumentException if {@code maxLength} isn't positive.
+     */
+    public HTTPLineReader(int maxLength) {
+        if (maxLength <= 0) throw new IllegalArgumentException("maxLength <= 0");
+        this.maxLength = maxLength;
+    }
+
     /**
      * Processes the buffer and extracts data until the end of a line ({@link #CR}{@link #LF}).
      * This method remembers what has been processed beforehand.
      * The returned value can be :
      * <ul>
      *   <li>   {@link ProcessStatus#REFILL} : if the reader has not finished.</li>
-     *   <li>   {@link ProcessStatus#ERROR} : never!</li>
+     *   <li>   {@link ProcessStatus#ERROR} : if the line is longer than the maximum length.</li>
      *   <li>   {@link ProcessStatus#DONE} : if the message is ready to be get.</li>
      * </ul>
      *
@@ -53,6 +76,7 @@ public class HTTPLineReader implements Reader<String> {
      * Actual loop that read each byte and check if the previous is {@link #CR} and the current {@link #LF}.
      * If the buffer has not enough space, the content of the buffer is decoded in
      * {@link java.nio.charset.StandardCharsets#US_ASCII} and put in {@link #lineBuilder}.
+     * The last byte read is not counted in the length of the line, since it may be the {@link #CR}.
      *
      * @param bb buffer in read-mode.
      * @return the current status of the reader.
@@ -63,6 +87,7 @@ public class HTTPLineReader implements Reader<String> {
             if (c == LF && pos != -1 && buff.get(pos) == CR) return DONE;
             buff.put(c);
             pos++;
+            if (lineBuilder.length() + pos > maxLength) return ERROR;
             if (!buff.hasRemaining()) {
                 lineBuilder.append(US_ASCII.decode(buff.flip().limit(pos)));
                 buff.clear().put(buff.get(pos));
@@ -9,14 +9,29 @@ import static java.util.Objects.requireNonNull;
 /**
  * {@link #type} : type (not null) of the packet that can be either:
  * <ul>
- *  <li> {@link HTTPPacketType#REQUEST} -> in this case every fields are null except {@link #resource} which is the request.</li>
+ *  <li> {@link HTTPPacketType#REQUEST} -> in this case every fields are null except {@link #resource} which is the request
+ *  and {@link #etag} which is the version of the resource already owned by the requester (can be null).
+ *  If the requester owns a copy of the resource, {@link #content} can contain the signatures of its blocks
+ *  (with {@link #contentType} equal to {@link #SIGNATURE_CONTENT}) to ask for a delta.
+ *  If {@link #resource} is a directory, {@link #content} can contain the names of the files of the directory
+ *  to send one after another (with {@link #contentType} equal to {@link #BATCH_CONTENT}).</li>
  *  <li> {@link HTTPPacketType#BAD_RESPONSE} -> in this case every fields are null except {@link #resource}.</li>
  *  <li> {@link HTTPPacketType#GOOD_RESPONSE} -> in this case {@link #contentType} contains the type of the content and
  *  {@link #content} contains the content of the HTTP response (the buffer is in read-mode) and {@link #resource} contains
- *  the name of the received resource. None of the fields can be null.</li>
+ *  the name of the received resource. None of the fields can be null.
+ *  {@link #offset} and {@link #total} are the position of the {@link #content} in the resource
+ *  and the size of the whole resource.
+ *  If the requested resource is a directory, the content is its manifest
+ *  (with {@link #contentType} equal to {@link #MANIFEST_CONTENT}).</li>
+ *  <li> {@link HTTPPacketType#NOT_MODIFIED} -> in this case every fields are null except {@link #resource}
+ *  and {@link #etag}.</li>
+ *  <li> {@link HTTPPacketType#DELTA_RESPONSE} -> same as {@link HTTPPacketType#GOOD_RESPONSE} but {@link #content}
+ *  contains instructions to rebuild the resource from the copy of the requester
+ *  ({@link #offset} and {@link #total} are not used).</li>
  * </ul>
  */
-public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer content, String resource) {
+public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer content, String resource,
+                         String etag, long offset, long total) {
     /**
      * The type used to represent all other type of content.
      */
@@ -25,6 +40,19 @@ public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer con
      * The type used to represent text content.
      */
     public static final String TEXT_CONTENT = "text/plain";
+    /**
+     * The type used to represent the signatures of the blocks of a resource.
+     */
+    public static final String SIGNATURE_CONTENT = "application/x-chatos-signature";
+    /**
+     * The type used to represent the list of the files of a directory
+     * (one line per file : "name\tsize\tmodification time\tETag").
+     */
+    public static final String MANIFEST_CONTENT = "text/x-chatos-manifest";
+    /**
+     * The type used to represent a list of files to send (one name per line).
+     */
+    public static final String BATCH_CONTENT = "text/x-chatos-batch";
 
     /**
      * Construct an HTTPPacket.
@@ -32,16 +60,23 @@ public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer con
      * @param contentType the type of the content this packet contains.
      * @param content the content of this http packet.
      * @param resource the requested resource.
+     * @param etag the version of the resource.
+     * @param offset the position of the content inside the resource.
+     * @param total the size of the whole resource.
      */
     public HTTPPacket {
         requireNonNull(type);
         switch (type) {
             case REQUEST, BAD_RESPONSE -> requireNonNull(resource);
-            case GOOD_RESPONSE -> {
+            case GOOD_RESPONSE, DELTA_RESPONSE -> {
                 requireNonNull(contentType);
                 requireNonNull(resource);
                 requireNonNull(content);
             }
+            case NOT_MODIFIED -> {
+                requireNonNull(resource);
+                requireNonNull(etag);
+            }
         }
     }
 
@@ -54,7 +89,18 @@ public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer con
         /** If the packet is a correct response */
         GOOD_RESPONSE,
         /** If the packet is an incorrect response */
-        BAD_RESPONSE
+        BAD_RESPONSE,
+        /** If the packet tells the requester that its copy is still valid */
+        NOT_MODIFIED,
+        /** If the packet contains the differences between the copy of the requester and the resource */
+        DELTA_RESPONSE
+    }
+
+    /**
+     * @return true if this packet contains the last part of the resource.
+     */
+    public boolean isLast() {
+        return type == GOOD_RESPONSE && offset + content.remaining() >= total;
     }
 
 
@@ -67,7 +113,7 @@ public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer con
      * @return a new {@link HTTPPacket} representing a bad response.
      */
     public static HTTPPacket createBadResponse(String resource) {
-        return new HTTPPacket(BAD_RESPONSE, null, null, resource);
+        return new HTTPPacket(BAD_RESPONSE, null, null, resource, null, 0, 0);
     }
 
     /**
@@ -77,14 +123,73 @@ public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer con
      * @return a new {@link HTTPPacket} representing a good response with a named resource.
      */
     public static HTTPPacket createGoodResponse(String type, ByteBuffer content, String resource) {
-        return new HTTPPacket(GOOD_RESPONSE, type, content, resource);
+        return createGoodResponse(type, content, resource, null, 0, content.remaining());
+    }
+
+    /**
+     * @param type type of the content of this HTTP Response. Cannot be null.
+     * @param content content of the HTTP Response. Cannot be null and must be in read-mode.
+     * @param resource the name of the resource. Cannot be null.
+     * @param etag the version of the resource. Can be null.
+     * @param offset the position of {@code content} inside the resource.
+     * @param total the size of the whole resource.
+     * @return a new {@link HTTPPacket} representing a part of a named resource.
+     */
+    public static HTTPPacket createGoodResponse(String type, ByteBuffer content, String resource,
+                                                String etag, long offset, long total) {
+        return new HTTPPacket(GOOD_RESPONSE, type, content, resource, etag, offset, total);
+    }
+    /**
+     * @param type type of the resource. Cannot be null.
+     * @param instructions the instructions to rebuild the resource. Cannot be null and must be in read-mode.
+     * @param resource the name of the resource. Cannot be null.
+     * @param etag the version of the resource. Can be null.
+     * @return a new {@link HTTPPacket} representing a part of the differences with the copy of the requester.
+     */
+    public static HTTPPacket createDeltaResponse(String type, ByteBuffer instructions, String resource, String etag) {
+        return new HTTPPacket(DELTA_RESPONSE, type, instructions, resource, etag, 0, 0);
+    }
+    /**
+     * @param resource the name of the resource. Cannot be null.
+     * @param etag the version of the resource still owned by the requester. Cannot be null.
+     * @return a new {@link HTTPPacket} telling that the version of the requester is up to date.
+     */
+    public static HTTPPacket createNotModified(String resource, String etag) {
+        return new HTTPPacket(NOT_MODIFIED, null, null, resource, etag, 0, 0);
     }
     /**
      * @param resource the name of the resource. Cannot be null.
      * @return a new {@link HTTPPacket} representing a request of a resource.
      */
     public static HTTPPacket createRequest(String resource) {
-        return new HTTPPacket(REQUEST, null, null, resource);
+        return createRequest(resource, null);
+    }
+    /**
+     * @param resource the name of the resource. Cannot be null.
+     * @param etag the version of the resource already owned. Can be null.
+     * @return a new {@link HTTPPacket} representing a conditional request of a resource.
+     */
+    public static HTTPPacket createRequest(String resource, String etag) {
+        return new HTTPPacket(REQUEST, null, null, resource, etag, 0, 0);
+    }
+    /**
+     * @param resource the name of the resource. Cannot be null.
+     * @param etag the version of the resource already owned. Can be null.
+     * @param signatures the signatures of the blocks of the owned copy, in read-mode. Can be null.
+     * @return a new {@link HTTPPacket} representing a request of the differences with the owned copy.
+     */
+    public static HTTPPacket createRequest(String resource, String etag, ByteBuffer signatures) {
+        return new HTTPPacket(REQUEST, signatures == null ? null : SIGNATURE_CONTENT, signatures, resource, etag, 0, 0);
+    }
+    /**
+     * @param directory the name of the directory. Cannot be null.
+     * @param names the names of the requested files (relative to the directory and separated by new lines),
+     *              in read-mode. Cannot be null.
+     * @return a new {@link HTTPPacket} representing a request of multiple files of a directory.
+     */
+    public static HTTPPacket createBatchRequest(String directory, ByteBuffer names) {
+        requireNonNull(names);
+        return new HTTPPacket(REQUEST, BATCH_CONTENT, names, directory, null, 0, 0);
     }
 
     // ------------------------------------------------
@@ -99,6 +204,8 @@ public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer con
             case REQUEST -> fromRequest();
             case GOOD_RESPONSE -> fromGoodResponse();
             case BAD_RESPONSE -> fromBadResponse();
+            case NOT_MODIFIED -> fromNotModified();
+            case DELTA_RESPONSE -> fromDeltaResponse();
         };
     }
 
@@ -106,7 +213,14 @@ public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer con
      * @return a representation of this object as a buffer in read-mode. If the type is {@link HTTPPacketType#REQUEST}.
      */
     private ByteBuffer fromRequest() {
-        return US_ASCII.encode("GET " + resource + "\r\n");
+        var header = US_ASCII.encode(
+                "GET " + resource + "\r\n" +
+                (etag == null ? "" : "If-None-Match: \"" + etag + "\"\r\n") +
+                (content == null ? "" :
+                        "Content-Length: " + content.remaining() + "\r\n" +
+                        "Content-Type: " + contentType + "\r\n") +
+                "\r\n");
+        return withBody(header);
     }
     /**
      * @return a representation of this object as a buffer in read-mode. If the type is {@link HTTPPacketType#BAD_RESPONSE}.
@@ -117,19 +231,62 @@ public record HTTPPacket(HTTPPacketType type, String contentType, ByteBuffer con
                 "Resource: " + resource + "\r\n" +
                 "\r\n");
     }
+    /**
+     * @return a representation of this object as a buffer in read-mode. If the type is {@link HTTPPacketType#NOT_MODIFIED}.
+     */
+    private ByteBuffer fromNotModified() {
+        return US_ASCII.encode(
+                "HTTP/1.1 304 NOT MODIFIED\r\n" +
+                "ETag: \"" + etag + "\"\r\n" +
+                "Resource: " + resource + "\r\n" +
+                "\r\n");
+    }
     /**
      * @return a representation of this object as a buffer in read-mode. If the type is {@link HTTPPacketType#GOOD_RESPONSE}.
      */
     private ByteBuffer fromGoodResponse() {
         var header = US_ASCII.encode(
                 "HTTP/1.1 200 OK\r\n"+
-                "Content-Length: " + content.limit() + "\r\n" +
+                "Content-Length: " + content.remaining() + "\r\n" +
                 "Content-Type: " + contentType + "\r\n" +
+                "Content-Range: " + contentRange() + "\r\n" +
+                (etag == null ? "" : "ETag: \"" + etag + "\"\r\n") +
                 "Resource: " + resource + "\r\n" +
                 "\r\n");
-        return ByteBuffer.allocate(header.capacity() + content.limit())
+        return withBody(header);
+    }
+    /**
+     * @return a representation of this object as a buffer in read-mode. If the type is {@link HTTPPacketType#DELTA_RESPONSE}.
+     */
+    private ByteBuffer fromDeltaResponse() {
+        var header = US_ASCII.encode(
+                "HTTP/1.1 226 IM USED\r\n"+
+                "IM: chatos-delta\r\n" +
+                "Content-Length: " + content.remaining() + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                (etag == null ? "" : "ETag: \"" + etag + "\"\r\n") +
+                "Resource: " + resource + "\r\n" +
+                "\r\n");
+        return withBody(header);
+    }
+
+    /**
+     * @param header the header in read-mode.
+     * @return a new buffer in read-mode containing the {@code header} followed by the {@link #content} (if any).
+     */
+    private ByteBuffer withBody(ByteBuffer header) {
+        if (content == null) return header;
+        return ByteBuffer.allocate(header.remaining() + content.remaining())
                 .put(header)
-                .put(content)
+                .put(content.duplicate())
                 .flip();
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the value of the field "Content-Range" (i.e. "bytes first-last/total" or "bytes * /total" if empty).
+     */
+    private String contentRange() {
+        if (content.remaining() == 0) return "bytes */" + total;
+        return "bytes " + offset + "-" + (offset + content.remaining() - 1) + "/" + total;
+    }
+}
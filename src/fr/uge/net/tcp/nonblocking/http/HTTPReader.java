@@ -23,10 +23,13 @@ public class HTTPReader implements Reader<HTTPPacket> {
     private HTTPPacket packet = null;
     private ByteBuffer buff = null;
     private String resource = null;
+    private String etag = null;
+    private long offset = 0;
+    private long total = -1;
 
     /**
      * Processes the buffer and read every lines until an HTTP component can be created.
-     * (i.e. if it's an HTTP response read until empty line and if it's an HTTP request read the first line only)
+     * (i.e. read until empty line)
      * This method remembers what has been processed beforehand.
      *
      * The returned value can be :
@@ -38,9 +41,9 @@ public class HTTPReader implements Reader<HTTPPacket> {
      *   <li>   {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} :
      *     <ul>
      *       <li> If the first line doesn't starts with 'HTTP' nor 'GET'. </li>
-     *       <li> If the first line starts with 'GET' but doesn't ends with 'HTTP/1.1'. </li>
      *       <li> If this is a response but the size is negative or above {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#BUFFER_MAX_SIZE}. </li>
      *       <li> If this is a response but the size is not in the header (i.e. there's no field "Content-Length"). </li>
+     *       <li> If the field "Content-Range" is malformed. </li>
      *     </ul>
      *   </li>
      * </ul>
@@ -69,17 +72,22 @@ public class HTTPReader implements Reader<HTTPPacket> {
             var status = readHeader(bb);
             if (status != DONE) return status;
         }
-        if (packetType == BAD_RESPONSE) {
-            packet = createBadResponse(resource);
-            return DONE;
+        switch (packetType) {
+            case REQUEST -> {
+                if (buff != null) return readContent(bb);
+                packet = createRequest(resource, etag);
+            }
+            case BAD_RESPONSE -> packet = createBadResponse(resource);
+            case NOT_MODIFIED -> packet = etag == null ? null : createNotModified(resource, etag);
+            case GOOD_RESPONSE, DELTA_RESPONSE -> { return readContent(bb); }
         }
-        return readContent(bb);
+        return packet == null ? ERROR : DONE;
     }
 
     /**
      * Reads the first line from the buffer.
-     * And tries to create a packet from it. If successful return DONE otherwise
-     * return REFILL or ERROR depending of the return of {@link #processFirstLine(String)}.
+     * And tries to find the type of the packet from it. If successful return REFILL otherwise
+     * return ERROR depending of the return of {@link #processFirstLine(String)}.
      *
      * @param bb buffer in write-mode.
      * @return the current state of the reader.
@@ -93,13 +101,11 @@ public class HTTPReader implements Reader<HTTPPacket> {
     }
 
     /**
-     * Processes the line and create a packet if the line contains enough data.
+     * Processes the line and finds the type of the packet.
      * The returned value can be:
      * <ul>
-     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#DONE} :
-     *     if the line starts with "GET" (i.e. a request).</li>
      *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#REFILL} :
-     *     if the line starts with "HTTP/1.1".</li>
+     *     if the line starts with "HTTP/1.1" or "GET" (i.e. the header must be read).</li>
      *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} :
      *     if the line doesn't starts with "HTTP/1.1" nor "GET".</li>
      * </ul>
@@ -110,14 +116,19 @@ public class HTTPReader implements Reader<HTTPPacket> {
     private ProcessStatus processFirstLine(String line) {
         if (line.startsWith("HTTP/1.1")) {
             var words = line.split(" ", 3);
-            if (words[1].equals("200")) packetType = GOOD_RESPONSE;
-            else packetType = BAD_RESPONSE;
+            if (words.length < 2) return ERROR;
+            packetType = switch (words[1]) {
+                case "200" -> GOOD_RESPONSE;
+                case "226" -> DELTA_RESPONSE;
+                case "304" -> NOT_MODIFIED;
+                default -> BAD_RESPONSE;
+            };
             return REFILL;
         }
         if (line.startsWith("GET")) {
-            packet = createRequest(line.substring(3).trim());
+            resource = line.substring(3).trim();
             packetType = REQUEST;
-            return DONE;
+            return REFILL;
         }
         return ERROR;
     }
@@ -126,7 +137,8 @@ public class HTTPReader implements Reader<HTTPPacket> {
      * Reads lines from the buffer until blank line is read.
      * Return REFILL if the buffer is empty and no empty line has been read.<br>
      * Return ERROR if a line contains a field "Content-Length" with an incorrect value
-     * (i.e. negative or above {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#CONTENT_MAX_SIZE}).
+     * (i.e. negative or above {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#CONTENT_MAX_SIZE}),
+     * a malformed field "Content-Range", or if the content goes past the total given by the range.
      *
      * @param bb buffer in write-mode.
      * @return the current state of the reader.
@@ -136,7 +148,9 @@ public class HTTPReader implements Reader<HTTPPacket> {
         while ((status = reader.process(bb)) == DONE) {
             status = processHeaderLine(reader.get());
             reader.reset();
+            if (status == ERROR) return ERROR;
             if (status != DONE) continue;
+            if (buff != null && total != -1 && offset + buff.capacity() > total) return ERROR;
             contentReading = true;
             return DONE;
         }
@@ -150,6 +164,8 @@ public class HTTPReader implements Reader<HTTPPacket> {
      *     <li> If the line starts with "Resource:" fill {@link #resource}.</li>
      *     <li> If the line starts with "Content-Length:" assign {@link #buff}
      *     with a new buffer with the found length.</li>
+     *     <li> If the line starts with "Content-Range:" fill {@link #offset} and {@link #total}.</li>
+     *     <li> If the line starts with "ETag:" or "If-None-Match:" fill {@link #etag}.</li>
      * </ul>
      * The returned value can be:
      * <ul>
@@ -158,6 +174,7 @@ public class HTTPReader implements Reader<HTTPPacket> {
      *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} :
      *     if the line starts with "Content-Length:" but the content is incorrect</li>
      *     (i.e. negative or above {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#CONTENT_MAX_SIZE}).
+     *     Or if the line starts with "Content-Range:" but the range is malformed.
      *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#REFILL} :
      *     In any other case (even when the processing of the line has done something).</li>
      * </ul>
@@ -175,12 +192,61 @@ public class HTTPReader implements Reader<HTTPPacket> {
             var size = parseInt(line.substring(15).trim());
             if (size < 0 || size > CONTENT_MAX_SIZE) return ERROR;
             buff = ByteBuffer.allocate(size);
+        } else if (line.startsWith("Content-Range:")) {
+            return processRange(line.substring(14).trim());
+        } else if (line.startsWith("ETag:")) {
+            etag = unquote(line.substring(5).trim());
+        } else if (line.startsWith("If-None-Match:")) {
+            etag = unquote(line.substring(14).trim());
         }
         return REFILL;
     }
 
     /**
-     * Reads until {@link #buff} is full. If so, create a http good response packet.<br>
+     * Parses the value of a field "Content-Range" (i.e. "bytes first-last/total" or "bytes *&#47;total").
+     * Fills {@link #offset} and {@link #total} with the found values.
+     *
+     * @param range the value of the field.
+     * @return {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#REFILL} if the range is correct;
+     * {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} otherwise, including when its last
+     * byte is past the total.
+     */
+    private ProcessStatus processRange(String range) {
+        if (!range.startsWith("bytes ")) return ERROR;
+        var parts = range.substring(6).split("/", 2);
+        if (parts.length != 2) return ERROR;
+        long last;
+        try {
+            total = Long.parseLong(parts[1].trim());
+            if (parts[0].equals("*")) {
+                offset = 0;
+                last = -1;
+            } else {
+                var bounds = parts[0].split("-", 2);
+                if (bounds.length != 2) return ERROR;
+                offset = Long.parseLong(bounds[0].trim());
+                last = Long.parseLong(bounds[1].trim());
+                if (last < offset) return ERROR;
+            }
+        } catch (NumberFormatException nfe) {
+            return ERROR;
+        }
+        return offset < 0 || total < offset || last >= total ? ERROR : REFILL;
+    }
+
+    /**
+     * @param value a value that may be surrounded by quotes.
+     * @return the value without the surrounding quotes.
+     */
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+            return value.substring(1, value.length() - 1);
+        return value;
+    }
+
+    /**
+     * Reads until {@link #buff} is full. If so, create a http packet with a content
+     * (i.e. a good response, a delta response or a request with a body).<br>
      * Can return {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR}
      * if {@link #buff} has not been assigned. This is caused by the missing of a field "Content-Length" in the header.
      *
@@ -192,10 +258,23 @@ public class HTTPReader implements Reader<HTTPPacket> {
         moveData(bb.flip(), buff);
         bb.compact();
         if (buff.hasRemaining()) return REFILL;
-        packet = createGoodResponse(contentType, buff, resource);
+        if (total == -1) total = buff.limit();
+        packet = withContent(buff.duplicate().flip());
         return DONE;
     }
 
+    /**
+     * @param content the content of the packet in read-mode.
+     * @return a new packet of type {@link #packetType} with the given content and the fields read in the header.
+     */
+    private HTTPPacket withContent(ByteBuffer content) {
+        return switch (packetType) {
+            case REQUEST -> new HTTPPacket(REQUEST, contentType, content, resource, etag, 0, 0);
+            case DELTA_RESPONSE -> createDeltaResponse(contentType, content, resource, etag);
+            default -> createGoodResponse(contentType, content, resource, etag, offset, total);
+        };
+    }
+
     /**
      * @return the packet if the {@link #process(ByteBuffer)} method has successfully read a packet.
      * The returned packet has a new buffer for each call of this method.
@@ -204,8 +283,8 @@ public class HTTPReader implements Reader<HTTPPacket> {
     @Override
     public HTTPPacket get() {
         if (status != DONE) throw new IllegalStateException("Not DONE!");
-        if (packet.type() != GOOD_RESPONSE) return packet;
-        return createGoodResponse(contentType, copyBuffer(buff), resource);
+        if (packet.content() == null) return packet;
+        return withContent(copyBuffer(buff));
     }
 
     /**
@@ -220,6 +299,9 @@ public class HTTPReader implements Reader<HTTPPacket> {
         packetType = null;
         resource = null;
         status = REFILL;
+        etag = null;
+        offset = 0;
+        total = -1;
         reader.reset();
         packet = null;
         buff = null;
@@ -0,0 +1,24 @@
+package fr.uge.net.tcp.nonblocking.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a message sent by the router to every client of the server or of a room.
+ */
+@Name("fr.uge.chatos.Broadcast")
+@Label("Broadcast")
+@Category({"ChatOS", "Routing"})
+@Description("A message has been queued for every client of the server or of a room")
+@StackTrace(false)
+public final class BroadcastEvent extends jdk.jfr.Event {
+    @Label("Room")
+    @Description("The room of the message, null for a general message")
+    public String room;
+
+    @Label("Recipients")
+    public int recipients;
+}
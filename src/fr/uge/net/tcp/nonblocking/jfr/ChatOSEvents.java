@@ -0,0 +1,27 @@
+package fr.uge.net.tcp.nonblocking.jfr;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * The Flight Recorder events of ChatOS.
+ * <br>
+ * Each event class is registered the first time it's loaded, which loads a part of Flight Recorder
+ * (a few hundred milliseconds) even if nothing is recorded. The servers call {@link #register()}
+ * before accepting connections so that the first packets don't pay for it. Afterwards, an event
+ * costs nothing while it's not enabled by the settings of a recording.
+ */
+public final class ChatOSEvents {
+    private ChatOSEvents() {}
+
+    /**
+     * Registers every event class of ChatOS.
+     */
+    public static void register() {
+        FlightRecorder.register(PacketDecodedEvent.class);
+        FlightRecorder.register(BroadcastEvent.class);
+        FlightRecorder.register(RelayChunkEvent.class);
+        FlightRecorder.register(ContextUpgradeEvent.class);
+        FlightRecorder.register(PacketRejectedEvent.class);
+        FlightRecorder.register(RejectRecoveredEvent.class);
+    }
+}
@@ -0,0 +1,24 @@
+package fr.uge.net.tcp.nonblocking.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a connection whose context is replaced once it's identified
+ * (as a client, an end of a private connection or a link of the cluster).
+ */
+@Name("fr.uge.chatos.ContextUpgrade")
+@Label("Context Upgrade")
+@Category({"ChatOS", "Connections"})
+@Description("The context of a connection has been replaced")
+@StackTrace(false)
+public final class ContextUpgradeEvent extends jdk.jfr.Event {
+    @Label("From")
+    public String from;
+
+    @Label("To")
+    public String to;
+}
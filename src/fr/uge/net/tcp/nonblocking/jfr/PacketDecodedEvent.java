@@ -0,0 +1,27 @@
+package fr.uge.net.tcp.nonblocking.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a packet decoded by a {@link fr.uge.net.tcp.nonblocking.packet.PacketReader}.
+ * Its duration is the one of the call that completed the packet, so the waits for the rest of
+ * a packet split between several reads aren't counted.
+ */
+@Name("fr.uge.chatos.PacketDecoded")
+@Label("Packet Decoded")
+@Category({"ChatOS", "Packets"})
+@Description("A packet has been decoded")
+@StackTrace(false)
+public final class PacketDecodedEvent extends jdk.jfr.Event {
+    @Label("Type")
+    public String type;
+
+    @Label("Size")
+    @DataAmount
+    public int size;
+}
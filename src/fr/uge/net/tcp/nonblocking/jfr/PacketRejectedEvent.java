@@ -0,0 +1,23 @@
+package fr.uge.net.tcp.nonblocking.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a malformed packet: the input is ignored until the ERROR_RECOVER sequence.
+ */
+@Name("fr.uge.chatos.PacketRejected")
+@Label("Packet Rejected")
+@Category({"ChatOS", "Packets"})
+@Description("A malformed packet has been received, the input is ignored until ERROR_RECOVER")
+@StackTrace(false)
+public final class PacketRejectedEvent extends jdk.jfr.Event {
+    @Label("Pseudo")
+    public String pseudo;
+
+    @Label("Failure")
+    public String failure;
+}
@@ -0,0 +1,27 @@
+package fr.uge.net.tcp.nonblocking.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of the end of a rejection. Its duration is the one of the rejection,
+ * from the malformed packet to the ERROR_RECOVER sequence.
+ */
+@Name("fr.uge.chatos.RejectRecovered")
+@Label("Reject Recovered")
+@Category({"ChatOS", "Packets"})
+@Description("The ERROR_RECOVER sequence has been received after a malformed packet")
+@StackTrace(false)
+public final class RejectRecoveredEvent extends jdk.jfr.Event {
+    @Label("Pseudo")
+    public String pseudo;
+
+    @Label("Skipped")
+    @Description("The bytes ignored during the rejection")
+    @DataAmount
+    public long skipped;
+}
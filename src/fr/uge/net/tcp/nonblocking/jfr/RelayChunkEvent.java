@@ -0,0 +1,26 @@
+package fr.uge.net.tcp.nonblocking.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of bytes relayed from an end of a private connection to the other.
+ */
+@Name("fr.uge.chatos.RelayChunk")
+@Label("Relay Chunk")
+@Category({"ChatOS", "Private Connections"})
+@Description("Bytes relayed from an end of a private connection to the other")
+@StackTrace(false)
+public final class RelayChunkEvent extends jdk.jfr.Event {
+    @Label("Token")
+    @Description("The token of the private connection, 0 if unknown")
+    public int token;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
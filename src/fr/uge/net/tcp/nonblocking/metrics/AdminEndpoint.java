@@ -0,0 +1,194 @@
+package fr.uge.net.tcp.nonblocking.metrics;
+
+import fr.uge.net.tcp.nonblocking.http.HTTPLineReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.silentlyClose;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Minimal HTTP server answering {@code GET /metrics} with the {@link MetricsRegistry#scrape()} of a registry.
+ * <br>
+ * It has its own selector on its own daemon thread, so a slow scraper never delays the chat traffic.
+ * Every request is answered then the connection is closed.
+ * <br>
+ * A connection is closed without answer if a line of its request is longer than {@link #MAX_LINE_LENGTH} bytes,
+ * if the request has more than {@link #MAX_HEADERS} headers, or if the exchange isn't over within
+ * {@link #EXCHANGE_TIMEOUT} milliseconds.
+ */
+public final class AdminEndpoint {
+    private static final Logger logger = Logger.getLogger(AdminEndpoint.class.getName());
+    private static final int MAX_HEADERS = 64;
+    private static final int MAX_LINE_LENGTH = 1_024;
+    /**
+     * Maximum duration of an exchange, from the connection to the end of the response, in milliseconds.
+     */
+    private static final long EXCHANGE_TIMEOUT = 5_000;
+
+    private final MetricsRegistry registry;
+    private final ServerSocketChannel serverSocketChannel;
+    private final Selector selector;
+
+    /**
+     * Binds the endpoint to the loopback, so only the local host can read the metrics.
+     * It doesn't answer before {@link #start()}.
+     * @param port the port of the endpoint.
+     * @param registry the metrics. Cannot be null.
+     * @throws IOException if the port cannot be bound.
+     */
+    public AdminEndpoint(int port, MetricsRegistry registry) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), registry);
+    }
+
+    /**
+     * Binds the endpoint. It doesn't answer before {@link #start()}.
+     * @param address the address of the endpoint. Cannot be null.
+     * @param registry the metrics. Cannot be null.
+     * @throws IOException if the address cannot be bound.
+     */
+    public AdminEndpoint(InetSocketAddress address, MetricsRegistry registry) throws IOException {
+        requireNonNull(address);
+        this.registry = requireNonNull(registry);
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(address);
+        selector = Selector.open();
+    }
+
+    /**
+     * Starts the thread of the endpoint.
+     */
+    public void start() {
+        var thread = new Thread(this::serve, "admin-endpoint");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve() {
+        try {
+            serverSocketChannel.configureBlocking(false);
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            var address = (InetSocketAddress) serverSocketChannel.getLocalAddress();
+            var host = address.getAddress().isAnyLocalAddress() ? "localhost" : address.getHostString();
+            logger.info("Metrics available on http://" + host + ":" + address.getPort() + "/metrics");
+            while (!Thread.interrupted()) {
+                selector.select(this::treatKey, EXCHANGE_TIMEOUT / 5);
+                closeExpired();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Admin endpoint stopped", e);
+        }
+    }
+
+    private void treatKey(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isAcceptable()) {
+                var sc = serverSocketChannel.accept();
+                if (sc == null) return;
+                sc.configureBlocking(false);
+                var exchange = new Exchange(sc);
+                sc.register(selector, SelectionKey.OP_READ, exchange);
+            }
+            if (key.isValid() && key.isReadable()) ((Exchange) key.attachment()).doRead(key);
+            if (key.isValid() && key.isWritable()) ((Exchange) key.attachment()).doWrite(key);
+        } catch (IOException | UncheckedIOException e) {
+            logger.log(Level.FINE, "Admin connection closed", e);
+            silentlyClose(key.channel());
+        }
+    }
+
+    /**
+     * Closes the connections whose exchange has lasted more than {@link #EXCHANGE_TIMEOUT} milliseconds.
+     */
+    private void closeExpired() {
+        var now = System.nanoTime();
+        for (var key : selector.keys()) {
+            if (key.attachment() instanceof Exchange exchange && exchange.isExpired(now)) {
+                logger.fine("Admin connection closed : exchange too long");
+                silentlyClose(key.channel());
+            }
+        }
+    }
+
+    /**
+     * A request and its response.
+     */
+    private final class Exchange {
+        private final SocketChannel sc;
+        private final ByteBuffer bufferIn = ByteBuffer.allocate(1_024);
+        private final HTTPLineReader lineReader = new HTTPLineReader(MAX_LINE_LENGTH);
+        private final long openedAt = System.nanoTime();
+        private String requestLine;
+        private int headers;
+        private ByteBuffer bufferOut;
+
+        private Exchange(SocketChannel sc) {
+            this.sc = sc;
+        }
+
+        private void doRead(SelectionKey key) throws IOException {
+            if (sc.read(bufferIn) == -1) {
+                silentlyClose(sc);
+                return;
+            }
+            while (bufferOut == null) {
+                switch (lineReader.process(bufferIn)) {
+                    case REFILL -> { return; }
+                    case ERROR -> throw new IOException("Malformed request or line too long");
+                    case DONE -> {
+                        var line = lineReader.get();
+                        lineReader.reset();
+                        if (requestLine == null) requestLine = line;
+                        else if (line.isEmpty()) respond(key);
+                        else if (++headers > MAX_HEADERS) throw new IOException("Too many headers");
+                    }
+                }
+            }
+        }
+
+        private void respond(SelectionKey key) {
+            var parts = requestLine.split(" ");
+            String status;
+            String body;
+            if (parts.length == 3 && parts[0].equals("GET") && parts[1].equals("/metrics")) {
+                status = "200 OK";
+                body = registry.scrape();
+            } else {
+                status = "404 Not Found";
+                body = "Only GET /metrics is served\n";
+            }
+            var content = UTF_8.encode(body);
+            var head = "HTTP/1.1 " + status + "\r\n"
+                    + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                    + "Content-Length: " + content.remaining() + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            bufferOut = ByteBuffer.allocate(head.length() + content.remaining());
+            bufferOut.put(UTF_8.encode(head)).put(content).flip();
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private boolean isExpired(long now) {
+            return now - openedAt >= TimeUnit.MILLISECONDS.toNanos(EXCHANGE_TIMEOUT);
+        }
+
+        private void doWrite(SelectionKey key) throws IOException {
+            sc.write(bufferOut);
+            if (!bufferOut.hasRemaining()) {
+                key.cancel();
+                silentlyClose(sc);
+            }
+        }
+    }
+}
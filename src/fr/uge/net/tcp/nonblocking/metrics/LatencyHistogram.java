@@ -0,0 +1,86 @@
+package fr.uge.net.tcp.nonblocking.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed buckets: the bucket {@code i} counts the durations between
+ * 2<sup>i-1</sup> (excluded) and 2<sup>i</sup> (included) microseconds, the last one counts the longer durations.
+ * <br>
+ * Recording a duration is a few {@link LongAdder} increments, without lock nor allocation,
+ * so it can be done on the hot paths by any thread.
+ */
+public final class LatencyHistogram {
+    /**
+     * Number of bounded buckets: the last bound is 2<sup>24</sup> microseconds (about 16 seconds).
+     */
+    static final int BUCKETS = 25;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+    private final LongAdder sum = new LongAdder();
+
+    LatencyHistogram() {
+        for (var i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        var micros = nanos / 1_000;
+        var index = micros <= 1 ? 0 : Math.min(BUCKETS, 64 - Long.numberOfLeadingZeros(micros - 1));
+        counts[index].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * @return the number of recorded durations.
+     */
+    public long count() {
+        var count = 0L;
+        for (var bucket : counts) count += bucket.sum();
+        return count;
+    }
+
+    /**
+     * @return the sum of the recorded durations, in nanoseconds.
+     */
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the number of durations of each bucket (not cumulative), the last one being unbounded.
+     */
+    long[] counts() {
+        var values = new long[counts.length];
+        for (var i = 0; i < counts.length; i++) values[i] = counts[i].sum();
+        return values;
+    }
+
+    /**
+     * @param index the index of a bounded bucket.
+     * @return the upper bound of the bucket in microseconds.
+     */
+    static long upperBoundMicros(int index) {
+        return 1L << index;
+    }
+
+    /**
+     * @param quantile a quantile between 0 and 1.
+     * @return the upper bound, in microseconds, of the bucket containing the quantile,
+     * {@link Long#MAX_VALUE} if it's the unbounded bucket, or 0 if nothing has been recorded.
+     */
+    public long quantileMicros(double quantile) {
+        var values = counts();
+        var total = 0L;
+        for (var value : values) total += value;
+        if (total == 0) return 0;
+        var rank = (long) Math.ceil(quantile * total);
+        var seen = 0L;
+        for (var i = 0; i < BUCKETS; i++) {
+            seen += values[i];
+            if (seen >= rank) return upperBoundMicros(i);
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,69 @@
+package fr.uge.net.tcp.nonblocking.metrics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Exposes the {@link MetricsRegistry#values()} of a registry as the read-only attributes of an MBean,
+ * so they can be read with JConsole or any JMX client.
+ */
+public final class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+
+    private MetricsMBean(MetricsRegistry registry) {
+        this.registry = requireNonNull(registry);
+    }
+
+    /**
+     * Registers the metrics of {@code registry} in the platform MBean server.
+     * @param registry the metrics. Cannot be null.
+     * @param name the name of the MBean (e.g. {@code fr.uge.chatos:type=ServerChatOS,port=7777}). Cannot be null.
+     * @throws JMException if the name is invalid or already used.
+     */
+    public static void register(MetricsRegistry registry, String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(registry), new ObjectName(name));
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        var value = registry.values().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        var values = registry.values();
+        var list = new AttributeList();
+        for (var attribute : attributes) {
+            var value = values.get(attribute);
+            if (value != null) list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        var attributes = registry.values().keySet().stream()
+                .map(name -> new MBeanAttributeInfo(name, "long", name, true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(getClass().getName(), "Metrics of the server", attributes, null, null, null);
+    }
+}
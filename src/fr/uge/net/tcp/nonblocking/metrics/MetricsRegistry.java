@@ -0,0 +1,167 @@
+package fr.uge.net.tcp.nonblocking.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The metrics of a process: counters, gauges and latency histograms.
+ * <br>
+ * The counters are {@link LongAdder}s and the histograms are {@link LatencyHistogram}s, so the hot paths
+ * update them without contention. The gauges are read when the metrics are exported: they must be
+ * thread-safe.
+ * <br>
+ * The metrics are exported in the Prometheus text format by {@link #scrape()} (served by an
+ * {@link AdminEndpoint}) and as a flat map by {@link #values()} (exposed by a {@link MetricsMBean}).
+ * A metric can have a label (e.g. {@code type="GMSG"}), the metrics with the same name sharing their help.
+ */
+public final class MetricsRegistry {
+    private enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+    /**
+     * A metric: {@code value} for the counters and the gauges, {@code histogram} for the histograms.
+     */
+    private record Metric(String name, String label, String value, String help, Type type,
+                          LongSupplier supplier, LatencyHistogram histogram) {
+        /**
+         * @return the name followed by the label, for the text format.
+         */
+        private String series() {
+            return label == null ? name : name + "{" + label + "=\"" + value + "\"}";
+        }
+
+        /**
+         * @return the name followed by the value of the label, for the flat map.
+         */
+        private String key() {
+            return label == null ? name : name + "." + value;
+        }
+    }
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a counter.
+     * @param name the name of the counter. Cannot be null.
+     * @param help the description of the counter. Cannot be null.
+     * @return the counter.
+     */
+    public LongAdder counter(String name, String help) {
+        return counter(name, null, null, help);
+    }
+
+    /**
+     * Creates a counter with a label.
+     * @param name the name of the counter. Cannot be null.
+     * @param label the name of the label, or null.
+     * @param value the value of the label, or null.
+     * @param help the description of the counter. Cannot be null.
+     * @return the counter.
+     */
+    public LongAdder counter(String name, String label, String value, String help) {
+        var counter = new LongAdder();
+        add(new Metric(requireNonNull(name), label, value, requireNonNull(help), Type.COUNTER, counter::sum, null));
+        return counter;
+    }
+
+    /**
+     * Exports a counter maintained elsewhere.
+     * @param name the name of the counter. Cannot be null.
+     * @param help the description of the counter. Cannot be null.
+     * @param supplier gives the value of the counter, which never decreases. Must be thread-safe. Cannot be null.
+     */
+    public void counter(String name, String help, LongSupplier supplier) {
+        add(new Metric(requireNonNull(name), null, null, requireNonNull(help), Type.COUNTER, requireNonNull(supplier), null));
+    }
+
+    /**
+     * Creates a gauge.
+     * @param name the name of the gauge. Cannot be null.
+     * @param help the description of the gauge. Cannot be null.
+     * @param supplier gives the value of the gauge. Must be thread-safe. Cannot be null.
+     */
+    public void gauge(String name, String help, LongSupplier supplier) {
+        add(new Metric(requireNonNull(name), null, null, requireNonNull(help), Type.GAUGE, requireNonNull(supplier), null));
+    }
+
+    /**
+     * Creates a histogram of durations, exported in seconds.
+     * @param name the name of the histogram. Cannot be null.
+     * @param help the description of the histogram. Cannot be null.
+     * @return the histogram.
+     */
+    public LatencyHistogram histogram(String name, String help) {
+        var histogram = new LatencyHistogram();
+        add(new Metric(requireNonNull(name), null, null, requireNonNull(help), Type.HISTOGRAM, null, histogram));
+        return histogram;
+    }
+
+    private void add(Metric metric) {
+        for (var other : metrics) {
+            if (other.series().equals(metric.series())) throw new IllegalArgumentException("Duplicate metric " + metric.series());
+        }
+        metrics.add(metric);
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format (version 0.0.4).
+     */
+    public String scrape() {
+        var builder = new StringBuilder();
+        String previous = null;
+        for (var metric : metrics) {
+            if (!metric.name.equals(previous)) {
+                builder.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                builder.append("# TYPE ").append(metric.name).append(' ')
+                        .append(metric.type.name().toLowerCase(Locale.ROOT)).append('\n');
+                previous = metric.name;
+            }
+            if (metric.type != Type.HISTOGRAM) {
+                builder.append(metric.series()).append(' ').append(metric.supplier.getAsLong()).append('\n');
+                continue;
+            }
+            var counts = metric.histogram.counts();
+            var cumulated = 0L;
+            for (var i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                cumulated += counts[i];
+                builder.append(metric.name).append("_bucket{le=\"")
+                        .append(seconds(LatencyHistogram.upperBoundMicros(i) * 1_000)).append("\"} ")
+                        .append(cumulated).append('\n');
+            }
+            cumulated += counts[LatencyHistogram.BUCKETS];
+            builder.append(metric.name).append("_bucket{le=\"+Inf\"} ").append(cumulated).append('\n');
+            builder.append(metric.name).append("_sum ").append(seconds(metric.histogram.sumNanos())).append('\n');
+            builder.append(metric.name).append("_count ").append(cumulated).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the value of every counter and gauge, and the count, the mean and the 99th percentile
+     * (in microseconds) of every histogram, by name.
+     */
+    public Map<String, Long> values() {
+        var values = new LinkedHashMap<String, Long>();
+        for (var metric : metrics) {
+            if (metric.type != Type.HISTOGRAM) {
+                values.put(metric.key(), metric.supplier.getAsLong());
+                continue;
+            }
+            var count = metric.histogram.count();
+            values.put(metric.key() + "_count", count);
+            values.put(metric.key() + "_mean_micros", count == 0 ? 0 : metric.histogram.sumNanos() / count / 1_000);
+            values.put(metric.key() + "_p99_micros", metric.histogram.quantileMicros(0.99));
+        }
+        return values;
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+}
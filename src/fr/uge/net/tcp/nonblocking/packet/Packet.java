@@ -21,10 +21,35 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  * two clients.</li>
  * <li> {@link PacketType#TOKEN} (message, pseudo) : This packet is a special packet used to register to the server as a private
  * connection. The token is an unique identifier sent to the both ends of a private connection.</li>
+ * <li> {@link PacketType#JOIN} (room) : This packet is used by a client to join a room. The server sends it back
+ * once the client is a member of the room.</li>
+ * <li> {@link PacketType#LEAVE} (room) : This packet is used by a client to leave a room. The server sends it back
+ * once the client isn't a member of the room anymore.</li>
+ * <li> {@link PacketType#RMSG} (room, message and pseudo) : This packet is a Room Message. A message from a client
+ * to every member of a room.</li>
+ * <li> {@link PacketType#NODE} (message and pseudo) : This packet is sent by a server to another server of the same
+ * cluster as the first packet of a link between them. The message is the index of the sending server in the cluster,
+ * and the pseudo the secret shared by the servers of the cluster, which proves that the sender is one of them.</li>
+ * <li> {@link PacketType#RESUME} (message and pseudo) : This packet is sent by the server right after the authentication
+ * packet: the message is the id of the session of the client. A client whose connection has been lost sends it back
+ * as the first packet of a new connection to resume its session.</li>
+ * <li> {@link PacketType#STREAM} (stream and content) : This packet carries a part of a private connection multiplexed
+ * over the main connections of its two clients. An empty content ends the stream.</li>
+ * <li> {@link PacketType#WINDOW} (stream and message) : This packet allows the other end of a stream to send
+ * as many more bytes as the message. Sent with the stream 0, it announces that the client accepts multiplexed
+ * private connections, the message being the initial window of its streams.</li>
  * </ul>
  * For more explanations, see Protocol.txt.
  */
-public final record Packet(PacketType type, ErrorCode code, String message, String pseudo) {
+public final record Packet(PacketType type, ErrorCode code, String message, String pseudo, String room,
+                           int stream, ByteBuffer content) {
+    /**
+     * Creates a packet that doesn't belong to a stream.
+     */
+    public Packet(PacketType type, ErrorCode code, String message, String pseudo, String room) {
+        this(type, code, message, pseudo, room, 0, null);
+    }
+
     /**
      * Utility class made to create {@link Packet} more easily.
      * If one of the parameter is null, the returned packet will be null.
@@ -39,7 +64,7 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
         public static Packet makeErrorPacket(byte code) {
             if (code < 0 || code >= ErrorCode.values().length || code == ErrorCode.REJECTED.ordinal())
                 return null;
-            return new Packet(PacketType.ERR, ErrorCode.values()[code], null, null);
+            return new Packet(PacketType.ERR, ErrorCode.values()[code], null, null, null);
         }
         /**
          * Creates an error packet with the given error code.
@@ -48,7 +73,7 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
          */
         public static Packet makeErrorPacket(ErrorCode code) {
             if (code == null) return null;
-            return new Packet(PacketType.ERR, code, null, null);
+            return new Packet(PacketType.ERR, code, null, null, null);
         }
         /**
          * Creates an error packet with {@link ErrorCode#REJECTED} and the {@code pseudo}.
@@ -58,7 +83,7 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
          */
         public static Packet makeRejectedPacket(String pseudo) {
             if (pseudo == null) return null;
-            return new Packet(PacketType.ERR, ErrorCode.REJECTED, null, pseudo);
+            return new Packet(PacketType.ERR, ErrorCode.REJECTED, null, pseudo, null);
         }
         /**
          * Creates an authentication packet with the given pseudo.
@@ -67,7 +92,7 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
          */
         public static Packet makeAuthenticationPacket(String pseudo) {
             if (pseudo == null) return null;
-            return new Packet(PacketType.AUTH, null, null, pseudo);
+            return new Packet(PacketType.AUTH, null, null, pseudo, null);
         }
         /**
          * Creates a general message packet with the given message from {@code pseudo}.
@@ -77,7 +102,7 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
          */
         public static Packet makeGeneralMessagePacket(String message, String pseudo) {
             if (message == null || pseudo == null) return null;
-            return new Packet(PacketType.GMSG, null, message, pseudo);
+            return new Packet(PacketType.GMSG, null, message, pseudo, null);
         }
         /**
          * Creates a direct message packet with the given message from/to {@code pseudo}.
@@ -88,7 +113,7 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
          */
         public static Packet makeDirectMessagePacket(String message, String pseudo) {
             if (message == null || pseudo == null) return null;
-            return new Packet(PacketType.DMSG, null, message, pseudo);
+            return new Packet(PacketType.DMSG, null, message, pseudo, null);
         }
         /**
          * Creates a private connection packet form/to {@code pseudo}.
@@ -98,7 +123,7 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
          */
         public static Packet makePrivateConnectionPacket(String pseudo) {
             if (pseudo == null) return null;
-            return new Packet(PacketType.PC, null, null, pseudo);
+            return new Packet(PacketType.PC, null, null, pseudo, null);
         }
         /**
          * Creates a token packet containing an identification key and the pseudo
@@ -109,7 +134,78 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
          */
         public static Packet makeTokenPacket(int token, String pseudo) {
             if (pseudo == null) return null;
-            return new Packet(PacketType.TOKEN, null, "" + token, pseudo);
+            return new Packet(PacketType.TOKEN, null, "" + token, pseudo, null);
+        }
+        /**
+         * Creates a packet to join the given room.
+         * @param room the name of the room.
+         * @return a new join packet or null if {@code room} is null.
+         */
+        public static Packet makeJoinPacket(String room) {
+            if (room == null) return null;
+            return new Packet(PacketType.JOIN, null, null, null, room);
+        }
+        /**
+         * Creates a packet to leave the given room.
+         * @param room the name of the room.
+         * @return a new leave packet or null if {@code room} is null.
+         */
+        public static Packet makeLeavePacket(String room) {
+            if (room == null) return null;
+            return new Packet(PacketType.LEAVE, null, null, null, room);
+        }
+        /**
+         * Creates a room message packet with the given message from {@code pseudo} to the members of {@code room}.
+         * @param room the name of the room.
+         * @param message the message to send.
+         * @param pseudo the pseudo of the sending client.
+         * @return a new room message packet or null if {@code room}, {@code message} or {@code pseudo} is null.
+         */
+        public static Packet makeRoomMessagePacket(String room, String message, String pseudo) {
+            if (room == null || message == null || pseudo == null) return null;
+            return new Packet(PacketType.RMSG, null, message, pseudo, room);
+        }
+        /**
+         * Creates a packet opening a link between two servers of a cluster.
+         * @param node the index of the sending server in the cluster.
+         * @param secret the secret shared by the servers of the cluster, in the pseudo of the packet.
+         * @return a new node packet or null if {@code secret} is null.
+         */
+        public static Packet makeNodePacket(int node, String secret) {
+            if (secret == null) return null;
+            return new Packet(PacketType.NODE, null, "" + node, secret, null);
+        }
+        /**
+         * Creates a packet giving (or presenting) the id of the session of a client.
+         * @param session the id of the session.
+         * @param pseudo the pseudo of the client.
+         * @return a new resume packet or null if {@code pseudo} is null.
+         */
+        public static Packet makeResumePacket(long session, String pseudo) {
+            if (pseudo == null) return null;
+            return new Packet(PacketType.RESUME, null, "" + session, pseudo, null);
+        }
+        /**
+         * Creates a packet carrying a part of a stream.
+         * @param stream the id of the stream (the token of the private connection).
+         * @param content the part, in read-mode, at most {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#STREAM_FRAME_SIZE}
+         *                bytes. Empty to end the stream.
+         * @return a new stream packet or null if {@code content} is null or too long.
+         */
+        public static Packet makeStreamPacket(int stream, ByteBuffer content) {
+            if (content == null || content.remaining() > STREAM_FRAME_SIZE) return null;
+            return new Packet(PacketType.STREAM, null, null, null, null, stream, content);
+        }
+        /**
+         * Creates a packet opening the window of a stream (or, with the stream 0, announcing the initial window
+         * of the streams of a client).
+         * @param stream the id of the stream, 0 for the announce.
+         * @param increment the number of bytes the other end can send in addition.
+         * @return a new window packet or null if {@code increment} isn't positive.
+         */
+        public static Packet makeWindowPacket(int stream, int increment) {
+            if (increment <= 0) return null;
+            return new Packet(PacketType.WINDOW, null, "" + increment, null, null, stream, null);
         }
     }
     /**
@@ -127,7 +223,21 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
         /** Private Connection */
         PC,
         /** Token */
-        TOKEN
+        TOKEN,
+        /** Join a room */
+        JOIN,
+        /** Leave a room */
+        LEAVE,
+        /** Room Message */
+        RMSG,
+        /** Link between two servers of a cluster */
+        NODE,
+        /** Id of a session, to resume it on a new connection */
+        RESUME,
+        /** Part of a private connection multiplexed over the main connections */
+        STREAM,
+        /** Credit of bytes of a stream */
+        WINDOW
     }
     /**
      * Possible error codes.
@@ -144,7 +254,9 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
         /** Invalid text length. If the length of a text is negative, 0 or greater than {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#TEXT_SIZE}. */
         INVALID_LENGTH,
         /** Recovering of an error. If the client tries to recover from an error he made. */
-        ERROR_RECOVER
+        ERROR_RECOVER,
+        /** Rate limited. If the client sends a type of packet faster than the server allows. */
+        RATE_LIMITED
     }
 
     /**
@@ -175,6 +287,12 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
             case DMSG -> directToBuffer();
             case PC -> privateToBuffer();
             case TOKEN -> tokenToBuffer();
+            case JOIN, LEAVE -> roomToBuffer();
+            case RMSG -> roomMessageToBuffer();
+            case NODE -> nodeToBuffer();
+            case RESUME -> resumeToBuffer();
+            case STREAM -> streamToBuffer();
+            case WINDOW -> windowToBuffer();
         }).flip();
     }
 
@@ -319,4 +437,108 @@ public final record Packet(PacketType type, ErrorCode code, String message, Stri
                 .putInt(length)
                 .put(pseudoBuffer);
     }
+    /**
+     * Creates a buffer containing the id of the session of a client.
+     * <pre>
+     *    byte     long     integer string (utf-8)
+     * --------------------------------------------
+     * |   10   | session | length |    pseudo    |
+     * -------------------------------------------- </pre>
+     */
+    private ByteBuffer resumeToBuffer() {
+        var pseudoBuffer = UTF_8.encode(pseudo);
+        var length = checkLength(pseudoBuffer.remaining());
+        return ByteBuffer.allocate(Byte.BYTES + Long.BYTES + Integer.BYTES + length)
+                .put((byte) PacketType.RESUME.ordinal())
+                .putLong(Long.parseLong(message))
+                .putInt(length)
+                .put(pseudoBuffer);
+    }
+    /**
+     * Creates a buffer containing a part of a stream.
+     * <pre>
+     *    byte     integer  integer    bytes
+     * ---------------------------------------
+     * |   11   | stream | length |  content  |
+     * --------------------------------------- </pre>
+     */
+    private ByteBuffer streamToBuffer() {
+        var data = content.duplicate();
+        return ByteBuffer.allocate(Byte.BYTES + Integer.BYTES * 2 + data.remaining())
+                .put((byte) PacketType.STREAM.ordinal())
+                .putInt(stream)
+                .putInt(data.remaining())
+                .put(data);
+    }
+    /**
+     * Creates a buffer containing a credit of bytes of a stream.
+     * <pre>
+     *    byte     integer   integer
+     * ------------------------------
+     * |   12   | stream | increment |
+     * ------------------------------ </pre>
+     */
+    private ByteBuffer windowToBuffer() {
+        return ByteBuffer.allocate(Byte.BYTES + Integer.BYTES * 2)
+                .put((byte) PacketType.WINDOW.ordinal())
+                .putInt(stream)
+                .putInt(Integer.parseInt(message));
+    }
+    /**
+     * Creates a buffer containing the packet to join or to leave a room.
+     * <pre>
+     *     byte     integer   string (utf-8)
+     * -------------------------------------
+     * | 6 or 7 | length |       room      |
+     * ------------------------------------- </pre>
+     */
+    private ByteBuffer roomToBuffer() {
+        var roomBuffer = UTF_8.encode(room);
+        var length = checkLength(roomBuffer.remaining());
+        return ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + length)
+                .put((byte) type.ordinal())
+                .putInt(length)
+                .put(roomBuffer);
+    }
+    /**
+     * Creates a buffer containing the packet representing a message destined to the members of a room.
+     * <pre>
+     *   byte  integer  string (utf-8)  integer  string (utf-8)  integer  string (utf-8)
+     * ----------------------------------------------------------------------------------
+     * |  8  | length |      room     | length |    message    | length |    pseudo     |
+     * ---------------------------------------------------------------------------------- </pre>
+     */
+    private ByteBuffer roomMessageToBuffer() {
+        var roomBuffer = UTF_8.encode(room);
+        var roomLength = checkLength(roomBuffer.remaining());
+        var messageBuffer = UTF_8.encode(message);
+        var messageLength = checkLength(messageBuffer.remaining());
+        var pseudoBuffer = UTF_8.encode(pseudo);
+        var pseudoLength = checkLength(pseudoBuffer.remaining());
+        return ByteBuffer.allocate(Byte.BYTES + Integer.BYTES * 3 + roomLength + messageLength + pseudoLength)
+                .put((byte) type.ordinal())
+                .putInt(roomLength)
+                .put(roomBuffer)
+                .putInt(messageLength)
+                .put(messageBuffer)
+                .putInt(pseudoLength)
+                .put(pseudoBuffer);
+    }
+    /**
+     * Creates a buffer containing the first packet of a link between two servers.
+     * <pre>
+     *   byte   integer  integer string (utf-8)
+     * --------------------------------------
+     * |  9  |  node  | length |   secret   |
+     * -------------------------------------- </pre>
+     */
+    private ByteBuffer nodeToBuffer() {
+        var secretBuffer = UTF_8.encode(pseudo);
+        var length = checkLength(secretBuffer.remaining());
+        return ByteBuffer.allocate(Byte.BYTES + Integer.BYTES * 2 + length)
+                .put((byte) type.ordinal())
+                .putInt(Integer.parseInt(message))
+                .putInt(length)
+                .put(secretBuffer);
+    }
 }
@@ -1,5 +1,6 @@
 package fr.uge.net.tcp.nonblocking.packet;
 
+import fr.uge.net.tcp.nonblocking.jfr.PacketDecodedEvent;
 import fr.uge.net.tcp.nonblocking.packet.Packet.PacketType;
 import fr.uge.net.tcp.nonblocking.packet.Packet.ErrorCode;
 import fr.uge.net.tcp.nonblocking.reader.Reader;
@@ -8,6 +9,7 @@ import fr.uge.net.tcp.nonblocking.reader.StringReader;
 import java.nio.ByteBuffer;
 import java.util.function.Function;
 
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.STREAM_FRAME_SIZE;
 import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.moveData;
 import static fr.uge.net.tcp.nonblocking.packet.Packet.ErrorCode.REJECTED;
 import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.*;
@@ -27,19 +29,46 @@ public class PacketReader implements Reader<Packet> {
     public enum ProcessFailure {
         /** If the read code is incorrect. */
         CODE,
-        /** If the read length is incorrect. (not between 1 and {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#TEXT_SIZE}) */
+        /** If the read length is incorrect. (not between 1 and {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#TEXT_SIZE},
+         * or not between 0 and {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#STREAM_FRAME_SIZE} for a stream) */
         LENGTH
     }
     // Always in write-mode.
     private final ByteBuffer buff = ByteBuffer.allocate(Integer.BYTES);
+    // Always in write-mode.
+    private final ByteBuffer sessionBuff = ByteBuffer.allocate(Long.BYTES);
     private final StringReader reader = new StringReader();
     private ProcessFailure failure = null;
     private ProcessStatus status = REFILL;
     private PacketType type = null;
     private Packet packet = null;
     private String element = null;
+    private String room = null;
     private byte errorCode = -1;
     private int token = -1;
+    private Integer node = null;
+    private Long session = null;
+    private Integer stream = null;
+    /**
+     * The content of a stream packet, in write-mode. Null until its length is read.
+     */
+    private ByteBuffer content = null;
+    private int size = 0;
+    private final boolean recorded;
+
+    /**
+     * Creates a reader that doesn't record {@link PacketDecodedEvent}s, so it never loads Flight Recorder.
+     */
+    public PacketReader() {
+        this(false);
+    }
+
+    /**
+     * @param recorded true to record a {@link PacketDecodedEvent} for each decoded packet.
+     */
+    public PacketReader(boolean recorded) {
+        this.recorded = recorded;
+    }
 
     /**
      * Processes the buffer and extracts a byte (the type of the packet).
@@ -55,9 +84,10 @@ public class PacketReader implements Reader<Packet> {
      *     if the message is ready to be get.</li>
      *   <li>   {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} :
      *     <ul>
-     *       <li> If the type is not recognized. (i.e. not between 0 and {@link PacketType#TOKEN} (5))</li>
-     *       <li> If the type is {@link Packet.PacketType#ERR} and the code is not recognized. (i.e. not between 0 and {@link ErrorCode#ERROR_RECOVER} (5))</li>
-     *       <li> If any length read is not between 1 and {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#TEXT_SIZE}.</li>
+     *       <li> If the type is not recognized. (i.e. not between 0 and {@link PacketType#WINDOW} (12))</li>
+     *       <li> If the type is {@link Packet.PacketType#ERR} and the code is not recognized. (i.e. not between 0 and {@link ErrorCode#RATE_LIMITED} (6))</li>
+     *       <li> If any length read is not between 1 and {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#TEXT_SIZE}
+     *       (between 0 and {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#STREAM_FRAME_SIZE} for the content of a stream).</li>
      *     </ul>
      *   </li>
      * </ul>
@@ -68,6 +98,7 @@ public class PacketReader implements Reader<Packet> {
      * @throws NullPointerException if {@code bb} is null.
      * @throws IllegalStateException if the reader has already finished reading data.
      * (i.e. already returned {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#DONE})
+     * @see PacketDecodedEvent
      */
     @Override
     public ProcessStatus process(ByteBuffer bb) {
@@ -77,7 +108,20 @@ public class PacketReader implements Reader<Packet> {
             bb.compact();
             return REFILL;
         }
+        if (!recorded) {
+            status = subProcess(bb.compact());
+            return status;
+        }
+        var event = new PacketDecodedEvent();
+        event.begin();
+        var available = bb.remaining();
         status = subProcess(bb.compact());
+        size += available - bb.position();
+        if (status == DONE && event.shouldCommit()) {
+            event.type = type.name();
+            event.size = size;
+            event.commit();
+        }
         return status;
     }
 
@@ -96,6 +140,13 @@ public class PacketReader implements Reader<Packet> {
             case DMSG -> makePacketOnDone(bb, this::processTwoString, s -> makeDirectMessagePacket(element, s));
             case PC -> makePacketOnDone(bb, reader::process, Packet.PacketFactory::makePrivateConnectionPacket);
             case TOKEN -> processToken(bb);
+            case JOIN -> makePacketOnDone(bb, reader::process, Packet.PacketFactory::makeJoinPacket);
+            case LEAVE -> makePacketOnDone(bb, reader::process, Packet.PacketFactory::makeLeavePacket);
+            case RMSG -> processRoomMessage(bb);
+            case NODE -> processNode(bb);
+            case RESUME -> processResume(bb);
+            case STREAM -> processStream(bb);
+            case WINDOW -> processWindow(bb);
         };
     }
 
@@ -155,6 +206,32 @@ public class PacketReader implements Reader<Packet> {
         return ERROR;
     }
 
+    /**
+     * Reads the index of a server (i.e. an integer) and after the secret of the cluster.
+     * The returned value can be:
+     * <ul>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#DONE} :
+     *     if the reader has finished reading.</li>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#REFILL} :
+     *     if {@code bb} has less than an integer or if the int or the string cannot be read.</li>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} :
+     *     if the length of the string is beyond limit (sets {@link #failure} to {@link ProcessFailure#LENGTH}).</li>
+     * </ul>
+     * @param bb buffer in write-mode.
+     * @return the current status of the reader.
+     */
+    private ProcessStatus processNode(ByteBuffer bb) {
+        if (node == null) {
+            try {
+                if (moveData(bb.flip(), buff)) return REFILL;
+            } finally {
+                bb.compact();
+            }
+            node = buff.flip().getInt();
+        }
+        return makePacketOnDone(bb, reader::process, s -> makeNodePacket(node, s));
+    }
+
     /**
      * Read the token (i.e. an integer) and after a pseudo.
      * The returned value can be:
@@ -181,6 +258,137 @@ public class PacketReader implements Reader<Packet> {
         return makePacketOnDone(bb, reader::process, s -> makeTokenPacket(token, s));
     }
 
+    /**
+     * Read the id of a session (i.e. a long) and after a pseudo.
+     * The returned value can be:
+     * <ul>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#DONE} :
+     *     if the reader has finished reading.</li>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#REFILL} :
+     *     if {@code bb} has less than a long or if the int or the string cannot be read.</li>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} :
+     *     if the length of the string is beyond limit (sets {@link #failure} to {@link ProcessFailure#LENGTH}).</li>
+     * </ul>
+     * @param bb buffer in write-mode.
+     * @return the current status of the reader.
+     */
+    private ProcessStatus processResume(ByteBuffer bb) {
+        if (session == null) {
+            try {
+                if (moveData(bb.flip(), sessionBuff)) return REFILL;
+            } finally {
+                bb.compact();
+            }
+            session = sessionBuff.flip().getLong();
+        }
+        return makePacketOnDone(bb, reader::process, s -> makeResumePacket(session, s));
+    }
+
+    /**
+     * Reads the id of a stream (i.e. an integer), after the stream packets and the window packets.
+     * @param bb buffer in write-mode.
+     * @return {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#DONE} if the integer has been read;
+     * {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#REFILL} otherwise.
+     */
+    private ProcessStatus readStream(ByteBuffer bb) {
+        if (stream == null) {
+            try {
+                if (moveData(bb.flip(), buff)) return REFILL;
+            } finally {
+                bb.compact();
+            }
+            stream = buff.flip().getInt();
+            buff.clear();
+        }
+        return DONE;
+    }
+
+    /**
+     * Reads the id of a stream, the length of the content and the content.
+     * The returned value can be:
+     * <ul>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#DONE} :
+     *     if the reader has finished reading.</li>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#REFILL} :
+     *     if the integers or the content cannot be read.</li>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} :
+     *     if the length isn't between 0 and {@link fr.uge.net.tcp.nonblocking.utils.ChatOSUtils#STREAM_FRAME_SIZE}
+     *     (sets {@link #failure} to {@link ProcessFailure#LENGTH}).</li>
+     * </ul>
+     * @param bb buffer in write-mode.
+     * @return the current status of the reader.
+     */
+    private ProcessStatus processStream(ByteBuffer bb) {
+        if (readStream(bb) != DONE) return REFILL;
+        if (content == null) {
+            try {
+                if (moveData(bb.flip(), buff)) return REFILL;
+            } finally {
+                bb.compact();
+            }
+            var length = buff.flip().getInt();
+            if (length < 0 || length > STREAM_FRAME_SIZE) {
+                failure = LENGTH;
+                return ERROR;
+            }
+            content = ByteBuffer.allocate(length);
+        }
+        if (content.hasRemaining()) {
+            try {
+                if (moveData(bb.flip(), content)) return REFILL;
+            } finally {
+                bb.compact();
+            }
+        }
+        packet = makeStreamPacket(stream, content.flip());
+        return DONE;
+    }
+
+    /**
+     * Reads the id of a stream and the increment of its window.
+     * @param bb buffer in write-mode.
+     * @return {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#DONE} if the integers have been read;
+     * {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#REFILL} otherwise;
+     * {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} if the increment isn't positive
+     * (sets {@link #failure} to {@link ProcessFailure#LENGTH}).
+     */
+    private ProcessStatus processWindow(ByteBuffer bb) {
+        if (readStream(bb) != DONE) return REFILL;
+        try {
+            if (moveData(bb.flip(), buff)) return REFILL;
+        } finally {
+            bb.compact();
+        }
+        if ((packet = makeWindowPacket(stream, buff.flip().getInt())) != null) return DONE;
+        failure = LENGTH;
+        return ERROR;
+    }
+
+    /**
+     * Reads the name of the room and after a message and a pseudo.
+     * The returned value can be:
+     * <ul>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#DONE} :
+     *     if the reader has finished reading.</li>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#REFILL} :
+     *     if one of the three strings cannot be read.</li>
+     *     <li> {@link fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus#ERROR} :
+     *     if the length of a string is beyond limit (sets {@link #failure} to {@link ProcessFailure#LENGTH}).</li>
+     * </ul>
+     * @param bb buffer in write-mode.
+     * @return the current status of the reader.
+     */
+    private ProcessStatus processRoomMessage(ByteBuffer bb) {
+        if (room == null) {
+            var status = reader.process(bb);
+            if (status == ERROR) failure = LENGTH;
+            if (status != DONE) return status;
+            room = reader.get();
+            reader.reset();
+        }
+        return makePacketOnDone(bb, this::processTwoString, s -> makeRoomMessagePacket(room, element, s));
+    }
+
     /**
      * Sub method used to factorize every creation of a packet.
      * Processes the data from {@code bb} inside {@code processor}.<br>
@@ -250,11 +458,18 @@ public class PacketReader implements Reader<Packet> {
         failure = null;
         reader.reset();
         element = null;
+        room = null;
         errorCode = -1;
         packet = null;
         buff.clear();
         type = null;
         token = -1;
+        node = null;
+        sessionBuff.clear();
+        session = null;
+        stream = null;
+        content = null;
+        size = 0;
     }
 
 }
@@ -1,10 +1,14 @@
 package fr.uge.net.tcp.nonblocking.reader;
 
 import fr.uge.net.tcp.nonblocking.context.AbstractContext;
+import fr.uge.net.tcp.nonblocking.context.Priority;
+import fr.uge.net.tcp.nonblocking.jfr.PacketRejectedEvent;
+import fr.uge.net.tcp.nonblocking.jfr.RejectRecoveredEvent;
 import fr.uge.net.tcp.nonblocking.packet.PacketReader.ProcessFailure;
 
 import java.nio.ByteBuffer;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 import static fr.uge.net.tcp.nonblocking.display.ServerMessageDisplay.onErrorProcessed;
 import static fr.uge.net.tcp.nonblocking.display.ServerMessageDisplay.onRecover;
@@ -23,6 +27,10 @@ public class RejectReader implements Reader<Boolean>{
     private boolean rejecting = false;
     private final String pseudo;
     private byte last = 1;
+    /**
+     * The event of the current rejection, committed on recovery. Null if the reader isn't rejecting.
+     */
+    private RejectRecoveredEvent recovery;
 
     /**
      * Creates an object with the given pseudo.
@@ -50,10 +58,16 @@ public class RejectReader implements Reader<Boolean>{
      */
     public ProcessStatus process(ByteBuffer buff) {
         if (!rejecting) return DONE;
-        var completed = subProcess(buff.flip());
+        var available = buff.flip().remaining();
+        var completed = subProcess(buff);
+        recovery.skipped += available - buff.remaining();
         buff.compact();
         if (!completed) return REFILL;
         onRecover(pseudo);
+        if (recovery.shouldCommit()) {
+            recovery.pseudo = pseudo;
+            recovery.commit();
+        }
         reset();
         return DONE;
     }
@@ -74,17 +88,39 @@ public class RejectReader implements Reader<Boolean>{
 
     /**
      * Sets the Reader in reject mode.
-     * Also sends an error packet to the {@code context} depending on the failure.
+     * Also sends an error packet to the {@code context} depending on the failure, in its control lane.
      *
      * @param failure the failure from the other reader. Cannot be null.
      * @param context the context in which we send the error packet. Cannot be null.
      * @param pseudo the pseudo of the client. Cannot be null.
      */
     public void reject(ProcessFailure failure, AbstractContext context, String pseudo) {
+        Objects.requireNonNull(context);
+        reject(failure, buff -> context.queueMessage(buff, Priority.CONTROL), pseudo);
+    }
+
+    /**
+     * Sets the Reader in reject mode.
+     * Also sends an error packet to {@code output} depending on the failure.
+     * The rejection is recorded by a {@link PacketRejectedEvent} and its end by a {@link RejectRecoveredEvent}.
+     *
+     * @param failure the failure from the other reader. Cannot be null.
+     * @param output the consumer of the error packet (in read-mode). Cannot be null.
+     * @param pseudo the pseudo of the client. Cannot be null.
+     */
+    public void reject(ProcessFailure failure, Consumer<ByteBuffer> output, String pseudo) {
         this.rejecting = true;
+        var event = new PacketRejectedEvent();
+        if (event.shouldCommit()) {
+            event.pseudo = pseudo;
+            event.failure = failure.name();
+            event.commit();
+        }
+        recovery = new RejectRecoveredEvent();
+        recovery.begin();
         switch (failure) {
-            case CODE -> context.queueMessage(makeErrorPacket(WRONG_CODE).toBuffer());
-            case LENGTH -> context.queueMessage(makeErrorPacket(INVALID_LENGTH).toBuffer());
+            case CODE -> output.accept(makeErrorPacket(WRONG_CODE).toBuffer());
+            case LENGTH -> output.accept(makeErrorPacket(INVALID_LENGTH).toBuffer());
         }
         onErrorProcessed(pseudo);
     }
@@ -102,6 +138,7 @@ public class RejectReader implements Reader<Boolean>{
     public void reset() {
         rejecting = false;
         last = 1;
+        recovery = null;
     }
 
 }
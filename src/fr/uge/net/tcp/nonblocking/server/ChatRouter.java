@@ -0,0 +1,1172 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import fr.uge.net.tcp.nonblocking.jfr.BroadcastEvent;
+import fr.uge.net.tcp.nonblocking.packet.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+import static fr.uge.net.tcp.nonblocking.display.ServerMessageDisplay.onPacketReceived;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.ErrorCode.DEST_ERROR;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.ErrorCode.REJECTED;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.*;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Routing logic of the server, shared by the engines ({@link ServerChatOS} and {@link ThreadedServerChatOS}).
+ * <br>
+ * Knows the authenticated clients, the rooms and the private connections,
+ * and decides who receives what. The engines only read the packets and write the buffers
+ * given to {@link Member#send(ByteBuffer)}.
+ * <br>
+ * When the server is part of a cluster, the router only knows the clients connected to this server
+ * and relies on its {@link Cluster} for everything involving the clients of the other servers.
+ * <br>
+ * The last general messages are kept in a {@link HistoryRing} and sent to every client right after
+ * its authentication.
+ * <br>
+ * A direct message to a client that isn't connected is kept in the {@link OfflineStore} (if the server
+ * has one) and sent to the client right after its authentication.
+ * <br>
+ * A request of private connection that isn't answered within {@link #REQUEST_TIMEOUT} seconds expires:
+ * the requester receives a rejection. The expiries are run by the {@link Scheduler} of the engine.
+ * <br>
+ * Unless disabled, every client receives the id of its session right after its authentication. If its connection
+ * is lost, the client keeps its pseudo and its rooms for {@link #RESUME_GRACE} seconds, and what is sent to it
+ * meanwhile is held (see {@link #disconnect(Member, List)}): a new connection presenting the id takes its place
+ * without the other clients noticing (see {@link #resume(Member, long)}).
+ * <br>
+ * A private connection between two clients of this server that both accept multiplexed private connections
+ * is a stream: instead of opening new connections, the clients exchange {@link Packet.PacketType#STREAM} packets
+ * over their main connections, which the router forwards, along with the {@link Packet.PacketType#WINDOW} packets
+ * giving the credits of the flow control. A stream ends with an empty part, or with the main connection of one of
+ * its clients. The router keeps the credits of both directions: a client sending more than its credit ends the
+ * stream, and a client isn't read while more than {@link #STREAM_QUEUE_LIMIT} bytes are queued for the other end
+ * of its stream (see {@link Member#pauseFor(Member)}).
+ * <br>
+ * Every method is synchronized so the router can be shared by the threads of {@link ThreadedServerChatOS}.
+ * {@link Member#send(ByteBuffer)} is called while holding the lock, so it must never block.
+ */
+final class ChatRouter {
+    /**
+     * An authenticated client as seen by the router.
+     */
+    interface Member {
+        /**
+         * @return the pseudo of the client.
+         */
+        String pseudo();
+
+        /**
+         * Queues {@code buff} to be sent to the client. Must not block.
+         * @param buff the buffer in read-mode. Owned by the member after the call.
+         */
+        void send(ByteBuffer buff);
+
+        /**
+         * Sends the {@code buffers}, in order, after what is already queued. Must not block.
+         * The buffers can be views of a memory reused after the call: the member must write or copy
+         * them before returning. Copies them into a single buffer given to {@link #send(ByteBuffer)} by default.
+         * @param buffers the buffers in read-mode.
+         */
+        default void sendAll(ByteBuffer... buffers) {
+            var length = 0;
+            for (var buffer : buffers) length += buffer.remaining();
+            var copy = ByteBuffer.allocate(length);
+            for (var buffer : buffers) copy.put(buffer.duplicate());
+            send(copy.flip());
+        }
+
+        /**
+         * Closes the connection of the client, whose session is resumed by another connection.
+         * Must not block. Does nothing by default.
+         * @return the buffers queued for the client and not written yet, in order. Empty by default.
+         */
+        default List<ByteBuffer> evict() {
+            return List.of();
+        }
+
+        /**
+         * @return the number of bytes queued for the client and not written yet. 0 by default.
+         */
+        default long queuedBytes() {
+            return 0;
+        }
+
+        /**
+         * Stops reading the client until at most {@link #STREAM_QUEUE_LIMIT} bytes are queued for {@code peer},
+         * or until {@code peer} is closed. Must not block. Does nothing by default.
+         * @param peer the other end of a stream of the client.
+         */
+        default void pauseFor(Member peer) {}
+    }
+
+    /**
+     * The other servers of the cluster, as seen by the router.
+     * Every method must be called by the thread of the server.
+     */
+    interface Cluster {
+        /**
+         * Asks the server owning {@code pseudo} to reserve it for a client of this server.
+         * @param pseudo the pseudo.
+         * @param onResult called with true if the pseudo has been reserved; false if it is taken
+         *                 or if its owner is unreachable. Can be called before the method returns.
+         */
+        void claim(String pseudo, Consumer<Boolean> onResult);
+
+        /**
+         * Frees a pseudo reserved with {@link #claim(String, Consumer)}.
+         * @param pseudo the pseudo.
+         */
+        void release(String pseudo);
+
+        /**
+         * Sends a routed frame toward the server the destination (second argument) is connected to.
+         * @param kind the kind of the frame.
+         * @param value the value of the frame.
+         * @param args the arguments of the frame, starting with the sender and the destination.
+         */
+        void send(PeerFrame.Kind kind, int value, String... args);
+
+        /**
+         * Sends a frame to every other server.
+         * @param kind the kind of the frame.
+         * @param args the arguments of the frame.
+         */
+        void broadcast(PeerFrame.Kind kind, String... args);
+
+        /**
+         * @return a random token that cannot be generated by another server.
+         */
+        int newToken();
+
+        /**
+         * Opens the connection carrying the private connection {@code token} to the server {@code node}.
+         * The private connection must already exist on this server.
+         * @param token the token of the private connection.
+         * @param node the index of the server the other client is connected to.
+         */
+        void openRelay(int token, int node);
+    }
+
+    /**
+     * Runs tasks later, on behalf of the router.
+     */
+    interface Scheduler {
+        /**
+         * Runs {@code task} once after {@code delay}. The task is run without holding the lock of the router.
+         * @param delay the delay.
+         * @param unit the unit of {@code delay}.
+         * @param task the task.
+         * @return an action cancelling the task if it hasn't run yet.
+         */
+        Runnable schedule(long delay, TimeUnit unit, Runnable task);
+    }
+
+    /**
+     * Delay after which an unanswered request of private connection expires, in seconds.
+     */
+    static final long REQUEST_TIMEOUT = 60;
+    /**
+     * Maximum number of general messages sent to a client after its authentication.
+     */
+    static final int HISTORY_MESSAGES = 50;
+    /**
+     * Size of the {@link HistoryRing}, in bytes.
+     */
+    static final int HISTORY_CAPACITY = 64 * 1024;
+    /**
+     * Delay during which the session of a client whose connection is lost can be resumed, in seconds.
+     */
+    static final long RESUME_GRACE = 30;
+    /**
+     * Maximum number of bytes held for a client whose connection is lost. Its session ends beyond.
+     */
+    static final int RESUME_CAPACITY = 256 * 1024;
+    /**
+     * Number of bytes queued for a client beyond which the other ends of its streams aren't read.
+     */
+    static final long STREAM_QUEUE_LIMIT = 1024 * 1024;
+
+    /**
+     * Just a tuple of string.
+     */
+    private static record TokenKey(String k1, String k2) {}
+
+    /**
+     * The two clients of an established private connection.
+     * @param local a client of this server.
+     * @param other the other client.
+     * @param node the index of the server of {@code other}, -1 if it's this server.
+     */
+    private static record PrivatePair(String local, String other, int node) {}
+
+    /**
+     * The credits of a stream: the number of bytes each of its clients can still send, given by the windows
+     * of the other client.
+     */
+    private static final class Credits {
+        private final String local;
+        private long localCredit;
+        private long otherCredit;
+
+        /**
+         * @param local the client accepting the stream (i.e. {@link PrivatePair#local()}).
+         * @param localCredit the initial window of the other client.
+         * @param otherCredit the initial window of {@code local}.
+         */
+        private Credits(String local, long localCredit, long otherCredit) {
+            this.local = local;
+            this.localCredit = localCredit;
+            this.otherCredit = otherCredit;
+        }
+
+        /**
+         * Takes {@code length} bytes from the credit of {@code sender}.
+         * @return false if {@code sender} exceeds its credit.
+         */
+        private boolean consume(String sender, int length) {
+            if (sender.equals(local)) {
+                localCredit -= length;
+                return localCredit >= 0;
+            }
+            otherCredit -= length;
+            return otherCredit >= 0;
+        }
+
+        /**
+         * Adds {@code increment} bytes to the credit of the client that isn't {@code receiver}.
+         */
+        private void grant(String receiver, int increment) {
+            if (receiver.equals(local)) otherCredit += increment;
+            else localCredit += increment;
+        }
+    }
+
+    /**
+     * A client whose connection has been lost, keeping its place until it resumes its session
+     * or until {@link #RESUME_GRACE} seconds have elapsed.
+     * The buffers sent to it meanwhile are held, up to {@link #RESUME_CAPACITY} bytes: beyond, the session ends
+     * at once, since the client would miss some of them.
+     */
+    private final class Detached implements Member {
+        private final ArrayDeque<ByteBuffer> held = new ArrayDeque<>();
+        private final String pseudo;
+        private int size;
+        private boolean overflowed;
+        private Runnable expiry;
+
+        private Detached(String pseudo) {
+            this.pseudo = pseudo;
+            expiry = scheduler.schedule(RESUME_GRACE, TimeUnit.SECONDS, () -> expire(this));
+        }
+
+        @Override
+        public String pseudo() {
+            return pseudo;
+        }
+
+        /**
+         * Holds the buffer. Ends the session (from a task of the {@link #scheduler}, since the router may be
+         * iterating over its clients) if {@link #RESUME_CAPACITY} is exceeded.
+         * @param buff the buffer in read-mode.
+         */
+        @Override
+        public void send(ByteBuffer buff) {
+            if (overflowed) return;
+            size += buff.remaining();
+            if (size <= RESUME_CAPACITY) {
+                held.add(buff);
+                return;
+            }
+            overflowed = true;
+            held.clear();
+            expiry.run();
+            expiry = scheduler.schedule(0, TimeUnit.SECONDS, () -> expire(this));
+        }
+
+        /**
+         * Cancels the expiry of the session, which is resumed.
+         * @return the held buffers, in order.
+         */
+        @Override
+        public List<ByteBuffer> evict() {
+            expiry.run();
+            return List.copyOf(held);
+        }
+    }
+
+    /**
+     * Requests of private connection waiting for an answer.
+     * Each request has its own expiry, cancelled when the request is removed, so an abandoned
+     * request is reclaimed without scanning the others.
+     * @param <K> the type identifying a request.
+     */
+    private final class Requests<K> {
+        private final HashMap<K, Runnable> cancels = new HashMap<>();
+
+        /**
+         * Adds a request, unless it's already there.
+         * @param key the request.
+         * @param onExpiry called, holding the lock of the router, if the request is still there
+         *                 after {@link #REQUEST_TIMEOUT} seconds.
+         * @return true if the request has been added.
+         */
+        private boolean add(K key, Runnable onExpiry) {
+            if (cancels.containsKey(key)) return false;
+            cancels.put(key, scheduler.schedule(REQUEST_TIMEOUT, TimeUnit.SECONDS, () -> {
+                synchronized (ChatRouter.this) {
+                    if (cancels.remove(key) != null) onExpiry.run();
+                }
+            }));
+            return true;
+        }
+
+        /**
+         * Removes a request and cancels its expiry.
+         * @param key the request.
+         * @return true if the request was there.
+         */
+        private boolean remove(K key) {
+            var cancel = cancels.remove(key);
+            if (cancel == null) return false;
+            cancel.run();
+            return true;
+        }
+
+        private boolean contains(K key) {
+            return cancels.containsKey(key);
+        }
+
+        private int size() {
+            return cancels.size();
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(ChatRouter.class.getName());
+
+    private final HashMap<String, Member> clients = new HashMap<>();
+    private final HashMap<String, HashSet<Member>> rooms = new HashMap<>();
+    private final HashMap<Member, HashSet<String>> joinedRooms = new HashMap<>();
+    private final HistoryRing history = new HistoryRing(HISTORY_MESSAGES, HISTORY_CAPACITY);
+    private final Requests<Integer> pendingPrivateConnections = new Requests<>();
+    /**
+     * The established private connections, with their two clients.
+     */
+    private final HashMap<Integer, PrivatePair> privateConnections = new HashMap<>();
+    /**
+     * The tokens of the private connections multiplexed over the main connections of their two clients
+     * (both on this server), also in {@link #privateConnections}, with their credits.
+     */
+    private final HashMap<Integer, Credits> streams = new HashMap<>();
+    /**
+     * The initial window of the streams of each client accepting multiplexed private connections.
+     */
+    private final HashMap<String, Integer> streamWindows = new HashMap<>();
+    private final HashMap<TokenKey, Integer> tokenMap = new HashMap<>();
+    /**
+     * Reverse of {@link #tokenMap}, so a token is checked and forgotten without scanning the map.
+     */
+    private final HashMap<Integer, TokenKey> tokenKeys = new HashMap<>();
+    /**
+     * Requests of private connection from a client of this server (k1) to a client of another server (k2).
+     */
+    private final Requests<TokenKey> localRequests = new Requests<>();
+    /**
+     * Requests of private connection from a client of another server (k1) to a client of this server (k2).
+     */
+    private final Requests<TokenKey> remoteRequests = new Requests<>();
+    /**
+     * The index of the server of the requester of each of the {@link #remoteRequests}.
+     */
+    private final HashMap<TokenKey, Integer> requesterNodes = new HashMap<>();
+    private final IntConsumer onPrivateConnectionAccepted;
+    private final Scheduler scheduler;
+    private final OfflineStore offline;
+    private final Cluster cluster;
+    private final Random random = new Random();
+    /**
+     * The id of the session of each client (connected or {@link Detached}). Empty if the sessions cannot be resumed.
+     */
+    private final HashMap<String, Long> sessions = new HashMap<>();
+    private final SecureRandom sessionIds = new SecureRandom();
+    private final boolean resumable;
+
+    /**
+     * Creates the router of a standalone server.
+     * @param onPrivateConnectionAccepted called with the token of every accepted private connection,
+     *                                    before the token is sent to the two clients. Cannot be null.
+     * @param scheduler runs the expiries of the requests of private connection. Cannot be null.
+     * @param offline the store of the direct messages to offline clients. Null if they are refused.
+     */
+    ChatRouter(IntConsumer onPrivateConnectionAccepted, Scheduler scheduler, OfflineStore offline) {
+        this(onPrivateConnectionAccepted, scheduler, offline, null, true);
+    }
+
+    /**
+     * Creates the router of a server.
+     * @param onPrivateConnectionAccepted called with the token of every accepted private connection,
+     *                                    before the token is sent to the clients. Cannot be null.
+     * @param scheduler runs the expiries of the requests of private connection and of the sessions. Cannot be null.
+     * @param offline the store of the direct messages to offline clients. Null if they are refused.
+     *                In a cluster, it only keeps the messages to the pseudos owned by this server.
+     * @param cluster the other servers of the cluster. Null if the server is standalone.
+     * @param resumable false if the sessions cannot be resumed, e.g. because the new connection of a client
+     *                  can be accepted by another server.
+     */
+    ChatRouter(IntConsumer onPrivateConnectionAccepted, Scheduler scheduler, OfflineStore offline, Cluster cluster,
+               boolean resumable) {
+        this.onPrivateConnectionAccepted = requireNonNull(onPrivateConnectionAccepted);
+        this.scheduler = requireNonNull(scheduler);
+        this.offline = offline;
+        this.cluster = cluster;
+        this.resumable = resumable;
+    }
+
+    /**
+     * Registers {@code member} if its pseudo isn't already taken (on any server of the cluster).
+     * If so, notifies the other clients and sends the authentication packet to {@code member}.
+     *
+     * @param member the new client. Cannot be null.
+     * @param onResult called with true if the client has been registered; false if the pseudo is already taken.
+     *                 Called before the method returns, unless the pseudo is owned by another server of the cluster.
+     */
+    synchronized void register(Member member, Consumer<Boolean> onResult) {
+        requireNonNull(onResult);
+        var pseudo = member.pseudo();
+        if (clients.containsKey(pseudo)) {
+            onResult.accept(false);
+        } else if (cluster == null) {
+            add(member);
+            onResult.accept(true);
+        } else {
+            cluster.claim(pseudo, claimed -> {
+                synchronized (this) {
+                    if (claimed) add(member);
+                    onResult.accept(claimed);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds {@code member} to the clients, notifies the other clients and sends the
+     * authentication packet to {@code member}, followed by the id of its session (if {@link #resumable}),
+     * by the {@link #history} and by the direct messages kept while it was offline.
+     * @param member the new client.
+     */
+    private void add(Member member) {
+        var pseudo = member.pseudo();
+        var views = history.views();
+        var buffers = new ArrayList<ByteBuffer>(views.length + 2);
+        buffers.add(makeAuthenticationPacket(pseudo).toBuffer());
+        if (resumable) buffers.add(makeResumePacket(newSession(pseudo), pseudo).toBuffer());
+        buffers.addAll(List.of(views));
+        member.sendAll(buffers.toArray(ByteBuffer[]::new));
+        publish(makeGeneralMessagePacket("joined the server.", pseudo), null);
+        clients.put(pseudo, member);
+        replayOffline(pseudo, (sender, message) -> member.send(makeDirectMessagePacket(message, sender).toBuffer()));
+    }
+
+    /**
+     * Keeps a direct message to a client that isn't connected.
+     * @param sender the pseudo of the sender.
+     * @param destination the pseudo of the destination.
+     * @param message the message.
+     * @return false if the message cannot be kept (no store, destination that never connected, too many messages
+     * for the destination or from the sender, store full or I/O error).
+     */
+    synchronized boolean keepOffline(String sender, String destination, String message) {
+        if (offline == null) return false;
+        try {
+            return offline.append(destination, sender, message);
+        } catch (IOException ioe) {
+            logger.warning("Cannot keep the message to " + destination + " : " + ioe.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Gives the direct messages kept for {@code pseudo} to {@code consumer} and forgets them.
+     * @param pseudo the pseudo of the destination.
+     * @param consumer called with the sender and the message of each kept message.
+     */
+    synchronized void replayOffline(String pseudo, BiConsumer<String, String> consumer) {
+        if (offline == null) return;
+        var replayed = offline.replay(pseudo, consumer);
+        if (replayed != 0) logger.info(replayed + " offline messages sent to " + pseudo);
+    }
+
+    /**
+     * Removes {@code member} from the clients and from its rooms and notifies the other clients.
+     * Does nothing if {@code member} isn't registered.
+     * @param member the client. Cannot be null.
+     */
+    synchronized void unregister(Member member) {
+        if (clients.get(member.pseudo()) != member) return;
+        clients.remove(member.pseudo());
+        sessions.remove(member.pseudo());
+        streamWindows.remove(member.pseudo());
+        endStreams(member.pseudo());
+        if (cluster != null) cluster.release(member.pseudo());
+        leaveAllRooms(member);
+        publish(makeGeneralMessagePacket("has disconnected", member.pseudo()), null);
+    }
+
+    /**
+     * Called when the connection of {@code member} is lost. If its session can be resumed, {@code member} is
+     * replaced by a {@link Detached} client holding {@code undelivered} and what is sent to it afterwards,
+     * without notifying the other clients. Otherwise, unregisters it.
+     * Does nothing if {@code member} isn't registered.
+     * @param member the client. Cannot be null.
+     * @param undelivered the buffers queued for {@code member} and not written, in order. Cannot be null.
+     */
+    synchronized void disconnect(Member member, List<ByteBuffer> undelivered) {
+        requireNonNull(undelivered);
+        var pseudo = member.pseudo();
+        if (clients.get(pseudo) != member) return;
+        if (!sessions.containsKey(pseudo)) {
+            unregister(member);
+            return;
+        }
+        var detached = new Detached(pseudo);
+        replace(member, detached);
+        endStreams(pseudo);
+        undelivered.forEach(detached::send);
+        logger.info("Connection lost with " + pseudo + ", session kept for " + RESUME_GRACE + " seconds");
+    }
+
+    /**
+     * Ends the session of {@code detached} if it hasn't been resumed.
+     * @param detached the client.
+     */
+    private synchronized void expire(Detached detached) {
+        if (clients.get(detached.pseudo) != detached) return;
+        logger.info("Session of " + detached.pseudo + " expired");
+        unregister(detached);
+    }
+
+    /**
+     * Resumes the session {@code session} of the client {@code member.pseudo()} with {@code member}.
+     * {@code member} takes the place of the previous connection of the client in the clients and in the rooms
+     * (the previous connection is {@link Member#evict() evicted} if it's still open), without notifying
+     * the other clients. Sends the authentication packet to {@code member}, followed by the new id of
+     * its session and by what the previous connection didn't write.
+     * @param member the new connection of the client. Cannot be null.
+     * @param session the id of the session, sent to the client with its previous connection.
+     * @return false if the id isn't the one of the current session of the client (or if it has expired).
+     */
+    synchronized boolean resume(Member member, long session) {
+        var pseudo = member.pseudo();
+        var current = clients.get(pseudo);
+        var expected = sessions.get(pseudo);
+        if (current == null || expected == null || expected != session) return false;
+        var undelivered = current.evict();
+        replace(current, member);
+        endStreams(pseudo);
+        var buffers = new ArrayList<ByteBuffer>(undelivered.size() + 2);
+        buffers.add(makeAuthenticationPacket(pseudo).toBuffer());
+        buffers.add(makeResumePacket(newSession(pseudo), pseudo).toBuffer());
+        buffers.addAll(undelivered);
+        member.sendAll(buffers.toArray(ByteBuffer[]::new));
+        logger.info("Session of " + pseudo + " resumed, " + undelivered.size() + " buffers delivered");
+        return true;
+    }
+
+    /**
+     * Gives the place of {@code previous} in the clients and in its rooms to {@code next}.
+     * @param previous a registered client.
+     * @param next a client with the same pseudo.
+     */
+    private void replace(Member previous, Member next) {
+        clients.put(next.pseudo(), next);
+        var joined = joinedRooms.remove(previous);
+        if (joined == null) return;
+        joinedRooms.put(next, joined);
+        for (var room : joined) {
+            var members = rooms.get(room);
+            members.remove(previous);
+            members.add(next);
+        }
+    }
+
+    /**
+     * Changes the id of the session of {@code pseudo}, so an id can only be used once.
+     * @param pseudo the pseudo of the client.
+     * @return the new id.
+     */
+    private long newSession(String pseudo) {
+        var id = sessionIds.nextLong();
+        sessions.put(pseudo, id);
+        return id;
+    }
+
+    /**
+     * @return the pseudos of the clients connected to this server.
+     */
+    synchronized List<String> localPseudos() {
+        return List.copyOf(clients.keySet());
+    }
+
+    /**
+     * @param pseudo a pseudo.
+     * @return true if the client {@code pseudo} is connected to this server.
+     */
+    synchronized boolean isLocal(String pseudo) {
+        return clients.containsKey(pseudo);
+    }
+
+    /**
+     * @param token a token.
+     * @return true if the private connection {@code token} is established and not closed yet.
+     */
+    synchronized boolean isPrivateConnection(int token) {
+        return privateConnections.containsKey(token);
+    }
+
+    /**
+     * The packet {@code TOKEN} sent by a client carries the pseudo of the other client: the connection
+     * presenting it belongs to the other end of the private connection.
+     * @param token the token of an established private connection.
+     * @param pseudo the pseudo sent with the token.
+     * @return the index of the server of the client the connection belongs to, or -1 if it's this server
+     * (or if the private connection or {@code pseudo} is unknown).
+     */
+    synchronized int presenterNode(int token, String pseudo) {
+        var pair = privateConnections.get(token);
+        return pair != null && pair.local().equals(pseudo) ? pair.node() : -1;
+    }
+
+    /**
+     * @return the number of clients connected to this server.
+     */
+    synchronized int clientCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return a summary of the state of the router, for the logs.
+     */
+    synchronized String stats() {
+        return clients.size() + " clients, " + rooms.size() + " rooms, "
+                + (offline == null ? 0 : offline.size()) + " offline messages, "
+                + (pendingPrivateConnections.size() + localRequests.size() + remoteRequests.size())
+                + " pending requests, " + privateConnections.size() + " private connections ("
+                + streams.size() + " multiplexed)";
+    }
+
+    /**
+     * Does an action depending on the {@code packet}'s type.
+     * @param member the sender of the packet. Cannot be null.
+     * @param packet the received packet. Cannot be null.
+     */
+    synchronized void route(Member member, Packet packet) {
+        requireNonNull(packet);
+        onPacketReceived(packet, member.pseudo());
+        switch (packet.type()) {
+            case ERR -> onError(member, packet);
+            case GMSG -> publish(makeGeneralMessagePacket(packet.message(), packet.pseudo()), member);
+            case DMSG -> onDirectMessage(member, packet);
+            case PC -> onPrivateConnection(member, packet);
+            case JOIN -> onJoin(member, packet.room());
+            case LEAVE -> onLeave(member, packet.room());
+            case RMSG -> onRoomMessage(member, packet);
+            case STREAM -> onStream(member, packet);
+            case WINDOW -> onWindow(member, packet);
+        }
+    }
+
+    /**
+     * Does an action depending on the kind of a frame received from another server of the cluster.
+     * The routed frames are ignored if their destination isn't connected to this server.
+     * @param frame the frame. Cannot be null.
+     */
+    synchronized void onRemoteFrame(PeerFrame frame) {
+        var args = frame.args();
+        switch (frame.kind()) {
+            case GMSG -> broadcast(makeGeneralMessagePacket(args.get(1), args.get(0)), null);
+            case RMSG -> roomcast(args.get(1), makeRoomMessagePacket(args.get(1), args.get(2), args.get(0)), null);
+            case DMSG -> deliver(frame.destination(), makeDirectMessagePacket(args.get(2), frame.sender()));
+            case PC -> {
+                if (!clients.containsKey(frame.destination())) return;
+                // The server of the requester notifies it when its own request expires
+                var key = new TokenKey(frame.sender(), frame.destination());
+                remoteRequests.add(key, () -> requesterNodes.remove(key));
+                requesterNodes.put(key, frame.origin());
+                deliver(frame.destination(), makePrivateConnectionPacket(frame.sender()));
+            }
+            case ACCEPT -> onRemotePrivateConnectionAccept(frame.destination(), frame.sender(), frame.value(), frame.origin());
+            case REJECT -> {
+                localRequests.remove(new TokenKey(frame.destination(), frame.sender()));
+                deliver(frame.destination(), makeRejectedPacket(frame.sender()));
+            }
+            case DEST_ERROR -> {
+                localRequests.remove(new TokenKey(frame.destination(), frame.sender()));
+                deliver(frame.destination(), makeErrorPacket(DEST_ERROR));
+            }
+            default -> {}
+        }
+    }
+
+    /**
+     * Forgets the private connection identified by {@code token}.
+     * @param token the identifier of the closed connection.
+     */
+    synchronized void onPrivateConnectionClosed(int token) {
+        privateConnections.remove(token);
+        streams.remove(token);
+        forgetToken(token);
+    }
+
+    /**
+     * Forwards a part of a stream to the other end of the stream. An empty part ends the stream, which is forgotten.
+     * The parts of the streams that have ended, or that {@code member} doesn't belong to, are ignored.
+     * <br>
+     * A part exceeding the credit of {@code member} ends the stream: both clients receive its end, like
+     * a client receiving more than its window. {@code member} is paused if more than {@link #STREAM_QUEUE_LIMIT}
+     * bytes are queued for the other end once the part is forwarded.
+     * @param member the sender of the packet.
+     * @param packet the packet containing the part.
+     */
+    private void onStream(Member member, Packet packet) {
+        var token = packet.stream();
+        var other = otherEnd(token, member.pseudo());
+        if (other == null) return;
+        var length = packet.content().remaining();
+        if (length == 0) {
+            deliver(other, packet);
+            onPrivateConnectionClosed(token);
+            return;
+        }
+        if (!streams.get(token).consume(member.pseudo(), length)) {
+            logger.warning("Stream " + token + " exceeds its window on the side of " + member.pseudo() + ", ended");
+            onPrivateConnectionClosed(token);
+            member.send(makeStreamPacket(token, ByteBuffer.allocate(0)).toBuffer());
+            deliver(other, makeStreamPacket(token, ByteBuffer.allocate(0)));
+            return;
+        }
+        deliver(other, packet);
+        var peer = clients.get(other);
+        if (peer != null && peer.queuedBytes() > STREAM_QUEUE_LIMIT) member.pauseFor(peer);
+    }
+
+    /**
+     * Forwards a credit of bytes to the other end of a stream, which can send that many more bytes.
+     * With the stream 0, records that {@code member} accepts multiplexed private connections,
+     * with the initial window of its streams.
+     * @param member the sender of the packet.
+     * @param packet the packet containing the credit.
+     */
+    private void onWindow(Member member, Packet packet) {
+        var increment = Integer.parseInt(packet.message());
+        if (packet.stream() == 0) {
+            streamWindows.put(member.pseudo(), increment);
+            return;
+        }
+        var other = otherEnd(packet.stream(), member.pseudo());
+        if (other == null) return;
+        streams.get(packet.stream()).grant(member.pseudo(), increment);
+        deliver(other, packet);
+    }
+
+    /**
+     * @param token the token of a private connection.
+     * @param pseudo a pseudo.
+     * @return the other end of the stream {@code token} if {@code pseudo} is one of its ends; null otherwise
+     * (or if {@code token} isn't a stream).
+     */
+    private String otherEnd(int token, String pseudo) {
+        if (!streams.containsKey(token)) return null;
+        var pair = privateConnections.get(token);
+        if (pair.local().equals(pseudo)) return pair.other();
+        return pair.other().equals(pseudo) ? pair.local() : null;
+    }
+
+    /**
+     * Ends the streams of {@code pseudo}, whose main connection is closed or replaced: the other ends
+     * receive the end of their stream.
+     * @param pseudo the pseudo of the client.
+     */
+    private void endStreams(String pseudo) {
+        for (var it = streams.keySet().iterator(); it.hasNext(); ) {
+            var token = it.next();
+            var other = otherEnd(token, pseudo);
+            if (other == null) continue;
+            it.remove();
+            privateConnections.remove(token);
+            forgetToken(token);
+            deliver(other, makeStreamPacket(token, ByteBuffer.allocate(0)));
+        }
+    }
+
+    /**
+     * If the error code contained {@code packet} is
+     * {@link Packet.ErrorCode#REJECTED}, tries to remove
+     * the pending connection between the two clients and forwards the rejection to
+     * the other client.
+     *
+     * @param member the client rejecting the connection.
+     * @param packet the packet containing the error.
+     */
+    private void onError(Member member, Packet packet) {
+        if (packet.code() != REJECTED) return;
+        var request = new TokenKey(packet.pseudo(), member.pseudo());
+        if (remoteRequests.remove(request)) {
+            requesterNodes.remove(request);
+            cluster.send(PeerFrame.Kind.REJECT, 0, member.pseudo(), packet.pseudo());
+            return;
+        }
+        var token = tokenMap.get(new TokenKey(packet.pseudo(), member.pseudo()));
+        if (token == null || !pendingPrivateConnections.remove(token)) return;
+        forgetToken(token);
+        if (!clients.containsKey(packet.pseudo())) return;
+        clients.get(packet.pseudo()).send(makeRejectedPacket(member.pseudo()).toBuffer());
+    }
+
+    /**
+     * Sends a direct message to {@code packet.pseudo()} if the client is connected
+     * (to this server or, through the {@link #cluster}, to another one);
+     * otherwise keeps it in the {@link #offline} store, or sends an error packet to {@code member}
+     * if it cannot be kept. In a cluster, the owner of the destination keeps the message.
+     *
+     * @param member the sender of the message.
+     * @param packet the packet containing the direct message.
+     */
+    private void onDirectMessage(Member member, Packet packet) {
+        if (member.pseudo().equals(packet.pseudo())) {
+            member.send(makeErrorPacket(DEST_ERROR).toBuffer());
+        } else if (clients.containsKey(packet.pseudo())) {
+            clients.get(packet.pseudo()).send(makeDirectMessagePacket(packet.message(), member.pseudo()).toBuffer());
+        } else if (cluster != null) {
+            cluster.send(PeerFrame.Kind.DMSG, 0, member.pseudo(), packet.pseudo(), packet.message());
+        } else if (!keepOffline(member.pseudo(), packet.pseudo(), packet.message())) {
+            member.send(makeErrorPacket(DEST_ERROR).toBuffer());
+        }
+    }
+
+    /**
+     * Sends {@code packet} to the client {@code pseudo} if it's connected to this server.
+     * @param pseudo the destination.
+     * @param packet the packet.
+     */
+    private void deliver(String pseudo, Packet packet) {
+        var client = clients.get(pseudo);
+        if (client != null) client.send(packet.toBuffer());
+    }
+
+    /**
+     * The reception of this packet can be:<br/>
+     *  - when a client ask for a private connection with another client.<br/>
+     *  - when a client respond to a request.<br/>
+     * In any case, this method will first check if the other client is connected and not
+     * himself. (otherwise send an error packet)
+     * <br/>
+     * After this check, if the two clients are already connected, do nothing.
+     * If this is a response, validate the pending connection and send to the
+     * two clients the token used to represent the connection.
+     * If this is a request, add the token in the pending connection and wait until
+     * the other client accept or reject the connection.
+     *
+     * @param member the sender of the packet.
+     * @param packet the packet containing the private connection.
+     */
+    private void onPrivateConnection(Member member, Packet packet) {
+        var pseudo = member.pseudo();
+        if (!pseudo.equals(packet.pseudo()) && !clients.containsKey(packet.pseudo()) && cluster != null) {
+            onRemotePrivateConnection(member, packet.pseudo());
+            return;
+        }
+        if (pseudo.equals(packet.pseudo()) || !clients.containsKey(packet.pseudo())) {
+            member.send(makeErrorPacket(DEST_ERROR).toBuffer());
+            return;
+        }
+        var other = packet.pseudo();
+        var tokenAB = tokenMap.get(new TokenKey(pseudo, other));
+        var tokenBA = tokenMap.get(new TokenKey(other, pseudo));
+        if (tokenAB != null && privateConnections.containsKey(tokenAB)) { // implique que la connection existe déjà
+            // Ignore car déjà connecté
+            System.out.println("Already connected!");
+        } else if (tokenBA != null && pendingPrivateConnections.contains(tokenBA)) { // implique que BA avait demandé une connection
+            // Accepte la connection
+            onPrivateConnectionAccept(member, tokenBA, other);
+        } else if (tokenAB == null || !pendingPrivateConnections.contains(tokenAB)) { // implique qu'on avait pas encore demandé de connection
+            // Demande de connection
+            var token = computeToken(pseudo, other);
+            pendingPrivateConnections.add(token, () -> {
+                forgetToken(token);
+                deliver(pseudo, makeRejectedPacket(other));
+            });
+            clients.get(other).send(makePrivateConnectionPacket(pseudo).toBuffer());
+        }
+    }
+
+    /**
+     * If the packet represents a private connection positive response,
+     * removes the connection from the pending connection and adds it into
+     * the actual established connections.
+     * Also sends a {@link Packet.PacketType#TOKEN} packet
+     * to the two clients with the private connection identifier.
+     * If both clients accept multiplexed private connections, the connection is a stream carried by their
+     * main connections: each client receives the initial window of the other just before the token.
+     *
+     * @param member the client accepting the connection.
+     * @param token the identifier of the connection.
+     * @param other the pseudo of the other client.
+     */
+    private void onPrivateConnectionAccept(Member member, int token, String other) {
+        pendingPrivateConnections.remove(token);
+        privateConnections.put(token, new PrivatePair(member.pseudo(), other, -1));
+        var window = streamWindows.get(member.pseudo());
+        var otherWindow = streamWindows.get(other);
+        if (window != null && otherWindow != null) {
+            streams.put(token, new Credits(member.pseudo(), otherWindow, window));
+            member.send(makeWindowPacket(token, otherWindow).toBuffer());
+            clients.get(other).send(makeWindowPacket(token, window).toBuffer());
+        } else {
+            onPrivateConnectionAccepted.accept(token);
+        }
+        member.send(makeTokenPacket(token, other).toBuffer());
+        clients.get(other).send(makeTokenPacket(token, member.pseudo()).toBuffer());
+    }
+
+    /**
+     * Same as {@link #onPrivateConnection(Member, Packet)} when the other client isn't connected to this server.
+     * If the other client already asked for the connection, accepts it: this server creates the token
+     * and the other server opens a relay toward this one. Otherwise forwards the request.
+     *
+     * @param member the sender of the packet.
+     * @param other the pseudo of the other client.
+     */
+    private void onRemotePrivateConnection(Member member, String other) {
+        var request = new TokenKey(other, member.pseudo());
+        if (remoteRequests.remove(request)) {
+            var token = newToken();
+            privateConnections.put(token, new PrivatePair(member.pseudo(), other, requesterNodes.remove(request)));
+            onPrivateConnectionAccepted.accept(token);
+            member.send(makeTokenPacket(token, other).toBuffer());
+            cluster.send(PeerFrame.Kind.ACCEPT, token, member.pseudo(), other);
+        } else if (localRequests.add(new TokenKey(member.pseudo(), other),
+                () -> deliver(member.pseudo(), makeRejectedPacket(other)))) {
+            cluster.send(PeerFrame.Kind.PC, 0, member.pseudo(), other);
+        }
+    }
+
+    /**
+     * Called when a client of another server accepts the private connection requested by
+     * the client {@code requester} of this server. Creates the private connection, opens the relay
+     * toward the server of the other client and sends the token to {@code requester}.
+     *
+     * @param requester the client of this server.
+     * @param accepter the client of the other server.
+     * @param token the token created by the other server.
+     * @param node the index of the other server.
+     */
+    private void onRemotePrivateConnectionAccept(String requester, String accepter, int token, int node) {
+        if (!localRequests.remove(new TokenKey(requester, accepter)) || !clients.containsKey(requester)) return;
+        privateConnections.put(token, new PrivatePair(requester, accepter, node));
+        onPrivateConnectionAccepted.accept(token);
+        cluster.openRelay(token, node);
+        clients.get(requester).send(makeTokenPacket(token, accepter).toBuffer());
+    }
+
+    /**
+     * Adds {@code member} to the members of {@code room} (creating the room if needed),
+     * notifies the other members and confirms the membership to {@code member}.
+     * @param member the client joining the room.
+     * @param room the room to join.
+     */
+    private void onJoin(Member member, String room) {
+        if (joinedRooms.computeIfAbsent(member, m -> new HashSet<>()).add(room)) {
+            publishToRoom(room, makeRoomMessagePacket(room, "joined the room.", member.pseudo()), null);
+            rooms.computeIfAbsent(room, r -> new HashSet<>()).add(member);
+        }
+        member.send(makeJoinPacket(room).toBuffer());
+    }
+
+    /**
+     * Removes {@code member} from the members of {@code room} (deleting the room if empty),
+     * notifies the other members and confirms it to {@code member}.
+     * @param member the client leaving the room.
+     * @param room the room to leave.
+     */
+    private void onLeave(Member member, String room) {
+        leaveRoom(member, room);
+        member.send(makeLeavePacket(room).toBuffer());
+    }
+
+    /**
+     * Removes {@code member} from the members of {@code room} and notifies the other members.
+     * @param member the client leaving the room.
+     * @param room the room to leave.
+     */
+    private void leaveRoom(Member member, String room) {
+        var joined = joinedRooms.get(member);
+        if (joined == null || !joined.remove(room)) return;
+        if (joined.isEmpty()) joinedRooms.remove(member);
+        var members = rooms.get(room);
+        members.remove(member);
+        if (members.isEmpty()) rooms.remove(room);
+        publishToRoom(room, makeRoomMessagePacket(room, "left the room.", member.pseudo()), null);
+    }
+
+    /**
+     * Removes {@code member} from every room it's a member of.
+     * @param member the client.
+     */
+    private void leaveAllRooms(Member member) {
+        var joined = joinedRooms.get(member);
+        if (joined == null) return;
+        for (var room : List.copyOf(joined)) {
+            leaveRoom(member, room);
+        }
+    }
+
+    /**
+     * Sends the message to the other members of the room if {@code member} is a member;
+     * otherwise sends an error packet to {@code member}.
+     *
+     * @param member the sender of the message.
+     * @param packet the packet containing the room message.
+     */
+    private void onRoomMessage(Member member, Packet packet) {
+        var joined = joinedRooms.get(member);
+        if (joined == null || !joined.contains(packet.room())) {
+            member.send(makeErrorPacket(DEST_ERROR).toBuffer());
+            return;
+        }
+        publishToRoom(packet.room(), makeRoomMessagePacket(packet.room(), packet.message(), member.pseudo()), member);
+    }
+
+    /**
+     * {@link #broadcast(Packet, Member) Broadcasts} the general message to the clients of this server
+     * and to the other servers of the cluster.
+     * @param msg the general message to broadcast. Cannot be null.
+     * @param sender the sender of this message. Can be null if everyone need to receive this message.
+     */
+    private void publish(Packet msg, Member sender) {
+        broadcast(msg, sender);
+        if (cluster != null) cluster.broadcast(PeerFrame.Kind.GMSG, msg.pseudo(), msg.message());
+    }
+
+    /**
+     * {@link #roomcast(String, Packet, Member) Sends} the room message to the members of the room
+     * connected to this server and to the other servers of the cluster.
+     * @param room the destination room. Cannot be null.
+     * @param msg the room message to send. Cannot be null.
+     * @param sender the sender of this message. Can be null if every member need to receive this message.
+     */
+    private void publishToRoom(String room, Packet msg, Member sender) {
+        roomcast(room, msg, sender);
+        if (cluster != null) cluster.broadcast(PeerFrame.Kind.RMSG, msg.pseudo(), room, msg.message());
+    }
+
+    /**
+     * Send the same {@link Packet} to every clients connected other that
+     * {@code sender}, and keeps it in the {@link #history}.
+     * The packet is encoded only once and shared by the clients. Recorded by a {@link BroadcastEvent}.
+     * @param msg the message to broadcast. Cannot be null.
+     * @param sender the sender of this message. Can be null if everyone need to receive this message.
+     */
+    private void broadcast(Packet msg, Member sender) {
+        var event = new BroadcastEvent();
+        event.begin();
+        var buffer = msg.toBuffer();
+        history.append(buffer);
+        var recipients = 0;
+        for (var client : clients.values()) {
+            if (client == sender) continue;
+            client.send(buffer.duplicate());
+            recipients++;
+        }
+        if (event.shouldCommit()) {
+            event.recipients = recipients;
+            event.commit();
+        }
+    }
+
+    /**
+     * Send the same {@link Packet} to every member of {@code room} other than {@code sender}.
+     * The packet is encoded only once and shared by the members. Recorded by a {@link BroadcastEvent}.
+     * @param room the destination room. Cannot be null.
+     * @param msg the message to send. Cannot be null.
+     * @param sender the sender of this message. Can be null if every member need to receive this message.
+     */
+    private void roomcast(String room, Packet msg, Member sender) {
+        requireNonNull(room);
+        var members = rooms.get(room);
+        if (members == null) return;
+        var event = new BroadcastEvent();
+        event.begin();
+        var buffer = msg.toBuffer();
+        var recipients = 0;
+        for (var member : members) {
+            if (member == sender) continue;
+            member.send(buffer.duplicate());
+            recipients++;
+        }
+        if (event.shouldCommit()) {
+            event.room = room;
+            event.recipients = recipients;
+            event.commit();
+        }
+    }
+
+    /**
+     * Computes an integer that represent momentarily this two pseudos.
+     * The result can differ if the pseudos are in another order, in other words these two
+     * line aren't ensured to give the same values.
+     * <blockquote><pre>
+     *     var tokenAB = computeToken("A", "B");
+     *     var tokenBA = computeToken("B", "A"); </pre></blockquote>
+     * The only way to ensure that these two tokens are equals is to change
+     * the values contained in {@link #tokenMap}.
+     *
+     * @param c1 the first pseudo. Cannot be null.
+     * @param c2 the second pseudo. Cannot be null.
+     * @return the token associated with the two pseudos.
+     */
+    private int computeToken(String c1, String c2) {
+        var key = new TokenKey(c1, c2);
+        if (!tokenMap.containsKey(key)) {   // Ensure that the token is not already used.
+            int token;
+            do {
+                token = newToken();
+            } while (tokenKeys.containsKey(token));
+            tokenMap.put(key, token);
+            tokenKeys.put(token, key);
+        }
+        return tokenMap.get(key);
+    }
+
+    /**
+     * Removes {@code token} from {@link #tokenMap}.
+     * @param token the token of a rejected, expired or closed private connection.
+     */
+    private void forgetToken(int token) {
+        var key = tokenKeys.remove(token);
+        if (key != null) tokenMap.remove(key);
+    }
+
+    /**
+     * @return a random token that is not used by an established private connection.
+     */
+    private int newToken() {
+        int token;
+        do {
+            token = cluster == null ? random.nextInt() : cluster.newToken();
+        } while (token == 0 || privateConnections.containsKey(token));
+        return token;
+    }
+}
@@ -0,0 +1,440 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import fr.uge.net.tcp.nonblocking.context.AbstractContext;
+import fr.uge.net.tcp.nonblocking.context.Context;
+import fr.uge.net.tcp.nonblocking.context.FlushScheduler;
+import fr.uge.net.tcp.nonblocking.context.TrafficMeter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.makeNodePacket;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.ERROR;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.REFILL;
+import static fr.uge.net.tcp.nonblocking.server.PeerFrame.Kind.*;
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A server of a cluster of {@link ServerChatOS}, and its links with the other servers.
+ * <br>
+ * Every server knows the addresses of all the servers of the cluster and is identified by its index
+ * in this list. A server opens a link to every server with a lower index (and retries every
+ * {@link #RECONNECT_DELAY} milliseconds until it succeeds) and accepts the links from the others,
+ * so each pair of servers shares exactly one link. The first packet of a link is a
+ * {@link fr.uge.net.tcp.nonblocking.packet.Packet.PacketType#NODE} packet, followed by {@link PeerFrame}s.
+ * The {@code NODE} packet carries the secret shared by the servers: a connection presenting another secret
+ * is refused, so a client can't pose as a server (and take over its link).
+ * <br>
+ * The pseudos are partitioned: the owner of a pseudo is the server of index {@code hash(pseudo) % size}.
+ * The owner knows which server the client using the pseudo is connected to (its directory), and
+ * decides whether a pseudo is taken. A routed frame goes to the owner of its destination, which forwards
+ * it to the server of the destination; a frame without known destination comes back as
+ * {@link PeerFrame.Kind#DEST_ERROR}, except the direct messages, kept by the owner and sent
+ * once the pseudo is claimed again.
+ * <br>
+ * A private connection between two clients of different servers is carried by a dedicated connection
+ * (a relay) opened by the server of the requester to the server of the accepter. The relay presents
+ * the token like a client, so each server relays the private connection as if both ends were local.
+ */
+final class ClusterNode implements ChatRouter.Cluster {
+    /**
+     * Delay between two attempts to open the missing links, in milliseconds.
+     */
+    static final long RECONNECT_DELAY = 1_000;
+    /**
+     * Maximum number of times a frame is forwarded (to the owner, then to the server of the destination).
+     */
+    private static final int MAX_HOPS = 2;
+
+    /**
+     * A link with another server. Reads the frames and gives them to the {@link ClusterNode}.
+     */
+    final class PeerContext extends AbstractContext implements Context {
+        private final PeerFrameReader reader = new PeerFrameReader();
+        private final int node;
+        private boolean malformed = false;
+
+        private PeerContext(SelectionKey key, int node) {
+            super(key, scheduler, meter);
+            this.node = node;
+        }
+
+        /**
+         * Reads every frame of {@link #bbIn}.
+         */
+        @Override
+        public void processIn() {
+            while (!malformed) {
+                var status = reader.process(bbIn);
+                if (status == REFILL) return;
+                if (status == ERROR) {
+                    malformed = true;
+                    return;
+                }
+                var frame = reader.get();
+                reader.reset();
+                onFrame(frame);
+            }
+        }
+
+        /**
+         * Processes what has been read by the previous context of the connection.
+         * @param remaining what remains in the buffer of the previous context. In write-mode.
+         */
+        private void receive(ByteBuffer remaining) {
+            if (remaining.flip().hasRemaining()) bbIn.put(remaining);
+            remaining.compact();
+            processIn();
+            updateInterestOps();
+        }
+
+        /**
+         * Reads the frames, then closes the link if one of them is malformed.
+         * @throws IOException if an I/O error occurs or if a frame is malformed.
+         */
+        @Override
+        public void doRead() throws IOException {
+            super.doRead();
+            if (malformed) throw new IOException("Malformed frame received from node " + node);
+        }
+
+        @Override
+        protected void onConnectFailure() {
+            logger.info("Cannot connect to node " + node);
+        }
+
+        /**
+         * Closes the link and forgets everything that depends on it.
+         */
+        @Override
+        public void close() {
+            super.close();
+            onLinkClosed(this);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(ClusterNode.class.getName());
+
+    private final List<InetSocketAddress> nodes;
+    private final int self;
+    private final PeerContext[] links;
+    /**
+     * The pseudos owned by this server, and the index of the server their client is connected to.
+     */
+    private final HashMap<String, Integer> directory = new HashMap<>();
+    /**
+     * The claims sent to other servers and waiting for their answer, by pseudo.
+     */
+    private final HashMap<String, ArrayDeque<Consumer<Boolean>>> pendingClaims = new HashMap<>();
+    private final Selector selector;
+    private final FlushScheduler scheduler;
+    private final TrafficMeter meter;
+    private final BiConsumer<Integer, InetSocketAddress> relayOpener;
+    private final Random random = new Random();
+    private final byte[] secret;
+    private ChatRouter router;
+
+    /**
+     * @param nodes the addresses of the servers of the cluster. Cannot be null.
+     * @param self the index of this server in {@code nodes}.
+     * @param selector the selector of this server. Cannot be null.
+     * @param scheduler the scheduler of the output of this server. Cannot be null.
+     * @param meter observes the traffic of the links. Can be null.
+     * @param relayOpener opens the relay of a private connection (token) to the given address. Cannot be null.
+     * @param secret the secret shared by the servers of the cluster. Cannot be null.
+     * @throws IllegalArgumentException if {@code self} isn't a valid index, if there's more than 256 servers
+     * or if {@code secret} is empty.
+     */
+    ClusterNode(List<InetSocketAddress> nodes, int self, Selector selector, FlushScheduler scheduler, TrafficMeter meter,
+                BiConsumer<Integer, InetSocketAddress> relayOpener, String secret) {
+        if (secret.isEmpty()) throw new IllegalArgumentException("Empty cluster secret");
+        this.secret = secret.getBytes(UTF_8);
+        this.nodes = List.copyOf(nodes);
+        if (self < 0 || self >= this.nodes.size()) throw new IllegalArgumentException("Invalid node index " + self);
+        if (this.nodes.size() > 256) throw new IllegalArgumentException("Too many nodes");
+        this.self = self;
+        this.links = new PeerContext[this.nodes.size()];
+        this.selector = requireNonNull(selector);
+        this.scheduler = requireNonNull(scheduler);
+        this.meter = meter;
+        this.relayOpener = requireNonNull(relayOpener);
+    }
+
+    /**
+     * Sets the router of this server. Must be called once, before the server starts.
+     * @param router the router. Cannot be null.
+     */
+    void setRouter(ChatRouter router) {
+        this.router = requireNonNull(router);
+    }
+
+    /**
+     * @return the address of this server.
+     */
+    InetSocketAddress address() {
+        return nodes.get(self);
+    }
+
+    /**
+     * @param node the index of a server.
+     * @return the address of the server {@code node}.
+     */
+    InetSocketAddress address(int node) {
+        return nodes.get(node);
+    }
+
+    /**
+     * @param token a token created by a server of the cluster.
+     * @return the index of the server that created {@code token} (see {@link #newToken()}),
+     * -1 if no server of the cluster has this index (i.e. the token is forged).
+     */
+    int creatorOf(int token) {
+        var node = token & 0xFF;
+        return node < nodes.size() ? node : -1;
+    }
+
+    /**
+     * @return the index of this server.
+     */
+    int self() {
+        return self;
+    }
+
+    /**
+     * Opens the missing links to the servers with a lower index.
+     * Called by the server every {@link #RECONNECT_DELAY} milliseconds.
+     */
+    void connectMissing() {
+        for (var node = 0; node < self; node++) {
+            if (links[node] == null) connect(node);
+        }
+    }
+
+    /**
+     * Opens a link to the server {@code node}. The {@code NODE} packet is sent once connected.
+     * @param node the index of the server.
+     */
+    private void connect(int node) {
+        try {
+            var sc = SocketChannel.open();
+            sc.configureBlocking(false);
+            var connected = sc.connect(nodes.get(node));
+            var key = sc.register(selector, OP_CONNECT);
+            var link = new PeerContext(key, node);
+            if (connected) link.setConnected();
+            key.attach(link);
+            link.queueMessage(makeNodePacket(self, new String(secret, UTF_8)).toBuffer());
+            onLinkOpened(link);
+        } catch (IOException ioe) {
+            logger.warning("Cannot open the link to node " + node + " : " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the context of a connection that sent a {@code NODE} packet by a link.
+     * The link replaces the previous link with the other server, if any.
+     * @param key the key of the connection.
+     * @param node the index of the other server.
+     * @param secret the secret presented by the connection. Cannot be null.
+     * @param remaining what remains in the buffer of the previous context. In write-mode.
+     * @return the context of the link, or null if {@code secret} isn't the secret of the cluster
+     * or if {@code node} isn't a valid index.
+     */
+    Context accept(SelectionKey key, int node, String secret, ByteBuffer remaining) {
+        if (!MessageDigest.isEqual(this.secret, secret.getBytes(UTF_8))) {
+            logger.warning("Link from " + key.channel() + " refused : wrong cluster secret");
+            return null;
+        }
+        if (node < 0 || node >= links.length || node == self) {
+            logger.warning("Link from an unknown node refused : " + node);
+            return null;
+        }
+        if (links[node] != null) links[node].close();
+        var link = new PeerContext(key, node);
+        link.setConnected();
+        onLinkOpened(link);
+        link.receive(remaining);
+        return link;
+    }
+
+    /**
+     * Registers a new link and claims again the pseudos
+     * of the local clients owned by the other server (in case it has lost them).
+     * @param link the new link.
+     */
+    private void onLinkOpened(PeerContext link) {
+        logger.info("Link opened with node " + link.node);
+        links[link.node] = link;
+        for (var pseudo : router.localPseudos()) {
+            if (ownerOf(pseudo) == link.node) link.queueMessage(PeerFrame.of(CLAIM, self, 0, pseudo).toBuffer());
+        }
+    }
+
+    /**
+     * Forgets a closed link: the directory entries of the other server are removed,
+     * and the claims waiting for its answer fail.
+     * @param link the closed link.
+     */
+    private void onLinkClosed(PeerContext link) {
+        if (links[link.node] != link) return;
+        logger.info("Link closed with node " + link.node);
+        links[link.node] = null;
+        directory.values().removeIf(node -> node == link.node);
+        var failed = pendingClaims.entrySet().iterator();
+        while (failed.hasNext()) {
+            var entry = failed.next();
+            if (ownerOf(entry.getKey()) != link.node) continue;
+            failed.remove();
+            entry.getValue().forEach(onResult -> onResult.accept(false));
+        }
+    }
+
+    /**
+     * Does an action depending on the kind of a frame received on a link.
+     * @param frame the frame.
+     */
+    private void onFrame(PeerFrame frame) {
+        var args = frame.args();
+        switch (frame.kind()) {
+            case CLAIM -> {
+                var pseudo = args.get(0);
+                var reserved = ownerOf(pseudo) == self && reserve(pseudo, frame.origin());
+                sendTo(frame.origin(), PeerFrame.of(CLAIMED, self, reserved ? 1 : 0, pseudo));
+                if (reserved) {
+                    router.replayOffline(pseudo, (sender, message) ->
+                            sendTo(frame.origin(), PeerFrame.of(DMSG, self, 0, sender, pseudo, message)));
+                }
+            }
+            case CLAIMED -> {
+                var waiting = pendingClaims.get(args.get(0));
+                if (waiting == null) return; // Answer to a claim sent by onLinkOpened
+                var onResult = waiting.remove();
+                if (waiting.isEmpty()) pendingClaims.remove(args.get(0));
+                onResult.accept(frame.value() == 1);
+            }
+            case RELEASE -> directory.remove(args.get(0), frame.origin());
+            case GMSG, RMSG, DEST_ERROR -> router.onRemoteFrame(frame);
+            default -> {
+                if (router.isLocal(frame.destination())) router.onRemoteFrame(frame);
+                else route(frame);
+            }
+        }
+    }
+
+    /**
+     * Reserves {@code pseudo} for a client of the server {@code node} if it isn't taken.
+     * @param pseudo a pseudo owned by this server.
+     * @param node the index of the server of the client.
+     * @return true if the pseudo has been reserved.
+     */
+    private boolean reserve(String pseudo, int node) {
+        return directory.putIfAbsent(pseudo, node) == null;
+    }
+
+    /**
+     * @param pseudo a pseudo.
+     * @return the index of the server owning {@code pseudo}.
+     */
+    private int ownerOf(String pseudo) {
+        return Math.floorMod(pseudo.hashCode(), links.length);
+    }
+
+    /**
+     * Queues {@code frame} on the link to the server {@code node}.
+     * @param node the index of the server.
+     * @param frame the frame.
+     * @return false if there's no link to the server.
+     */
+    private boolean sendTo(int node, PeerFrame frame) {
+        var link = links[node];
+        if (link == null) return false;
+        link.queueMessage(frame.toBuffer());
+        return true;
+    }
+
+    /**
+     * Forwards a routed frame to the owner of its destination or, if this server is the owner,
+     * to the server of the destination. Bounces the frame if the destination is unknown,
+     * unless it's a direct message kept by the owner until the destination connects.
+     * @param frame the routed frame.
+     */
+    private void route(PeerFrame frame) {
+        var owner = ownerOf(frame.destination());
+        var next = owner == self ? directory.getOrDefault(frame.destination(), self) : owner;
+        if (owner == self && next == self && frame.kind() == DMSG
+                && router.keepOffline(frame.sender(), frame.destination(), frame.args().get(2))) return;
+        if (next == self || frame.hops() >= MAX_HOPS || !sendTo(next, frame.forwarded())) bounce(frame);
+    }
+
+    /**
+     * Sends a {@link PeerFrame.Kind#DEST_ERROR} to the sender of a direct message or of a private
+     * connection request whose destination is unknown. The other frames are dropped.
+     * @param frame the routed frame.
+     */
+    private void bounce(PeerFrame frame) {
+        if (frame.kind() != DMSG && frame.kind() != PC) return;
+        var error = PeerFrame.of(DEST_ERROR, self, 0, frame.destination(), frame.sender());
+        if (frame.origin() == self) router.onRemoteFrame(error);
+        else sendTo(frame.origin(), error);
+    }
+
+    @Override
+    public void claim(String pseudo, Consumer<Boolean> onResult) {
+        var owner = ownerOf(pseudo);
+        if (owner == self) {
+            onResult.accept(reserve(pseudo, self));
+        } else if (sendTo(owner, PeerFrame.of(CLAIM, self, 0, pseudo))) {
+            pendingClaims.computeIfAbsent(pseudo, p -> new ArrayDeque<>()).add(onResult);
+        } else {
+            logger.warning("Cannot claim " + pseudo + " : no link to node " + owner);
+            onResult.accept(false);
+        }
+    }
+
+    @Override
+    public void release(String pseudo) {
+        var owner = ownerOf(pseudo);
+        if (owner == self) directory.remove(pseudo, self);
+        else sendTo(owner, PeerFrame.of(RELEASE, self, 0, pseudo));
+    }
+
+    @Override
+    public void send(PeerFrame.Kind kind, int value, String... args) {
+        route(PeerFrame.of(kind, self, value, args));
+    }
+
+    @Override
+    public void broadcast(PeerFrame.Kind kind, String... args) {
+        var buffer = PeerFrame.of(kind, self, 0, args).toBuffer();
+        for (var link : links) {
+            if (link != null) link.queueMessage(buffer.duplicate());
+        }
+    }
+
+    /**
+     * The lowest byte of the token is the index of this server.
+     */
+    @Override
+    public int newToken() {
+        return (random.nextInt() & ~0xFF) | self;
+    }
+
+    @Override
+    public void openRelay(int token, int node) {
+        relayOpener.accept(token, nodes.get(node));
+    }
+}
@@ -0,0 +1,87 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The last general messages of the server, already encoded, for the clients that just authenticated.
+ * <br>
+ * The packets are stored one after the other in a preallocated direct buffer used as a ring, and their
+ * lengths in a preallocated array: appending a packet doesn't allocate anything. The oldest packets are
+ * dropped when the ring holds {@code messages} packets or when there's not enough space left.
+ * <br>
+ * {@link #views()} gives the packets as at most two views of the ring (the ring may wrap around its end),
+ * so they can be sent with a single gathering write without being copied.
+ * <br>
+ * The ring isn't thread-safe: the {@link ChatRouter} only uses it while holding its lock.
+ */
+final class HistoryRing {
+    private final ByteBuffer data;
+    /**
+     * Length of each stored packet, from the slot {@link #first} (the oldest).
+     */
+    private final int[] lengths;
+    private int first = 0;
+    private int count = 0;
+    /**
+     * Offset of the oldest packet in {@link #data}.
+     */
+    private int start = 0;
+    private int used = 0;
+
+    /**
+     * @param messages the maximum number of stored packets. Must be positive.
+     * @param capacity the size of the ring in bytes. Must be positive.
+     */
+    HistoryRing(int messages, int capacity) {
+        if (messages <= 0 || capacity <= 0) throw new IllegalArgumentException();
+        data = ByteBuffer.allocateDirect(capacity);
+        lengths = new int[messages];
+    }
+
+    /**
+     * Stores a packet, dropping the oldest ones if needed. A packet bigger than the ring is ignored.
+     * @param packet the encoded packet in read-mode. Its position isn't changed.
+     */
+    void append(ByteBuffer packet) {
+        var length = packet.remaining();
+        var capacity = data.capacity();
+        if (length > capacity) return;
+        while (count == lengths.length || capacity - used < length) dropOldest();
+        var end = (start + used) % capacity;
+        var head = Math.min(length, capacity - end);
+        data.put(end, packet, packet.position(), head);
+        data.put(0, packet, packet.position() + head, length - head);
+        lengths[(first + count) % lengths.length] = length;
+        count++;
+        used += length;
+    }
+
+    /**
+     * @return read-only views of the stored packets, from the oldest to the newest. The views are only valid
+     * until the next {@link #append(ByteBuffer)}.
+     */
+    ByteBuffer[] views() {
+        var capacity = data.capacity();
+        if (used == 0) return new ByteBuffer[0];
+        if (start + used <= capacity) return new ByteBuffer[] { data.slice(start, used).asReadOnlyBuffer() };
+        return new ByteBuffer[] {
+                data.slice(start, capacity - start).asReadOnlyBuffer(),
+                data.slice(0, start + used - capacity).asReadOnlyBuffer()
+        };
+    }
+
+    /**
+     * @return the number of stored packets.
+     */
+    int size() {
+        return count;
+    }
+
+    private void dropOldest() {
+        var length = lengths[first];
+        start = (start + length) % data.capacity();
+        used -= length;
+        first = (first + 1) % lengths.length;
+        count--;
+    }
+}
@@ -0,0 +1,523 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongUnaryOperator;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Direct messages waiting for their destination to connect.
+ * <br>
+ * The messages are appended to a log made of memory-mapped segment files of {@link #SEGMENT_SIZE} bytes,
+ * so an append is a copy into the page cache, without system call. A record is:
+ * <pre>
+ *   byte state | long time | int length | destination | int length | sender | int length | message
+ * </pre>
+ * with the time of the append in milliseconds since the epoch (increased if needed to be greater than the one
+ * of the previous record, so the time gives the order of the records even after a compaction), the strings in UTF-8 and the state
+ * {@link #PENDING} or {@link #DELIVERED} (a zero means the end of the segment, the files being filled with zeros
+ * when created). The state is written last, so a record cut by a crash is ignored.
+ * <br>
+ * An index in memory gives the positions of the pending records of each destination, so a replay only reads
+ * the records of its destination. A replayed record is marked as delivered, and a segment whose records are
+ * all delivered is deleted. The index is rebuilt from the files when the store is opened.
+ * <br>
+ * So that no client can fill the store:
+ * <ul>
+ *     <li>only the pseudos that have already replayed their messages, i.e. that connected once, can receive
+ *     messages (the others are probably typos). They are kept in the file {@link #KNOWN} of the directory;</li>
+ *     <li>a destination has at most {@link #MAX_PER_DESTINATION} pending messages, and a sender
+ *     {@link #MAX_PER_SENDER};</li>
+ *     <li>a message is dropped after {@link #TTL} milliseconds;</li>
+ *     <li>once the store has {@link #COMPACTION_THRESHOLD} segments, each new segment receives the pending
+ *     records of the emptiest old one, which is deleted, so a few undelivered records don't keep a whole
+ *     segment alive.</li>
+ * </ul>
+ * <br>
+ * The store isn't thread-safe: the {@link ChatRouter} only uses it while holding its lock.
+ */
+final class OfflineStore {
+    /**
+     * Size of a segment file.
+     */
+    static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    /**
+     * Maximum number of segments. Once reached, the messages are refused until a segment is deleted.
+     */
+    static final int MAX_SEGMENTS = 64;
+    /**
+     * Number of segments from which the old segments are compacted.
+     */
+    static final int COMPACTION_THRESHOLD = MAX_SEGMENTS / 2;
+    /**
+     * Time during which a message is kept, in milliseconds.
+     */
+    static final long TTL = TimeUnit.DAYS.toMillis(7);
+    /**
+     * Maximum number of pending messages of a destination.
+     */
+    static final int MAX_PER_DESTINATION = 100;
+    /**
+     * Maximum number of pending messages of a sender.
+     */
+    static final int MAX_PER_SENDER = 100;
+    /**
+     * Maximum number of pseudos able to receive messages.
+     */
+    static final int MAX_KNOWN = 100_000;
+    private static final byte PENDING = 1;
+    private static final byte DELIVERED = 2;
+    private static final int HEADER_SIZE = Byte.BYTES + Long.BYTES;
+    private static final String SUFFIX = ".seg";
+    private static final String KNOWN = "known";
+
+    /**
+     * A segment file, mapped in memory.
+     */
+    private static final class Segment {
+        private final int id;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        /**
+         * Number of pending records.
+         */
+        private int pending = 0;
+        /**
+         * Number of bytes of the pending records.
+         */
+        private int live = 0;
+        /**
+         * Time of the most recent record, pending when it was read.
+         */
+        private long newest = 0;
+
+        private Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A record read from a segment, without its message.
+     * @param offset the offset of the record.
+     * @param end the offset following the record.
+     */
+    private record Record(int offset, byte state, long time, String destination, String sender, int end) {
+        private int size() {
+            return end - offset;
+        }
+    }
+
+    /**
+     * Positions (segment id in the high half, offset in the low half) of the pending records of a destination,
+     * in the order of their append.
+     */
+    private static final class Positions {
+        private long[] values = new long[4];
+        private int size = 0;
+
+        private void add(long position) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = position;
+        }
+
+        private void replace(long position, long newPosition) {
+            for (var i = 0; i < size; i++) {
+                if (values[i] == position) {
+                    values[i] = newPosition;
+                    return;
+                }
+            }
+        }
+
+        private void remove(long position) {
+            for (var i = 0; i < size; i++) {
+                if (values[i] == position) {
+                    System.arraycopy(values, i + 1, values, i, --size - i);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sorts the positions by a key, keeping the order of the positions with the same key.
+         */
+        private void sort(LongUnaryOperator key) {
+            var sorted = Arrays.stream(values, 0, size).boxed()
+                    .sorted(Comparator.comparingLong(key::applyAsLong))
+                    .mapToLong(Long::longValue).toArray();
+            System.arraycopy(sorted, 0, values, 0, size);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(OfflineStore.class.getName());
+
+    private final Path directory;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final HashMap<String, Positions> index = new HashMap<>();
+    /**
+     * Number of pending records of each sender.
+     */
+    private final HashMap<String, Integer> senders = new HashMap<>();
+    private final HashSet<String> known = new HashSet<>();
+    private Segment active;
+    private int count = 0;
+    /**
+     * Time of the last record.
+     */
+    private long lastTime = 0;
+
+    /**
+     * Opens the store, creating {@code directory} if needed, and indexes the pending messages of its segments.
+     * @param directory the directory of the segment files. Cannot be null.
+     * @throws IOException if the directory or a segment cannot be opened.
+     */
+    OfflineStore(Path directory) throws IOException {
+        this.directory = requireNonNull(directory);
+        Files.createDirectories(directory);
+        loadKnown();
+        try (var files = Files.list(directory)) {
+            for (var path : (Iterable<Path>) files::iterator) {
+                var name = path.getFileName().toString();
+                if (!name.endsWith(SUFFIX)) continue;
+                var id = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+                segments.put(id, new Segment(id, path, map(path)));
+            }
+        }
+        for (var segment : new ArrayList<>(segments.values())) recover(segment);
+        // A compaction moves old records after newer ones
+        for (var positions : index.values()) positions.sort(this::timeOf);
+        if (active == null) roll();
+        if (count != 0) logger.info(count + " offline messages recovered from " + directory);
+    }
+
+    /**
+     * Stores a direct message.
+     * @param destination the pseudo of the destination. Cannot be null.
+     * @param sender the pseudo of the sender. Cannot be null.
+     * @param message the message. Cannot be null.
+     * @return false if the destination has never connected, if the destination or the sender has too many
+     * pending messages, or if the store is full.
+     * @throws IOException if a new segment cannot be created.
+     */
+    boolean append(String destination, String sender, String message) throws IOException {
+        if (!known.contains(requireNonNull(destination))) return false;
+        var positions = index.get(destination);
+        if (positions != null && positions.size >= MAX_PER_DESTINATION) return false;
+        if (senders.getOrDefault(requireNonNull(sender), 0) >= MAX_PER_SENDER) return false;
+        var destinationBytes = destination.getBytes(UTF_8);
+        var senderBytes = sender.getBytes(UTF_8);
+        var messageBytes = message.getBytes(UTF_8);
+        var size = HEADER_SIZE + 3 * Integer.BYTES + destinationBytes.length + senderBytes.length + messageBytes.length;
+        if (size > SEGMENT_SIZE) return false;
+        if (active.buffer.remaining() < size && (!roll() || active.buffer.remaining() < size)) return false;
+        var buffer = active.buffer;
+        var offset = buffer.position();
+        var time = Math.max(System.currentTimeMillis(), lastTime + 1);
+        buffer.put((byte) 0).putLong(time)
+                .putInt(destinationBytes.length).put(destinationBytes)
+                .putInt(senderBytes.length).put(senderBytes)
+                .putInt(messageBytes.length).put(messageBytes);
+        buffer.put(offset, PENDING);
+        lastTime = time;
+        track(active, new Record(offset, PENDING, time, destination, sender, buffer.position()));
+        return true;
+    }
+
+    /**
+     * Gives the stored messages of {@code destination} to {@code consumer}, in the order of their append,
+     * then forgets them. The expired messages are forgotten without being given.
+     * {@code destination} can receive messages from now on.
+     * @param destination the pseudo of the destination. Cannot be null.
+     * @param consumer called with the sender and the message of each stored message. Cannot be null.
+     * @return the number of messages given to {@code consumer}.
+     */
+    int replay(String destination, BiConsumer<String, String> consumer) {
+        requireNonNull(consumer);
+        remember(requireNonNull(destination));
+        var positions = index.remove(destination);
+        if (positions == null) return 0;
+        var now = System.currentTimeMillis();
+        var replayed = 0;
+        for (var i = 0; i < positions.size; i++) {
+            var segment = segments.get((int) (positions.values[i] >>> 32));
+            var buffer = segment.buffer;
+            var record = read(buffer, (int) positions.values[i]);
+            var message = readString(buffer, skipString(buffer, skipString(buffer, record.offset + HEADER_SIZE)));
+            buffer.put(record.offset, DELIVERED);
+            untrack(segment, record);
+            if (segment.pending == 0 && segment != active) delete(segment);
+            if (now - record.time > TTL) continue;
+            consumer.accept(record.sender, message);
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * @return the number of stored messages.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Indexes the pending records of a segment read from the disk, deletes the segment if there's none,
+     * and makes it the active segment if it's the last one.
+     * A record whose lengths don't fit in the segment is considered as the end of the segment.
+     * @param segment the segment.
+     */
+    private void recover(Segment segment) {
+        var buffer = segment.buffer;
+        var offset = 0;
+        for (Record record; (record = read(buffer, offset)) != null; offset = record.end) {
+            if (record.state == PENDING) track(segment, record);
+            lastTime = Math.max(lastTime, record.time);
+        }
+        buffer.position(offset);
+        if (segment.id == segments.lastKey()) {
+            active = segment;
+        } else if (segment.pending == 0) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * Creates a new segment and makes it the active segment.
+     * The previous active segment is deleted if its records are all delivered. Before, the old segments whose
+     * records are all expired are deleted; after, the emptiest old segment is compacted into the new one
+     * if there are at least {@link #COMPACTION_THRESHOLD} segments.
+     * @return false if there are already {@link #MAX_SEGMENTS} segments.
+     * @throws IOException if the segment cannot be created.
+     */
+    private boolean roll() throws IOException {
+        expire();
+        if (segments.size() >= MAX_SEGMENTS) return false;
+        var previous = active;
+        var id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        var path = directory.resolve(id + SUFFIX);
+        active = new Segment(id, path, map(path));
+        segments.put(id, active);
+        if (previous != null && previous.pending == 0) delete(previous);
+        if (segments.size() >= COMPACTION_THRESHOLD) compact();
+        return true;
+    }
+
+    /**
+     * Deletes the segments, other than the active one, whose records are all expired.
+     */
+    private void expire() {
+        var now = System.currentTimeMillis();
+        for (var segment : new ArrayList<>(segments.values())) {
+            if (segment == active || now - segment.newest <= TTL) continue;
+            for (var record : pendingRecords(segment)) forget(segment, record);
+            delete(segment);
+        }
+    }
+
+    /**
+     * Copies the pending records of the old segment with the fewest of them into the active segment, then
+     * deletes the old segment. Nothing is done if these records would fill more than half of the active segment.
+     * The expired records aren't copied.
+     * <br>
+     * A record is copied before being marked as delivered in the old segment: a crash in between delivers
+     * it twice rather than never.
+     */
+    private void compact() {
+        Segment emptiest = null;
+        for (var segment : segments.values()) {
+            if (segment != active && (emptiest == null || segment.live < emptiest.live)) emptiest = segment;
+        }
+        if (emptiest == null || emptiest.live > Math.min(SEGMENT_SIZE / 2, active.buffer.remaining())) return;
+        var now = System.currentTimeMillis();
+        for (var record : pendingRecords(emptiest)) {
+            if (now - record.time > TTL) {
+                forget(emptiest, record);
+                continue;
+            }
+            var buffer = active.buffer;
+            var offset = buffer.position();
+            buffer.put((byte) 0).put(emptiest.buffer.slice(record.offset + Byte.BYTES, record.size() - Byte.BYTES));
+            buffer.put(offset, PENDING);
+            emptiest.buffer.put(record.offset, DELIVERED);
+            index.get(record.destination).replace(position(emptiest, record.offset), position(active, offset));
+            active.pending++;
+            active.live += record.size();
+            active.newest = Math.max(active.newest, record.time);
+        }
+        delete(emptiest);
+    }
+
+    /**
+     * @param segment a segment.
+     * @return the pending records of {@code segment}.
+     */
+    private static List<Record> pendingRecords(Segment segment) {
+        var records = new ArrayList<Record>();
+        var offset = 0;
+        for (Record record; (record = read(segment.buffer, offset)) != null; offset = record.end) {
+            if (record.state == PENDING) records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Indexes a pending record and counts it.
+     */
+    private void track(Segment segment, Record record) {
+        index.computeIfAbsent(record.destination, d -> new Positions()).add(position(segment, record.offset));
+        senders.merge(record.sender, 1, Integer::sum);
+        segment.pending++;
+        segment.live += record.size();
+        segment.newest = Math.max(segment.newest, record.time);
+        count++;
+    }
+
+    /**
+     * Uncounts a record that is no longer pending. Doesn't change the index.
+     */
+    private void untrack(Segment segment, Record record) {
+        senders.computeIfPresent(record.sender, (sender, pending) -> pending == 1 ? null : pending - 1);
+        segment.pending--;
+        segment.live -= record.size();
+        count--;
+    }
+
+    /**
+     * Removes a pending record from the index and uncounts it, without delivering it.
+     */
+    private void forget(Segment segment, Record record) {
+        var positions = index.get(record.destination);
+        positions.remove(position(segment, record.offset));
+        if (positions.size == 0) index.remove(record.destination);
+        untrack(segment, record);
+    }
+
+    /**
+     * Deletes a segment whose records are all delivered or forgotten.
+     * The mapping is released by the garbage collector.
+     * @param segment the segment.
+     */
+    private void delete(Segment segment) {
+        segments.remove(segment.id);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException ioe) {
+            logger.warning("Cannot delete the segment " + segment.path + " : " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Reads the pseudos able to receive messages. A pseudo cut by a crash is ignored.
+     * @throws IOException if the file exists but cannot be read.
+     */
+    private void loadKnown() throws IOException {
+        var path = directory.resolve(KNOWN);
+        if (!Files.exists(path)) return;
+        var buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (buffer.remaining() >= Integer.BYTES) {
+            var length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) break;
+            var bytes = new byte[length];
+            buffer.get(bytes);
+            known.add(new String(bytes, UTF_8));
+        }
+    }
+
+    /**
+     * Allows {@code pseudo} to receive messages, unless {@link #MAX_KNOWN} pseudos already can.
+     * @param pseudo the pseudo.
+     */
+    private void remember(String pseudo) {
+        if (known.size() >= MAX_KNOWN || !known.add(pseudo)) return;
+        var bytes = pseudo.getBytes(UTF_8);
+        var record = ByteBuffer.allocate(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes).array();
+        try {
+            Files.write(directory.resolve(KNOWN), record, CREATE, WRITE, APPEND);
+        } catch (IOException ioe) {
+            logger.warning("Cannot save the pseudo " + pseudo + " : " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * @param position the position of a pending record.
+     * @return the time of the record.
+     */
+    private long timeOf(long position) {
+        return segments.get((int) (position >>> 32)).buffer.getLong((int) position + Byte.BYTES);
+    }
+
+    private static long position(Segment segment, int offset) {
+        return (long) segment.id << 32 | offset;
+    }
+
+    /**
+     * Maps a segment file, creating it with {@link #SEGMENT_SIZE} zeros if needed.
+     * @param path the path of the file.
+     * @return the mapping, positioned at 0.
+     * @throws IOException if the file cannot be mapped.
+     */
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, CREATE, READ, WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+    }
+
+    /**
+     * @param buffer a segment.
+     * @param offset the offset of a record.
+     * @return the record, null if there's none at {@code offset} or if its lengths don't fit in the segment.
+     */
+    private static Record read(MappedByteBuffer buffer, int offset) {
+        if (offset > SEGMENT_SIZE - HEADER_SIZE) return null;
+        var state = buffer.get(offset);
+        if (state != PENDING && state != DELIVERED) return null;
+        var destination = offset + HEADER_SIZE;
+        var sender = skipString(buffer, destination);
+        var end = skipString(buffer, skipString(buffer, sender));
+        if (end == -1) return null;
+        return new Record(offset, state, buffer.getLong(offset + Byte.BYTES),
+                readString(buffer, destination), readString(buffer, sender), end);
+    }
+
+    /**
+     * @param buffer a segment.
+     * @param offset the offset of the length of a string.
+     * @return the string.
+     */
+    private static String readString(MappedByteBuffer buffer, int offset) {
+        var bytes = new byte[buffer.getInt(offset)];
+        buffer.get(offset + Integer.BYTES, bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * @param buffer a segment.
+     * @param offset the offset of the length of a string, or -1.
+     * @return the offset following the string, or -1 if it doesn't fit in the segment.
+     */
+    private static int skipString(MappedByteBuffer buffer, int offset) {
+        if (offset == -1 || offset > SEGMENT_SIZE - Integer.BYTES) return -1;
+        var length = buffer.getInt(offset);
+        if (length < 0 || length > SEGMENT_SIZE - offset - Integer.BYTES) return -1;
+        return offset + Integer.BYTES + length;
+    }
+}
@@ -0,0 +1,132 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Frame exchanged on a link between two servers of a cluster, after the {@link
+ * fr.uge.net.tcp.nonblocking.packet.Packet.PacketType#NODE} packet opening the link.
+ * <pre>
+ *   byte    integer  byte   integer  integer   (integer, string (utf-8)) * count
+ * ------------------------------------------------------------------------------
+ * | kind | origin | hops | value | count |    length    |    argument     | ...
+ * ------------------------------------------------------------------------------ </pre>
+ * <br>
+ * The routed frames ({@link Kind#isRouted()}) have the pseudo of the sender as first argument and
+ * the pseudo of the destination as second argument. They are forwarded from server to server
+ * until they reach the server the destination is connected to.
+ *
+ * @param kind the kind of the frame.
+ * @param origin the index of the server that created the frame.
+ * @param hops the number of times the frame has been forwarded.
+ * @param value a number whose meaning depends on the kind (e.g. a token).
+ * @param args the arguments of the frame. Every argument is a non-empty string
+ *             and their number depends on the kind ({@link Kind#arity}).
+ */
+record PeerFrame(Kind kind, int origin, int hops, int value, List<String> args) {
+    /**
+     * Kinds of frame.
+     */
+    enum Kind {
+        /** Asks the owner of a pseudo to reserve it (pseudo). */
+        CLAIM(1),
+        /** Answer to a claim (pseudo), value is 1 if the pseudo has been reserved, 0 otherwise. */
+        CLAIMED(1),
+        /** Frees a pseudo reserved with a claim (pseudo). */
+        RELEASE(1),
+        /** General message to deliver to the clients of the receiving server (sender, message). */
+        GMSG(2),
+        /** Room message to deliver to the members of the room connected to the receiving server (sender, room, message). */
+        RMSG(3),
+        /** Direct message (sender, destination, message). */
+        DMSG(3),
+        /** Request of private connection (requester, destination). */
+        PC(2),
+        /** Acceptance of a private connection (accepter, requester), value is the token. */
+        ACCEPT(2),
+        /** Rejection of a private connection (rejecter, requester). */
+        REJECT(2),
+        /** The destination of a routed frame is unknown (destination, sender). */
+        DEST_ERROR(2);
+
+        /**
+         * The number of arguments of the frames of this kind.
+         */
+        final int arity;
+
+        Kind(int arity) {
+            this.arity = arity;
+        }
+
+        /**
+         * @return true if the frame is forwarded until it reaches the server of its destination.
+         */
+        boolean isRouted() {
+            return this == DMSG || this == PC || this == ACCEPT || this == REJECT;
+        }
+    }
+
+    PeerFrame {
+        requireNonNull(kind);
+        args = List.copyOf(args);
+        if (args.size() != kind.arity) throw new IllegalArgumentException("Wrong number of arguments");
+    }
+
+    /**
+     * Creates a frame that has not been forwarded yet.
+     * @param kind the kind of the frame.
+     * @param origin the index of the server creating the frame.
+     * @param value a number whose meaning depends on the kind.
+     * @param args the arguments.
+     * @return the new frame.
+     */
+    static PeerFrame of(Kind kind, int origin, int value, String... args) {
+        return new PeerFrame(kind, origin, 0, value, List.of(args));
+    }
+
+    /**
+     * @return the pseudo of the sender of a routed frame.
+     */
+    String sender() {
+        return args.get(0);
+    }
+
+    /**
+     * @return the pseudo of the destination of a routed frame.
+     */
+    String destination() {
+        return args.get(1);
+    }
+
+    /**
+     * @return the same frame, forwarded once more.
+     */
+    PeerFrame forwarded() {
+        return new PeerFrame(kind, origin, hops + 1, value, args);
+    }
+
+    /**
+     * @return a new buffer containing this frame, in read-mode.
+     */
+    ByteBuffer toBuffer() {
+        var encoded = new ArrayList<ByteBuffer>(args.size());
+        var size = Byte.BYTES * 2 + Integer.BYTES * 3;
+        for (var arg : args) {
+            var buff = UTF_8.encode(arg);
+            encoded.add(buff);
+            size += Integer.BYTES + buff.remaining();
+        }
+        var buffer = ByteBuffer.allocate(size)
+                .put((byte) kind.ordinal())
+                .putInt(origin)
+                .put((byte) hops)
+                .putInt(value)
+                .putInt(encoded.size());
+        for (var arg : encoded) buffer.putInt(arg.remaining()).put(arg);
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,91 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import fr.uge.net.tcp.nonblocking.reader.Reader;
+import fr.uge.net.tcp.nonblocking.reader.StringReader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.*;
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.moveData;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads a {@link PeerFrame}.
+ * The process fails ({@link ProcessStatus#ERROR}) if the kind is unknown, if the number of arguments
+ * doesn't match the kind or if an argument cannot be read by a {@link StringReader}.
+ */
+final class PeerFrameReader implements Reader<PeerFrame> {
+    private static final PeerFrame.Kind[] KINDS = PeerFrame.Kind.values();
+    private static final int HEADER_SIZE = Byte.BYTES * 2 + Integer.BYTES * 3;
+
+    /**
+     * Header buffer in write-mode.
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final StringReader stringReader = new StringReader();
+    private final ArrayList<String> args = new ArrayList<>();
+    private ProcessStatus state = REFILL;
+    private PeerFrame.Kind kind;
+    private int origin;
+    private int hops;
+    private int value;
+    private int count = -1;
+    private PeerFrame frame;
+
+    @Override
+    public ProcessStatus process(ByteBuffer bb) {
+        requireNonNull(bb);
+        if (state != REFILL) throw new IllegalStateException();
+        state = subProcess(bb);
+        return state;
+    }
+
+    /**
+     * Reads the header, then the arguments.
+     * @param bb the buffer in write-mode.
+     * @return the state of the reader.
+     */
+    private ProcessStatus subProcess(ByteBuffer bb) {
+        if (count == -1) {
+            try {
+                if (moveData(bb.flip(), header)) return REFILL;
+            } finally {
+                bb.compact();
+            }
+            header.flip();
+            var ordinal = header.get();
+            origin = header.getInt();
+            hops = header.get();
+            value = header.getInt();
+            count = header.getInt();
+            if (ordinal < 0 || ordinal >= KINDS.length) return ERROR;
+            kind = KINDS[ordinal];
+            if (count != kind.arity) return ERROR;
+        }
+        while (args.size() < count) {
+            var status = stringReader.process(bb);
+            if (status != DONE) return status;
+            args.add(stringReader.get());
+            stringReader.reset();
+        }
+        frame = new PeerFrame(kind, origin, hops, value, args);
+        return DONE;
+    }
+
+    @Override
+    public PeerFrame get() {
+        if (state != DONE) throw new IllegalStateException();
+        return frame;
+    }
+
+    @Override
+    public void reset() {
+        state = REFILL;
+        header.clear();
+        stringReader.reset();
+        args.clear();
+        count = -1;
+        frame = null;
+    }
+}
@@ -0,0 +1,124 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import fr.uge.net.tcp.nonblocking.packet.Packet.PacketType;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.StringJoiner;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The limits of the packets an authenticated client can send, by {@link PacketType}.
+ * <br>
+ * Each client gets its own {@link Limiter}: a {@link TokenBucket} per limited type, so a client
+ * flooding the server doesn't consume the capacity of the others. A limit is written
+ * {@code TYPE=rate/burst[:overflow]}, the rate being in packets per second, and the limits are separated
+ * by commas (see {@link #DEFAULT}). The overflow tells what to do with a packet over the limit.
+ */
+public final class RateLimits {
+    /**
+     * What to do with a packet over the limit.
+     */
+    public enum Overflow {
+        /** Hold the packet and stop reading the client until the bucket has a token again. */
+        DELAY,
+        /** Drop the packet silently. */
+        DROP,
+        /** Drop the packet and send an error {@link fr.uge.net.tcp.nonblocking.packet.Packet.ErrorCode#RATE_LIMITED}. */
+        NOTIFY
+    }
+
+    private record Limit(double rate, int burst, Overflow overflow) {}
+
+    /**
+     * The default limits: the messages are delayed, the floods of private connection requests are refused.
+     */
+    public static final String DEFAULT = "GMSG=20/40,RMSG=20/40,DMSG=50/100,PC=1/5:notify";
+    /**
+     * No limit at all.
+     */
+    public static final RateLimits NONE = new RateLimits(new EnumMap<>(PacketType.class));
+
+    private final EnumMap<PacketType, Limit> limits;
+
+    private RateLimits(EnumMap<PacketType, Limit> limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * @param spec the limits, e.g. {@code "GMSG=20/40,PC=1/5:notify"}, or {@code "none"}. Cannot be null.
+     * @return the limits.
+     * @throws IllegalArgumentException if {@code spec} is malformed.
+     */
+    public static RateLimits parse(String spec) {
+        requireNonNull(spec);
+        var limits = new EnumMap<PacketType, Limit>(PacketType.class);
+        if (spec.isBlank() || spec.equalsIgnoreCase("none")) return new RateLimits(limits);
+        for (var part : spec.split(",")) {
+            try {
+                var equal = part.indexOf('=');
+                var slash = part.indexOf('/', equal);
+                var colon = part.indexOf(':', slash);
+                var type = PacketType.valueOf(part.substring(0, equal).trim().toUpperCase(Locale.ROOT));
+                var rate = Double.parseDouble(part.substring(equal + 1, slash));
+                var burst = Integer.parseInt(part.substring(slash + 1, colon == -1 ? part.length() : colon).trim());
+                var overflow = colon == -1 ? Overflow.DELAY
+                        : Overflow.valueOf(part.substring(colon + 1).trim().toUpperCase(Locale.ROOT));
+                if (!(rate > 0) || burst <= 0) throw new IllegalArgumentException("Invalid limit : " + part);
+                limits.put(type, new Limit(rate, burst, overflow));
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid limit : " + part, e);
+            }
+        }
+        return new RateLimits(limits);
+    }
+
+    /**
+     * @return the limiter of a new client.
+     */
+    Limiter limiter() {
+        return new Limiter();
+    }
+
+    @Override
+    public String toString() {
+        if (limits.isEmpty()) return "none";
+        var joiner = new StringJoiner(",");
+        limits.forEach((type, limit) -> {
+            var rate = limit.rate == Math.rint(limit.rate) ? String.valueOf((long) limit.rate) : String.valueOf(limit.rate);
+            joiner.add(type + "=" + rate + "/" + limit.burst + ":" + limit.overflow.name().toLowerCase(Locale.ROOT));
+        });
+        return joiner.toString();
+    }
+
+    /**
+     * The buckets of a client. Not thread-safe: used by the thread reading the client.
+     */
+    final class Limiter {
+        private final TokenBucket[] buckets = new TokenBucket[PacketType.values().length];
+
+        private Limiter() {
+            var now = System.nanoTime();
+            limits.forEach((type, limit) -> buckets[type.ordinal()] = new TokenBucket(limit.rate, limit.burst, now));
+        }
+
+        /**
+         * Takes a token for a packet of type {@code type}.
+         * @param type the type of the packet.
+         * @return 0 if the packet can be handled now, otherwise the delay before it can, in nanoseconds.
+         */
+        long acquire(PacketType type) {
+            var bucket = buckets[type.ordinal()];
+            return bucket == null ? 0 : bucket.take(System.nanoTime());
+        }
+
+        /**
+         * @param type a limited type.
+         * @return what to do with the packets of this type over the limit.
+         */
+        Overflow overflow(PacketType type) {
+            return limits.get(type).overflow;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import fr.uge.net.tcp.nonblocking.jfr.RelayChunkEvent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.silentlyClose;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A thread with its own selector relaying the bytes of private connections.
+ * <br>
+ * Once the two ends of a private connection are paired, the server hands their sockets off to a worker
+ * ({@link #handOff(int, SocketChannel, ByteBuffer, SocketChannel, ByteBuffer, IntConsumer)}) so the bulk
+ * transfers never delay the chat traffic of the main selector.
+ * <br>
+ * Each end has a single buffer holding what has been read from it and not yet written to the other end:
+ * an end is only read while its buffer has space left, so a slow reader slows down the writer instead of
+ * filling the memory of the server. When an end is closed, what remains in its buffer is written to
+ * the other end, then both ends are closed.
+ */
+final class RelayWorker {
+    /**
+     * Size of the buffer of each end.
+     */
+    private static final int BUFFER_SIZE = 65_536;
+
+    /**
+     * An end of a relayed private connection.
+     */
+    private static final class End {
+        private final SocketChannel sc;
+        /**
+         * What has been read from this end and not yet written to the other. In write-mode.
+         */
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private SelectionKey key;
+        private End other;
+        private boolean eof = false;
+
+        private End(SocketChannel sc, ByteBuffer pending) {
+            this.sc = requireNonNull(sc);
+            in.put(pending.flip());
+        }
+    }
+
+    /**
+     * The two ends of a private connection.
+     */
+    private static final class Relay {
+        private final int token;
+        private final End first;
+        private final End second;
+        private final IntConsumer onClosed;
+        private long bytes = 0;
+        private boolean closed = false;
+
+        private Relay(int token, End first, End second, IntConsumer onClosed) {
+            this.token = token;
+            this.first = first;
+            this.second = second;
+            this.onClosed = onClosed;
+            first.other = second;
+            second.other = first;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(RelayWorker.class.getName());
+
+    private final ConcurrentLinkedQueue<Relay> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder relayedBytes = new LongAdder();
+    private final LongAdder relayedConnections = new LongAdder();
+    private final Selector selector;
+    private final String name;
+
+    /**
+     * Creates a worker. It doesn't relay anything until {@link #start()} is called.
+     * @param name the name of the worker (and of its thread). Cannot be null.
+     * @throws IOException if the selector cannot be opened.
+     */
+    RelayWorker(String name) throws IOException {
+        this.name = requireNonNull(name);
+        selector = Selector.open();
+    }
+
+    /**
+     * Starts the thread of the worker.
+     */
+    void start() {
+        var thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gives the two ends of a paired private connection to this worker.
+     * The sockets must be non-blocking and no longer used by the caller (their keys on the
+     * other selector must be cancelled). Can be called by any thread.
+     *
+     * @param token the token of the private connection.
+     * @param first the first end.
+     * @param firstPending what has been read from the first end and not yet relayed. In write-mode.
+     * @param second the second end.
+     * @param secondPending what has been read from the second end and not yet relayed. In write-mode.
+     * @param onClosed called with the token, by the thread of the worker, once the connection is closed.
+     */
+    void handOff(int token, SocketChannel first, ByteBuffer firstPending,
+                 SocketChannel second, ByteBuffer secondPending, IntConsumer onClosed) {
+        incoming.add(new Relay(token, new End(first, firstPending), new End(second, secondPending), requireNonNull(onClosed)));
+        active.incrementAndGet();
+        selector.wakeup();
+    }
+
+    /**
+     * @return the number of private connections currently relayed by this worker.
+     */
+    int active() {
+        return active.get();
+    }
+
+    /**
+     * @return the number of bytes relayed by this worker since its start.
+     */
+    long relayedBytes() {
+        return relayedBytes.sum();
+    }
+
+    /**
+     * @return the number of private connections relayed by this worker since its start.
+     */
+    long relayedConnections() {
+        return relayedConnections.sum();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + active() + " active, " + relayedConnections() + " relayed, " + relayedBytes() + " bytes)";
+    }
+
+    /**
+     * Selects and treats the keys, then registers the private connections handed off meanwhile.
+     */
+    private void run() {
+        try {
+            while (!Thread.interrupted()) {
+                selector.select(this::treatKey);
+                for (Relay relay; (relay = incoming.poll()) != null; ) register(relay);
+            }
+        } catch (IOException ioe) {
+            logger.severe(name + " stopped : " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Registers the two ends of {@code relay} and writes what has already been read.
+     * @param relay the new private connection.
+     */
+    private void register(Relay relay) {
+        relayedConnections.increment();
+        try {
+            relay.first.key = relay.first.sc.register(selector, 0, relay);
+            relay.second.key = relay.second.sc.register(selector, 0, relay);
+            transfer(relay, relay.first);
+            transfer(relay, relay.second);
+        } catch (IOException ioe) {
+            close(relay);
+        }
+    }
+
+    /**
+     * Reads or writes the end the key belongs to.
+     * @param key the selected key.
+     */
+    private void treatKey(SelectionKey key) {
+        var relay = (Relay) key.attachment();
+        var end = relay.first.key == key ? relay.first : relay.second;
+        try {
+            if (key.isValid() && key.isWritable()) transfer(relay, end.other);
+            if (key.isValid() && key.isReadable()) {
+                if (end.sc.read(end.in) == -1) end.eof = true;
+                transfer(relay, end);
+            }
+        } catch (IOException ioe) {
+            close(relay);
+        }
+    }
+
+    /**
+     * Writes what has been read from {@code from} to the other end, then updates the interest
+     * operators of both ends. Closes the connection once an end is closed and its data is written.
+     * @param relay the private connection.
+     * @param from the end whose data is written.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void transfer(Relay relay, End from) throws IOException {
+        if (relay.closed) return;
+        if (from.in.position() != 0) {
+            var event = new RelayChunkEvent();
+            event.begin();
+            var written = from.other.sc.write(from.in.flip());
+            from.in.compact();
+            relay.bytes += written;
+            relayedBytes.add(written);
+            if (event.shouldCommit()) {
+                event.token = relay.token;
+                event.bytes = written;
+                event.commit();
+            }
+        }
+        if (from.eof && from.in.position() == 0) {
+            close(relay);
+            return;
+        }
+        updateInterestOps(from);
+        updateInterestOps(from.other);
+    }
+
+    /**
+     * An end is read while its buffer has space left and written while the buffer of the other end has data.
+     * @param end the end.
+     */
+    private static void updateInterestOps(End end) {
+        var ops = 0;
+        if (!end.eof && end.in.hasRemaining()) ops |= OP_READ;
+        if (end.other.in.position() != 0) ops |= OP_WRITE;
+        if (end.key.interestOps() != ops) end.key.interestOps(ops);
+    }
+
+    /**
+     * Closes the two ends of the private connection.
+     * @param relay the private connection.
+     */
+    private void close(Relay relay) {
+        if (relay.closed) return;
+        relay.closed = true;
+        silentlyClose(relay.first.sc);
+        silentlyClose(relay.second.sc);
+        active.decrementAndGet();
+        relay.onClosed.accept(relay.token);
+        logger.info("Private connection closed after " + relay.bytes + " bytes on " + this);
+    }
+}
@@ -1,53 +1,88 @@
 package fr.uge.net.tcp.nonblocking.server;
 
 import fr.uge.net.tcp.nonblocking.display.ServerMessageDisplay;
+import fr.uge.net.tcp.nonblocking.jfr.ChatOSEvents;
+import fr.uge.net.tcp.nonblocking.jfr.ContextUpgradeEvent;
+import fr.uge.net.tcp.nonblocking.jfr.RelayChunkEvent;
+import fr.uge.net.tcp.nonblocking.metrics.AdminEndpoint;
+import fr.uge.net.tcp.nonblocking.metrics.MetricsMBean;
 import fr.uge.net.tcp.nonblocking.reader.RejectReader;
 import fr.uge.net.tcp.nonblocking.utils.ChatOSUtils;
 import fr.uge.net.tcp.nonblocking.packet.Packet;
 import fr.uge.net.tcp.nonblocking.context.AbstractContext;
 import fr.uge.net.tcp.nonblocking.context.Context;
+import fr.uge.net.tcp.nonblocking.context.FlushScheduler;
+import fr.uge.net.tcp.nonblocking.context.Priority;
+import fr.uge.net.tcp.nonblocking.context.TimerWheel;
 import fr.uge.net.tcp.nonblocking.packet.PacketReader;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
 
-import static fr.uge.net.tcp.nonblocking.display.ServerMessageDisplay.onPacketReceived;
 import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.copyBuffer;
 import static fr.uge.net.tcp.nonblocking.packet.Packet.ErrorCode.*;
 import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.*;
 import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketType.AUTH;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketType.NODE;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketType.RESUME;
 import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketType.TOKEN;
 import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.*;
+import static java.nio.channels.SelectionKey.OP_CONNECT;
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.util.Objects.requireNonNull;
 
 /**
  * Main class for the server.
+ * <br>
+ * The server can be standalone or part of a cluster ({@link ClusterNode}), in which case the clients
+ * of every server of the cluster can talk to each other. The servers of a cluster can also be processes
+ * of the same host sharing one port, so they use every core without sharing a heap (and its pauses).
+ * <br>
+ * The time is handled by a {@link TimerWheel} driven by the selection: a connection that isn't
+ * identified within {@link #HANDSHAKE_TIMEOUT} seconds is closed, and so is an end of a private connection
+ * whose other end doesn't arrive within {@link #PAIRING_TIMEOUT} seconds.
  */
 public final class ServerChatOS {
     /**
      * Class for the initial connections.
-     * After an authentication packet or a token packet arrived, this context will be deleted
-     * and replaced by respectively {@link ConnectionContext} and {@link PrivateConnection.PrivateConnectionContext}.
+     * After an authentication packet (or a resumption of session), a token packet or a node packet arrived,
+     * this context will be deleted and replaced by respectively {@link ClientContext},
+     * {@link PrivateConnection.PrivateConnectionContext} and {@link ClusterNode.PeerContext}.
+     * The connection is closed if it isn't replaced within {@link #HANDSHAKE_TIMEOUT} seconds.
      */
     private final class ConnectionContext extends AbstractContext implements Context {
         private final RejectReader rejectReader = new RejectReader("???");
-        private final PacketReader reader = new PacketReader();
+        private final PacketReader reader = new PacketReader(true);
+        private final TimerWheel.Timeout deadline = timers.schedule(HANDSHAKE_TIMEOUT, TimeUnit.SECONDS, this::onDeadline);
         private boolean deprecated = false;
+        private boolean authenticating = false;
         private final SelectionKey key;
+        /**
+         * True if the connection has been accepted by the {@link #linkSocketChannel}.
+         */
+        private final boolean fromLink;
 
         /**
          * Creates a connection context. Used by client until authentication.
          * @param key the connection key. Cannot be null.
+         * @param fromLink true if the connection has been accepted by the {@link #linkSocketChannel}.
          */
-        private ConnectionContext(SelectionKey key){
-            super(key);
+        private ConnectionContext(SelectionKey key, boolean fromLink){
+            super(key, flushScheduler, metrics);
+            setConnected();   // Accepted: closed as soon as the other end closes it
             this.key = key;
+            this.fromLink = fromLink;
         }
         /**
          * Tries to read a packet by processing {@link #bbIn}.
@@ -64,35 +99,74 @@ public final class ServerChatOS {
         /**
          * Analyses the processed packet.<br>
          * If the packet is an authentication : Register as client or send error.<br>
+         * If the packet is a resumption : Take the place of the previous connection of the client or send error.<br>
          * If the packet is a token : Register as private connection.<br>
+         * If the packet is a node : Register as a link with another server of the cluster.<br>
          * Otherwise : ignore.
          *
          * @param packet the processed packet. Cannot be null.
          */
         private void treatPacket(Packet packet) {
             requireNonNull(packet);
+            metrics.received(packet.type());
             if (packet.type() == AUTH) {
                 onAuthentication(packet.pseudo());
+            } else if (packet.type() == RESUME) {
+                onResume(Long.parseLong(packet.message()), packet.pseudo());
             } else if (packet.type() == TOKEN) {
-                onToken(Integer.parseInt(packet.message()));
+                onToken(Integer.parseInt(packet.message()), packet.pseudo());
+            } else if (packet.type() == NODE) {
+                onNode(Integer.parseInt(packet.message()), packet.pseudo());
             }
         }
         /**
          * Checks if the pseudo is already taken.
-         * If so send an error to the client. Otherwise replace this context by a {@link ClientContext}.
+         * If so send an error to the client. Otherwise replace this context by a {@link ClientContext}
+         * registered in the {@link #router}.
+         * In a cluster, the answer can come later (from the server owning the pseudo): the authentications
+         * received meanwhile are ignored.
          * @param pseudo the requested pseudo of the client.
          */
         private void onAuthentication(String pseudo) {
             requireNonNull(pseudo);
+            if (authenticating) return;
 
             ServerMessageDisplay.onAuthPacket((SocketChannel) key.channel(), pseudo);
 
-            if (!clients.containsKey(pseudo)) {
-                broadcast(makeGeneralMessagePacket("joined the server.", pseudo), null);
-                clients.put(pseudo, new ClientContext(key, pseudo));
-                deprecated = true;
+            var client = new ClientContext(key, pseudo);
+            authenticating = true;
+            router.register(client, registered -> {
+                authenticating = false;
+                if (!key.isValid()) {
+                    router.unregister(client);   // The connection has been closed while waiting
+                } else if (registered) {
+                    changing.put(key, client);
+                    deprecate();
+                } else {
+                    queueMessage(makeErrorPacket(AUTH_ERROR).toBuffer(), Priority.CONTROL);
+                }
+            });
+        }
+
+        /**
+         * Replaces this context by a {@link ClientContext} taking the place of the previous connection
+         * of the client in the {@link #router}, if {@code session} is the id of its session.
+         * Otherwise sends an error to the client, which can authenticate again.
+         * @param session the id of the session.
+         * @param pseudo the pseudo of the client.
+         */
+        private void onResume(long session, String pseudo) {
+            requireNonNull(pseudo);
+            if (authenticating) return;
+
+            ServerMessageDisplay.onResumePacket((SocketChannel) key.channel(), pseudo);
+
+            var client = new ClientContext(key, pseudo);
+            if (router.resume(client, session)) {
+                changing.put(key, client);
+                deprecate();
             } else {
-                queueMessage(makeErrorPacket(AUTH_ERROR).toBuffer());
+                queueMessage(makeErrorPacket(AUTH_ERROR).toBuffer(), Priority.CONTROL);
             }
         }
 
@@ -104,37 +178,130 @@ public final class ServerChatOS {
             return 0;
         }
 
+        @Override
+        public void close() {
+            deadline.cancel();
+            super.close();
+        }
+
+        /**
+         * Marks this context as replaced by another one.
+         */
+        private void deprecate() {
+            deprecated = true;
+            deadline.cancel();
+        }
+
+        /**
+         * Closes the connection because it hasn't been identified in time.
+         */
+        private void onDeadline() {
+            logger.info("Connection closed : no identification within " + HANDSHAKE_TIMEOUT + " seconds");
+            close();
+        }
+
         /**
          * Replace this context with a {@link PrivateConnection.PrivateConnectionContext}.
-         * Also link it to the correct private connection.
+         * Also link it to the correct private connection, or splice it toward the server of its client
+         * (see {@link #spliceTarget(int, String)}).
          * @param token the private connection's identifier.
+         * @param pseudo the pseudo sent with the token.
          */
-        private void onToken(int token) {
+        private void onToken(int token, String pseudo) {
             ServerMessageDisplay.onTokenPacket((SocketChannel) key.channel(), token);
-            if (privateConnections.containsKey(token)) {
+            var node = spliceTarget(token, pseudo);
+            if (node != -1) {
+                var splice = new PrivateConnection(token, true);
+                splice.addSelectionKey(key, bbIn);
+                openRelay(splice, cluster.address(node), pseudo);
+                deprecate();
+            } else if (privateConnections.containsKey(token)) {
                 privateConnections.get(token).addSelectionKey(key, bbIn);
-                deprecated = true;
+                deprecate();
             } else {
                 logger.warning("Invalid token received : " + token);
+                close();
             }
         }
+
+        /**
+         * The servers sharing a port ({@link #ServerChatOS(int, int, int, String)}) don't choose which one
+         * accepts the connection presenting a token: it may not be the server of its client.
+         * Such a connection is spliced, with the same token and pseudo, toward the server of its client
+         * if the private connection is established here, otherwise toward the creator of the token,
+         * which splices it again if needed. A connection spliced by another server (accepted by the
+         * {@link #linkSocketChannel}) is never sent back to the creator, so it's spliced at most twice.
+         * The other servers of a cluster only receive the connections of their own clients: they never splice.
+         * @param token the token.
+         * @param pseudo the pseudo sent with the token.
+         * @return the index of the server to splice the connection to, or -1 if it's handled by this server
+         * (which refuses it if the token is unknown, e.g. forged with the index of no server).
+         */
+        private int spliceTarget(int token, String pseudo) {
+            if (linkSocketChannel == null || pseudo.equals(RELAY_PSEUDO)) return -1;
+            if (router.isPrivateConnection(token)) return router.presenterNode(token, pseudo);
+            var creator = cluster.creatorOf(token);
+            return fromLink || creator == -1 || creator == cluster.self() ? -1 : creator;
+        }
+
+        /**
+         * Replace this context with a link with another server of the cluster, if the connection presents
+         * the secret of the cluster and, when the port is shared, if it has been accepted by the
+         * {@link #linkSocketChannel}. Otherwise, the connection is closed.
+         * @param node the index of the other server.
+         * @param secret the secret presented by the connection.
+         */
+        private void onNode(int node, String secret) {
+            if (cluster == null) {
+                logger.warning("Link from node " + node + " refused : the server isn't part of a cluster");
+                close();
+                return;
+            }
+            if (linkSocketChannel != null && !fromLink) {
+                logger.warning("Link from node " + node + " refused : links only come through the loopback listener");
+                close();
+                return;
+            }
+            var link = cluster.accept(key, node, secret, bbIn);
+            if (link == null) {
+                close();
+                return;
+            }
+            changing.put(key, link);
+            deprecate();
+        }
     }
     /**
      * Class for all the "normal" clients (i.e. not the private connections)
-     * Handle the receiving and sending of GMSG, DMSG, PC and ERROR.
+     * Reads the packets and gives them to the {@link #router}, within the {@link #limits} of the server.
+     * A packet delayed by the limits is held, and the client isn't read until it is routed.
+     * The client isn't read either while the other end of one of its streams has too much output queued
+     * (see {@link ChatRouter.Member#pauseFor(ChatRouter.Member)}).
+     * <br>
+     * A connection closed by the client ends its session; a connection lost on an error is
+     * {@link ChatRouter#disconnect(ChatRouter.Member, List) kept} by the router, so the client can resume it.
      */
-    private final class ClientContext extends AbstractContext implements Context {
-        private final PacketReader reader = new PacketReader();
+    private final class ClientContext extends AbstractContext implements Context, ChatRouter.Member {
+        private final PacketReader reader = new PacketReader(true);
+        private final RateLimits.Limiter limiter = limits.limiter();
         private final RejectReader rejectReader;
         private final String pseudo;
+        private Packet held;
+        private TimerWheel.Timeout release;
+        /**
+         * The client whose output must be written before this one is read again, null if none.
+         */
+        private ClientContext pausedFor;
+        /**
+         * The clients paused until the output of this one is written.
+         */
+        private final ArrayList<ClientContext> paused = new ArrayList<>();
 
         private ClientContext(SelectionKey key, String pseudo){
-            super(key);
+            super(key, flushScheduler, metrics);
             setConnected();
             this.pseudo = pseudo;
-            changing.put(key, this);
             rejectReader = new RejectReader(pseudo);
-            queueMessage(makeAuthenticationPacket(pseudo));
         }
         /**
          * Tries to read a packet by processing bbIn.
@@ -142,132 +309,127 @@ public final class ServerChatOS {
          */
         @Override
         public void processIn() {
+            if (!acceptsInput()) return;
             if (rejectReader.process(bbIn) == REFILL) return;
             var status = reader.process(bbIn);
             if (status == REFILL) return;
             if (status == ERROR) rejectReader.reject(reader.getFailure(), this, pseudo);
-            if (status == DONE) treatPacket(reader.get());
+            if (status == DONE) {
+                var packet = reader.get();
+                metrics.received(packet.type());
+                admit(packet);
+            }
             reader.reset();
             processIn();
         }
-        public void queueMessage(Packet packet) {
-            queueMessage(packet.toBuffer());
-        }
 
         /**
-         * Do an action depending on the {@code packet}'s type.
-         * @param packet the processed packet.
+         * Routes the packet if the {@link #limiter} allows it now. Otherwise, holds it until it does,
+         * drops it, or drops it and sends {@link Packet.ErrorCode#RATE_LIMITED}, depending on its limit.
+         * @param packet the packet.
          */
-        private void treatPacket(Packet packet) {
-            onPacketReceived(packet, pseudo);
-            switch (packet.type()) {
-                case ERR -> onError(packet);
-                case GMSG -> broadcast(makeGeneralMessagePacket(packet.message(), packet.pseudo()), this);
-                case DMSG -> onDirectMessage(packet);
-                case PC -> onPrivateConnection(packet);
+        private void admit(Packet packet) {
+            var delay = limiter.acquire(packet.type());
+            if (delay == 0) {
+                router.route(this, packet);
+                return;
+            }
+            metrics.limited(packet.type());
+            switch (limiter.overflow(packet.type())) {
+                case DELAY -> {
+                    held = packet;
+                    release = timers.schedule(delay, TimeUnit.NANOSECONDS, this::release);
+                }
+                case DROP -> {}
+                case NOTIFY -> queueMessage(makeErrorPacket(RATE_LIMITED).toBuffer(), Priority.CONTROL);
             }
         }
 
         /**
-         * If the error code contained {@code packet} is
-         * {@link Packet.ErrorCode#REJECTED}, tries to remove
-         * the pending connection between the two clients and forwards the rejection to
-         * the other client.
-         *
-         * @param packet the packet containing the error.
+         * Routes the held packet once the limiter allows it, then reads the client again.
          */
-        private void onError(Packet packet) {
-            if (packet.code() != REJECTED) return;
-            var token = computeToken(packet.pseudo(), pseudo);
-            if (!pendingPrivateConnections.contains(token)) return;
-            pendingPrivateConnections.remove(token);
-            if (!clients.containsKey(packet.pseudo())) return;
-            clients.get(packet.pseudo()).queueMessage(makeRejectedPacket(pseudo));
+        private void release() {
+            var packet = held;
+            held = null;
+            admit(packet);
+            processIn();
+            updateInterestOps();
         }
 
         /**
-         * Sends a direct message to {@code packet.pseudo()} if the client is connected;
-         * otherwise sends an error packet to this client.
-         *
-         * @param packet the packet containing the direct message.
+         * @return false while a packet is held or while the client is paused.
          */
-        private void onDirectMessage(Packet packet) {
-            if (pseudo.equals(packet.pseudo()) || !clients.containsKey(packet.pseudo())) {
-                queueMessage(makeErrorPacket(DEST_ERROR));
-            } else {
-                clients.get(packet.pseudo()).queueMessage(makeDirectMessagePacket(packet.message(), pseudo));
-            }
+        @Override
+        protected boolean acceptsInput() {
+            return held == null && pausedFor == null;
+        }
+
+        @Override
+        public void close() {
+            if (release != null) release.cancel();
+            super.close();
+            resumePaused();
+        }
+
+        @Override
+        public void pauseFor(ChatRouter.Member peer) {
+            if (pausedFor != null || !(peer instanceof ClientContext context)) return;
+            pausedFor = context;
+            context.paused.add(this);
         }
 
         /**
-         * The reception of this packet can be:<br/>
-         *  - when a client ask for a private connection with another client.<br/>
-         *  - when a client respond to a request.<br/>
-         * In any case, this method will first check if the other client is connected and not
-         * himself. (otherwise send an error packet)
-         * <br/>
-         * After this check, if the two clients are already connected, do nothing.
-         * If this is a response, validate the pending connection and send to the
-         * two clients the token used to represent the connection.
-         * If this is a request, add the token in the pending connection and wait until
-         * the other client accept or reject the connection.
-         *
-         * @param packet the packet containing the private connection.
+         * Reads again the clients paused by this one, once at most {@link ChatRouter#STREAM_QUEUE_LIMIT} bytes
+         * are queued for it, or once it is closed.
          */
-        private void onPrivateConnection(Packet packet) {
-            if (pseudo.equals(packet.pseudo()) || !clients.containsKey(packet.pseudo())) {
-                queueMessage(makeErrorPacket(DEST_ERROR));
-                return;
-            }
-            var tokenAB = computeToken(pseudo, packet.pseudo());
-            var tokenBA = computeToken(packet.pseudo(), pseudo);
-            if (privateConnections.containsKey(tokenAB)) { // implique que la connection existe déjà
-                // Ignore car déjà connecté
-                System.out.println("Already connected!");
-            } else if (pendingPrivateConnections.contains(tokenBA)) { // implique que BA avait demandé une connection
-                // Accepte la connection
-                onPrivateConnectionAccept(tokenBA, packet.pseudo());
-            } else if (!pendingPrivateConnections.contains(tokenAB)) { // implique qu'on avait pas encore demandé de connection
-                // Demande de connection
-                onPrivateConnectionRequest(tokenAB, packet.pseudo());
+        private void resumePaused() {
+            if (paused.isEmpty() || isOpen() && queuedBytes() > ChatRouter.STREAM_QUEUE_LIMIT) return;
+            var resumed = List.copyOf(paused);
+            paused.clear();
+            for (var context : resumed) {
+                context.pausedFor = null;
+                if (!context.isOpen()) continue;
+                context.processIn();
+                context.updateInterestOps();
             }
         }
 
+        @Override
+        public String pseudo() {
+            return pseudo;
+        }
+
         /**
-         * If the packet represents a private connection request,
-         * store the request in the server and forwards the request to the
-         * {@code other} client.
-         *
-         * @param token the identifier of the connection.
-         * @param other the pseudo of the other client.
+         * Queues the packet in the lane of its {@link Priority}.
+         * @param buff the packet in read-mode.
          */
-        private void onPrivateConnectionRequest(int token, String other) {
-            pendingPrivateConnections.add(token);
-            clients.get(other).queueMessage(makePrivateConnectionPacket(pseudo));
+        @Override
+        public void send(ByteBuffer buff) {
+            metrics.sent(buff);
+            queueMessage(buff, Priority.of(buff));
         }
+
         /**
-         * If the packet represents a private connection positive response,
-         * removes the connection from the pending connection and adds it into
-         * the actual established connections.
-         * Also sends a {@link Packet.PacketType#TOKEN} packet
-         * to the two clients with the private connection identifier.
-         * And finally change the token associated with
-         *
-         * @param token the identifier of the connection.
-         * @param other the pseudo of the other client.
+         * Writes the buffers with a single gathering write (straight from the {@link HistoryRing}
+         * after the authentication), and only copies what the socket doesn't accept now.
+         * @param buffers the buffers in read-mode.
          */
-        private void onPrivateConnectionAccept(int token, String other) {
-            tokenMap.put(new TokenKey(other, pseudo), token);
-            pendingPrivateConnections.remove(token);
-            privateConnections.put(token, new PrivateConnection(token));
-            queueMessage(makeTokenPacket(token, other));
-            clients.get(other).queueMessage(makeTokenPacket(token, pseudo));
+        @Override
+        public void sendAll(ByteBuffer... buffers) {
+            writeNow(Priority.CONTROL, buffers);
+        }
+
+        @Override
+        public List<ByteBuffer> evict() {
+            logger.info("Connection closed with " + pseudo + " : session resumed by another connection");
+            return closeAndDrain();
         }
 
         @Override
         public int updateInterestOps() {
             var op = super.updateInterestOps();
-            if (op == 0) clients.remove(pseudo);
+            if (op == 0 && acceptsInput()) router.unregister(this);
+            resumePaused();
             return op;
         }
     }
@@ -276,9 +438,16 @@ public final class ServerChatOS {
      * To establish a private connection you must register two {@link SelectionKey} with
      * {@link #addSelectionKey(SelectionKey, ByteBuffer)}. After that all bytes read from one connection
      * will be sent to the other and vice-versa.
+     * <br>
+     * The two connections are handed off to a {@link RelayWorker} once paired, so the selector of
+     * the server only relays them if they can't be handed off (e.g. the relay toward another server
+     * of the cluster is still sending the token).
+     * <br>
+     * The private connection is closed if it isn't paired within {@link #PAIRING_TIMEOUT} seconds.
      */
     private final class PrivateConnection {
         private final class PrivateConnectionContext extends AbstractContext implements Context {
+            private final SelectionKey key;
             private PrivateConnectionContext linked;
 
             /**
@@ -289,23 +458,58 @@ public final class ServerChatOS {
              * @param remaining what remains in the previous context. Should be in write-mode.
              */
             private PrivateConnectionContext(SelectionKey key, ByteBuffer remaining) {
-                super(key);
+                super(key, flushScheduler, metrics);
+                this.key = key;
                 setConnected();
                 requireNonNull(remaining);
                 changing.put(key, this);
-                key.interestOps(0);
+                setInterestOps(0);
                 if (remaining.flip().hasRemaining())
                     bbIn.put(remaining);
                 remaining.compact();
             }
 
+            /**
+             * Creates the relay of the private connection toward another server of the cluster.
+             * The token is sent first, so the other server sees the relay as the end of the private connection.
+             * The data read before the link with the other end is kept in {@link #bbIn}.
+             *
+             * @param key the key of the connection to the other server.
+             * @param connected true if the connection is already established.
+             * @param pseudo the pseudo sent with the token.
+             */
+            private PrivateConnectionContext(SelectionKey key, boolean connected, String pseudo) {
+                super(key, flushScheduler, metrics);
+                this.key = key;
+                if (connected) setConnected();
+                key.attach(this);
+                queueMessage(makeTokenPacket(token, pseudo).toBuffer());
+            }
+
             /**
              * Send all data in {@link #bbIn} to the linked context.
              */
             @Override
             public void processIn() {
-                linked.forwardMessage(bbIn.flip());
+                if (linked == null) return;
+                var event = new RelayChunkEvent();
+                event.begin();
+                var bytes = bbIn.flip().remaining();
+                linked.forwardMessage(bbIn);
                 bbIn.clear();
+                if (bytes != 0 && event.shouldCommit()) {
+                    event.token = token;
+                    event.bytes = bytes;
+                    event.commit();
+                }
+            }
+
+            /**
+             * @return false until the context is linked with the other end.
+             */
+            @Override
+            protected boolean acceptsInput() {
+                return linked != null;
             }
             /**
              * Copies all data from {@code other} into the queue.
@@ -327,12 +531,50 @@ public final class ServerChatOS {
             public void closeBoth() {
                 PrivateConnection.this.closeBoth();
             }
+            /**
+             * @return true if the socket is connected and every queued output has been written.
+             */
+            private boolean canHandOff() {
+                return isConnected() && !hasPendingOutput();
+            }
+            /**
+             * Removes the socket from the selector of the server.
+             * @return what has been read and not yet relayed. In write-mode.
+             */
+            private ByteBuffer detach() {
+                key.cancel();
+                changing.remove(key);
+                var pending = ByteBuffer.allocate(bbIn.position()).put(bbIn.flip());
+                bbIn.clear();
+                return pending;
+            }
+            /**
+             * @return the socket of this context.
+             */
+            private SocketChannel channel() {
+                return (SocketChannel) key.channel();
+            }
         }
 
         private final ArrayList<PrivateConnectionContext> contexts = new ArrayList<>(2);
+        private final TimerWheel.Timeout deadline;
         private final int token;
+        /**
+         * True if this only splices a connection to the server of its client (never in {@link #privateConnections}).
+         */
+        private final boolean splice;
+
         public PrivateConnection(int token) {
+            this(token, false);
+        }
+
+        private PrivateConnection(int token, boolean splice) {
             this.token = token;
+            this.splice = splice;
+            deadline = timers.schedule(PAIRING_TIMEOUT, TimeUnit.SECONDS, () -> {
+                logger.info("Private connection " + token + " not paired within " + PAIRING_TIMEOUT + " seconds");
+                closeBoth();
+            });
         }
 
         /**
@@ -341,10 +583,11 @@ public final class ServerChatOS {
          */
         private void closeBoth() {
             logger.info("Private connection closed");
-            contexts.get(0).close();
-            contexts.get(1).close();
+            deadline.cancel();
+            contexts.forEach(PrivateConnectionContext::close);
+            if (splice) return;
             privateConnections.remove(token);
-            tokenMap.values().removeIf(v -> v == token); // According to the doc, this removes also the key (https://docs.oracle.com/en/java/javase/15/docs/api/java.base/java/util/Map.html#values())
+            router.onPrivateConnectionClosed(token);
         }
 
         /**
@@ -356,10 +599,40 @@ public final class ServerChatOS {
          * @throws IllegalStateException if there's already 2 registered connections and
          */
         public void addSelectionKey(SelectionKey key, ByteBuffer remaining) {
+            add(new PrivateConnectionContext(key, remaining));
+        }
+
+        /**
+         * Creates the relay of the private connection toward another server of the cluster and registers it.
+         * @param key the key of the connection to the other server.
+         * @param connected true if the connection is already established.
+         * @param pseudo the pseudo sent with the token.
+         * @throws IllegalStateException if there's already 2 registered connections.
+         */
+        private void addRelay(SelectionKey key, boolean connected, String pseudo) {
+            add(new PrivateConnectionContext(key, connected, pseudo));
+        }
+
+        /**
+         * Registers a context. When there's 2 context registered, links them and start listening/writing.
+         * @param context the new context.
+         * @throws IllegalStateException if there's already 2 registered connections.
+         */
+        private void add(PrivateConnectionContext context) {
             if (contexts.size() == 2)
                 throw new IllegalStateException("Too much client with the same token.");
-            contexts.add(new PrivateConnectionContext(key, remaining));
+            contexts.add(context);
             if (contexts.size() != 2) return;
+            deadline.cancel();
+            var first = contexts.get(0);
+            var second = contexts.get(1);
+            if (first.canHandOff() && second.canHandOff()) {
+                if (!splice) privateConnections.remove(token);
+                var worker = Arrays.stream(relayWorkers).min(Comparator.comparingInt(RelayWorker::active)).orElseThrow();
+                worker.handOff(token, first.channel(), first.detach(), second.channel(), second.detach(),
+                        splice ? t -> {} : router::onPrivateConnectionClosed);
+                return;
+            }
             contexts.get(0).link(contexts.get(1));
             contexts.get(1).link(contexts.get(0));
             contexts.get(0).processIn();
@@ -367,20 +640,64 @@ public final class ServerChatOS {
         }
     }
 
+    private static final Logger logger = Logger.getLogger(ServerChatOS.class.getName());
     /**
-     * Just a tuple of string.
+     * Pseudo sent with the token by the relays of the private connections. Ignored by the servers.
      */
-    private static record TokenKey(String k1, String k2) {}
-
-    private static final Logger logger = Logger.getLogger(ServerChatOS.class.getName());
+    private static final String RELAY_PSEUDO = "relay";
+    /**
+     * Number of {@link RelayWorker}s: the other cores than the one of the selector of the server.
+     */
+    private static final int RELAY_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    /**
+     * Delay for a new connection to authenticate or present a token (or a node index), in seconds.
+     */
+    static final long HANDSHAKE_TIMEOUT = 30;
+    /**
+     * Delay for the second end of a private connection to arrive, in seconds.
+     */
+    static final long PAIRING_TIMEOUT = 30;
+    /**
+     * Directory of the {@link OfflineStore}s, with a subdirectory per port.
+     */
+    static final String OFFLINE_DIRECTORY = "offline";
+    /**
+     * System property of the limits of the clients, read by {@link #main(String[])}.
+     */
+    static final String LIMITS_PROPERTY = "chatos.limits";
+    /**
+     * System property of the interface of the metrics endpoint, read by {@link #main(String[])}.
+     * The endpoint is only bound to the loopback if it's not set.
+     */
+    static final String ADMIN_HOST_PROPERTY = "chatos.admin.host";
+    /**
+     * System property of the secret shared by the servers of a cluster, read by {@link #main(String[])}.
+     */
+    static final String CLUSTER_SECRET_PROPERTY = "chatos.cluster.secret";
+    /**
+     * Delay between two logs of the statistics of the server, in seconds.
+     */
+    private static final long STATS_PERIOD = 60;
 
     private final HashMap<Integer, PrivateConnection> privateConnections = new HashMap<>();
-    private final HashSet<Integer> pendingPrivateConnections = new HashSet<>();
     private final HashMap<SelectionKey, Context> changing = new HashMap<>();
-    private final HashMap<String, ClientContext> clients = new HashMap<>();
-    private final HashMap<TokenKey, Integer> tokenMap = new HashMap<>();
+    private final FlushScheduler flushScheduler = new FlushScheduler();
+    private final ServerMetrics metrics = new ServerMetrics();
+    private RateLimits limits = RateLimits.parse(RateLimits.DEFAULT);
+    private final TimerWheel timers = new TimerWheel(100, TimeUnit.MILLISECONDS, 512);
     private final ServerSocketChannel serverSocketChannel;
+    /**
+     * The socket accepting the links (and relays) of the other servers sharing the port. Null if the port isn't shared.
+     */
+    private final ServerSocketChannel linkSocketChannel;
     private final Selector selector;
+    private final ClusterNode cluster;
+    private final ChatRouter router;
+    private final RelayWorker[] relayWorkers;
+    /**
+     * Start of the current iteration of the selection loop: when the first key has been selected. 0 if none has been.
+     */
+    private long iterationStart;
 
     /**
      * Initialize the server with the given port on localhost.
@@ -389,24 +706,141 @@ public final class ServerChatOS {
      * @throws IOException if an I/O error occurs.
      */
     public ServerChatOS(int port) throws IOException {
+        this(new InetSocketAddress(port), null, -1, null);
+    }
+
+    /**
+     * Initialize a server of a cluster.
+     * @param nodes the addresses of every server of the cluster. Cannot be null.
+     * @param node the index of this server in {@code nodes}. The server is bound to the port of its address.
+     * @param secret the secret shared by the servers of the cluster, presented by their links. Cannot be null.
+     * @throws IllegalArgumentException if {@code node} isn't a valid index or if {@code secret} is empty.
+     * @throws AlreadyBoundException if the port is already taken.
+     * @throws IOException if an I/O error occurs.
+     */
+    public ServerChatOS(List<InetSocketAddress> nodes, int node, String secret) throws IOException {
+        this(null, requireNonNull(nodes), node, requireNonNull(secret));
+    }
+
+    /**
+     * Initialize a server sharing its port with other processes of the same host, with {@code SO_REUSEPORT}:
+     * the kernel spreads the new connections among the servers.
+     * The servers form a cluster whose links go through the loopback, the server {@code shard}
+     * accepting them on the port {@code port + 1 + shard}.
+     * @param port the port shared by the servers.
+     * @param shard the index of this server, from 0 to {@code shards - 1}.
+     * @param shards the number of servers sharing the port.
+     * @param secret the secret shared by the servers, presented by their links. Cannot be null.
+     * @throws IllegalArgumentException if {@code shard} isn't a valid index or if {@code secret} is empty.
+     * @throws UnsupportedOperationException if the system doesn't support {@code SO_REUSEPORT}.
+     * @throws AlreadyBoundException if a port is already taken.
+     * @throws IOException if an I/O error occurs.
+     */
+    public ServerChatOS(int port, int shard, int shards, String secret) throws IOException {
+        this(new InetSocketAddress(port), shardNodes(port, shards), shard, requireNonNull(secret));
+    }
+
+    /**
+     * @param address the address of the clients, null to use the one of the cluster. Shared with {@code SO_REUSEPORT}
+     *                in a cluster.
+     * @param nodes the addresses of the links of the cluster, null for a standalone server.
+     * @param node the index of this server in {@code nodes}.
+     * @param secret the secret of the cluster, null for a standalone server.
+     */
+    private ServerChatOS(InetSocketAddress address, List<InetSocketAddress> nodes, int node, String secret)
+            throws IOException {
+        selector = Selector.open();
+        var shared = address != null && nodes != null;
+        if (nodes == null) {
+            cluster = null;
+        } else {
+            cluster = new ClusterNode(nodes, node, selector, flushScheduler, metrics, this::openRelay, secret);
+            if (!shared) address = new InetSocketAddress(cluster.address().getPort());
+        }
         serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.bind(new InetSocketAddress(port));
+        if (shared) {
+            if (!serverSocketChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                serverSocketChannel.close();
+                throw new UnsupportedOperationException("SO_REUSEPORT isn't supported on this system");
+            }
+            serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            linkSocketChannel = ServerSocketChannel.open();
+            linkSocketChannel.bind(cluster.address());
+            linkSocketChannel.configureBlocking(false);
+        } else {
+            linkSocketChannel = null;
+        }
+        serverSocketChannel.bind(address);
         serverSocketChannel.configureBlocking(false);
-        selector = Selector.open();
+        // Opened once the port is ours, so a failed bind leaves the store of the running server alone
+        var store = cluster == null ? address.getPort() : cluster.address().getPort();
+        var offline = new OfflineStore(Path.of(OFFLINE_DIRECTORY, String.valueOf(store)));
+        router = new ChatRouter(token -> privateConnections.put(token, new PrivateConnection(token)),
+                (delay, unit, task) -> timers.schedule(delay, unit, task)::cancel, offline, cluster, !shared);
+        if (cluster != null) cluster.setRouter(router);
+        relayWorkers = new RelayWorker[RELAY_WORKERS];
+        for (var i = 0; i < relayWorkers.length; i++) {
+            relayWorkers[i] = new RelayWorker("relay-" + i);
+        }
+        metrics.watch(router, relayWorkers);
     }
 
     /**
-     * Starts the server.
+     * @param port the port shared by the servers.
+     * @param shards the number of servers.
+     * @return the addresses of the links of the servers sharing {@code port}, on the loopback.
+     * @throws IllegalArgumentException if {@code shards} isn't positive.
+     */
+    private static List<InetSocketAddress> shardNodes(int port, int shards) {
+        if (shards <= 0) throw new IllegalArgumentException("Invalid number of servers " + shards);
+        var nodes = new ArrayList<InetSocketAddress>();
+        for (var shard = 0; shard < shards; shard++) {
+            nodes.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port + 1 + shard));
+        }
+        return nodes;
+    }
+
+    /**
+     * Starts the server, after registering the {@link ChatOSEvents}.
      * Treats all keys and after tries to update the context of the key that need a change.
+     * Then runs the expired timers of {@link #timers}: the selection lasts at most until the next tick of
+     * the wheel while a timer is scheduled.
+     * Finally, flushes once every context that received messages during the selection.
+     * In a cluster, a periodic timer opens the missing links.
+     * The duration of each iteration, from the first selected key to the end of the flush, is recorded
+     * in the {@link #metrics}, which are also registered as an MBean.
      * @throws IOException if the server cannot accept a connection. (i.e. if the {@link #serverSocketChannel} is closed).
      */
     public void launch() throws IOException {
+        ChatOSEvents.register();
+        logger.info("Limits of the clients : " + limits);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        if (linkSocketChannel != null) linkSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        var port = cluster == null ? ((InetSocketAddress) serverSocketChannel.getLocalAddress()).getPort()
+                : cluster.address().getPort();
+        try {
+            MetricsMBean.register(metrics.registry(), ServerMetrics.objectName(port));
+        } catch (JMException e) {
+            logger.warning("Cannot register the metrics in JMX : " + e.getMessage());
+        }
+        for (var worker : relayWorkers) worker.start();
+        timers.scheduleAtFixedRate(STATS_PERIOD, TimeUnit.SECONDS, this::logStats);
+        if (cluster != null) {
+            cluster.connectMissing();
+            flushScheduler.flush();
+            timers.scheduleAtFixedRate(ClusterNode.RECONNECT_DELAY, TimeUnit.MILLISECONDS, cluster::connectMissing);
+        }
         while(!Thread.interrupted()) {
             try {
-                selector.select(this::treatKey);
-                changing.forEach(SelectionKey::attach);
+                selector.select(this::treatKey, timers.timeout());
+                if (iterationStart == 0) iterationStart = System.nanoTime();
+                changing.forEach(this::upgrade);
                 changing.clear();
+                timers.expire();
+                flushScheduler.flush();
+                metrics.iteration(System.nanoTime() - iterationStart, selector.keys().size(), timers.size(),
+                        privateConnections.size());
+                iterationStart = 0;
             } catch (UncheckedIOException tunneled) {
                 throw tunneled.getCause();
             }
@@ -414,120 +848,268 @@ public final class ServerChatOS {
     }
 
     /**
-     * Do the available action (whether Accept, Write or Read) on the key.
+     * Replaces the context of a connection, once it has been identified.
+     * @param key the key of the connection.
+     * @param context the new context.
+     * @see ContextUpgradeEvent
+     */
+    private void upgrade(SelectionKey key, Context context) {
+        var event = new ContextUpgradeEvent();
+        var previous = key.attach(context);
+        if (event.shouldCommit()) {
+            event.from = previous == null ? null : previous.getClass().getSimpleName();
+            event.to = context.getClass().getSimpleName();
+            event.commit();
+        }
+    }
+
+    /**
+     * Sets the limits of the packets of each client ({@link RateLimits#DEFAULT} by default).
+     * Must be called before {@link #launch()}.
+     * @param limits the limits. Cannot be null.
+     */
+    public void setRateLimits(RateLimits limits) {
+        this.limits = requireNonNull(limits);
+    }
+
+    /**
+     * Serves the metrics of this server in the Prometheus text format on {@code http://localhost:port/metrics},
+     * from a thread of its own. Only the local host can read them.
+     * @param port the port of the endpoint.
+     * @throws IOException if the port cannot be bound.
+     */
+    public void startAdmin(int port) throws IOException {
+        new AdminEndpoint(port, metrics.registry()).start();
+    }
+
+    /**
+     * Same as {@link #startAdmin(int)}, on an interface chosen by {@code host} (e.g. {@code 0.0.0.0} for all of them).
+     * @param host the host name or address of the interface. Cannot be null.
+     * @param port the port of the endpoint.
+     * @throws IOException if the address cannot be bound.
+     */
+    public void startAdmin(String host, int port) throws IOException {
+        new AdminEndpoint(new InetSocketAddress(requireNonNull(host), port), metrics.registry()).start();
+    }
+
+    /**
+     * Starts the metrics endpoint on the interface given by {@value #ADMIN_HOST_PROPERTY}, the loopback by default.
+     * @param port the port of the endpoint.
+     * @throws IOException if the address cannot be bound.
+     */
+    private void startAdminFromProperties(int port) throws IOException {
+        var host = System.getProperty(ADMIN_HOST_PROPERTY);
+        if (host == null) startAdmin(port);
+        else startAdmin(host, port);
+    }
+
+    /**
+     * Logs the state of the router, the private connections waiting for their second end and the relay workers.
+     */
+    private void logStats() {
+        logger.info(router.stats() + ", " + privateConnections.size() + " not handed off, "
+                + selector.keys().size() + " keys, " + timers.size() + " timers, relays : "
+                + Arrays.toString(relayWorkers));
+    }
+
+    /**
+     * Do the available action (whether Accept, Connect, Write or Read) on the key.
      * If a key (other than {@link #serverSocketChannel}) is closed unregisters
-     * it properly and remove it from the {@link #clients} if it's a client.
+     * it properly and remove it from the {@link #router} if it's a client.
+     * An unexpected exception closes the connection that raised it, not the server.
      *
      * @param key the current key to treat.
      * @throws UncheckedIOException if the {@link #serverSocketChannel} is closed.
      */
     private void treatKey(SelectionKey key) {
+        if (iterationStart == 0) iterationStart = System.nanoTime();
         try {
-            if (key.isValid() && key.isAcceptable()) doAccept();
+            if (key.isValid() && key.isAcceptable()) doAccept((ServerSocketChannel) key.channel());
         } catch(IOException ioe) {  // Tunneling
             throw new UncheckedIOException(ioe);
         }
         var ctx = (Context) key.attachment();
         try {
+            if (key.isValid() && key.isConnectable()) ctx.doConnect();
             if (key.isValid() && key.isWritable()) ctx.doWrite();
             if (key.isValid() && key.isReadable()) ctx.doRead();
         } catch (IOException e) {
-            if (ctx instanceof ClientContext cliCtx) {
-                logger.info("Connection closed with client due to IOException");
-                silentlyClose(key.channel(), cliCtx.pseudo);
-            } else if (ctx instanceof PrivateConnection.PrivateConnectionContext pcCtx) {
-                pcCtx.closeBoth();
-            } else if (ctx instanceof ConnectionContext conCtx) {
-                logger.info("Connection closed with client due to IOException");
-                conCtx.close();
-            }
+            closeAfterError(ctx, e);
+        } catch (RuntimeException e) {   // A bug triggered by one connection must not stop the server
+            logger.log(Level.SEVERE, "Unexpected error on " + key.channel() + ", connection closed", e);
+            closeAfterError(ctx, e);
+            if (key.isValid()) ChatOSUtils.silentlyClose(key.channel());
+        }
+    }
+
+    /**
+     * Closes the connection of {@code ctx} after an error, as its kind requires.
+     * @param ctx the context of the connection.
+     * @param e the error.
+     */
+    private void closeAfterError(Context ctx, Exception e) {
+        if (ctx instanceof ClientContext cliCtx) {
+            logger.info("Connection closed with client due to " + e.getClass().getSimpleName());
+            silentlyClose(cliCtx);
+        } else if (ctx instanceof PrivateConnection.PrivateConnectionContext pcCtx) {
+            pcCtx.closeBoth();
+        } else if (ctx instanceof ConnectionContext conCtx) {
+            logger.info("Connection closed with client due to " + e.getClass().getSimpleName());
+            conCtx.close();
+        } else if (ctx instanceof ClusterNode.PeerContext peerCtx) {
+            logger.info("Link closed due to " + e.getClass().getSimpleName() + " : " + e.getMessage());
+            peerCtx.close();
         }
     }
 
     /**
-     * Accepts connections from the {@link #serverSocketChannel} if possible.
+     * Accepts connections from the {@link #serverSocketChannel} (or the {@link #linkSocketChannel}) if possible.
      * The client is configured blocking and has a {@link ConnectionContext} attched to it.
      *
+     * @param server the socket with a pending connection.
      * @throws IOException if an I/O error occurs.
      */
-    private void doAccept() throws IOException {
-        var client = serverSocketChannel.accept();
+    private void doAccept(ServerSocketChannel server) throws IOException {
+        var client = server.accept();
         if (client == null) {
             logger.info("Wrong hint from selector");
         } else {
+            metrics.accepted();
             client.configureBlocking(false);
             var clientKey = client.register(selector, OP_READ);
-            clientKey.attach(new ConnectionContext(clientKey));
+            clientKey.attach(new ConnectionContext(clientKey, server == linkSocketChannel));
         }
     }
     /**
-     * Closes the connection without crashing if the connection is already closed.
-     * Removes the given pseudo from the {@link #clients}.
-     * And sends a message to all connecter clients that this client has disconnected.
-     * If the pseudo is unknown use {@link ChatOSUtils#silentlyClose(Channel)} instead.
-     * @param channel the channel to close. Cannot be null.
-     * @param pseudo the pseudo to remove. Cannot be null.
-     * @throws NullPointerException if {@code pseudo} or the {@code channel} is null.
-     */
-    private void silentlyClose(Channel channel, String pseudo) {
-        clients.remove(requireNonNull(pseudo));
-        broadcast(makeGeneralMessagePacket("has disconnected", pseudo), null);
-        ChatOSUtils.silentlyClose(channel);
+     * Opens the relay of the private connection {@code token} toward another server of the cluster.
+     * Closes the private connection if the relay cannot be opened.
+     * @param token the token of the private connection.
+     * @param address the address of the other server.
+     */
+    private void openRelay(int token, InetSocketAddress address) {
+        var connection = privateConnections.get(token);
+        if (connection != null) openRelay(connection, address, RELAY_PSEUDO);
     }
 
     /**
-     * Send the same {@link Packet} to every clients connected other that
-     * {@code sender}.
-     * @param msg the message to broadcast. Cannot be null.
-     * @param sender the sender of this message. Can be null if everyone need to receive this message.
+     * Opens the relay of a private connection toward another server of the cluster.
+     * Closes the private connection if the relay cannot be opened.
+     * @param connection the private connection.
+     * @param address the address of the other server.
+     * @param pseudo the pseudo sent with the token.
      */
-    public void broadcast(Packet msg, ClientContext sender) {
-        requireNonNull(msg);
-        clients.values().stream().filter(client -> client != sender).forEach(client -> client.queueMessage(msg));
+    private void openRelay(PrivateConnection connection, InetSocketAddress address, String pseudo) {
+        try {
+            var sc = SocketChannel.open();
+            sc.configureBlocking(false);
+            var connected = sc.connect(address);
+            connection.addRelay(sc.register(selector, OP_CONNECT), connected, pseudo);
+        } catch (IOException ioe) {
+            logger.warning("Cannot open the relay of the private connection " + connection.token + " : " + ioe.getMessage());
+            connection.closeBoth();
+        }
     }
 
     /**
-     * Computes an integer that represent momentarily this two pseudos.
-     * The result can differ if the pseudos are in another order, in other words these two
-     * line aren't ensured to give the same values.
-     * <blockquote><pre>
-     *     var tokenAB = computeToken("A", "B");
-     *     var tokenBA = computeToken("B", "A"); </pre></blockquote>
-     * The only way to ensure that these two tokens are equals is to change
-     * the values contained in {@link #tokenMap}.
-     *
-     * @param c1 the first pseudo. Cannot be null.
-     * @param c2 the second pseudo. Cannot be null.
-     * @return the token associated with the two pseudos.
-     */
-    public int computeToken(String c1, String c2) {
-        var key = new TokenKey(c1, c2);
-        if (!tokenMap.containsKey(key)) {   // Ensure that the token is not already used.
-            int token;
-            do {
-                token = new Random().nextInt();
-            } while (tokenMap.containsValue(token));
-            tokenMap.put(key, token);
-        }
-        return tokenMap.get(key);
+     * Closes the connection without crashing if the connection is already closed.
+     * Gives the given client and its queued output to the {@link #router}, which keeps them until
+     * the client resumes its session (or notifies the other clients if it cannot).
+     * If the client is unknown use {@link ChatOSUtils#silentlyClose(Channel)} instead.
+     * @param client the client to remove. Cannot be null.
+     * @throws NullPointerException if {@code client} is null.
+     */
+    private void silentlyClose(ClientContext client) {
+        router.disconnect(requireNonNull(client), client.closeAndDrain());
     }
 
     /**
      * Main method.
-     * Only starts the server if there's 1 arguments.
+     * Only starts the server if there's 1 to 3 arguments, 3 or 4 arguments for a server of a cluster,
+     * or 4 or 5 arguments for a server sharing its port.
+     * The second argument chooses the engine: "nio" (default) for this class
+     * or "threads" for {@link ThreadedServerChatOS}.
+     * A server of a cluster is started with "cluster", its index and the addresses (host:port)
+     * of every server of the cluster, separated by commas. It always uses this engine.
+     * A server sharing its port with other processes (see {@link #ServerChatOS(int, int, int, String)}) is started
+     * with "shard", its index, the number of servers and the port; its metrics endpoint is on the
+     * given port plus its index.
+     * The last optional argument is the port of the metrics endpoint (see {@link #startAdmin(int)}),
+     * only available with this engine. The endpoint is bound to the loopback, unless the system property
+     * {@value #ADMIN_HOST_PROPERTY} gives another interface.
+     * The servers of a cluster or sharing a port must be given the same secret with the system property
+     * {@value #CLUSTER_SECRET_PROPERTY}; their links are refused without it.
+     * The limits of the clients are read from the system property {@value #LIMITS_PROPERTY}
+     * (see {@link RateLimits#parse(String)}), {@link RateLimits#DEFAULT} if it's not set.
      *
      * @param args the programs arguments.
-     * @throws NumberFormatException if the first argument isn't an integer.
+     * @throws NumberFormatException if the port or the index isn't an integer.
      * @throws IOException if an I/O error occurs.
      */
     public static void main(String[] args) throws NumberFormatException, IOException {
-        if (args.length != 1) {
+        var limits = RateLimits.parse(System.getProperty(LIMITS_PROPERTY, RateLimits.DEFAULT));
+        var secret = System.getProperty(CLUSTER_SECRET_PROPERTY);
+        var linked = args.length >= 1 && (args[0].equals("shard") || args[0].equals("cluster"));
+        if (linked && (secret == null || secret.isEmpty())) {
+            System.out.println("The system property " + CLUSTER_SECRET_PROPERTY + " must give the secret of the cluster");
             usage();
-        } else {
-            new ServerChatOS(Integer.parseInt(args[0])).launch();
+            return;
+        }
+        if ((args.length == 4 || args.length == 5) && args[0].equals("shard")) {
+            var shard = Integer.parseInt(args[1]);
+            var server = new ServerChatOS(Integer.parseInt(args[3]), shard, Integer.parseInt(args[2]), secret);
+            server.setRateLimits(limits);
+            if (args.length == 5) server.startAdminFromProperties(Integer.parseInt(args[4]) + shard);
+            server.launch();
+            return;
+        }
+        if ((args.length == 3 || args.length == 4) && args[0].equals("cluster")) {
+            var server = new ServerChatOS(parseNodes(args[2]), Integer.parseInt(args[1]), secret);
+            server.setRateLimits(limits);
+            if (args.length == 4) server.startAdminFromProperties(Integer.parseInt(args[3]));
+            server.launch();
+            return;
+        }
+        if (args.length < 1 || args.length > 3) {
+            usage();
+            return;
+        }
+        var port = Integer.parseInt(args[0]);
+        switch (args.length >= 2 ? args[1] : "nio") {
+            case "nio" -> {
+                var server = new ServerChatOS(port);
+                server.setRateLimits(limits);
+                if (args.length == 3) server.startAdminFromProperties(Integer.parseInt(args[2]));
+                server.launch();
+            }
+            case "threads" -> {
+                if (args.length == 3) {
+                    usage();
+                    return;
+                }
+                var server = new ThreadedServerChatOS(port);
+                server.setRateLimits(limits);
+                server.launch();
+            }
+            default -> usage();
+        }
+    }
+    /**
+     * @param nodes addresses (host:port) separated by commas.
+     * @return the addresses.
+     * @throws IllegalArgumentException if an address doesn't have a port.
+     */
+    private static List<InetSocketAddress> parseNodes(String nodes) {
+        var addresses = new ArrayList<InetSocketAddress>();
+        for (var node : nodes.split(",")) {
+            var separator = node.lastIndexOf(':');
+            if (separator == -1) throw new IllegalArgumentException("Missing port : " + node);
+            addresses.add(new InetSocketAddress(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1))));
         }
+        return addresses;
     }
     private static void usage() {
-        System.out.println("Usage : ServerChatOS port");
+        System.out.println("Usage : ServerChatOS port [nio [admin-port]|threads]");
+        System.out.println("        -D" + CLUSTER_SECRET_PROPERTY + "=secret ServerChatOS cluster index host:port[,host:port...] [admin-port]");
+        System.out.println("        -D" + CLUSTER_SECRET_PROPERTY + "=secret ServerChatOS shard index count port [admin-port]");
     }
 }
@@ -0,0 +1,141 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import fr.uge.net.tcp.nonblocking.context.TrafficMeter;
+import fr.uge.net.tcp.nonblocking.metrics.LatencyHistogram;
+import fr.uge.net.tcp.nonblocking.metrics.MetricsRegistry;
+import fr.uge.net.tcp.nonblocking.packet.Packet.PacketType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The metrics of a {@link ServerChatOS}: the traffic of its contexts, the packets by type,
+ * the connections and the duration of the iterations of its selection loop.
+ * <br>
+ * Everything is updated by the thread of the selector (and the {@link RelayWorker}s) and read by the
+ * thread scraping the {@link #registry()}: the counters are {@link LongAdder}s, and the state owned by
+ * the selector is published once per iteration with {@link #iteration(long, int, int, int)}.
+ */
+final class ServerMetrics implements TrafficMeter {
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final LongAdder bytesRead = registry.counter("chatos_read_bytes_total", "Bytes read from the sockets of the selector");
+    private final LongAdder bytesWritten = registry.counter("chatos_written_bytes_total", "Bytes written on the sockets of the selector");
+    private final LongAdder accepted = registry.counter("chatos_accepted_connections_total", "Accepted connections");
+    private final LongAdder[] received = counters("chatos_received_packets_total", "Packets received, by type");
+    private final LongAdder[] sent = counters("chatos_sent_packets_total", "Packets queued to the clients, by type");
+    private final LongAdder[] limited = counters("chatos_limited_packets_total", "Packets over the rate limit of their client, by type");
+    private final LatencyHistogram loop = registry.histogram("chatos_loop_seconds",
+            "Duration of the work of an iteration of the selection loop, from the first selected key to the flush");
+    private final LongAdder queued = new LongAdder();
+    private volatile int keys;
+    private volatile int timers;
+    private volatile int pairing;
+
+    ServerMetrics() {
+        registry.gauge("chatos_connections", "Sockets registered in the selector, including the links of the cluster", () -> keys);
+        registry.gauge("chatos_queued_buffers", "Buffers waiting in the output lanes of the contexts", queued::sum);
+        registry.gauge("chatos_timers", "Timers scheduled in the timer wheel", () -> timers);
+        registry.gauge("chatos_pairing_private_connections", "Private connections waiting for their second end", () -> pairing);
+    }
+
+    /**
+     * Adds the gauges of the router and of the relay workers. Must be called once, before the server starts.
+     * @param router the router of the server. Cannot be null.
+     * @param workers the relay workers of the server. Cannot be null.
+     */
+    void watch(ChatRouter router, RelayWorker[] workers) {
+        requireNonNull(router);
+        requireNonNull(workers);
+        registry.gauge("chatos_clients", "Authenticated clients connected to this server", router::clientCount);
+        registry.gauge("chatos_relayed_private_connections", "Private connections currently relayed by the workers",
+                () -> sum(workers, RelayWorker::active));
+        registry.counter("chatos_relayed_private_connections_total", "Private connections relayed by the workers",
+                () -> sum(workers, RelayWorker::relayedConnections));
+        registry.counter("chatos_relayed_bytes_total", "Bytes relayed by the workers",
+                () -> sum(workers, RelayWorker::relayedBytes));
+    }
+
+    private LongAdder[] counters(String name, String help) {
+        return Arrays.stream(PacketType.values())
+                .map(type -> registry.counter(name, "type", type.name(), help))
+                .toArray(LongAdder[]::new);
+    }
+
+    private static long sum(RelayWorker[] workers, ToLongFunction<RelayWorker> value) {
+        return Arrays.stream(workers).mapToLong(value).sum();
+    }
+
+    /**
+     * @return the metrics, to export them.
+     */
+    MetricsRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * @return the name of the MBean of the server bound to {@code port}.
+     */
+    static String objectName(int port) {
+        return String.format(Locale.ROOT, "fr.uge.net.tcp.nonblocking:type=ServerChatOS,port=%d", port);
+    }
+
+    void accepted() {
+        accepted.increment();
+    }
+
+    /**
+     * @param type the type of a packet read from a connection.
+     */
+    void received(PacketType type) {
+        received[type.ordinal()].increment();
+    }
+
+    /**
+     * @param type the type of a packet over the rate limit of its client.
+     */
+    void limited(PacketType type) {
+        limited[type.ordinal()].increment();
+    }
+
+    /**
+     * @param packet an encoded packet queued for a client, in read-mode.
+     */
+    void sent(ByteBuffer packet) {
+        var type = packet.hasRemaining() ? packet.get(packet.position()) : -1;
+        if (type >= 0 && type < sent.length) sent[type].increment();
+    }
+
+    /**
+     * Records an iteration of the selection loop and publishes the state of the selector.
+     * @param nanos the duration of the iteration.
+     * @param keys the number of keys of the selector.
+     * @param timers the number of scheduled timers.
+     * @param pairing the number of private connections waiting for their second end.
+     */
+    void iteration(long nanos, int keys, int timers, int pairing) {
+        loop.record(nanos);
+        this.keys = keys;
+        this.timers = timers;
+        this.pairing = pairing;
+    }
+
+    @Override
+    public void bytesRead(int bytes) {
+        bytesRead.add(bytes);
+    }
+
+    @Override
+    public void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    @Override
+    public void queued(int delta) {
+        queued.add(delta);
+    }
+}
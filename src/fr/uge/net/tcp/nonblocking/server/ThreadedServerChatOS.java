@@ -0,0 +1,545 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+import fr.uge.net.tcp.nonblocking.display.ServerMessageDisplay;
+import fr.uge.net.tcp.nonblocking.jfr.ChatOSEvents;
+import fr.uge.net.tcp.nonblocking.jfr.RelayChunkEvent;
+import fr.uge.net.tcp.nonblocking.packet.Packet;
+import fr.uge.net.tcp.nonblocking.packet.PacketReader;
+import fr.uge.net.tcp.nonblocking.reader.RejectReader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import static fr.uge.net.tcp.nonblocking.packet.Packet.ErrorCode.AUTH_ERROR;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.ErrorCode.RATE_LIMITED;
+import static fr.uge.net.tcp.nonblocking.packet.Packet.PacketFactory.makeErrorPacket;
+import static fr.uge.net.tcp.nonblocking.reader.Reader.ProcessStatus.*;
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.BUFFER_MAX_SIZE;
+import static fr.uge.net.tcp.nonblocking.utils.ChatOSUtils.silentlyClose;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Thread-per-connection engine of the server.
+ * <br>
+ * Every connection is served by its own thread doing blocking reads, and every authenticated client
+ * has a second thread doing blocking writes of the packets queued by the {@link ChatRouter}.
+ * The threads are virtual threads when the JVM supports them (JDK 21+), platform threads otherwise.
+ * <br>
+ * The packets, the readers and the routing are the same as {@link ServerChatOS} so the two engines
+ * can be compared with the same workload.
+ */
+public final class ThreadedServerChatOS {
+    /**
+     * Maximum number of buffers waiting to be sent to a client.
+     * A client that doesn't read fast enough to stay below this limit is disconnected.
+     */
+    private static final int MAX_QUEUED = 4_096;
+    /**
+     * Maximum number of buffers written with a single call.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * An authenticated client.
+     * The router queues the buffers with {@link #send(ByteBuffer)} and the writer thread sends them.
+     */
+    private final class ClientConnection implements ChatRouter.Member {
+        private final ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final SocketChannel sc;
+        private final String pseudo;
+        private volatile boolean closed = false;
+        /**
+         * The client whose output must be written before this one is read again, null if none.
+         * Only used by the thread of the client (the router pauses the sender of the routed packet).
+         */
+        private ClientConnection pausedFor;
+        /**
+         * False once the client has been disconnected for not reading fast enough: some of its buffers
+         * have been dropped, so its session cannot be resumed.
+         */
+        private volatile boolean resumable = true;
+        private Future<?> writer;
+
+        private ClientConnection(SocketChannel sc, String pseudo) {
+            this.sc = requireNonNull(sc);
+            this.pseudo = requireNonNull(pseudo);
+        }
+
+        @Override
+        public String pseudo() {
+            return pseudo;
+        }
+
+        /**
+         * Queues the buffer without blocking.
+         * If the client is too slow (i.e. the queue is full), closes the connection.
+         * @param buff the buffer in read-mode.
+         */
+        @Override
+        public void send(ByteBuffer buff) {
+            if (closed) return;
+            var length = buff.remaining();
+            if (queue.offer(buff)) {
+                queuedBytes.addAndGet(length);
+                return;
+            }
+            logger.info("Connection closed with " + pseudo + " because it doesn't read fast enough");
+            resumable = false;
+            close();
+        }
+
+        @Override
+        public long queuedBytes() {
+            return queuedBytes.get();
+        }
+
+        @Override
+        public void pauseFor(ChatRouter.Member peer) {
+            if (peer instanceof ClientConnection connection) pausedFor = connection;
+        }
+
+        /**
+         * Waits until the client paused by the router can be read again
+         * (see {@link ChatRouter.Member#pauseFor(ChatRouter.Member)}). Called without holding the router lock.
+         * @throws InterruptedException if the thread is interrupted while waiting.
+         */
+        private void awaitResume() throws InterruptedException {
+            var peer = pausedFor;
+            if (peer == null) return;
+            pausedFor = null;
+            synchronized (peer) {
+                while (!peer.closed && peer.queuedBytes.get() > ChatRouter.STREAM_QUEUE_LIMIT) peer.wait();
+            }
+        }
+
+        /**
+         * Closes the connection, whose session is resumed by another connection.
+         * @return the buffers that the writer thread hasn't taken yet.
+         */
+        @Override
+        public List<ByteBuffer> evict() {
+            logger.info("Connection closed with " + pseudo + " : session resumed by another connection");
+            close();
+            return drain();
+        }
+
+        /**
+         * @return the buffers that the writer thread hasn't taken yet, removed from the queue.
+         */
+        private List<ByteBuffer> drain() {
+            var buffers = new ArrayList<ByteBuffer>();
+            queue.drainTo(buffers);
+            return buffers;
+        }
+
+        /**
+         * Starts the writer thread.
+         */
+        private void start() {
+            writer = executor.submit(this::writeLoop);
+        }
+
+        /**
+         * Sends the queued buffers until the connection is closed.
+         * The buffers already queued are sent with a single gathering write.
+         */
+        private void writeLoop() {
+            var batch = new ArrayList<ByteBuffer>(MAX_BATCH);
+            try {
+                while (!closed) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    var buffers = batch.toArray(ByteBuffer[]::new);
+                    var left = 0L;
+                    for (var buffer : buffers) left += buffer.remaining();
+                    var length = left;
+                    while (left > 0) left -= sc.write(buffers);
+                    batch.clear();
+                    if (queuedBytes.addAndGet(-length) <= ChatRouter.STREAM_QUEUE_LIMIT) wakeUp();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection and stops the writer thread.
+         */
+        private void close() {
+            closed = true;
+            silentlyClose(sc);
+            if (writer != null) writer.cancel(true);
+            wakeUp();
+        }
+
+        /**
+         * Wakes up the threads of the clients paused by this one.
+         */
+        private synchronized void wakeUp() {
+            notifyAll();
+        }
+    }
+
+    /**
+     * The two ends of a private connection.
+     * Each end is served by its own thread copying everything it reads to the other end.
+     */
+    private final class PrivateConnection {
+        private final SocketChannel[] ends = new SocketChannel[2];
+        private final int token;
+        private final Future<?> deadline;
+        private int count = 0;
+        private boolean closed = false;
+
+        private PrivateConnection(int token) {
+            this.token = token;
+            deadline = timers.schedule(() -> {
+                logger.info("Private connection " + token + " not paired within " + ServerChatOS.PAIRING_TIMEOUT + " seconds");
+                closeBoth();
+            }, ServerChatOS.PAIRING_TIMEOUT, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Registers an end of the connection.
+         * @param sc the end.
+         * @return the index of the end.
+         * @throws IllegalStateException if there's already 2 registered ends.
+         */
+        private synchronized int add(SocketChannel sc) {
+            if (count == 2) throw new IllegalStateException("Too much client with the same token.");
+            ends[count] = sc;
+            if (count == 1) deadline.cancel(false);
+            notifyAll();
+            return count++;
+        }
+
+        /**
+         * Waits until the other end is registered.
+         * @param index the index of this end.
+         * @return the other end, or null if the connection has been closed meanwhile.
+         * @throws InterruptedException if the thread is interrupted while waiting.
+         */
+        private synchronized SocketChannel awaitOther(int index) throws InterruptedException {
+            while (ends[1 - index] == null && !closed) wait();
+            return closed ? null : ends[1 - index];
+        }
+
+        /**
+         * Closes the two ends of the private connection and removes it from
+         * the private connections.
+         */
+        private void closeBoth() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                notifyAll();
+            }
+            logger.info("Private connection closed");
+            for (var end : ends) {
+                if (end != null) silentlyClose(end);
+            }
+            privateConnections.remove(token);
+            router.onPrivateConnectionClosed(token);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(ThreadedServerChatOS.class.getName());
+
+    private final ConcurrentHashMap<Integer, PrivateConnection> privateConnections = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timers = newTimers();
+    private final ChatRouter router;
+    private RateLimits limits = RateLimits.parse(RateLimits.DEFAULT);
+    private final ServerSocketChannel serverSocketChannel;
+    private final ExecutorService executor;
+
+    /**
+     * Initialize the server with the given port on localhost.
+     * @param port the port the server is bound to.
+     * @throws java.nio.channels.AlreadyBoundException if the port is already taken.
+     * @throws IOException if an I/O error occurs.
+     */
+    public ThreadedServerChatOS(int port) throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port));
+        router = new ChatRouter(token -> privateConnections.put(token, new PrivateConnection(token)),
+                (delay, unit, task) -> {
+                    var future = timers.schedule(task, delay, unit);
+                    return () -> future.cancel(false);
+                },
+                new OfflineStore(Path.of(ServerChatOS.OFFLINE_DIRECTORY, String.valueOf(port))));
+        executor = newExecutor();
+    }
+
+    /**
+     * Creates the daemon thread running the delayed tasks: the expiries of the router and the deadlines
+     * of the handshakes ({@link ServerChatOS#HANDSHAKE_TIMEOUT}) and of the pairings
+     * ({@link ServerChatOS#PAIRING_TIMEOUT}). A cancelled task is removed at once.
+     * @return the executor.
+     */
+    private static ScheduledThreadPoolExecutor newTimers() {
+        var timers = new ScheduledThreadPoolExecutor(1, task -> {
+            var thread = new Thread(task, "timers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timers.setRemoveOnCancelPolicy(true);
+        return timers;
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task if the JVM supports them.
+     * The method is looked up by reflection so the project still compiles and runs with older JDKs.
+     * @return the executor.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            var method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            logger.info("Using virtual threads");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.info("Virtual threads are not available, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Sets the limits of the packets of each client ({@link RateLimits#DEFAULT} by default).
+     * Must be called before {@link #launch()}.
+     * @param limits the limits. Cannot be null.
+     */
+    public void setRateLimits(RateLimits limits) {
+        this.limits = requireNonNull(limits);
+    }
+
+    /**
+     * Starts the server, after registering the {@link ChatOSEvents}.
+     * Accepts the connections and serves each of them on its own thread.
+     * @throws IOException if the server cannot accept a connection. (i.e. if the {@link #serverSocketChannel} is closed).
+     */
+    public void launch() throws IOException {
+        ChatOSEvents.register();
+        logger.info("Limits of the clients : " + limits);
+        try {
+            while (!Thread.interrupted()) {
+                var sc = serverSocketChannel.accept();
+                executor.execute(() -> serve(sc));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the first packets of a connection until an authentication or a token.
+     * Then serves the connection as a client or as an end of a private connection.
+     * @param sc the new connection.
+     */
+    private void serve(SocketChannel sc) {
+        var bbIn = ByteBuffer.allocate(BUFFER_MAX_SIZE);
+        var reader = new PacketReader(true);
+        var rejectReader = new RejectReader("???");
+        Consumer<ByteBuffer> output = buff -> write(sc, buff);
+        var deadline = timers.schedule(() -> {
+            logger.info("Connection closed : no identification within " + ServerChatOS.HANDSHAKE_TIMEOUT + " seconds");
+            silentlyClose(sc);
+        }, ServerChatOS.HANDSHAKE_TIMEOUT, TimeUnit.SECONDS);
+        try {
+            Packet packet;
+            while ((packet = nextPacket(sc, bbIn, reader, rejectReader, output, "???")) != null) {
+                switch (packet.type()) {
+                    case AUTH -> {
+                        ServerMessageDisplay.onAuthPacket(sc, packet.pseudo());
+                        var client = new ClientConnection(sc, packet.pseudo());
+                        var registered = new CompletableFuture<Boolean>();
+                        router.register(client, registered::complete);
+                        if (registered.join()) {
+                            deadline.cancel(false);
+                            client.start();
+                            serveClient(client, bbIn);
+                            return;
+                        }
+                        write(sc, makeErrorPacket(AUTH_ERROR).toBuffer());
+                    }
+                    case RESUME -> {
+                        ServerMessageDisplay.onResumePacket(sc, packet.pseudo());
+                        var client = new ClientConnection(sc, packet.pseudo());
+                        if (router.resume(client, Long.parseLong(packet.message()))) {
+                            deadline.cancel(false);
+                            client.start();
+                            serveClient(client, bbIn);
+                            return;
+                        }
+                        write(sc, makeErrorPacket(AUTH_ERROR).toBuffer());
+                    }
+                    case TOKEN -> {
+                        var token = Integer.parseInt(packet.message());
+                        ServerMessageDisplay.onTokenPacket(sc, token);
+                        var connection = privateConnections.get(token);
+                        if (connection != null) {
+                            deadline.cancel(false);
+                            relay(connection, sc, bbIn);
+                            return;
+                        }
+                        logger.warning("Invalid token received : " + token);
+                    }
+                    default -> {}
+                }
+            }
+        } catch (IOException ioe) {
+            logger.info("Connection closed with client due to IOException");
+        }
+        deadline.cancel(false);
+        silentlyClose(sc);
+    }
+
+    /**
+     * Reads the packets of an authenticated client and gives them to the {@link #router}
+     * until the connection is closed, within the {@link #limits} of the server.
+     * A connection closed by the client ends its session; a connection lost on an error is
+     * {@link ChatRouter#disconnect(ChatRouter.Member, List) kept} by the router, so the client can resume it.
+     * @param client the client.
+     * @param bbIn what has already been read from the connection. In write-mode.
+     */
+    private void serveClient(ClientConnection client, ByteBuffer bbIn) {
+        var reader = new PacketReader(true);
+        var rejectReader = new RejectReader(client.pseudo);
+        var limiter = limits.limiter();
+        var lost = false;
+        try {
+            Packet packet;
+            while ((packet = nextPacket(client.sc, bbIn, reader, rejectReader, client::send, client.pseudo)) != null) {
+                admit(client, limiter, packet);
+            }
+        } catch (IOException ioe) {
+            logger.info("Connection closed with client due to IOException");
+            lost = client.resumable;
+        } catch (InterruptedException e) {
+            // The server is stopping
+        } finally {
+            client.close();
+            if (lost) router.disconnect(client, client.drain());
+            else router.unregister(client);
+        }
+    }
+
+    /**
+     * Routes the packet once the limiter allows it: the thread of the client sleeps while it's delayed,
+     * so the client isn't read meanwhile. Likewise, it waits after the routing while the client is paused. The packet can also be dropped, with or without
+     * {@link Packet.ErrorCode#RATE_LIMITED}, depending on its limit.
+     * @param client the sender.
+     * @param limiter the limiter of the client.
+     * @param packet the packet.
+     * @throws InterruptedException if the thread is interrupted while the packet is delayed or the client paused.
+     */
+    private void admit(ClientConnection client, RateLimits.Limiter limiter, Packet packet) throws InterruptedException {
+        long delay;
+        while ((delay = limiter.acquire(packet.type())) != 0) {
+            switch (limiter.overflow(packet.type())) {
+                case DELAY -> TimeUnit.NANOSECONDS.sleep(delay);
+                case DROP -> { return; }
+                case NOTIFY -> {
+                    client.send(makeErrorPacket(RATE_LIMITED).toBuffer());
+                    return;
+                }
+            }
+        }
+        router.route(client, packet);
+        client.awaitResume();
+    }
+
+    /**
+     * Copies everything read from {@code sc} to the other end of the private connection.
+     * @param connection the private connection.
+     * @param sc this end of the connection.
+     * @param bbIn what has already been read from this end. In write-mode.
+     */
+    private void relay(PrivateConnection connection, SocketChannel sc, ByteBuffer bbIn) {
+        try {
+            var other = connection.awaitOther(connection.add(sc));
+            if (other == null) return;
+            do {
+                var event = new RelayChunkEvent();
+                event.begin();
+                var bytes = bbIn.flip().remaining();
+                while (bbIn.hasRemaining()) other.write(bbIn);
+                bbIn.clear();
+                if (bytes != 0 && event.shouldCommit()) {
+                    event.token = connection.token;
+                    event.bytes = bytes;
+                    event.commit();
+                }
+            } while (sc.read(bbIn) != -1);
+        } catch (IOException | InterruptedException | IllegalStateException e) {
+            // The connection is closed below
+        } finally {
+            connection.closeBoth();
+            silentlyClose(sc);
+        }
+    }
+
+    /**
+     * Reads the next packet of the connection.
+     * The malformed packets are rejected like in {@link ServerChatOS}: an error packet is sent
+     * and every byte is ignored until the reception of {@link Packet.ErrorCode#ERROR_RECOVER}.
+     *
+     * @param sc the connection.
+     * @param bbIn the input buffer in write-mode.
+     * @param reader the reader of the packets.
+     * @param rejectReader the reader ignoring the bytes after an error.
+     * @param output where to send the error packets.
+     * @param pseudo the pseudo of the client (for the display).
+     * @return the packet, or null if the connection has been closed by the client.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static Packet nextPacket(SocketChannel sc, ByteBuffer bbIn, PacketReader reader,
+                                     RejectReader rejectReader, Consumer<ByteBuffer> output,
+                                     String pseudo) throws IOException {
+        while (true) {
+            if (rejectReader.process(bbIn) == DONE) {
+                var status = reader.process(bbIn);
+                if (status == DONE) {
+                    var packet = reader.get();
+                    reader.reset();
+                    return packet;
+                }
+                if (status == ERROR) {
+                    rejectReader.reject(reader.getFailure(), output, pseudo);
+                    reader.reset();
+                    continue;
+                }
+            }
+            if (sc.read(bbIn) == -1) return null;
+        }
+    }
+
+    /**
+     * Writes the whole buffer. Only used before the authentication (when no other thread writes).
+     * @param sc the connection.
+     * @param buff the buffer in read-mode.
+     */
+    private static void write(SocketChannel sc, ByteBuffer buff) {
+        try {
+            while (buff.hasRemaining()) sc.write(buff);
+        } catch (IOException ioe) {
+            silentlyClose(sc);
+        }
+    }
+}
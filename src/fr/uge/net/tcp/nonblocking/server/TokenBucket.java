@@ -0,0 +1,45 @@
+package fr.uge.net.tcp.nonblocking.server;
+
+/**
+ * Token bucket refilled lazily from a monotonic clock ({@link System#nanoTime()}).
+ * <br>
+ * The tokens are kept as a credit of nanoseconds: a token costs {@link #interval} nanoseconds
+ * and the credit never exceeds {@link #capacity}. So taking a token is a few additions on longs,
+ * without any timer to refill the bucket. Not thread-safe.
+ */
+final class TokenBucket {
+    private final long interval;
+    private final long capacity;
+    private long credit;
+    private long last;
+
+    /**
+     * Creates a full bucket.
+     * @param rate the number of tokens added per second. Must be positive.
+     * @param burst the maximum number of tokens. Must be positive.
+     * @param now the current time, in nanoseconds.
+     * @throws IllegalArgumentException if {@code rate} or {@code burst} isn't positive.
+     */
+    TokenBucket(double rate, int burst, long now) {
+        if (!(rate > 0) || burst <= 0) throw new IllegalArgumentException("Invalid limit " + rate + "/" + burst);
+        interval = Math.max(1, (long) (1e9 / rate));
+        capacity = interval * burst;
+        credit = capacity;
+        last = now;
+    }
+
+    /**
+     * Takes a token if there's one.
+     * @param now the current time, in nanoseconds.
+     * @return 0 if a token has been taken, otherwise the delay before the next token, in nanoseconds.
+     */
+    long take(long now) {
+        credit = Math.min(capacity, credit + (now - last));
+        last = now;
+        if (credit >= interval) {
+            credit -= interval;
+            return 0;
+        }
+        return interval - credit;
+    }
+}
@@ -29,6 +29,10 @@ public class ChatOSUtils {
      * Any content with a greater length than needed will be slitted in 2 HTTP Responses.
      */
     public static final int CONTENT_MAX_SIZE = BUFFER_MAX_SIZE - HTTP_HEADER_MAX_SIZE;
+    /**
+     * The maximum size of the content of a STREAM packet (= 2 ^ 14).
+     */
+    public static final int STREAM_FRAME_SIZE = 16_384;
     /**
      * Copies every data between 0 and {@code buff.limit()} inside a new buffer.
      * @param buff the buffer to copy. Won't be modified during the call of this method.